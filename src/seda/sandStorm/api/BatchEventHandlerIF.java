@@ -0,0 +1,51 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.api;
+
+/**
+ * A BatchEventHandlerIF is an EventHandlerIF which can accept a batch of
+ * events as a prefix of a (possibly larger) array. When both the stage's
+ * event handler implements this interface and its event queue implements
+ * BatchSourceIF, the thread manager passes the same buffer to the handler
+ * on every iteration rather than allocating a new array for each batch.
+ * 
+ * @author   Matt Welsh
+ * @see BatchSourceIF
+ */
+public interface BatchEventHandlerIF extends EventHandlerIF {
+
+  /**
+   * Handle the events contained in <code>elemarr[0]</code> through 
+   * <code>elemarr[length-1]</code>. The array is owned by the caller and
+   * will be reused after this method returns, so the handler must not 
+   * retain a reference to it.
+   *
+   * @exception EventHandlerException The application may throw an
+   *   exception to indicate an error condition during event processing.
+   */
+  public void handleEvents(QueueElementIF elemarr[], int length) 
+      throws EventHandlerException;
+
+}
@@ -0,0 +1,52 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.api;
+
+/**
+ * A BatchSourceIF is a SourceIF which can dequeue elements directly into
+ * a caller-supplied array, rather than allocating a new array on each
+ * call. This allows a thread which repeatedly pulls batches from the
+ * same source (such as a thread manager) to reuse a single buffer.
+ * 
+ * @author   Matt Welsh
+ * @see BatchEventHandlerIF
+ */
+
+public interface BatchSourceIF extends SourceIF {
+
+  /**
+   * Dequeues at most <code>max</code> available elements into
+   * <code>dst</code>, starting at index 0. Blocks up to 
+   * <code>timeoutNanos</code> nanoseconds for at least one element to
+   * become available; a timeout of 0 does not block, and a timeout of -1
+   * blocks forever. The contents of <code>dst</code> beyond the returned
+   * count are unspecified.
+   *
+   * @return The number of elements placed in <code>dst</code>, which is
+   *   0 if nothing was available before the timeout.
+   */
+  public int drainTo(QueueElementIF dst[], int max, long timeoutNanos);
+
+}
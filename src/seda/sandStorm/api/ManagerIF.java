@@ -85,6 +85,11 @@ public interface ManagerIF {
    */
   public ProfilerIF getProfiler();
 
+  /**
+   * Returns a handle to the system metrics registry.
+   */
+  public MetricsRegistryIF getMetrics();
+
   /**
    * Returns a copy of the SandstormConfig for this Manager. This contains all
    * of the global options used by the runtime system. Note that modifying
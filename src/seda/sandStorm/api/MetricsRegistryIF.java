@@ -0,0 +1,97 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.api;
+
+import seda.sandStorm.core.LogHistogram;
+
+/**
+ * A MetricsRegistryIF holds the named gauges, counters, and histograms
+ * exported by the runtime and by applications. Unlike the ProfilerIF,
+ * which samples its objects to a file only when profiling is enabled,
+ * the registry is always available, and is read on demand by the
+ * exporters: a JMX MBean, and an HTTP endpoint serving the metrics in
+ * the Prometheus text format or as JSON.
+ *
+ * <p>Metric names are free-form strings such as
+ * <tt>"ThreadPool &lt;myStage&gt;"</tt>; a trailing <tt>&lt;...&gt;</tt>
+ * names the object the metric belongs to, and is exported as a label.
+ * Every object registered with the ProfilerIF is also registered here
+ * as a gauge. Applications can get a handle to the registry by
+ * invoking ManagerIF.getMetrics().
+ *
+ * @author Matt Welsh
+ * @see ManagerIF
+ * @see ProfilerIF
+ */
+public interface MetricsRegistryIF {
+
+  /**
+   * Register a gauge, whose current value is given by the
+   * profileSize() of the given object. Replaces any metric already
+   * registered under the same name.
+   */
+  public void addGauge(String name, ProfilableIF gauge);
+
+  /**
+   * Register a counter. Replaces any metric already registered under
+   * the same name.
+   */
+  public void addCounter(String name, CounterIF counter);
+
+  /**
+   * Register a histogram. Replaces any metric already registered under
+   * the same name.
+   */
+  public void addHistogram(String name, LogHistogram histogram);
+
+  /**
+   * Remove the metric registered under the given name, if any.
+   */
+  public void remove(String name);
+
+  /**
+   * Return the names of all registered metrics, in sorted order.
+   */
+  public String[] getNames();
+
+  /**
+   * Return the current value of the named metric: an Integer for a
+   * gauge, a Long for a counter, and a HistogramSnapshot for a
+   * histogram. Returns null if no such metric is registered.
+   */
+  public Object getValue(String name);
+
+  /**
+   * Return all registered metrics in the Prometheus text exposition
+   * format.
+   */
+  public String toPrometheusText();
+
+  /**
+   * Return all registered metrics as a JSON object.
+   */
+  public String toJSON();
+
+}
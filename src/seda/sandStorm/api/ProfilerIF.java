@@ -24,6 +24,8 @@
 
 package seda.sandStorm.api;
 
+import seda.sandStorm.internal.CapacityPlanner;
+import seda.sandStorm.internal.EventTracer;
 import seda.sandStorm.internal.StageGraph;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -46,16 +48,38 @@ public interface ProfilerIF {
 
   /**
    * Add a class to the profile. This will cause the profiler to track
-   * the object's size over time.
+   * the object's size over time. The object is also registered as a
+   * gauge with the system's MetricsRegistryIF, even if profiling is
+   * disabled.
    *
    * @param name The name of the object as it should appear in the profile.
    * @param pr The object to profile.
    */
   public void add(String name, ProfilableIF pr);
 
+  /**
+   * Remove an object added with add() from the profile and from the
+   * metrics registry, for objects such as connections which do not
+   * last as long as the system. Does nothing if the object was not
+   * added.
+   */
+  public void remove(ProfilableIF pr);
+
   /**
    * Return a handle to the graph profiler. 
    */
   public StageGraph getGraphProfiler();
 
+  /**
+   * Return a handle to the event tracer, or null if tracing is
+   * disabled.
+   */
+  public EventTracer getTracer();
+
+  /**
+   * Return a handle to the capacity planner, or null if it is
+   * disabled.
+   */
+  public CapacityPlanner getCapacityPlanner();
+
 }
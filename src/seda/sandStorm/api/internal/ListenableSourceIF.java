@@ -0,0 +1,45 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.api.internal;
+
+import seda.sandStorm.api.*;
+
+/**
+ * A ListenableSourceIF is a SourceIF which can notify a listener when 
+ * new elements become available.
+ * 
+ * @author   Matt Welsh
+ * @see SourceListenerIF
+ */
+public interface ListenableSourceIF extends SourceIF {
+
+  /**
+   * Set the listener to be notified when elements are enqueued on this 
+   * source. Only one listener may be registered at a time; a value of 
+   * <code>null</code> removes the current listener.
+   */
+  public void setSourceListener(SourceListenerIF listener);
+
+}
@@ -24,6 +24,8 @@
 
 package seda.sandStorm.api.internal;
 
+import seda.sandStorm.core.*;
+
 /**
  * This interface allows various components of the system to record and
  * gather statistics about the stage during execution.
@@ -36,9 +38,15 @@ public interface StageStatsIF {
   /** Reset all statistics. */
   public void reset();
 
-  /** Record a service rate sample. */
+  /** Record a service rate sample, with 'time' in msec. */
   public void recordServiceRate(int numEvents, long time);
 
+  /** 
+   * Record that a batch of numEvents events took 'nanos' nanoseconds
+   * to process. Does not lock.
+   */
+  public void recordBatch(int numEvents, long nanos);
+
   /** Get a moving average of the stage's service rate. */
   public double getServiceRate();
 
@@ -54,5 +62,24 @@ public interface StageStatsIF {
    */
   public double get90thRT();
 
+  /** 
+   * Return the histogram of queue wait times in nanoseconds. When
+   * <tt>queue.waitTime.enable</tt> is set for the stage, its queue
+   * records into this histogram directly.
+   */
+  public LogHistogram getQueueWaitHistogram();
+
+  /** Return the histogram of batch service times in nanoseconds. */
+  public LogHistogram getBatchServiceHistogram();
+
+  /** 
+   * Return the histogram of per-event service times in nanoseconds,
+   * that is, of batch service times divided by the batch size.
+   */
+  public LogHistogram getEventServiceHistogram();
+
+  /** Return the histogram of batch sizes. */
+  public LogHistogram getBatchSizeHistogram();
+
 }
 
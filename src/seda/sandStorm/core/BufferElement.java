@@ -25,10 +25,18 @@
 package seda.sandStorm.core;
 
 import seda.sandStorm.api.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * A BufferElement is a QueueElementIF which represents a memory buffer.
  *
+ * <p>A BufferElement may also be leased from a BufferPool, in which case
+ * its data is held in a direct ByteBuffer rather than a byte array, and
+ * <tt>data</tt> is null. Such a buffer is reference counted: call 
+ * <tt>retain()</tt> to add a reference and <tt>release()</tt> to drop one;
+ * when the last reference is dropped the buffer goes back to the pool.
+ *
  * @author Matt Welsh 
  */
 public class BufferElement implements QueueElementIF {
@@ -62,6 +70,13 @@ public class BufferElement implements QueueElementIF {
    */
   public int offset;
 
+  // Set for buffers leased from a BufferPool
+  private BufferPool pool;
+  private ByteBuffer buffer;
+  private volatile int refCount;
+  private static final AtomicIntegerFieldUpdater refCountUpdater =
+    AtomicIntegerFieldUpdater.newUpdater(BufferElement.class, "refCount");
+
   /**
    * Create a BufferElement with the given data, an offset of 0, and a 
    * size of data.length.
@@ -106,8 +121,25 @@ public class BufferElement implements QueueElementIF {
     this(new byte[size], 0, size, null);
   }
 
+  // Used by BufferPool to wrap one of its buffers
+  BufferElement(BufferPool pool, ByteBuffer buffer) {
+    this.pool = pool;
+    this.buffer = buffer;
+  }
+
+  // Called by BufferPool when this buffer is handed out
+  void lease() {
+    this.offset = 0;
+    this.size = 0;
+    this.compQ = null;
+    this.userTag = null;
+    buffer.clear();
+    this.refCount = 1;
+  }
+
   /**
-   * Return the data.
+   * Return the data. Returns null if this buffer was leased from a
+   * BufferPool; use getByteBuffer() or getReadOnlyBuffer() instead.
    */
   public byte[] getBytes() {
     return data;
@@ -134,5 +166,60 @@ public class BufferElement implements QueueElementIF {
     return compQ;
   }
 
+  /**
+   * Return true if this buffer was leased from a BufferPool.
+   */
+  public boolean isPooled() {
+    return (pool != null);
+  }
+
+  /**
+   * Return a ByteBuffer for this buffer. For a pooled buffer this is the
+   * underlying direct buffer, which the holder of the lease may fill 
+   * (setting <tt>size</tt> accordingly). Otherwise this wraps 
+   * <tt>data</tt> from <tt>offset</tt> for <tt>size</tt> bytes.
+   */
+  public ByteBuffer getByteBuffer() {
+    if (pool != null) return buffer;
+    return ByteBuffer.wrap(data, offset, size);
+  }
+
+  /**
+   * Return a read-only view of the data, from <tt>offset</tt> for
+   * <tt>size</tt> bytes. Each call returns a new view with its own
+   * position, so views may be used concurrently; for a pooled buffer,
+   * the contents are only valid until the buffer is released.
+   */
+  public ByteBuffer getReadOnlyBuffer() {
+    if (pool != null) {
+      ByteBuffer view = buffer.asReadOnlyBuffer();
+      view.limit(offset + size);
+      view.position(offset);
+      return view;
+    }
+    return ByteBuffer.wrap(data, offset, size).asReadOnlyBuffer();
+  }
+
+  /**
+   * Add a reference to a pooled buffer. Has no effect on other buffers.
+   */
+  public void retain() {
+    if (pool != null) refCountUpdater.incrementAndGet(this);
+  }
+
+  /**
+   * Drop a reference to a pooled buffer, returning it to its pool when
+   * no references remain. Has no effect on other buffers.
+   */
+  public void release() {
+    if (pool == null) return;
+    int c = refCountUpdater.decrementAndGet(this);
+    if (c == 0) {
+      pool.free(this);
+    } else if (c < 0) {
+      throw new IllegalStateException("BufferElement: released more times than retained");
+    }
+  }
+
 }
 
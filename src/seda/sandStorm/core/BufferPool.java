@@ -0,0 +1,143 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A BufferPool hands out fixed-size direct ByteBuffers, wrapped in
+ * BufferElements, which are carved out of larger slabs of direct memory.
+ * Slabs are allocated on demand up to a maximum; once the pool is 
+ * exhausted <tt>allocate()</tt> returns null and the caller should fall 
+ * back to an ordinary heap buffer.
+ *
+ * <p>Each BufferElement handed out is a <i>lease</i> with a reference
+ * count of one. Calling <tt>BufferElement.release()</tt> for the last
+ * time returns the buffer (and the BufferElement itself) to the pool,
+ * so a BufferElement must not be touched after it has been released.
+ *
+ * @author Matt Welsh
+ * @see BufferElement
+ */
+public class BufferPool {
+
+  private static final boolean DEBUG = false;
+
+  private int bufferSize, buffersPerSlab, maxSlabs;
+  private int numSlabs;
+  // Stack of free leases; guarded by 'this'
+  private BufferElement free[];
+  private int numFree;
+
+  /**
+   * Create a BufferPool of buffers of the given size. 
+   *
+   * @param bufferSize The size in bytes of each buffer.
+   * @param buffersPerSlab The number of buffers carved from each slab.
+   * @param maxSlabs The maximum number of slabs to allocate; -1 for 
+   *   no limit.
+   */
+  public BufferPool(int bufferSize, int buffersPerSlab, int maxSlabs) {
+    if ((bufferSize <= 0) || (buffersPerSlab <= 0)) {
+      throw new IllegalArgumentException("BufferPool: bufferSize and buffersPerSlab must be positive");
+    }
+    this.bufferSize = bufferSize;
+    this.buffersPerSlab = buffersPerSlab;
+    this.maxSlabs = maxSlabs;
+    this.free = new BufferElement[buffersPerSlab];
+    this.numFree = 0;
+    this.numSlabs = 0;
+  }
+
+  /**
+   * Lease a buffer from the pool. The returned BufferElement has a 
+   * reference count of one, a size of zero, and a cleared ByteBuffer
+   * (see <tt>BufferElement.getByteBuffer()</tt>). Returns null if the 
+   * pool is exhausted.
+   */
+  public synchronized BufferElement allocate() {
+    if (numFree == 0) {
+      if ((maxSlabs != -1) && (numSlabs >= maxSlabs)) return null;
+      addSlab();
+    }
+    BufferElement buf = free[--numFree];
+    free[numFree] = null;
+    buf.lease();
+    return buf;
+  }
+
+  /**
+   * Return the size in bytes of each buffer in this pool.
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Return the number of buffers currently free in this pool.
+   */
+  public synchronized int numFree() {
+    return numFree;
+  }
+
+  /**
+   * Return the number of slabs allocated by this pool.
+   */
+  public synchronized int numSlabs() {
+    return numSlabs;
+  }
+
+  public String toString() {
+    return "BufferPool [bufferSize="+bufferSize+", slabs="+numSlabs()+", free="+numFree()+"]";
+  }
+
+  // Called by BufferElement.release() when the last reference is dropped
+  synchronized void free(BufferElement buf) {
+    if (numFree == free.length) {
+      BufferElement tmp[] = new BufferElement[free.length + buffersPerSlab];
+      System.arraycopy(free, 0, tmp, 0, numFree);
+      free = tmp;
+    }
+    free[numFree++] = buf;
+  }
+
+  // Carve a new slab into buffers and push them on the free stack
+  private void addSlab() {
+    if (DEBUG) System.err.println("BufferPool: allocating slab "+numSlabs);
+    ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+    if (free.length < numFree + buffersPerSlab) {
+      BufferElement tmp[] = new BufferElement[numFree + buffersPerSlab];
+      System.arraycopy(free, 0, tmp, 0, numFree);
+      free = tmp;
+    }
+    for (int i = 0; i < buffersPerSlab; i++) {
+      slab.limit((i + 1) * bufferSize);
+      slab.position(i * bufferSize);
+      free[numFree++] = new BufferElement(this, slab.slice());
+    }
+    numSlabs++;
+  }
+
+}
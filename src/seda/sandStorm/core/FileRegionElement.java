@@ -0,0 +1,126 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.core;
+
+import seda.sandStorm.api.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * A FileRegionElement is a QueueElementIF which represents a region of
+ * an open file. Enqueueing one on an ATcpConnection sends the region
+ * straight from the file to the socket (using FileChannel.transferTo
+ * where the aSocket provider supports it), without passing the data 
+ * through a BufferElement.
+ *
+ * <p>The FileChannel is not closed when the write completes; a
+ * SinkDrainedEvent carrying this element is pushed to the completion
+ * queue, if any, once the whole region has been written. If the
+ * connection closes before then, a SinkClosedEvent for the connection
+ * is pushed instead.
+ *
+ * @author Matt Welsh 
+ * @see BufferElement
+ */
+public class FileRegionElement implements QueueElementIF {
+
+  /** 
+   * The file from which data is sent.
+   */
+  public FileChannel channel;
+
+  /**
+   * The offset into the file of the start of the region.
+   */
+  public long position;
+
+  /**
+   * The number of bytes in the region.
+   */
+  public long count;
+
+  /**
+   * The completion queue associated with this region.
+   */
+  public SinkIF compQ;
+
+  /**
+   * A user-defined tag object associated with this region.
+   */
+  public Object userTag;
+
+  /**
+   * Create a FileRegionElement for the given region of the given file.
+   */
+  public FileRegionElement(FileChannel channel, long position, long count) {
+    this(channel, position, count, null);
+  }
+
+  /**
+   * Create a FileRegionElement for the given region of the given file,
+   * with the given completion queue.
+   */
+  public FileRegionElement(FileChannel channel, long position, long count, SinkIF compQ) {
+    if ((position < 0) || (count < 0)) {
+      throw new IllegalArgumentException("FileRegionElement created with invalid position and/or count (position="+position+", count="+count+")");
+    }
+    this.channel = channel;
+    this.position = position;
+    this.count = count;
+    this.compQ = compQ;
+  }
+
+  /**
+   * Return the file.
+   */
+  public FileChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Return the offset of the region.
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * Return the size of the region.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Return the completion queue for this region.
+   */
+  public SinkIF getCompletionQueue() {
+    return compQ;
+  }
+
+  public String toString() {
+    return "FileRegionElement [position="+position+", count="+count+"]";
+  }
+
+}
@@ -37,7 +37,7 @@ import java.util.Hashtable;
  * @see seda.sandStorm.api.QueueIF
  */
 
-public class FiniteQueue implements QueueIF, ProfilableIF {
+public class FiniteQueue implements QueueIF, BatchSourceIF, ListenableSourceIF, TimedSourceIF, ProfilableIF {
 
 	private static final boolean DEBUG = false;
 
@@ -47,6 +47,14 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 	private Hashtable provisionalTbl;
 	private EnqueuePredicateIF pred;
 	private String name;
+	private volatile SourceListenerIF listener;
+
+	// Wait time tracking: enqueue times in nanoseconds of the timed
+	// elements, oldest first, in a ring parallel to the tail of qlist.
+	// The first 'untimed' elements of qlist have no entry.
+	private LogHistogram waitHist;
+	private long enqueueTimes[];
+	private int timesHead, timesCount, untimed;
 
 	/**
 	 * Create a FiniteQueue with the given enqueue predicate.
@@ -102,6 +110,8 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 				if (DEBUG)
 					System.err.println("**** ENQUEUE (" + name + ") **** Add to tail");
 				qlist.add_to_tail(enqueueMe); // wake up one blocker
+				if (waitHist != null)
+					stampEnqueue(1);
 			}
 			// XXX MDW: Trying to track down a bug here ...
 			if (DEBUG)
@@ -111,6 +121,7 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 				System.err.println("**** ENQUEUE (" + name + ") **** Done with notify");
 			// blocker.notifyAll();
 		}
+		notifyListener();
 		if (DEBUG)
 			System.err.println("**** ENQUEUE (" + name + ") **** Exiting");
 	}
@@ -141,9 +152,12 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 				for (int i = 0; i < qlen; i++) {
 					qlist.add_to_tail(enqueueMe[i]);
 				}
+				if (waitHist != null)
+					stampEnqueue(qlen);
 			}
 			blocker.notifyAll(); // wake up all sleepers
 		}
+		notifyListener();
 	}
 
 	public QueueElementIF dequeue() {
@@ -156,6 +170,8 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 
 				el = (QueueElementIF) qlist.remove_head();
 				queueSize--;
+				if (waitHist != null)
+					recordDequeue(1);
 				return el;
 			}
 		}
@@ -174,6 +190,8 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 				for (int i = 0; i < qs; i++)
 					retIF[i] = (QueueElementIF) qlist.remove_head();
 				queueSize -= qs;
+				if (waitHist != null)
+					recordDequeue(qs);
 				return retIF;
 			}
 		}
@@ -192,6 +210,8 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 				for (int i = 0; i < qs; i++)
 					retIF[i] = (QueueElementIF) qlist.remove_head();
 				queueSize -= qs;
+				if (waitHist != null)
+					recordDequeue(qs);
 				return retIF;
 			}
 		}
@@ -218,6 +238,8 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 				for (int i = 0; i < qs; i++)
 					retIF[i] = (QueueElementIF) qlist.remove_head();
 				queueSize -= qs;
+				if (waitHist != null)
+					recordDequeue(qs);
 				return retIF;
 			}
 		}
@@ -367,6 +389,41 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 		}
 	}
 
+	public int drainTo(QueueElementIF[] dst, int max, long timeoutNanos) {
+		int num = Math.min(max, dst.length);
+		long goal_time = System.nanoTime() + timeoutNanos;
+
+		synchronized (blocker) {
+			while (true) {
+				synchronized (qlist) {
+					int qs = Math.min(qlist.size(), num);
+					if (qs > 0) {
+						for (int i = 0; i < qs; i++)
+							dst[i] = (QueueElementIF) qlist.remove_head();
+						queueSize -= qs;
+						if (waitHist != null)
+							recordDequeue(qs);
+						return qs;
+					}
+				}
+				if (timeoutNanos == 0)
+					return 0;
+
+				try {
+					if (timeoutNanos == -1) {
+						blocker.wait();
+					} else {
+						long remaining = goal_time - System.nanoTime();
+						if (remaining <= 0)
+							return 0;
+						blocker.wait(remaining / 1000000L, (int) (remaining % 1000000L));
+					}
+				} catch (InterruptedException ie) {
+				}
+			}
+		}
+	}
+
 	/**
 	 * Return the profile size of the queue.
 	 */
@@ -408,9 +465,12 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 				for (int i = 0; i < elements.length; i++) {
 					qlist.add_to_tail(elements[i]);
 				}
+				if (waitHist != null)
+					stampEnqueue(elements.length);
 			}
 			blocker.notifyAll();
 		}
+		notifyListener();
 	}
 
 	/**
@@ -441,6 +501,78 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 		return pred;
 	}
 
+	/**
+	 * Set the listener to be notified when elements are enqueued.
+	 */
+	public void setSourceListener(SourceListenerIF listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Record the time each element subsequently enqueued waits in the queue
+	 * in the given histogram, or stop doing so if it is null.
+	 */
+	public void setWaitTimeHistogram(LogHistogram hist) {
+		synchronized (blocker) {
+			synchronized (qlist) {
+				if ((hist != null) && (waitHist == null)) {
+					// Elements already queued were not stamped
+					untimed = qlist.size();
+					timesHead = timesCount = 0;
+					if (enqueueTimes == null)
+						enqueueTimes = new long[16];
+				}
+				waitHist = hist;
+			}
+		}
+	}
+
+	// Note the enqueue time of the last n elements added; called with
+	// qlist locked
+	private void stampEnqueue(int n) {
+		long now = System.nanoTime();
+		if (timesCount + n > enqueueTimes.length) {
+			int newlen = enqueueTimes.length;
+			while (newlen < timesCount + n)
+				newlen *= 2;
+			long tmp[] = new long[newlen];
+			for (int i = 0; i < timesCount; i++)
+				tmp[i] = enqueueTimes[(timesHead + i) % enqueueTimes.length];
+			enqueueTimes = tmp;
+			timesHead = 0;
+		}
+		int len = enqueueTimes.length;
+		for (int i = 0; i < n; i++)
+			enqueueTimes[(timesHead + timesCount + i) % len] = now;
+		timesCount += n;
+	}
+
+	// Record the wait times of the n elements just removed from the head;
+	// called with qlist locked
+	private void recordDequeue(int n) {
+		if (untimed > 0) {
+			int skip = Math.min(untimed, n);
+			untimed -= skip;
+			n -= skip;
+		}
+		if (n == 0)
+			return;
+		long now = System.nanoTime();
+		int len = enqueueTimes.length;
+		for (int i = 0; i < n; i++) {
+			waitHist.record(now - enqueueTimes[timesHead]);
+			timesHead = (timesHead + 1) % len;
+		}
+		timesCount -= n;
+	}
+
+	// Called outside of the queue locks
+	private void notifyListener() {
+		SourceListenerIF l = listener;
+		if (l != null)
+			l.sourceReady(this);
+	}
+
 	public String toString() {
 		return "FiniteQueue <" + name + ">";
 	}
@@ -0,0 +1,126 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.core;
+
+/**
+ * A HistogramSnapshot is an immutable copy of the contents of a
+ * LogHistogram, from which percentiles and other statistics can be
+ * read. The difference between two snapshots of the same histogram
+ * gives the distribution of the values recorded between them.
+ *
+ * @author Matt Welsh
+ * @see LogHistogram
+ */
+public class HistogramSnapshot {
+
+  private long counts[];
+  private long totalCount, totalSum, max;
+
+  HistogramSnapshot(long counts[], long totalCount, long totalSum, long max) {
+    this.counts = counts;
+    this.totalCount = totalCount;
+    this.totalSum = totalSum;
+    this.max = max;
+  }
+
+  /**
+   * Return the number of values in this snapshot.
+   */
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  /**
+   * Return the sum of the values in this snapshot.
+   */
+  public long getTotalSum() {
+    return totalSum;
+  }
+
+  /**
+   * Return the mean of the values in this snapshot, or 0 if it is
+   * empty.
+   */
+  public double getMean() {
+    if (totalCount == 0) return 0.0;
+    return (double)totalSum / totalCount;
+  }
+
+  /**
+   * Return the largest value recorded. For a snapshot returned by
+   * minus(), this is the largest value recorded up to the later
+   * snapshot.
+   */
+  public long getMax() {
+    return max;
+  }
+
+  /**
+   * Return the value at the given percentile, given as a fraction
+   * between 0.0 and 1.0 (so the median is 0.5). Returns 0 if the
+   * snapshot is empty.
+   */
+  public long getValueAtPercentile(double p) {
+    if (totalCount == 0) return 0;
+    if (p < 0.0) p = 0.0;
+    if (p > 1.0) p = 1.0;
+    long rank = (long)Math.ceil(p * totalCount);
+    if (rank < 1) rank = 1;
+
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+	// Middle of the bucket, but never more than the largest value
+	long low = LogHistogram.bucketLow(i);
+	long mid = low + ((LogHistogram.bucketHigh(i) - low) / 2);
+	return Math.min(mid, max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Return a snapshot of the values recorded after the given earlier
+   * snapshot of the same histogram, up to this one. If 'earlier' is
+   * null, returns this snapshot.
+   */
+  public HistogramSnapshot minus(HistogramSnapshot earlier) {
+    if (earlier == null) return this;
+    long diff[] = new long[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      diff[i] = counts[i] - earlier.counts[i];
+    }
+    return new HistogramSnapshot(diff, totalCount - earlier.totalCount,
+	totalSum - earlier.totalSum, max);
+  }
+
+  public String toString() {
+    return "count="+totalCount+" mean="+(long)getMean()+
+      " p50="+getValueAtPercentile(0.5)+" p99="+getValueAtPercentile(0.99)+
+      " p999="+getValueAtPercentile(0.999)+" max="+max;
+  }
+
+}
@@ -0,0 +1,524 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.core;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.api.internal.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The LockFreeQueue class is an implementation of the QueueIF interface
+ * built on a linked multi-producer, multi-consumer queue (after Michael
+ * and Scott). Enqueue and dequeue never take a lock; a consumer only
+ * parks on an internal monitor when the queue is empty and it has asked
+ * to block. It may be used in place of FiniteQueue for a stage by setting
+ * <tt>stages.&lt;stageName&gt;.queue.type</tt> (or
+ * <tt>global.queue.type</tt>) to <tt>lockfree</tt>.
+ *
+ * <p>The elements passed to <tt>enqueue_many</tt> and
+ * <tt>enqueue_commit</tt> are linked in as a single chain, so a consumer
+ * sees either all of them or none. Batch dequeues detach a run of elements
+ * from the head of the queue with a single compare-and-set. Note that the
+ * enqueue predicate is consulted without holding a lock, so a predicate
+ * based on the size of the queue (such as QueueThresholdPredicate) may be
+ * overshot slightly by concurrent producers.
+ * 
+ * @author Matt Welsh
+ * @see seda.sandStorm.api.QueueIF
+ * @see FiniteQueue
+ */
+
+public class LockFreeQueue implements QueueIF, BatchSourceIF, ListenableSourceIF, TimedSourceIF, ProfilableIF {
+
+	private static final boolean DEBUG = false;
+
+	private static final class Node {
+		QueueElementIF item;
+		// Enqueue time in nanoseconds, or 0 if the element is not timed
+		long time;
+		volatile Node next;
+
+		Node(QueueElementIF item) {
+			this.item = item;
+		}
+	}
+
+	private static final AtomicReferenceFieldUpdater<Node, Node> NEXT = AtomicReferenceFieldUpdater
+			.newUpdater(Node.class, Node.class, "next");
+	private static final AtomicReferenceFieldUpdater<LockFreeQueue, Node> HEAD = AtomicReferenceFieldUpdater
+			.newUpdater(LockFreeQueue.class, Node.class, "head");
+	private static final AtomicReferenceFieldUpdater<LockFreeQueue, Node> TAIL = AtomicReferenceFieldUpdater
+			.newUpdater(LockFreeQueue.class, Node.class, "tail");
+
+	// head always points at a dummy node; the elements are head.next onwards
+	private volatile Node head;
+	private volatile Node tail;
+	// Includes provisionally enqueued elements, as in FiniteQueue
+	private AtomicInteger queueSize;
+	// Number of consumers which are (about to be) waiting on blocker
+	private AtomicInteger waiters;
+	private Object blocker;
+	private ConcurrentHashMap provisionalTbl;
+	private volatile EnqueuePredicateIF pred;
+	private String name;
+	private volatile SourceListenerIF listener;
+	private volatile LogHistogram waitHist;
+
+	/**
+	 * Create a LockFreeQueue with the given enqueue predicate.
+	 */
+	public LockFreeQueue(EnqueuePredicateIF pred) {
+		this.name = null;
+		this.pred = pred;
+		head = tail = new Node(null);
+		queueSize = new AtomicInteger(0);
+		waiters = new AtomicInteger(0);
+		blocker = new Object();
+		provisionalTbl = new ConcurrentHashMap(1);
+	}
+
+	/**
+	 * Create a LockFreeQueue with no enqueue predicate.
+	 */
+	public LockFreeQueue() {
+		this((EnqueuePredicateIF) null);
+	}
+
+	/**
+	 * Create a LockFreeQueue with no enqueue predicate and the given name.
+	 * Used for debugging.
+	 */
+	public LockFreeQueue(String name) {
+		this((EnqueuePredicateIF) null);
+		this.name = name;
+	}
+
+	/**
+	 * Return the size of the queue.
+	 */
+	public int size() {
+		return queueSize.get();
+	}
+
+	public void enqueue(QueueElementIF enqueueMe) throws SinkFullException {
+		EnqueuePredicateIF p = pred;
+		if ((p != null) && (!p.accept(enqueueMe)))
+			throw new SinkFullException("LockFreeQueue is full!");
+		Node n = new Node(enqueueMe);
+		if (waitHist != null)
+			n.time = System.nanoTime();
+		queueSize.incrementAndGet();
+		append(n, n);
+		wakeup(false);
+		notifyListener();
+	}
+
+	public boolean enqueue_lossy(QueueElementIF enqueueMe) {
+		try {
+			this.enqueue(enqueueMe);
+		} catch (Exception e) {
+			return false;
+		}
+		return true;
+	}
+
+	public void enqueue_many(QueueElementIF[] enqueueMe) throws SinkFullException {
+		int qlen = enqueueMe.length;
+		checkPredicate(enqueueMe);
+		if (qlen == 0)
+			return;
+		queueSize.addAndGet(qlen);
+		link(enqueueMe);
+		wakeup(true);
+		notifyListener();
+	}
+
+	public QueueElementIF dequeue() {
+		while (true) {
+			Node h = head;
+			Node t = tail;
+			Node first = h.next;
+			if (h != head)
+				continue;
+			if (first == null)
+				return null;
+			if (h == t) {
+				// Tail is lagging behind an enqueue in progress; help it along
+				TAIL.compareAndSet(this, t, first);
+				continue;
+			}
+			QueueElementIF el = first.item;
+			if (HEAD.compareAndSet(this, h, first)) {
+				first.item = null;
+				queueSize.decrementAndGet();
+				recordWait(first, first);
+				return el;
+			}
+		}
+	}
+
+	public QueueElementIF[] dequeue_all() {
+		return detach(Integer.MAX_VALUE, false);
+	}
+
+	public QueueElementIF[] dequeue(int num) {
+		return detach(num, false);
+	}
+
+	public QueueElementIF[] dequeue(int num, boolean mustReturnNum) {
+		return detach(num, mustReturnNum);
+	}
+
+	public QueueElementIF[] blocking_dequeue_all(int timeout_millis) {
+		QueueElementIF[] rets = this.dequeue_all();
+		if ((rets != null) || (timeout_millis == 0))
+			return rets;
+
+		long goal_time = System.nanoTime() + timeout_millis * 1000000L;
+		waiters.incrementAndGet();
+		try {
+			synchronized (blocker) {
+				while (true) {
+					rets = this.dequeue_all();
+					if (rets != null)
+						return rets;
+					if (!park(timeout_millis == -1, goal_time))
+						return null;
+				}
+			}
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	public QueueElementIF[] blocking_dequeue(int timeout_millis, int num, boolean mustReturnNum) {
+		QueueElementIF[] rets = this.dequeue(num, mustReturnNum);
+		if ((rets != null) || (timeout_millis == 0))
+			return rets;
+
+		long goal_time = System.nanoTime() + timeout_millis * 1000000L;
+		waiters.incrementAndGet();
+		try {
+			synchronized (blocker) {
+				while (true) {
+					rets = this.dequeue(num, mustReturnNum);
+					if (rets != null)
+						return rets;
+					if (!park(timeout_millis == -1, goal_time)) {
+						// Timeout - take whatever we can get
+						return this.dequeue(num);
+					}
+				}
+			}
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	public QueueElementIF[] blocking_dequeue(int timeout_millis, int num) {
+		return blocking_dequeue(timeout_millis, num, false);
+	}
+
+	public QueueElementIF blocking_dequeue(int timeout_millis) {
+		QueueElementIF rets = this.dequeue();
+		if ((rets != null) || (timeout_millis == 0))
+			return rets;
+
+		long goal_time = System.nanoTime() + timeout_millis * 1000000L;
+		waiters.incrementAndGet();
+		try {
+			synchronized (blocker) {
+				while (true) {
+					rets = this.dequeue();
+					if (rets != null)
+						return rets;
+					if (!park(timeout_millis == -1, goal_time))
+						return null;
+				}
+			}
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	public int drainTo(QueueElementIF[] dst, int max, long timeoutNanos) {
+		int num = Math.min(max, dst.length);
+		int qs = detach(dst, num, false);
+		if ((qs != 0) || (timeoutNanos == 0))
+			return qs;
+
+		long goal_time = System.nanoTime() + timeoutNanos;
+		waiters.incrementAndGet();
+		try {
+			synchronized (blocker) {
+				while (true) {
+					qs = detach(dst, num, false);
+					if (qs != 0)
+						return qs;
+					if (!park(timeoutNanos == -1, goal_time))
+						return 0;
+				}
+			}
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Return the profile size of the queue.
+	 */
+	public int profileSize() {
+		return size();
+	}
+
+	/**
+	 * Provisionally enqueue the given elements.
+	 */
+	public Object enqueue_prepare(QueueElementIF enqueueMe[]) throws SinkException {
+		checkPredicate(enqueueMe);
+		queueSize.addAndGet(enqueueMe.length);
+		Object key = new Object();
+		provisionalTbl.put(key, enqueueMe);
+		return key;
+	}
+
+	/**
+	 * Commit a provisional enqueue.
+	 */
+	public void enqueue_commit(Object key) {
+		QueueElementIF elements[] = (QueueElementIF[]) provisionalTbl.remove(key);
+		if (elements == null)
+			throw new IllegalArgumentException("Unknown enqueue key " + key);
+		if (elements.length == 0)
+			return;
+		link(elements);
+		wakeup(true);
+		notifyListener();
+	}
+
+	/**
+	 * Abort a provisional enqueue.
+	 */
+	public void enqueue_abort(Object key) {
+		QueueElementIF elements[] = (QueueElementIF[]) provisionalTbl.remove(key);
+		if (elements == null)
+			throw new IllegalArgumentException("Unknown enqueue key " + key);
+		queueSize.addAndGet(-elements.length);
+	}
+
+	/**
+	 * Set the enqueue predicate for this sink.
+	 */
+	public void setEnqueuePredicate(EnqueuePredicateIF pred) {
+		this.pred = pred;
+	}
+
+	/**
+	 * Return the enqueue predicate for this sink.
+	 */
+	public EnqueuePredicateIF getEnqueuePredicate() {
+		return pred;
+	}
+
+	/**
+	 * Set the listener to be notified when elements are enqueued.
+	 */
+	public void setSourceListener(SourceListenerIF listener) {
+		this.listener = listener;
+	}
+
+	public String toString() {
+		return "LockFreeQueue <" + name + ">";
+	}
+
+	// Internal methods ----------------------------------------------------
+
+	// All-or-nothing check of the enqueue predicate, as in FiniteQueue
+	private void checkPredicate(QueueElementIF[] enqueueMe) throws SinkFullException {
+		EnqueuePredicateIF p = pred;
+		if (p != null) {
+			int qlen = enqueueMe.length;
+			int i = 0;
+			while ((i < qlen) && (p.accept(enqueueMe[i])))
+				i++;
+			if (i != qlen)
+				throw new SinkFullException("LockFreeQueue is full!");
+		}
+	}
+
+	// Build a chain of nodes for the given (nonempty) array and append it
+	private void link(QueueElementIF[] elements) {
+		long now = (waitHist != null) ? System.nanoTime() : 0;
+		Node first = new Node(elements[0]);
+		first.time = now;
+		Node last = first;
+		for (int i = 1; i < elements.length; i++) {
+			Node n = new Node(elements[i]);
+			n.time = now;
+			last.next = n;
+			last = n;
+		}
+		append(first, last);
+	}
+
+	// Atomically append the chain first..last to the tail of the queue
+	private void append(Node first, Node last) {
+		while (true) {
+			Node t = tail;
+			Node next = t.next;
+			if (t != tail)
+				continue;
+			if (next != null) {
+				TAIL.compareAndSet(this, t, next);
+			} else if (NEXT.compareAndSet(t, null, first)) {
+				TAIL.compareAndSet(this, t, last);
+				return;
+			}
+		}
+	}
+
+	// Detach up to 'max' elements into a newly allocated array
+	private QueueElementIF[] detach(int max, boolean exact) {
+		// queueSize never undercounts the linked elements
+		int num = Math.min(max, queueSize.get());
+		if ((num <= 0) || (exact && (num < max)))
+			return null;
+		QueueElementIF[] retIF = new QueueElementIF[num];
+		int qs = detach(retIF, num, exact);
+		if (qs == 0)
+			return null;
+		if (qs < num) {
+			QueueElementIF[] tmp = new QueueElementIF[qs];
+			System.arraycopy(retIF, 0, tmp, 0, qs);
+			retIF = tmp;
+		}
+		return retIF;
+	}
+
+	/*
+	 * Detach up to 'max' elements from the head of the queue into 'dst'
+	 * with a single CAS on head, returning the number detached. If 'exact'
+	 * is true, detach nothing unless 'max' elements are available.
+	 */
+	private int detach(QueueElementIF[] dst, int max, boolean exact) {
+		if (max <= 0)
+			return 0;
+		while (true) {
+			Node h = head;
+			Node t = tail;
+			Node first = h.next;
+			if (h != head)
+				continue;
+			if (first == null)
+				return 0;
+			if (h == t) {
+				TAIL.compareAndSet(this, t, first);
+				continue;
+			}
+
+			int qs = 1;
+			Node last = first;
+			Node n;
+			dst[0] = first.item;
+			while ((qs < max) && ((n = last.next) != null)) {
+				last = n;
+				dst[qs++] = n.item;
+			}
+			if (exact && (qs < max))
+				return 0;
+
+			if (HEAD.compareAndSet(this, h, last)) {
+				// 'last' becomes the new dummy head
+				last.item = null;
+				queueSize.addAndGet(-qs);
+				recordWait(first, last);
+				return qs;
+			}
+		}
+	}
+
+	/**
+	 * Record the time each element subsequently enqueued waits in the queue
+	 * in the given histogram, or stop doing so if it is null.
+	 */
+	public void setWaitTimeHistogram(LogHistogram hist) {
+		this.waitHist = hist;
+	}
+
+	// Record the wait times of the detached chain first..last
+	private void recordWait(Node first, Node last) {
+		LogHistogram hist = waitHist;
+		if (hist == null)
+			return;
+		long now = 0;
+		for (Node n = first; ; n = n.next) {
+			if (n.time != 0) {
+				if (now == 0)
+					now = System.nanoTime();
+				hist.record(now - n.time);
+			}
+			if (n == last)
+				break;
+		}
+	}
+
+	private void notifyListener() {
+		SourceListenerIF l = listener;
+		if (l != null)
+			l.sourceReady(this);
+	}
+
+	// Wake up consumers blocked on an empty queue, if there are any
+	private void wakeup(boolean all) {
+		if (waiters.get() == 0)
+			return;
+		synchronized (blocker) {
+			if (all)
+				blocker.notifyAll();
+			else
+				blocker.notify();
+		}
+	}
+
+	// Wait on blocker; returns false if the deadline has already passed
+	private boolean park(boolean forever, long goal_time) {
+		try {
+			if (forever) {
+				blocker.wait();
+			} else {
+				long remaining = goal_time - System.nanoTime();
+				if (remaining <= 0)
+					return false;
+				blocker.wait(remaining / 1000000L, (int) (remaining % 1000000L));
+			}
+		} catch (InterruptedException ie) {
+		}
+		return true;
+	}
+
+}
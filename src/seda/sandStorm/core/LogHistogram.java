@@ -0,0 +1,186 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.core;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A LogHistogram records the distribution of non-negative long values
+ * (such as latencies in nanoseconds) in logarithmically-sized buckets:
+ * each power of two is split into 32 linear sub-buckets, so the value
+ * reported for a percentile is within about 1.6% of the true one.
+ *
+ * <p>Recording is lock-free: the buckets are striped over a fixed number
+ * of shards, at least twice the number of processors, and each thread
+ * counts into the shard picked by its thread ID, so threads rarely
+ * contend. Readers merge the shards into a HistogramSnapshot. Values
+ * above 2^44 are counted in the highest bucket.
+ *
+ * @author Matt Welsh
+ * @see HistogramSnapshot
+ */
+public class LogHistogram {
+
+  static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int MAX_VALUE_BITS = 44;
+  static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+  static final int NUM_BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+  // Slots following the buckets in each shard
+  private static final int COUNT = NUM_BUCKETS;
+  private static final int SUM = NUM_BUCKETS + 1;
+  private static final int MAX = NUM_BUCKETS + 2;
+  private static final int SHARD_SIZE = NUM_BUCKETS + 3;
+
+  // A power of two, so that a shard can be picked with a mask
+  private static final int NUM_SHARDS = numShards();
+
+  // Shards are allocated when first recorded into
+  private AtomicReferenceArray shards = new AtomicReferenceArray(NUM_SHARDS);
+
+  /**
+   * Create an empty histogram.
+   */
+  public LogHistogram() {
+  }
+
+  /**
+   * Record a single value.
+   */
+  public void record(long value) {
+    record(value, 1);
+  }
+
+  /**
+   * Record 'count' occurrences of the given value.
+   */
+  public void record(long value, long count) {
+    if (value < 0) value = 0;
+    if (value > MAX_VALUE) value = MAX_VALUE;
+    AtomicLongArray s = shard();
+
+    s.getAndAdd(bucketIndex(value), count);
+    s.getAndAdd(COUNT, count);
+    s.getAndAdd(SUM, value * count);
+    long max;
+    while (value > (max = s.get(MAX))) {
+      if (s.compareAndSet(MAX, max, value)) break;
+    }
+  }
+
+  /**
+   * Return the number of values recorded. This is cheaper than
+   * taking a snapshot.
+   */
+  public long getTotalCount() {
+    long n = 0;
+    for (int i = 0; i < NUM_SHARDS; i++) {
+      AtomicLongArray s = (AtomicLongArray)shards.get(i);
+      if (s != null) n += s.get(COUNT);
+    }
+    return n;
+  }
+
+  /**
+   * Return the sum of the values recorded. This is cheaper than
+   * taking a snapshot.
+   */
+  public long getTotalSum() {
+    long n = 0;
+    for (int i = 0; i < NUM_SHARDS; i++) {
+      AtomicLongArray s = (AtomicLongArray)shards.get(i);
+      if (s != null) n += s.get(SUM);
+    }
+    return n;
+  }
+
+  /**
+   * Return a snapshot of the values recorded so far. Values recorded
+   * concurrently with the snapshot may or may not be included.
+   */
+  public HistogramSnapshot snapshot() {
+    long counts[] = new long[NUM_BUCKETS];
+    long total = 0, sum = 0, max = 0;
+    for (int i = 0; i < NUM_SHARDS; i++) {
+      AtomicLongArray s = (AtomicLongArray)shards.get(i);
+      if (s == null) continue;
+      for (int b = 0; b < NUM_BUCKETS; b++) {
+	long c = s.get(b);
+	counts[b] += c;
+	total += c;
+      }
+      sum += s.get(SUM);
+      max = Math.max(max, s.get(MAX));
+    }
+    return new HistogramSnapshot(counts, total, sum, max);
+  }
+
+  private AtomicLongArray shard() {
+    long id = Thread.currentThread().getId();
+    int h = (int)(id ^ (id >>> 32)) * 0x9e3779b9;
+    int i = (h ^ (h >>> 16)) & (NUM_SHARDS - 1);
+    AtomicLongArray s = (AtomicLongArray)shards.get(i);
+    if (s == null) {
+      shards.compareAndSet(i, null, new AtomicLongArray(SHARD_SIZE));
+      s = (AtomicLongArray)shards.get(i);
+    }
+    return s;
+  }
+
+  private static int numShards() {
+    int n = 1;
+    while (n < 2 * Runtime.getRuntime().availableProcessors()) n <<= 1;
+    return n;
+  }
+
+  /**
+   * Return the index of the bucket holding the given value. Values
+   * below SUB_BUCKETS have a bucket each; above that, each power of
+   * two has SUB_BUCKETS buckets.
+   */
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) return (int)value;
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    return (shift * SUB_BUCKETS) + (int)(value >>> shift);
+  }
+
+  /** Return the smallest value held in the given bucket. */
+  static long bucketLow(int idx) {
+    if (idx < 2 * SUB_BUCKETS) return idx;
+    int shift = (idx / SUB_BUCKETS) - 1;
+    return ((long)(idx - (shift * SUB_BUCKETS))) << shift;
+  }
+
+  /** Return the largest value held in the given bucket. */
+  static long bucketHigh(int idx) {
+    return bucketLow(idx + 1) - 1;
+  }
+
+  public String toString() {
+    return "LogHistogram ["+snapshot()+"]";
+  }
+
+}
@@ -26,14 +26,25 @@ package seda.sandStorm.core;
 
 import seda.sandStorm.api.*;
 import seda.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The ssTimer class provides a mechanism for registering timer events that will
  * go off at some future time. The future time can be specified in absolute or
  * relative terms. When the timer goes off, an element is placed on a queue.
- * There is no way to unregister a timer. Events will be delivered guaranteed,
- * but the time that they are delivered may slip depending on stuff like how
- * loaded the system is and all that.
+ * Events will be delivered guaranteed, but the time that they are delivered
+ * may slip depending on stuff like how loaded the system is and all that.
+ * <P>
+ * Pending events are kept in a hierarchical timing wheel owned by the timer
+ * thread. Registering and cancelling an event are O(1) and do not take a
+ * lock; they hand the event to the timer thread, which links it into the
+ * wheel. Events expiring on the same tick are delivered to each sink with a
+ * single enqueue_many() where possible. The tick (one millisecond by
+ * default) sets the firing resolution.
  * <P>
  * WARNING: you should use cancelEvent to cancel timers that you no longer need,
  * otherwise you will waste many, many cycles on unneeded timer firings. This
@@ -47,15 +58,79 @@ import seda.util.*;
 public class ssTimer implements Runnable, ProfilableIF {
 
 	private static final boolean DEBUG = false;
-	private ssTimerEvent head_event = null;
-	private ssTimerEvent tail_event = null;
+
+	/** Default wheel tick; events fire with this granularity. */
+	public static final long DEFAULT_TICK_NANOS = 1000000L;
+
+	// Each wheel level has 2^WHEEL_BITS slots; level L covers
+	// 2^(WHEEL_BITS*(L+1)) ticks, so four levels of 1 ms ticks reach ~49 days.
+	// Events further out are parked in the last level and re-cascaded.
+	private static final int WHEEL_BITS = 8;
+	private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private static final int WHEEL_LEVELS = 4;
+	private static final long MAX_TICKS = 1L << (WHEEL_BITS * WHEEL_LEVELS);
+
+	// Event states
+	private static final int STATE_NEW = 0;
+	private static final int STATE_SCHEDULED = 1;
+	private static final int STATE_CANCELLED = 2;
+	private static final int STATE_FIRED = 3;
+
+	private static final AtomicIntegerFieldUpdater<ssTimerEvent> stateUpdater =
+		AtomicIntegerFieldUpdater.newUpdater(ssTimerEvent.class, "state");
+
+	private final long tick_nanos;
+	private final long start_nanos;
 	private Thread thr;
-	private Object sync_o;
-	private boolean die_thread;
-	private int num_events = 0;
+	private volatile boolean die_thread;
+	private final AtomicInteger num_events = new AtomicInteger();
+
+	// Registrations and cancellations are handed to the timer thread, which
+	// is the only thread that touches the wheel itself
+	private final ConcurrentLinkedQueue<ssTimerEvent> insertQ = new ConcurrentLinkedQueue<ssTimerEvent>();
+	private final ConcurrentLinkedQueue<ssTimerEvent> cancelQ = new ConcurrentLinkedQueue<ssTimerEvent>();
+	private final AtomicLong reg_seq = new AtomicLong();
+	private volatile long cancel_mark = 0;
+	private long applied_cancel_mark = 0;
+
+	// Relative time (from start_nanos) the timer thread will sleep until;
+	// Long.MIN_VALUE while it is running, so registrations skip the unpark
+	private volatile long sleep_until = Long.MIN_VALUE;
+
+	// Owned by the timer thread
+	private final ssTimerEvent wheel[][];
+	private long current_tick = 0;
+	private int wheel_count = 0;
+	private ssTimerEvent expired[] = new ssTimerEvent[64];
+	private int num_expired = 0;
+	private QueueElementIF batch[] = new QueueElementIF[64];
 
+	/**
+	 * Create a timer with the default tick of one millisecond.
+	 */
 	public ssTimer() {
-		sync_o = new Object();
+		this(DEFAULT_TICK_NANOS);
+	}
+
+	/**
+	 * Create a timer with the given tick in nanoseconds. Events are fired
+	 * on the first tick at or after their deadline, so the tick bounds the
+	 * scheduling resolution; use a sub-millisecond tick for fine-grained
+	 * pacing with registerEventNanos().
+	 */
+	public ssTimer(long tickNanos) {
+		if (tickNanos <= 0) throw new IllegalArgumentException("ssTimer: tick must be positive");
+		tick_nanos = tickNanos;
+		start_nanos = System.nanoTime();
+		wheel = new ssTimerEvent[WHEEL_LEVELS][WHEEL_SIZE];
+		for (int l = 0; l < WHEEL_LEVELS; l++) {
+			for (int i = 0; i < WHEEL_SIZE; i++) {
+				ssTimerEvent sentinel = new ssTimerEvent(0, null, null);
+				sentinel.nextE = sentinel.prevE = sentinel;
+				wheel[l][i] = sentinel;
+			}
+		}
 		die_thread = false;
 		thr = new Thread(this, "SandStorm ssTimer thread");
 		thr.start();
@@ -68,6 +143,12 @@ public class ssTimer implements Runnable, ProfilableIF {
 		public ssTimerEvent nextE;
 		public ssTimerEvent prevE;
 
+		// Deadline relative to the owning timer's start, and as a wheel tick
+		long deadline_nanos;
+		long expiry_tick;
+		long seq;
+		volatile int state;
+
 		public ssTimerEvent(long m, QueueElementIF o, SinkIF q) {
 			time_millis = m;
 			obj = o;
@@ -94,11 +175,8 @@ public class ssTimer implements Runnable, ProfilableIF {
 	 *            the queue on which the object will be placed
 	 */
 	public ssTimer.ssTimerEvent registerEvent(long millis, QueueElementIF obj, SinkIF queue) {
-		long time_millis = System.currentTimeMillis() + millis;
-		ssTimerEvent newTimer = new ssTimerEvent(time_millis, obj, queue);
-
-		insertEvent(newTimer);
-
+		ssTimerEvent newTimer = new ssTimerEvent(System.currentTimeMillis() + millis, obj, queue);
+		insertEvent(newTimer, System.nanoTime() - start_nanos + millis * 1000000L);
 		return newTimer;
 	}
 
@@ -115,9 +193,28 @@ public class ssTimer implements Runnable, ProfilableIF {
 	 *            the queue on which the object will be placed
 	 */
 	public ssTimer.ssTimerEvent registerEvent(java.util.Date the_date, QueueElementIF obj, SinkIF queue) {
+		long millis = the_date.getTime() - System.currentTimeMillis();
 		ssTimerEvent newTimer = new ssTimerEvent(the_date.getTime(), obj, queue);
-		insertEvent(newTimer);
+		insertEvent(newTimer, System.nanoTime() - start_nanos + millis * 1000000L);
+		return newTimer;
+	}
 
+	/**
+	 * Object <code>obj</code> will be placed on SinkIF <code>queue</code> no
+	 * earlier than <code>nanos</code> nanoseconds from now, rounded up to the
+	 * timer's tick.
+	 * 
+	 * @param nanos
+	 *            the number of nanoseconds from now when the event will take
+	 *            place
+	 * @param obj
+	 *            the object that will be placed on the queue
+	 * @param queue
+	 *            the queue on which the object will be placed
+	 */
+	public ssTimer.ssTimerEvent registerEventNanos(long nanos, QueueElementIF obj, SinkIF queue) {
+		ssTimerEvent newTimer = new ssTimerEvent(System.currentTimeMillis() + nanos / 1000000L, obj, queue);
+		insertEvent(newTimer, System.nanoTime() - start_nanos + nanos);
 		return newTimer;
 	}
 
@@ -126,17 +223,14 @@ public class ssTimer implements Runnable, ProfilableIF {
 	 */
 	public void doneWithTimer() {
 		die_thread = true;
-
-		synchronized (sync_o) {
-			sync_o.notify();
-		}
+		LockSupport.unpark(thr);
 	}
 
 	/**
 	 * How many events yet to fire?
 	 */
 	public int size() {
-		return num_events;
+		return num_events.get();
 	}
 
 	/**
@@ -147,17 +241,16 @@ public class ssTimer implements Runnable, ProfilableIF {
 	}
 
 	/**
-	 * Cancels all events.
+	 * Cancels all events registered before this call.
 	 */
 	public void cancelAll() {
-		synchronized (sync_o) {
-			head_event = tail_event = null;
-			num_events = 0;
-		}
+		cancel_mark = reg_seq.get();
+		LockSupport.unpark(thr);
 	}
 
 	/**
-	 * Cancels the firing of this timer event.
+	 * Cancels the firing of this timer event. Has no effect if the event
+	 * has already fired.
 	 * 
 	 * @param evt
 	 *            the ssTimer.ssTimerEvent to cancel. This ssTimerEvent is
@@ -167,179 +260,251 @@ public class ssTimer implements Runnable, ProfilableIF {
 		if (evt == null)
 			return;
 
-		try {
-			synchronized (sync_o) {
-				if (evt == tail_event) {
+		if (stateUpdater.compareAndSet(evt, STATE_NEW, STATE_CANCELLED)) {
+			// Still on insertQ; the timer thread will drop it
+			num_events.decrementAndGet();
+		} else if (stateUpdater.compareAndSet(evt, STATE_SCHEDULED, STATE_CANCELLED)) {
+			// Unlinked from the wheel on the timer thread's next pass
+			num_events.decrementAndGet();
+			cancelQ.offer(evt);
+		}
+	}
 
-					// is this only list item?
-					if (tail_event == head_event) {
-						tail_event = head_event = null;
-						num_events--;
-						return;
-					}
+	// Hand the event to the timer thread, waking it if the event is due
+	// before the thread would otherwise wake up
+	private void insertEvent(ssTimerEvent newTimer, long deadline) {
+		newTimer.deadline_nanos = deadline;
+		newTimer.seq = reg_seq.getAndIncrement();
+		num_events.incrementAndGet();
+		insertQ.offer(newTimer);
+		if (deadline < sleep_until) {
+			LockSupport.unpark(thr);
+		}
+	}
 
-					// not only list item, is at tail, so lop off tail
-					tail_event = tail_event.prevE;
-					tail_event.nextE = null;
-					num_events--;
-					return;
+	// Link the event into the wheel slot for its expiry tick, relative to
+	// current_tick. Events already due go into the current slot.
+	private void place(ssTimerEvent evt) {
+		long expiry = evt.expiry_tick;
+		long diff = expiry - current_tick;
+		if (diff < 0) {
+			expiry = current_tick;
+			diff = 0;
+		} else if (diff >= MAX_TICKS) {
+			expiry = current_tick + MAX_TICKS - 1;
+			diff = MAX_TICKS - 1;
+		}
+		int level = 0;
+		while (diff >= (1L << (WHEEL_BITS * (level + 1)))) {
+			level++;
+		}
+		ssTimerEvent head = wheel[level][(int) (expiry >>> (WHEEL_BITS * level)) & WHEEL_MASK];
+		evt.prevE = head.prevE;
+		evt.nextE = head;
+		head.prevE.nextE = evt;
+		head.prevE = evt;
+		wheel_count++;
+	}
 
-				} else if (evt == head_event) {
+	private void unlink(ssTimerEvent evt) {
+		if (evt.nextE == null)
+			return;
+		evt.prevE.nextE = evt.nextE;
+		evt.nextE.prevE = evt.prevE;
+		evt.nextE = null;
+		evt.prevE = null;
+		wheel_count--;
+	}
 
-					// not only list item, is at head, so lop off head
-					head_event = head_event.nextE;
-					head_event.prevE = null;
-					num_events--;
-					return;
+	private void drainQueues() {
+		ssTimerEvent evt;
 
-				} else {
+		while ((evt = cancelQ.poll()) != null) {
+			unlink(evt);
+		}
 
-					// make sure event didn't fire already
-					if ((evt.prevE != null) && (evt.nextE != null)) {
-						// in middle somewhere
-						evt.prevE.nextE = evt.nextE;
-						evt.nextE.prevE = evt.prevE;
-						num_events--;
-						return;
+		long mark = cancel_mark;
+		if (mark != applied_cancel_mark) {
+			applied_cancel_mark = mark;
+			for (int l = 0; l < WHEEL_LEVELS; l++) {
+				for (int i = 0; i < WHEEL_SIZE; i++) {
+					ssTimerEvent head = wheel[l][i];
+					ssTimerEvent e = head.nextE;
+					while (e != head) {
+						ssTimerEvent next = e.nextE;
+						if (e.seq < mark && stateUpdater.compareAndSet(e, STATE_SCHEDULED, STATE_CANCELLED)) {
+							num_events.decrementAndGet();
+							unlink(e);
+						}
+						e = next;
 					}
 				}
 			}
-		} finally {
-			evt.nextE = null;
-			evt.prevE = null;
 		}
-	}
 
-	// takes the event, does insertion-sort into ssTimerEvent linked list
-	// insert newTimer to the sorted ascending linked list 
-	private void insertEvent(ssTimerEvent newTimer) {
-		boolean do_notify = false;
-
-		synchronized (sync_o) {
-			// The first event to be inserted.
-			if (head_event == null) {
-				// list empty
-				if (DEBUG)
-					System.err.println("ssTimer: Inserting first event, num pending " + num_events + " event " + newTimer);
-				tail_event = newTimer; // first event and last one are both this
-										// newTimer;
-				head_event = newTimer;
-				num_events++;
-				do_notify = true;
-			} else if (head_event.time_millis > newTimer.time_millis) { // the queue is sorted by time_millis
-				// insert head
-				if (DEBUG)
-					System.err.println("ssTimer: Inserting event at head, num pending " + num_events + " event " + newTimer);
-				newTimer.nextE = head_event;
-				head_event.prevE = newTimer;
-				head_event = newTimer;
-				num_events++;
-				do_notify = true;
-			} else if (tail_event.time_millis <= newTimer.time_millis) {
-				// insert tail
-				if (DEBUG)
-					System.err.println("ssTimer: Inserting event at tail, num pending " + num_events + " event " + newTimer);
-				newTimer.prevE = tail_event;
-				tail_event.nextE = newTimer;
-				tail_event = newTimer;
-				num_events++;
-				// if not insert at head, no notify! :)
-			} else {
-				// insert somewhere in middle :(
-				if (DEBUG)
-					System.err.println("ssTimer: Inserting new event in middle, num pending " + num_events + " event " + newTimer);
-				ssTimerEvent prevE = tail_event.prevE;
-				ssTimerEvent curE = tail_event;
-				boolean gotit = false;
-				while ((prevE != null) && (gotit == false)) {
-					if (prevE.time_millis <= newTimer.time_millis) {
-						prevE.nextE = newTimer;
-						curE.prevE = newTimer;
-						newTimer.nextE = curE;
-						newTimer.prevE = prevE;
-						// if not insert at head, no notify! :)
-						gotit = true;
-					}
-					curE = prevE;
-					prevE = prevE.prevE;
-				}
-				num_events++;
+		while ((evt = insertQ.poll()) != null) {
+			if (evt.seq < mark && stateUpdater.compareAndSet(evt, STATE_NEW, STATE_CANCELLED)) {
+				num_events.decrementAndGet();
+				continue;
 			}
-
-			if (do_notify) {
-				sync_o.notify();
+			if (!stateUpdater.compareAndSet(evt, STATE_NEW, STATE_SCHEDULED)) {
+				// Cancelled before it reached the wheel
+				continue;
 			}
+			long d = evt.deadline_nanos;
+			evt.expiry_tick = (d <= 0) ? 0 : (d + tick_nanos - 1) / tick_nanos;
+			if (DEBUG)
+				System.err.println("ssTimer: Inserting event " + evt + " at tick " + evt.expiry_tick + ", current " + current_tick);
+			place(evt);
 		}
 	}
 
-	private void process_head() {
-
-		ssTimerEvent fire = null;
-		long wait_time = -1;
-
-		long curTime = System.currentTimeMillis();
+	// Move all events in the given slot down to lower levels
+	private void cascade(int level, int idx) {
+		ssTimerEvent head = wheel[level][idx];
+		ssTimerEvent e = head.nextE;
+		head.nextE = head.prevE = head;
+		while (e != head) {
+			ssTimerEvent next = e.nextE;
+			wheel_count--;
+			place(e);
+			e = next;
+		}
+	}
 
-		if (head_event.time_millis <= curTime) {
-			// fire off event
-			fire = head_event;
-			if (DEBUG)
-				System.err.println("Firing " + fire + " -> " + head_event.nextE + " " + (num_events - 1) + " pending");
-			head_event = head_event.nextE;
-			if (head_event == null) {
-				// was only event
-				tail_event = null;
-			} else {
-				// reset back pointer
-				head_event.prevE = null;
+	// Process current_tick: cascade higher levels on wrap, then collect the
+	// events in the level-0 slot
+	private void processTick() {
+		long t = current_tick;
+		if ((t & WHEEL_MASK) == 0) {
+			for (int l = 1; l < WHEEL_LEVELS; l++) {
+				int idx = (int) (t >>> (WHEEL_BITS * l)) & WHEEL_MASK;
+				cascade(l, idx);
+				if (idx != 0)
+					break;
 			}
+		}
 
-			if ((head_event == null) && (num_events != 1)) {
-				System.err.println("ssTimer: Warning: No more events to process, but still have " + (num_events - 1)
-						+ " pending. This is a bug; please contact <mdw@cs.berkeley.edu>");
+		ssTimerEvent head = wheel[0][(int) t & WHEEL_MASK];
+		ssTimerEvent e = head.nextE;
+		head.nextE = head.prevE = head;
+		while (e != head) {
+			ssTimerEvent next = e.nextE;
+			e.nextE = null;
+			e.prevE = null;
+			wheel_count--;
+			if (stateUpdater.compareAndSet(e, STATE_SCHEDULED, STATE_FIRED)) {
+				num_events.decrementAndGet();
+				if (num_expired == expired.length) {
+					ssTimerEvent tmp[] = new ssTimerEvent[expired.length * 2];
+					System.arraycopy(expired, 0, tmp, 0, num_expired);
+					expired = tmp;
+				}
+				expired[num_expired++] = e;
 			}
+			e = next;
+		}
+		current_tick++;
+	}
 
-			fire.nextE = null;
-			fire.prevE = null;
-			num_events--;
-
-		} else {
-			// sleep till head
+	// Push expired events to their sinks, batching events bound for the
+	// same sink into a single enqueue_many()
+	private void fireExpired() {
+		for (int i = 0; i < num_expired; i++) {
+			if (expired[i] == null)
+				continue;
+			SinkIF sink = expired[i].queue;
+			int n = 0;
+			for (int j = i; j < num_expired; j++) {
+				if (expired[j] != null && expired[j].queue == sink) {
+					if (n == batch.length) {
+						QueueElementIF tmp[] = new QueueElementIF[batch.length * 2];
+						System.arraycopy(batch, 0, tmp, 0, n);
+						batch = tmp;
+					}
+					batch[n++] = expired[j].obj;
+					expired[j] = null;
+				}
+			}
 			if (DEBUG)
-				System.err.println("ssTimer: head is " + (head_event.time_millis - curTime) + " ms in the future");
-			wait_time = head_event.time_millis - curTime;
-			if (wait_time != -1) {
+				System.err.println("ssTimer: Firing " + n + " events to " + sink);
+			if (n == 1) {
+				sink.enqueue_lossy(batch[0]);
+			} else {
+				QueueElementIF arr[] = new QueueElementIF[n];
+				System.arraycopy(batch, 0, arr, 0, n);
 				try {
-					sync_o.wait(wait_time);
-				} catch (InterruptedException ie) {
-					// Ignore
+					sink.enqueue_many(arr);
+				} catch (SinkException se) {
+					// Fall back to delivering what we can, as enqueue_lossy would
+					for (int k = 0; k < n; k++) {
+						sink.enqueue_lossy(arr[k]);
+					}
 				}
 			}
+			for (int k = 0; k < n; k++) {
+				batch[k] = null;
+			}
 		}
+		num_expired = 0;
+	}
 
-		if (fire != null) {
-			//
-			fire.queue.enqueue_lossy(fire.obj);
+	// Returns the tick at which the timer thread next has work to do: the
+	// next non-empty level-0 slot, or the next wrap of level 0 if only
+	// higher levels hold events
+	private long nextWakeTick() {
+		if ((current_tick & WHEEL_MASK) == 0) {
+			// Higher levels are due to cascade into level 0
+			return current_tick;
+		}
+		long end = (current_tick | WHEEL_MASK) + 1;
+		for (long t = current_tick; t < end; t++) {
+			ssTimerEvent head = wheel[0][(int) t & WHEEL_MASK];
+			if (head.nextE != head)
+				return t;
 		}
+		return end;
 	}
 
 	public void run() {
-		synchronized (sync_o) {
-			while (die_thread == false) {
-				try {
-					if (head_event != null) {
-						process_head();
-					} else {
-						if (die_thread == true)
-							return;
-
-						try {
-							sync_o.wait(500);
-						} catch (InterruptedException ie) {
-						}
-					}
-				} catch (Throwable t) {
-					t.printStackTrace();
+		while (die_thread == false) {
+			try {
+				sleep_until = Long.MIN_VALUE;
+				long now = System.nanoTime() - start_nanos;
+				long now_tick = now / tick_nanos;
+				if (wheel_count == 0 && current_tick < now_tick) {
+					// Nothing pending; skip the idle ticks
+					current_tick = now_tick;
+				}
+
+				drainQueues();
+				while (current_tick <= now_tick) {
+					processTick();
+				}
+				fireExpired();
+
+				long wake;
+				if (wheel_count == 0) {
+					wake = Long.MAX_VALUE;
+				} else {
+					wake = nextWakeTick() * tick_nanos;
+				}
+				sleep_until = wake;
+
+				// Recheck after publishing sleep_until, so a registration that
+				// saw the old value is not missed
+				if (!insertQ.isEmpty() || die_thread)
+					continue;
+
+				if (wake == Long.MAX_VALUE) {
+					LockSupport.park(this);
+				} else {
+					long delay = wake - (System.nanoTime() - start_nanos);
+					if (delay > 0)
+						LockSupport.parkNanos(this, delay);
 				}
+			} catch (Throwable t) {
+				t.printStackTrace();
 			}
 		}
 	}
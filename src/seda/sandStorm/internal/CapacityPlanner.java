@@ -0,0 +1,386 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.internal;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.api.internal.*;
+import seda.sandStorm.main.*;
+import java.util.*;
+
+/**
+ * The CapacityPlanner periodically models the running application as an
+ * open queueing network, combining the stages, edges and threads known
+ * to the StageGraph with the service times measured by each stage's
+ * StageStats. From the model it reports the utilization of each stage,
+ * the bottleneck stage, the largest throughput the current thread pools
+ * can sustain, and the number of threads each stage needs for a target
+ * throughput.
+ *
+ * <p>Each stage is treated as a multi-server queue. Every
+ * <tt>global.planner.delay</tt> milliseconds the planner measures, for
+ * each stage:
+ * <ul>
+ * <li>the arrival rate: events processed plus the growth of the queue;
+ * <li>the service rate of a single thread: events processed per second
+ *   spent in the event handler;
+ * <li>the flow along each edge, from the number of events enqueued by
+ *   the threads of one stage onto the SinkProxy of another.
+ * </ul>
+ * Arrivals which no edge accounts for come from outside the network. The
+ * visit ratio of a stage is its arrival rate divided by the total
+ * external arrival rate, so a stage needs
+ * <tt>ceil(visitRatio * target / (serviceRate * targetUtilization))</tt>
+ * threads to sustain the target throughput given by
+ * <tt>global.planner.targetThroughput</tt>; if that is 0, the current
+ * external arrival rate is used. The bottleneck is the stage with the
+ * highest utilization.
+ *
+ * <p>The planner is enabled by <tt>global.planner.enable</tt>, which also
+ * causes a SinkProxy to be installed for each stage. Its estimates are
+ * added to the profile, and the ThreadPoolController uses the thread
+ * counts as hints when <tt>global.threadPool.sizeController.usePlanner</tt>
+ * is set.
+ *
+ * @author Matt Welsh
+ * @see StageGraph
+ * @see StageStats
+ * @see ThreadPoolController
+ */
+public class CapacityPlanner implements Runnable {
+  private static final boolean DEBUG = false;
+
+  private static final double SMOOTH_CONST = 0.3;
+
+  private ManagerIF mgr;
+  private StageGraph graph;
+  private int delay;
+  private double targetThroughput, targetUtilization;
+  private Thread thread;
+
+  // StageWrapperIF -> stageModel
+  private Hashtable models = new Hashtable();
+  // StageGraphEdge -> last enqueueCount
+  private Hashtable lastEdgeCounts = new Hashtable();
+  private long lastTime;
+
+  private double throughput, maxThroughput;
+  private StageWrapperIF bottleneck;
+
+  /**
+   * The model of a single stage.
+   */
+  class stageModel {
+    StageWrapperIF stage;
+    long lastEvents, lastBusy;
+    int lastQueue;
+    boolean measured;
+
+    int threads;
+    double arrivalRate, serviceRate, externalRate;
+    double utilization, busy;
+    int threadsNeeded;
+
+    stageModel(StageWrapperIF stage) {
+      this.stage = stage;
+    }
+
+    /**
+     * Add this stage's estimates to the profile. The profiler samples
+     * them while holding its own lock, and the samples take the planner's
+     * lock, so this must not be called with the planner locked.
+     */
+    void addToProfile() {
+      String name = stage.getStage().getName();
+      mgr.getProfiler().add("CapacityPlanner utilization(%) <"+name+">",
+	  new ProfilableIF() {
+	  public int profileSize() {
+	    return (int)(getUtilization(stage) * 100);
+	  }
+	  });
+      mgr.getProfiler().add("CapacityPlanner arrivalRate <"+name+">",
+	  new ProfilableIF() {
+	  public int profileSize() {
+	    return (int)getArrivalRate(stage);
+	  }
+	  });
+      mgr.getProfiler().add("CapacityPlanner threadsNeeded <"+name+">",
+	  new ProfilableIF() {
+	  public int profileSize() {
+	    return getThreadsNeeded(stage);
+	  }
+	  });
+    }
+  }
+
+  CapacityPlanner(ManagerIF mgr, StageGraph graph) {
+    this.mgr = mgr;
+    this.graph = graph;
+    SandstormConfig config = mgr.getConfig();
+    this.delay = config.getInt("global.planner.delay");
+    this.targetThroughput = config.getDouble("global.planner.targetThroughput");
+    this.targetUtilization = config.getDouble("global.planner.targetUtilization");
+    if ((targetUtilization <= 0.0) || (targetUtilization > 1.0)) targetUtilization = 1.0;
+  }
+
+  void start() {
+    mgr.getProfiler().add("CapacityPlanner throughput", new ProfilableIF() {
+      public int profileSize() {
+	return (int)getThroughput();
+      }
+    });
+    mgr.getProfiler().add("CapacityPlanner maxThroughput", new ProfilableIF() {
+      public int profileSize() {
+	return (int)getMaxThroughput();
+      }
+    });
+    lastTime = System.currentTimeMillis();
+    thread = new Thread(this, "CapacityPlanner");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void run() {
+    while (true) {
+      try {
+	Thread.currentThread().sleep(delay);
+      } catch (InterruptedException ie) {
+	// Ignore
+      }
+      try {
+	Vector added = update();
+	for (int i = 0; i < added.size(); i++) {
+	  ((stageModel)added.elementAt(i)).addToProfile();
+	}
+      } catch (Exception e) {
+	System.err.println("CapacityPlanner: got exception "+e);
+	e.printStackTrace();
+      }
+      if (DEBUG) System.err.println(getReport());
+    }
+  }
+
+  /**
+   * Take a new set of measurements and recompute the model. Returns the
+   * models of stages seen for the first time, which the caller adds to
+   * the profile once the planner is unlocked.
+   */
+  synchronized Vector update() {
+    Vector added = new Vector();
+    long now = System.currentTimeMillis();
+    double secs = (now - lastTime) * 1.0e-3;
+    if (secs <= 0.0) return added;
+    lastTime = now;
+
+    StageWrapperIF stages[] = graph.getStages();
+    Hashtable inflow = new Hashtable();
+
+    // Flow along each edge into its destination
+    StageGraphEdge edges[] = graph.getEdges();
+    for (int i = 0; i < edges.length; i++) {
+      long count = edges[i].enqueueCount.get();
+      Long last = (Long)lastEdgeCounts.put(edges[i], new Long(count));
+      if (last == null) continue;
+      double rate = (count - last.longValue()) / secs;
+      Double in = (Double)inflow.get(edges[i].toStage);
+      inflow.put(edges[i].toStage, new Double(rate + ((in == null) ? 0.0 : in.doubleValue())));
+    }
+
+    double external = 0.0;
+    for (int i = 0; i < stages.length; i++) {
+      StageStatsIF stats = stages[i].getStats();
+      if ((stats == null) || (stages[i].getSource() == null)) continue;
+      stageModel m = (stageModel)models.get(stages[i]);
+      if (m == null) {
+	m = new stageModel(stages[i]);
+	models.put(stages[i], m);
+	added.addElement(m);
+      }
+
+      long events = stats.getBatchSizeHistogram().getTotalSum();
+      long busy = stats.getBatchServiceHistogram().getTotalSum();
+      int queue = stages[i].getSource().size();
+      m.threads = Math.max(1, graph.getNumThreads(stages[i]));
+
+      if (m.measured) {
+	long dEvents = events - m.lastEvents;
+	long dBusy = busy - m.lastBusy;
+	double arrivals = Math.max(0.0, (dEvents + queue - m.lastQueue) / secs);
+	m.arrivalRate = smooth(m.arrivalRate, arrivals);
+	if ((dEvents > 0) && (dBusy > 0)) {
+	  m.serviceRate = smooth(m.serviceRate, dEvents / (dBusy * 1.0e-9));
+	}
+	m.busy = Math.min(1.0, (dBusy * 1.0e-9) / (secs * m.threads));
+	Double in = (Double)inflow.get(stages[i]);
+	double ext = m.arrivalRate - ((in == null) ? 0.0 : in.doubleValue());
+	m.externalRate = Math.max(0.0, ext);
+	external += m.externalRate;
+      }
+      m.lastEvents = events;
+      m.lastBusy = busy;
+      m.lastQueue = queue;
+      m.measured = true;
+    }
+    throughput = external;
+
+    // Solve for utilization, capacity and threads needed
+    double target = (targetThroughput > 0.0) ? targetThroughput : throughput;
+    double maxUtil = -1.0;
+    maxThroughput = 0.0;
+    bottleneck = null;
+    Enumeration e = models.elements();
+    while (e.hasMoreElements()) {
+      stageModel m = (stageModel)e.nextElement();
+      if (m.serviceRate <= 0.0) {
+	m.utilization = 0.0;
+	m.threadsNeeded = m.threads;
+	continue;
+      }
+      m.utilization = m.arrivalRate / (m.threads * m.serviceRate);
+      if (m.utilization > maxUtil) {
+	maxUtil = m.utilization;
+	bottleneck = m.stage;
+      }
+      if (throughput > 0.0) {
+	double visits = m.arrivalRate / throughput;
+	if (visits > 0.0) {
+	  double cap = (m.threads * m.serviceRate) / visits;
+	  if ((maxThroughput == 0.0) || (cap < maxThroughput)) maxThroughput = cap;
+	}
+	m.threadsNeeded = Math.max(1, (int)Math.ceil((visits * target) / (m.serviceRate * targetUtilization)));
+      } else {
+	m.threadsNeeded = Math.max(1, (int)Math.ceil(m.arrivalRate / (m.serviceRate * targetUtilization)));
+      }
+    }
+    return added;
+  }
+
+  private static double smooth(double old, double sample) {
+    if (old == 0.0) return sample;
+    return (SMOOTH_CONST * sample) + ((1.0 - SMOOTH_CONST) * old);
+  }
+
+  private stageModel getModel(StageWrapperIF stage) {
+    return (stageModel)models.get(stage);
+  }
+
+  /**
+   * Return the stage with the highest predicted utilization, or null
+   * if no stage has been measured yet.
+   */
+  public synchronized StageWrapperIF getBottleneck() {
+    return bottleneck;
+  }
+
+  /**
+   * Return the predicted utilization of the given stage: its arrival
+   * rate divided by the service rate of all of its threads. A value
+   * above 1.0 means the stage's queue is growing.
+   */
+  public synchronized double getUtilization(StageWrapperIF stage) {
+    stageModel m = getModel(stage);
+    return (m == null) ? 0.0 : m.utilization;
+  }
+
+  /**
+   * Return the measured fraction of time the given stage's threads
+   * spent in its event handler.
+   */
+  public synchronized double getBusyFraction(StageWrapperIF stage) {
+    stageModel m = getModel(stage);
+    return (m == null) ? 0.0 : m.busy;
+  }
+
+  /**
+   * Return the arrival rate at the given stage, in events per second.
+   */
+  public synchronized double getArrivalRate(StageWrapperIF stage) {
+    stageModel m = getModel(stage);
+    return (m == null) ? 0.0 : m.arrivalRate;
+  }
+
+  /**
+   * Return the service rate of a single thread of the given stage, in
+   * events per second.
+   */
+  public synchronized double getServiceRate(StageWrapperIF stage) {
+    stageModel m = getModel(stage);
+    return (m == null) ? 0.0 : m.serviceRate;
+  }
+
+  /**
+   * Return the number of threads the given stage needs to sustain the
+   * target throughput at the target utilization, or -1 if the stage
+   * has not been measured yet.
+   */
+  public synchronized int getThreadsNeeded(StageWrapperIF stage) {
+    stageModel m = getModel(stage);
+    return ((m == null) || (m.serviceRate <= 0.0)) ? -1 : m.threadsNeeded;
+  }
+
+  /**
+   * Return the rate at which events arrive from outside the network, in
+   * events per second.
+   */
+  public synchronized double getThroughput() {
+    return throughput;
+  }
+
+  /**
+   * Return the largest external arrival rate the current thread pools
+   * can sustain, in events per second, assuming the visit ratios stay
+   * the same. Returns 0 if there is no load to measure.
+   */
+  public synchronized double getMaxThroughput() {
+    return maxThroughput;
+  }
+
+  /**
+   * Return a human-readable summary of the model.
+   */
+  public synchronized String getReport() {
+    StringBuffer sb = new StringBuffer();
+    sb.append("CapacityPlanner: throughput "+fmt(throughput)+"/sec, max "+fmt(maxThroughput)+"/sec");
+    if (bottleneck != null) sb.append(", bottleneck <"+bottleneck.getStage().getName()+">");
+    sb.append('\n');
+    Enumeration e = models.elements();
+    while (e.hasMoreElements()) {
+      stageModel m = (stageModel)e.nextElement();
+      sb.append("  <"+m.stage.getStage().getName()+"> arrivals "+fmt(m.arrivalRate)+
+	  "/sec, service "+fmt(m.serviceRate)+"/sec/thread, threads "+m.threads+
+	  ", utilization "+fmt(m.utilization)+", busy "+fmt(m.busy)+
+	  ", needs "+((m.serviceRate <= 0.0) ? "?" : Integer.toString(m.threadsNeeded))+" threads\n");
+    }
+    return sb.toString();
+  }
+
+  private static String fmt(double d) {
+    return Double.toString(Math.round(d * 100) / 100.0);
+  }
+
+  public String toString() {
+    return getReport();
+  }
+
+}
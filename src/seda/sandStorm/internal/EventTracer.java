@@ -0,0 +1,409 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.internal;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.api.internal.*;
+import seda.sandStorm.main.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.*;
+
+/**
+ * EventTracer follows a sample of events as they cross stages, recording
+ * how long each event waited in a stage's queue and how long the stage
+ * took to handle it. Unlike the StageGraph, which learns which stages
+ * talk to each other, the tracer shows which hop of a request added the
+ * latency.
+ *
+ * <p>When tracing is enabled (<tt>global.trace.enable</tt>), each stage's
+ * sink is wrapped in a SinkProxy, which calls enqueued() for each event.
+ * One in every <tt>global.trace.sampleInterval</tt> events starts a new
+ * trace; in addition, every event enqueued by a thread handling a traced
+ * event joins that event's trace, so a trace follows a request through
+ * the stages it touches. The thread managers hand batches which contain
+ * traced events to handleEvents(), which times the batch and records a
+ * span for each traced event in it.
+ *
+ * <p>Tags are kept per stage, in a small array of slots updated with
+ * compare-and-set, so tagging and lookup take no locks, and a stage with
+ * no traced events in its queue costs the thread manager a single read
+ * per batch. A tag is removed when its event is handled or rejected by
+ * the queue, and an event which is enqueued again while an old tag on
+ * it is still queued (as pooled events may be) loses the old tag.
+ *
+ * <p>Spans are kept in a fixed-size ring buffer, which overwrites the
+ * oldest spans and is written without locks, and can be written out in
+ * the Chrome trace-event JSON format (viewable in chrome://tracing or
+ * Perfetto), with one row per trace. When tracing is disabled no proxy
+ * is installed and the thread managers skip the tracer entirely.
+ *
+ * @author Matt Welsh
+ * @see SinkProxy
+ * @see StageGraph
+ */
+public class EventTracer {
+  private static final boolean DEBUG = false;
+
+  private static final int SPAN_QUEUE = 0;
+  private static final int SPAN_HANDLE = 1;
+  private static final String SPAN_NAMES[] = { "queue", "handle" };
+
+  // Bound on the number of traced events sitting in a stage's queue.
+  // Tags older than STALE_NANOS belong to events which were dropped, or
+  // dequeued by a thread manager which does not report to the tracer,
+  // and may be replaced.
+  private static final int MAX_TAGGED = 64;
+  private static final long STALE_NANOS = 10000000000L;
+
+  private int sampleInterval;
+  private long epoch;
+  private AtomicLong nextTraceId = new AtomicLong(0);
+
+  // StageWrapperIF -> stageTags
+  private ConcurrentHashMap tagTbl = new ConcurrentHashMap();
+
+  // The trace of the batch being handled by the current thread, if any
+  private ThreadLocal current = new ThreadLocal();
+
+  // Ring buffer of spans; seq[i] is the sequence number of the span in
+  // slot i, or -1 while it is being written
+  private int mask;
+  private AtomicLong cursor = new AtomicLong(0);
+  private AtomicLongArray seq, traceIds, starts, ends;
+  private AtomicIntegerArray kinds;
+  private AtomicReferenceArray stages;
+
+  EventTracer(ManagerIF mgr) {
+    SandstormConfig config = mgr.getConfig();
+    this.sampleInterval = config.getInt("global.trace.sampleInterval");
+    int size = 1;
+    while (size < config.getInt("global.trace.bufferSize")) size <<= 1;
+    this.mask = size - 1;
+    this.seq = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) seq.set(i, -1);
+    this.traceIds = new AtomicLongArray(size);
+    this.starts = new AtomicLongArray(size);
+    this.ends = new AtomicLongArray(size);
+    this.kinds = new AtomicIntegerArray(size);
+    this.stages = new AtomicReferenceArray(size);
+    this.epoch = System.nanoTime();
+  }
+
+  // A traced event waiting in a queue
+  private static class tag {
+    QueueElementIF qel;
+    long traceId, enqueueTime;
+
+    tag(QueueElementIF qel, long traceId, long enqueueTime) {
+      this.qel = qel;
+      this.traceId = traceId;
+      this.enqueueTime = enqueueTime;
+    }
+  }
+
+  /**
+   * The traced events in one stage's queue, kept in a small array of
+   * slots which is updated with compare-and-set. numTagged is checked
+   * first, so a stage with no traced events is never scanned.
+   */
+  private static class stageTags {
+    AtomicReferenceArray slots = new AtomicReferenceArray(MAX_TAGGED);
+    AtomicInteger numTagged = new AtomicInteger(0);
+
+    // Tag qel, replacing any old tag on the same element. Returns false
+    // if all slots hold live tags.
+    boolean add(tag t) {
+      int free = -1, stale = -1;
+      for (int i = 0; i < MAX_TAGGED; i++) {
+	tag old = (tag)slots.get(i);
+	if (old == null) {
+	  if (free == -1) free = i;
+	} else if (old.qel == t.qel) {
+	  if (slots.compareAndSet(i, old, t)) return true;
+	} else if ((stale == -1) && (t.enqueueTime - old.enqueueTime > STALE_NANOS)) {
+	  stale = i;
+	}
+      }
+      if ((free != -1) && slots.compareAndSet(free, null, t)) {
+	numTagged.incrementAndGet();
+	return true;
+      }
+      if (stale != -1) {
+	tag old = (tag)slots.get(stale);
+	if ((old != null) && (t.enqueueTime - old.enqueueTime > STALE_NANOS) &&
+	    slots.compareAndSet(stale, old, t)) return true;
+      }
+      return false;
+    }
+
+    // Remove and return the tag on qel, if any
+    tag remove(QueueElementIF qel) {
+      if (numTagged.get() == 0) return null;
+      for (int i = 0; i < MAX_TAGGED; i++) {
+	tag t = (tag)slots.get(i);
+	if ((t != null) && (t.qel == qel) && slots.compareAndSet(i, t, null)) {
+	  numTagged.decrementAndGet();
+	  return t;
+	}
+      }
+      return null;
+    }
+  }
+
+  private stageTags getTags(StageWrapperIF stage) {
+    stageTags st = (stageTags)tagTbl.get(stage);
+    if (st == null) {
+      tagTbl.putIfAbsent(stage, new stageTags());
+      st = (stageTags)tagTbl.get(stage);
+    }
+    return st;
+  }
+
+  /**
+   * Called when an event is enqueued for the given stage. Tags the event
+   * with the trace of the event the current thread is handling, or
+   * starts a new trace if the event is sampled. Returns true if the
+   * event was tagged.
+   */
+  boolean enqueued(StageWrapperIF stage, QueueElementIF qel) {
+    if (qel == null) return false;
+    long cur[] = (long[])current.get();
+    long id;
+    if ((cur != null) && (cur[0] != 0)) {
+      id = cur[0];
+    } else if ((sampleInterval > 0) && (ThreadLocalRandom.current().nextInt(sampleInterval) == 0)) {
+      id = nextTraceId.incrementAndGet();
+    } else {
+      // A pooled event may come back while an old tag on it is still
+      // queued; that tag is stale, so drop it
+      stageTags st = (stageTags)tagTbl.get(stage);
+      if (st != null) st.remove(qel);
+      return false;
+    }
+
+    if (!getTags(stage).add(new tag(qel, id, System.nanoTime()))) return false;
+    if (DEBUG) System.err.println("EventTracer: Tagged "+qel+" with trace "+id);
+    return true;
+  }
+
+  /**
+   * Called for each event in an array when the array is enqueued for
+   * the given stage. Returns the number of events tagged.
+   */
+  int enqueued(StageWrapperIF stage, QueueElementIF qelarr[]) {
+    if (qelarr == null) return 0;
+    int n = 0;
+    for (int i = 0; i < qelarr.length; i++) {
+      if (enqueued(stage, qelarr[i])) n++;
+    }
+    return n;
+  }
+
+  /**
+   * Remove the tag from an event which was tagged but then rejected by
+   * the queue.
+   */
+  void untag(StageWrapperIF stage, QueueElementIF qel) {
+    stageTags st = (stageTags)tagTbl.get(stage);
+    if (st != null) st.remove(qel);
+  }
+
+  /**
+   * Remove the tags from an array of events which was tagged but then
+   * rejected by the queue.
+   */
+  void untag(StageWrapperIF stage, QueueElementIF qelarr[]) {
+    if (qelarr == null) return;
+    for (int i = 0; i < qelarr.length; i++) {
+      untag(stage, qelarr[i]);
+    }
+  }
+
+  /**
+   * Return true if any of the first 'num' events in 'batch' is being
+   * traced, in which case the thread manager should pass the batch to
+   * handleEvents() rather than straight to the event handler. Does not
+   * lock, and costs a single read if the stage has no traced events.
+   */
+  public boolean isTraced(StageWrapperIF stage, QueueElementIF batch[], int num) {
+    if (batch == null) return false;
+    stageTags st = (stageTags)tagTbl.get(stage);
+    if ((st == null) || (st.numTagged.get() == 0)) return false;
+    for (int i = 0; i < MAX_TAGGED; i++) {
+      tag t = (tag)st.slots.get(i);
+      if ((t != null) && contains(batch, num, t.qel)) return true;
+    }
+    return false;
+  }
+
+  private static boolean contains(QueueElementIF batch[], int num, QueueElementIF qel) {
+    for (int i = 0; i < num; i++) {
+      if (batch[i] == qel) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Pass the first 'num' events in 'batch' to the given stage's event
+   * handler, recording a queue span and a handling span for each traced
+   * event. The handler sees the batch unchanged, so the handling span is
+   * that of the whole batch. Events enqueued while the batch is handled
+   * join the trace of its first traced event.
+   */
+  public void handleEvents(StageWrapperIF stage, EventHandlerIF handler,
+      QueueElementIF batch[], int num) throws EventHandlerException {
+    String name = stage.getStage().getName();
+    stageTags st = getTags(stage);
+    long start = System.nanoTime();
+    tag traced[] = new tag[st.numTagged.get()];
+    int numTraced = 0;
+    for (int i = 0; (i < MAX_TAGGED) && (numTraced < traced.length); i++) {
+      tag t = (tag)st.slots.get(i);
+      if ((t == null) || !contains(batch, num, t.qel)) continue;
+      if (!st.slots.compareAndSet(i, t, null)) continue;
+      st.numTagged.decrementAndGet();
+      traced[numTraced++] = t;
+      record(SPAN_QUEUE, name, t.traceId, t.enqueueTime, start);
+    }
+
+    long cur[] = (long[])current.get();
+    if (cur == null) {
+      cur = new long[1];
+      current.set(cur);
+    }
+    long prev = cur[0];
+    if (numTraced > 0) cur[0] = traced[0].traceId;
+    try {
+      if (num == batch.length) {
+	handler.handleEvents(batch);
+      } else {
+	((BatchEventHandlerIF)handler).handleEvents(batch, num);
+      }
+    } finally {
+      cur[0] = prev;
+      long end = System.nanoTime();
+      for (int i = 0; i < numTraced; i++) {
+	record(SPAN_HANDLE, name, traced[i].traceId, start, end);
+      }
+    }
+  }
+
+  // Write a span into the ring buffer
+  private void record(int kind, String stage, long traceId, long start, long end) {
+    long n = cursor.getAndIncrement();
+    int i = (int)(n & mask);
+    seq.set(i, -1);
+    kinds.lazySet(i, kind);
+    stages.lazySet(i, stage);
+    traceIds.lazySet(i, traceId);
+    starts.lazySet(i, start);
+    ends.lazySet(i, end);
+    seq.set(i, n);
+  }
+
+  /**
+   * Return the number of spans recorded since the tracer was created,
+   * including those which have since been overwritten.
+   */
+  public long getNumSpans() {
+    return cursor.get();
+  }
+
+  /**
+   * Write the spans currently in the ring buffer in the Chrome
+   * trace-event JSON format. Each trace is shown as its own thread,
+   * with one slice per queue wait and per batch handled; timestamps are
+   * in microseconds since the tracer was created.
+   */
+  public void writeChromeTrace(Writer w) throws IOException {
+    PrintWriter pw = new PrintWriter(w);
+    pw.print("{\"traceEvents\":[");
+    boolean first = true;
+    HashSet seen = new HashSet();
+    long end = cursor.get();
+    long start = Math.max(0, end - (mask + 1));
+    for (long n = start; n < end; n++) {
+      int i = (int)(n & mask);
+      if (seq.get(i) != n) continue;
+      int kind = kinds.get(i);
+      String stage = (String)stages.get(i);
+      long id = traceIds.get(i);
+      long t0 = starts.get(i), t1 = ends.get(i);
+      // Overwritten while we were reading it
+      if (seq.get(i) != n) continue;
+
+      if (seen.add(new Long(id))) {
+	if (!first) pw.print(',');
+	first = false;
+	pw.print("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"+id+
+	    ",\"args\":{\"name\":\"trace "+id+"\"}}");
+      }
+      if (!first) pw.print(',');
+      first = false;
+      pw.print("\n{\"name\":\""+escape(stage)+"\",\"cat\":\""+SPAN_NAMES[kind]+
+	  "\",\"ph\":\"X\",\"pid\":1,\"tid\":"+id+
+	  ",\"ts\":"+micros(t0 - epoch)+",\"dur\":"+micros(t1 - t0)+
+	  ",\"args\":{\"trace\":"+id+",\"span\":\""+SPAN_NAMES[kind]+"\"}}");
+    }
+    pw.print("\n],\"displayTimeUnit\":\"ns\"}\n");
+    pw.flush();
+  }
+
+  /**
+   * Write the spans currently in the ring buffer to the given file.
+   */
+  public void writeChromeTrace(String filename) throws IOException {
+    Writer w = new BufferedWriter(new FileWriter(filename));
+    try {
+      writeChromeTrace(w);
+    } finally {
+      w.close();
+    }
+  }
+
+  private static String micros(long nanos) {
+    long us = nanos / 1000;
+    int frac = (int)(nanos % 1000);
+    if (frac < 0) frac = 0;
+    String fs = Integer.toString(frac + 1000).substring(1);
+    return us+"."+fs;
+  }
+
+  private static String escape(String s) {
+    if (s == null) return "";
+    StringBuffer sb = new StringBuffer(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if ((c == '\\') || (c == '"')) sb.append('\\').append(c);
+      else if (c < 0x20) sb.append(' ');
+      else sb.append(c);
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,256 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.internal;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.api.internal.*;
+import seda.sandStorm.main.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ForkJoinThreadManager runs the stages registered with it on a single,
+ * shared work-stealing thread pool, rather than giving each stage its own
+ * pool of threads blocking on its event queue. A stage is only scheduled
+ * onto the pool when events are enqueued onto it; each scheduled task
+ * processes one batch and then reschedules itself if more events remain.
+ * 
+ * <p>Stages with a SingleThreadedEventHandlerIF never have more than one
+ * batch in flight at once. Other stages may have batches running on up to
+ * all of the pool's threads concurrently.
+ * 
+ * <p>The stage's event queue must implement ListenableSourceIF. Because
+ * the pool threads are shared by all stages, event handlers run by this
+ * thread manager should avoid blocking for long periods.
+ * 
+ * @author Matt Welsh
+ */
+
+public class ForkJoinThreadManager implements ThreadManagerIF, sandStormConst {
+
+	private static final boolean DEBUG = false;
+
+	protected ManagerIF mgr;
+	protected SandstormConfig config;
+	protected ForkJoinPool pool;
+	protected Hashtable srTbl;
+
+	// One batch buffer per pool thread
+	private ThreadLocal batchBuf = new ThreadLocal() {
+		protected Object initialValue() {
+			return new QueueElementIF[0];
+		}
+	};
+
+	public ForkJoinThreadManager(ManagerIF mgr) {
+		this.mgr = mgr;
+		this.config = mgr.getConfig();
+
+		int numThreads = config.getInt("global.FJTM.numThreads");
+		if (numThreads <= 0)
+			numThreads = Runtime.getRuntime().availableProcessors();
+		// asyncMode gives FIFO scheduling of tasks that are never joined
+		pool = new ForkJoinPool(numThreads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		srTbl = new Hashtable();
+		if (DEBUG)
+			System.err.println("ForkJoinThreadManager: Created with " + numThreads + " threads");
+	}
+
+	/**
+	 * Register a stage with this thread manager.
+	 */
+	public void register(StageWrapperIF stage) {
+		if (!(stage.getSource() instanceof ListenableSourceIF)) {
+			throw new IllegalArgumentException("ForkJoinThreadManager: Source for stage " + stage.getStage().getName()
+					+ " does not implement ListenableSourceIF");
+		}
+		stageRunner sr = new stageRunner(stage);
+		srTbl.put(stage, sr);
+		((ListenableSourceIF) stage.getSource()).setSourceListener(sr);
+		// Pick up anything enqueued before we started listening
+		sr.sourceReady(stage.getSource());
+	}
+
+	/**
+	 * Deregister a stage with this thread manager.
+	 */
+	public void deregister(StageWrapperIF stage) {
+		stageRunner sr = (stageRunner) srTbl.remove(stage);
+		if (sr != null) {
+			((ListenableSourceIF) stage.getSource()).setSourceListener(null);
+			sr.stopped = true;
+		}
+	}
+
+	/**
+	 * Stop the thread manager and all threads managed by it.
+	 */
+	public void deregisterAll() {
+		Enumeration e = srTbl.keys();
+		while (e.hasMoreElements()) {
+			deregister((StageWrapperIF) e.nextElement());
+		}
+		pool.shutdown();
+	}
+
+	/**
+	 * Internal class which schedules a single stage onto the pool. The 
+	 * same instance is submitted to the pool each time a batch is to be
+	 * run; 'running' counts the batches which are queued or in progress.
+	 */
+	protected class stageRunner implements Runnable, SourceListenerIF {
+
+		protected StageWrapperIF wrapper;
+		protected SourceIF source;
+		protected EventHandlerIF handler;
+		protected String name;
+		protected ResponseTimeControllerIF rtController;
+		protected EventTracer tracer;
+		protected int batchSize;
+		protected int maxConcurrency;
+		protected boolean useBatch;
+		protected volatile boolean stopped = false;
+		protected AtomicInteger running = new AtomicInteger(0);
+		// Set by sourceReady(), which the queue calls only once elements
+		// can be dequeued; cleared before each dequeue
+		protected volatile boolean notified = false;
+
+		protected stageRunner(StageWrapperIF wrapper) {
+			this.wrapper = wrapper;
+			this.source = wrapper.getSource();
+			this.handler = wrapper.getEventHandler();
+			this.name = wrapper.getStage().getName();
+			this.rtController = wrapper.getResponseTimeController();
+			this.tracer = mgr.getProfiler().getTracer();
+			this.batchSize = config.getInt("stages." + name + ".FJTM.batchSize", config.getInt("global.FJTM.batchSize"));
+			if (batchSize <= 0)
+				batchSize = 1;
+
+			if (handler instanceof SingleThreadedEventHandlerIF) {
+				maxConcurrency = 1;
+			} else {
+				maxConcurrency = pool.getParallelism();
+			}
+			// Response time controllers are handed the batch itself
+			useBatch = (source instanceof BatchSourceIF) && (handler instanceof BatchEventHandlerIF)
+					&& (rtController == null);
+		}
+
+		/**
+		 * Called by the stage's event queue when events are enqueued.
+		 * Schedules another batch if none are running, or if there is more
+		 * pending work than the running batches will pick up.
+		 */
+		public void sourceReady(SourceIF src) {
+			notified = true;
+			while (!stopped) {
+				int r = running.get();
+				if (r >= maxConcurrency)
+					return;
+				if ((r > 0) && (source.size() <= r * batchSize))
+					return;
+				if (running.compareAndSet(r, r + 1)) {
+					try {
+						pool.execute(this);
+					} catch (RuntimeException e) {
+						// Pool has been shut down
+						running.decrementAndGet();
+					}
+					return;
+				}
+			}
+		}
+
+		public void run() {
+			// The queue's size also counts elements whose provisional
+			// enqueue has not been committed, so it cannot be used to tell
+			// whether another batch is available
+			int num = batchSize;
+			notified = false;
+			try {
+				num = runBatch();
+			} catch (Exception e) {
+				System.err.println("ForkJoinThreadManager: stage [" + name + "] got exception " + e);
+				e.printStackTrace();
+			}
+
+			if (!stopped && (num == batchSize) && (source.size() > 0)) {
+				// Keep our slot and go around again
+				pool.execute(this);
+				return;
+			}
+			running.decrementAndGet();
+			// Events committed after our dequeue may have seen us as running
+			if (notified && (source.size() > 0))
+				sourceReady(source);
+		}
+
+		/**
+		 * Run one batch, returning the number of events handled.
+		 */
+		private int runBatch() throws Exception {
+			QueueElementIF fetched[] = null;
+			QueueElementIF batch[] = null;
+			int num;
+
+			if (useBatch) {
+				batch = (QueueElementIF[]) batchBuf.get();
+				if (batch.length < batchSize) {
+					batch = new QueueElementIF[batchSize];
+					batchBuf.set(batch);
+				}
+				num = ((BatchSourceIF) source).drainTo(batch, batchSize, 0);
+			} else {
+				fetched = source.dequeue(batchSize);
+				num = (fetched == null) ? 0 : fetched.length;
+			}
+			if (num == 0)
+				return 0;
+
+			if (DEBUG)
+				System.err.println(name + ": Got " + num + " elements for " + wrapper);
+
+			long nstart = System.nanoTime();
+			if ((tracer != null) && tracer.isTraced(wrapper, useBatch ? batch : fetched, num)) {
+				tracer.handleEvents(wrapper, handler, useBatch ? batch : fetched, num);
+			} else if (useBatch) {
+				((BatchEventHandlerIF) handler).handleEvents(batch, num);
+			} else {
+				handler.handleEvents(fetched);
+			}
+			if (useBatch)
+				Arrays.fill(batch, 0, num, null);
+			long nanos = System.nanoTime() - nstart;
+
+			wrapper.getStats().recordBatch(num, nanos);
+			if (rtController != null) {
+				rtController.adjustThreshold(fetched, nanos / 1000000L);
+			}
+			return num;
+		}
+	}
+
+}
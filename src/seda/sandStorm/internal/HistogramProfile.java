@@ -0,0 +1,61 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.internal;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.core.*;
+
+/**
+ * Adapts a LogHistogram to the ProfilableIF interface, so the profiler
+ * can sample a percentile of the values recorded between samples.
+ *
+ * @author Matt Welsh
+ * @see sandStormProfiler
+ */
+class HistogramProfile implements ProfilableIF {
+
+  private LogHistogram hist;
+  private double percentile;
+  private long divisor;
+  private HistogramSnapshot last;
+
+  /**
+   * Profile the given percentile (between 0.0 and 1.0) of the
+   * histogram, reported in units of 'divisor' recorded values.
+   */
+  HistogramProfile(LogHistogram hist, double percentile, long divisor) {
+    this.hist = hist;
+    this.percentile = percentile;
+    this.divisor = divisor;
+  }
+
+  public synchronized int profileSize() {
+    HistogramSnapshot snap = hist.snapshot();
+    long val = snap.minus(last).getValueAtPercentile(percentile);
+    last = snap;
+    return (int)(val / divisor);
+  }
+
+}
@@ -0,0 +1,134 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.internal;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.core.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.*;
+
+/**
+ * MetricsMBean exports the contents of a MetricsRegistryIF through JMX,
+ * as a single read-only DynamicMBean. Each gauge and counter is an
+ * attribute under its own name; each histogram is exported as the
+ * attributes <tt>"&lt;name&gt; count"</tt>, <tt>"mean"</tt>,
+ * <tt>"max"</tt>, <tt>"p50"</tt>, <tt>"p90"</tt> and <tt>"p99"</tt>.
+ * The set of attributes follows the registry as metrics are added.
+ *
+ * @author Matt Welsh
+ * @see MetricsRegistryIF
+ */
+class MetricsMBean implements DynamicMBean {
+
+  /** The JMX object name under which the metrics are registered. */
+  static final String OBJECT_NAME = "seda.sandStorm:type=Metrics";
+
+  private static final String HIST_FIELDS[] = { "count", "mean", "max", "p50", "p90", "p99" };
+
+  private MetricsRegistryIF metrics;
+
+  MetricsMBean(MetricsRegistryIF metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Register an MBean for the given registry with the platform MBean
+   * server.
+   */
+  static void register(MetricsRegistryIF metrics) throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    server.registerMBean(new MetricsMBean(metrics), new ObjectName(OBJECT_NAME));
+  }
+
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    Object val = metrics.getValue(attribute);
+    if ((val != null) && !(val instanceof HistogramSnapshot)) return val;
+
+    int sp = attribute.lastIndexOf(' ');
+    if (sp != -1) {
+      Object hval = metrics.getValue(attribute.substring(0, sp));
+      if (hval instanceof HistogramSnapshot) {
+	HistogramSnapshot snap = (HistogramSnapshot)hval;
+	String field = attribute.substring(sp+1);
+	if (field.equals("count")) return new Long(snap.getTotalCount());
+	if (field.equals("mean")) return new Double(snap.getMean());
+	if (field.equals("max")) return new Long(snap.getMax());
+	if (field.equals("p50")) return new Long(snap.getValueAtPercentile(0.5));
+	if (field.equals("p90")) return new Long(snap.getValueAtPercentile(0.9));
+	if (field.equals("p99")) return new Long(snap.getValueAtPercentile(0.99));
+      }
+    }
+    throw new AttributeNotFoundException("No such metric: "+attribute);
+  }
+
+  public AttributeList getAttributes(String attributes[]) {
+    AttributeList list = new AttributeList();
+    for (int i = 0; i < attributes.length; i++) {
+      try {
+	list.add(new Attribute(attributes[i], getAttribute(attributes[i])));
+      } catch (AttributeNotFoundException e) {
+	// Metric was removed, or never existed; leave it out
+      }
+    }
+    return list;
+  }
+
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metric "+attribute.getName()+" is read-only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  public Object invoke(String actionName, Object params[], String signature[]) throws ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  public MBeanInfo getMBeanInfo() {
+    String names[] = metrics.getNames();
+    Vector attrs = new Vector(names.length);
+    for (int i = 0; i < names.length; i++) {
+      Object val = metrics.getValue(names[i]);
+      if (val instanceof HistogramSnapshot) {
+	for (int f = 0; f < HIST_FIELDS.length; f++) {
+	  String type = HIST_FIELDS[f].equals("mean") ? "java.lang.Double" : "java.lang.Long";
+	  attrs.addElement(new MBeanAttributeInfo(names[i]+" "+HIST_FIELDS[f], type,
+		HIST_FIELDS[f]+" of histogram "+names[i], true, false, false));
+	}
+      } else if (val != null) {
+	String type = (val instanceof Integer) ? "java.lang.Integer" : "java.lang.Long";
+	attrs.addElement(new MBeanAttributeInfo(names[i], type,
+	      ((val instanceof Integer) ? "Gauge " : "Counter ")+names[i], true, false, false));
+      }
+    }
+    MBeanAttributeInfo attrArr[] = new MBeanAttributeInfo[attrs.size()];
+    attrs.copyInto(attrArr);
+    return new MBeanInfo(getClass().getName(), "Sandstorm runtime metrics", attrArr,
+	null, null, null);
+  }
+
+}
@@ -0,0 +1,274 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.internal;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.core.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * MetricsRegistry is the implementation of MetricsRegistryIF for
+ * Sandstorm. Metrics are kept in a sorted concurrent map, so they can be
+ * registered and read from any thread without locking, and are only
+ * read when an exporter asks for them.
+ *
+ * <p>In the Prometheus format, a metric named
+ * <tt>"TPController avgThreads &lt;myStage&gt;"</tt> is exported as
+ * <tt>sandstorm_tpcontroller_avg_threads{name="myStage"}</tt>.
+ * Counters get a <tt>_total</tt> suffix, and histograms are exported as
+ * summaries with the 50th, 90th and 99th percentiles.
+ *
+ * @author Matt Welsh
+ * @see MetricsRegistryIF
+ * @see MetricsMBean
+ */
+class MetricsRegistry implements MetricsRegistryIF {
+
+  private static final String PREFIX = "sandstorm_";
+  private static final double QUANTILES[] = { 0.5, 0.9, 0.99 };
+
+  // name -> ProfilableIF, CounterIF, or LogHistogram
+  private ConcurrentSkipListMap metrics;
+
+  MetricsRegistry() {
+    metrics = new ConcurrentSkipListMap();
+  }
+
+  public void addGauge(String name, ProfilableIF gauge) {
+    add(name, gauge);
+  }
+
+  public void addCounter(String name, CounterIF counter) {
+    add(name, counter);
+  }
+
+  public void addHistogram(String name, LogHistogram histogram) {
+    add(name, histogram);
+  }
+
+  private void add(String name, Object metric) {
+    if ((name == null) || (metric == null)) return;
+    metrics.put(name, metric);
+  }
+
+  public void remove(String name) {
+    metrics.remove(name);
+  }
+
+  public String[] getNames() {
+    return (String[])metrics.keySet().toArray(new String[0]);
+  }
+
+  public Object getValue(String name) {
+    Object metric = metrics.get(name);
+    if (metric == null) return null;
+    return read(metric);
+  }
+
+  // Read the current value of a metric. Gauges are arbitrary code, so
+  // any exception is treated as the metric having no value.
+  private Object read(Object metric) {
+    try {
+      if (metric instanceof ProfilableIF) {
+	return new Integer(((ProfilableIF)metric).profileSize());
+      } else if (metric instanceof CounterIF) {
+	return new Long(((CounterIF)metric).getCount());
+      } else {
+	return ((LogHistogram)metric).snapshot();
+      }
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  public String toPrometheusText() {
+    // Group metrics by their exported name, since each family may only
+    // be described once
+    TreeMap families = new TreeMap();
+    Iterator it = metrics.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry ent = (Map.Entry)it.next();
+      String name = (String)ent.getKey();
+      int lt = labelStart(name);
+      String family = metricName((lt == -1) ? name : name.substring(0, lt));
+      if (ent.getValue() instanceof CounterIF) family += "_total";
+      Vector members = (Vector)families.get(family);
+      if (members == null) {
+	members = new Vector();
+	families.put(family, members);
+      }
+      members.addElement(ent);
+    }
+
+    StringBuffer sb = new StringBuffer(families.size() * 128);
+    it = families.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry fam = (Map.Entry)it.next();
+      String family = (String)fam.getKey();
+      Vector members = (Vector)fam.getValue();
+      Object first = ((Map.Entry)members.elementAt(0)).getValue();
+      String type = (first instanceof ProfilableIF) ? "gauge" :
+	(first instanceof CounterIF) ? "counter" : "summary";
+      sb.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+
+      for (int i = 0; i < members.size(); i++) {
+	Map.Entry ent = (Map.Entry)members.elementAt(i);
+	Object val = read(ent.getValue());
+	if (val == null) continue;
+	String name = (String)ent.getKey();
+	int lt = labelStart(name);
+	String label = (lt == -1) ? null :
+	  "name=\""+escapeLabel(name.substring(lt+1, name.length()-1))+"\"";
+
+	if (val instanceof HistogramSnapshot) {
+	  HistogramSnapshot snap = (HistogramSnapshot)val;
+	  for (int q = 0; q < QUANTILES.length; q++) {
+	    String ql = "quantile=\""+QUANTILES[q]+"\"";
+	    appendSample(sb, family, (label == null) ? ql : label+","+ql,
+		snap.getValueAtPercentile(QUANTILES[q]));
+	  }
+	  appendSample(sb, family+"_sum", label, snap.getTotalSum());
+	  appendSample(sb, family+"_count", label, snap.getTotalCount());
+	} else {
+	  appendSample(sb, family, label, ((Number)val).longValue());
+	}
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void appendSample(StringBuffer sb, String name, String labels, long value) {
+    sb.append(name);
+    if (labels != null) sb.append('{').append(labels).append('}');
+    sb.append(' ').append(value).append('\n');
+  }
+
+  public String toJSON() {
+    StringBuffer sb = new StringBuffer(metrics.size() * 96);
+    sb.append('{');
+    boolean first = true;
+    Iterator it = metrics.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry ent = (Map.Entry)it.next();
+      Object val = read(ent.getValue());
+      if (val == null) continue;
+      if (!first) sb.append(',');
+      first = false;
+      sb.append("\n  \"").append(escapeJSON((String)ent.getKey())).append("\": {");
+
+      if (val instanceof HistogramSnapshot) {
+	HistogramSnapshot snap = (HistogramSnapshot)val;
+	sb.append("\"type\": \"histogram\", \"count\": ").append(snap.getTotalCount());
+	sb.append(", \"sum\": ").append(snap.getTotalSum());
+	sb.append(", \"mean\": ").append(snap.getMean());
+	sb.append(", \"max\": ").append(snap.getMax());
+	for (int q = 0; q < QUANTILES.length; q++) {
+	  sb.append(", \"p").append((int)Math.round(QUANTILES[q] * 100)).append("\": ");
+	  sb.append(snap.getValueAtPercentile(QUANTILES[q]));
+	}
+      } else {
+	sb.append("\"type\": \"").append((val instanceof Integer) ? "gauge" : "counter");
+	sb.append("\", \"value\": ").append(val);
+      }
+      sb.append('}');
+    }
+    sb.append("\n}\n");
+    return sb.toString();
+  }
+
+  /**
+   * Return the index of the '&lt;' which opens the object name at the
+   * end of the given metric name, or -1 if it has none. The object name
+   * may itself contain angle brackets, as in
+   * <tt>"ThreadPool &lt;httpServer 0 &lt;port 8080&gt;&gt;"</tt>.
+   */
+  static int labelStart(String name) {
+    if (!name.endsWith(">")) return -1;
+    int depth = 0;
+    for (int i = name.length() - 1; i >= 0; i--) {
+      char c = name.charAt(i);
+      if (c == '>') depth++;
+      else if ((c == '<') && (--depth == 0)) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Convert the given free-form name to a Prometheus metric name: words
+   * and camelCase humps are joined with underscores and lowercased, and
+   * any other character becomes an underscore.
+   */
+  static String metricName(String name) {
+    StringBuffer sb = new StringBuffer(PREFIX.length() + name.length() + 8);
+    sb.append(PREFIX);
+    boolean sep = false;
+    char prev = ' ';
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if ((c < 128) && Character.isLetterOrDigit(c)) {
+	if (Character.isUpperCase(c) && (Character.isLowerCase(prev) || Character.isDigit(prev))) {
+	  sep = true;
+	}
+	if (sep && (sb.length() > PREFIX.length())) sb.append('_');
+	sep = false;
+	sb.append(Character.toLowerCase(c));
+      } else {
+	sep = true;
+      }
+      prev = c;
+    }
+    if (sb.length() == PREFIX.length()) sb.append("metric");
+    return sb.toString();
+  }
+
+  private static String escapeLabel(String s) {
+    StringBuffer sb = new StringBuffer(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if ((c == '\\') || (c == '"')) sb.append('\\').append(c);
+      else if (c == '\n') sb.append("\\n");
+      else sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  private static String escapeJSON(String s) {
+    StringBuffer sb = new StringBuffer(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if ((c == '\\') || (c == '"')) {
+	sb.append('\\').append(c);
+      } else if (c < 0x20) {
+	String hex = Integer.toHexString(c);
+	sb.append("\\u0000".substring(0, 6 - hex.length())).append(hex);
+      } else {
+	sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+}
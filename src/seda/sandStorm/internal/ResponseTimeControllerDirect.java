@@ -65,7 +65,8 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
   private static final double MIN_RATE = 0.05;
 
   private long adjtime;
-  private long measurements[], sortedmeasurements[];
+  private LogHistogram rtHistogram;
+  private HistogramSnapshot lastRT;
   private int curThreshold, cur_measurement;
   private double curRate;
   private double ninetiethRT;
@@ -74,8 +75,7 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
   public ResponseTimeControllerDirect(ManagerIF mgr, StageWrapperIF stage) throws IllegalArgumentException {
     super(mgr, stage);
 
-    this.measurements = new long[MEASUREMENT_SIZE];
-    this.sortedmeasurements = new long[MEASUREMENT_SIZE];
+    this.rtHistogram = new LogHistogram();
     this.cur_measurement = 0;
     this.adjtime = System.currentTimeMillis();
 
@@ -151,7 +151,7 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 	TimeStampedEvent ev = (TimeStampedEvent)fetched[i];
 	long time = ev.timestamp;
 	if (time != 0) {
-	  measurements[cur_measurement] = curtime - time;
+	  rtHistogram.record(curtime - time);
 	  cur_measurement++; 
 	  if (cur_measurement == MEASUREMENT_SIZE) {
 	    cur_measurement = 0;
@@ -161,17 +161,16 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
       }
     }
 
-    int numsort = MEASUREMENT_SIZE;
     if ((curtime - adjtime) >= MEASUREMENT_TIME) {
       adjust = true;
-      numsort = cur_measurement;
       cur_measurement = 0;
     } 
 
     if (!adjust) return;
-    System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-    Arrays.sort(sortedmeasurements, 0, numsort);
-    long cur = sortedmeasurements[ (int)(0.9 * (double)numsort) ];
+    // 90th percentile of the samples since the last adjustment
+    HistogramSnapshot snap = rtHistogram.snapshot();
+    long cur = snap.minus(lastRT).getValueAtPercentile(0.9);
+    lastRT = snap;
     ninetiethRT = (SMOOTH_CONST * (double)ninetiethRT*1.0) + ((1.0 - SMOOTH_CONST) * ((double)cur * 1.0)); 
     stage.getStats().record90thRT(ninetiethRT);
 
@@ -75,7 +75,8 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
     int theclass;
     double adjtime;
     double targetRT;
-    long measurements[], sortedmeasurements[];
+    LogHistogram rtHistogram;
+    HistogramSnapshot lastRT;
     int cur_measurement = 0;
     int num_measurements = 0;
     double curRate;
@@ -90,8 +91,7 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
     cinfo(int theclass, double target) {
       this.theclass = theclass;
       this.targetRT = target;
-      this.measurements = new long[MEASUREMENT_SIZE];
-      this.sortedmeasurements = new long[MEASUREMENT_SIZE];
+      this.rtHistogram = new LogHistogram();
 
       this.curRate = ((MulticlassRateLimitingPredicate)pred).getTargetRate(theclass);
       this.adjtime = System.currentTimeMillis();
@@ -107,7 +107,7 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
     }
 
     void addMeasurement(long time) {
-      measurements[cur_measurement] = time;
+      rtHistogram.record(time);
       cur_measurement++; 
       num_measurements++; 
       if (cur_measurement == MEASUREMENT_SIZE) {
@@ -116,33 +116,29 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
       }
     }
 
-    void record90th(int numsort, long curtime) {
-      System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-      Arrays.sort(sortedmeasurements, 0, numsort);
-      long cur = sortedmeasurements[ (int)(0.9 * (double)numsort) ];
+    void record90th(long curtime) {
+      // 90th percentile of the samples since the last adjustment
+      HistogramSnapshot snap = rtHistogram.snapshot();
+      long cur = snap.minus(lastRT).getValueAtPercentile(0.9);
+      lastRT = snap;
       ninetiethRT = (SMOOTH_CONST * (double)ninetiethRT*1.0) + ((1.0 - SMOOTH_CONST) * ((double)cur * 1.0)); 
       if (ninetiethRT < MIN_90th) ninetiethRT = 0;
 
       if (theclass == 0) stage.getStats().record90thRT(ninetiethRT);
       adjtime = curtime;
-
-      // Avoid timeout causing us to always read old value
-      if (cur_measurement == 0) sortedmeasurements[0] = 0L;
     }
 
     boolean adjust(long curtime) {
 
-      int numsort = MEASUREMENT_SIZE;
       if (num_measurements > 0 && (curtime - adjtime) >= MEASUREMENT_TIME) {
 	adjust = true;
-	numsort = cur_measurement;
 	cur_measurement = 0;
       } 
 
       if (!adjust) return false;
       adjust = false;
 
-      record90th(numsort, curtime);
+      record90th(curtime);
 
       if (!enabled) return false;
       if (targetRT == -1) return false;
@@ -63,7 +63,8 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
   private static final double MIN_RATE = 0.05;
 
   private SinkProxy sinkProxy;
-  private long measurements[], sortedmeasurements[];
+  private LogHistogram rtHistogram;
+  private HistogramSnapshot lastRT;
   private double errors[], lasterr, lastinterr, totalinterr;
   private int curThreshold, cur_measurement, cur_error;
   private long numReceived;
@@ -76,8 +77,7 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
     super(mgr, stage);
     this.adjtime = System.currentTimeMillis();
     this.sinkProxy = (SinkProxy)stage.getStage().getSink();
-    this.measurements = new long[MEASUREMENT_SIZE];
-    this.sortedmeasurements = new long[MEASUREMENT_SIZE];
+    this.rtHistogram = new LogHistogram();
     this.errors = new double[MEASUREMENT_SIZE];
     this.cur_measurement = 0;
     this.cur_error = 0;
@@ -150,7 +150,7 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 	TimeStampedEvent ev = (TimeStampedEvent)fetched[i];
 	long time = ev.timestamp;
 	if (time != 0) {
-	  measurements[cur_measurement] = curtime - time;
+	  rtHistogram.record(curtime - time);
 	  cur_measurement++; 
 	  if (cur_measurement == MEASUREMENT_SIZE) {
 	    cur_measurement = 0;
@@ -160,18 +160,17 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
       }
     }
 
-    int numsort = MEASUREMENT_SIZE;
     long elapsed = curtime - adjtime;
     if (elapsed >= MEASUREMENT_TIME) {
       adjust = true;
-      numsort = cur_measurement;
       cur_measurement = 0;
     }
 
     if (!adjust) return;
-    System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-    Arrays.sort(sortedmeasurements, 0, numsort);
-    long cur = sortedmeasurements[ (int)(0.9 * (double)numsort) ];
+    // 90th percentile of the samples since the last adjustment
+    HistogramSnapshot snap = rtHistogram.snapshot();
+    long cur = snap.minus(lastRT).getValueAtPercentile(0.9);
+    lastRT = snap;
     ninetiethRT = (SMOOTH_CONST * (double)ninetiethRT*1.0) + ((1.0 - SMOOTH_CONST) * ((double)cur * 1.0));
     adjtime = curtime;
     stage.getStats().record90thRT(ninetiethRT);
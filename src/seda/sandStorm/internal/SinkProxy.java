@@ -33,7 +33,8 @@ import java.util.*;
  * stages. By handing out a SinkProxy instead of a FiniteQueue, it is
  * possible to gather statistics on event communication between stages.
  * This is used by StageGraph to construct a graph of the communication
- * patterns between stages.
+ * patterns between stages and count the events sent along each edge,
+ * and by EventTracer to tag sampled events as they are enqueued.
  *
  * @author Matt Welsh
  */
@@ -44,8 +45,11 @@ public class SinkProxy implements SinkIF, ProfilableIF {
   private ManagerIF mgr;
   private StageWrapperIF toStage;
   private StageGraph stageGraph;
+  private EventTracer tracer;
   public SinkIF thesink;
   private Thread client = null;
+  private StageGraphEdge clientEdge = null;
+  // Thread -> StageGraphEdge, or the Thread itself if it has no stage
   private Hashtable clientTbl = null;
 
   /** 
@@ -76,6 +80,7 @@ public class SinkProxy implements SinkIF, ProfilableIF {
     this.thesink = sink;
     this.mgr = mgr;
     this.stageGraph = mgr.getProfiler().getGraphProfiler();
+    this.tracer = mgr.getProfiler().getTracer();
     this.toStage = toStage;
     this.enqueueCount = 0;
     this.enqueueSuccessCount = 0;
@@ -91,26 +96,40 @@ public class SinkProxy implements SinkIF, ProfilableIF {
   }
 
   public void enqueue(QueueElementIF enqueueMe) throws SinkException {
-    recordUse();
+    recordUse(1);
     enqueueCount++; 
-    thesink.enqueue(enqueueMe);
+    boolean traced = (tracer != null) && tracer.enqueued(toStage, enqueueMe);
+    try {
+      thesink.enqueue(enqueueMe);
+    } catch (SinkException se) {
+      if (traced) tracer.untag(toStage, enqueueMe);
+      throw se;
+    }
     enqueueSuccessCount++; 
   }
 
   public boolean enqueue_lossy(QueueElementIF enqueueMe) {
-    recordUse();
+    recordUse(1);
     enqueueCount++; 
+    boolean traced = (tracer != null) && tracer.enqueued(toStage, enqueueMe);
     boolean pass = thesink.enqueue_lossy(enqueueMe);
     if (pass) enqueueSuccessCount++;
+    else if (traced) tracer.untag(toStage, enqueueMe);
     return pass;
   }
 
   public void enqueue_many(QueueElementIF[] enqueueMe) throws SinkException {
-    recordUse();
+    recordUse((enqueueMe == null) ? 0 : enqueueMe.length);
     if (enqueueMe != null) {
       enqueueCount += enqueueMe.length;
     }
-    thesink.enqueue_many(enqueueMe);
+    boolean traced = (tracer != null) && (tracer.enqueued(toStage, enqueueMe) > 0);
+    try {
+      thesink.enqueue_many(enqueueMe);
+    } catch (SinkException se) {
+      if (traced) tracer.untag(toStage, enqueueMe);
+      throw se;
+    }
     if (enqueueMe != null) {
       enqueueSuccessCount += enqueueMe.length;
     }
@@ -124,7 +143,7 @@ public class SinkProxy implements SinkIF, ProfilableIF {
   }
 
   public Object enqueue_prepare(QueueElementIF enqueueMe[]) throws SinkException {
-    recordUse();
+    recordUse((enqueueMe == null) ? 0 : enqueueMe.length);
     if (enqueueMe != null) {
       enqueueCount += enqueueMe.length;
     }
@@ -132,17 +151,38 @@ public class SinkProxy implements SinkIF, ProfilableIF {
     if (enqueueMe != null) {
       enqueueSuccessCount += enqueueMe.length;
     }
+    // Remember the elements, so that their tags can be removed on abort
+    if ((tracer != null) && (tracer.enqueued(toStage, enqueueMe) > 0)) {
+      key = new tracedKey(key, enqueueMe);
+    }
     return key;
   }
 
   public void enqueue_commit(Object key) {
+    if (key instanceof tracedKey) key = ((tracedKey)key).key;
     thesink.enqueue_commit(key);
   }
 
   public void enqueue_abort(Object key) {
+    if (key instanceof tracedKey) {
+      tracer.untag(toStage, ((tracedKey)key).elements);
+      key = ((tracedKey)key).key;
+    }
     thesink.enqueue_abort(key);
   }
 
+  // Key returned by enqueue_prepare() when some of the elements were
+  // tagged by the EventTracer
+  private static class tracedKey {
+    Object key;
+    QueueElementIF elements[];
+
+    tracedKey(Object key, QueueElementIF elements[]) {
+      this.key = key;
+      this.elements = elements;
+    }
+  }
+
   public void setEnqueuePredicate(EnqueuePredicateIF pred) {
     thesink.setEnqueuePredicate(pred);
   }
@@ -155,33 +195,41 @@ public class SinkProxy implements SinkIF, ProfilableIF {
     return "[SinkProxy for toStage="+toStage+"]";
   }
 
-  private void recordUse() {
+  // Add the edge from the given thread's stage to this sink to the
+  // stage graph, and return it, or null if the thread has no stage
+  private StageGraphEdge addEdge(Thread t) {
+    StageGraphEdge edge = new StageGraphEdge();
+    edge.fromStage = stageGraph.getStageFromThread(t);
+    edge.toStage = toStage;
+    edge.sink = this;
+    return stageGraph.addEdge(edge);
+  }
+
+  private void recordUse(int num) {
     if (DEBUG) System.err.println("SinkProxy: Recording use of "+this+" by thread "+Thread.currentThread());
 
+    Thread t = Thread.currentThread();
+    StageGraphEdge edge;
     if (client == null) {
-      client = Thread.currentThread();
+      client = t;
+      clientEdge = addEdge(t);
+      edge = clientEdge;
 
-      StageGraphEdge edge = new StageGraphEdge();
-      edge.fromStage = stageGraph.getStageFromThread(client);
-      edge.toStage = toStage;
-      edge.sink = this;
-      stageGraph.addEdge(edge);
+    } else if (client == t) {
+      edge = clientEdge;
 
     } else {
-      Thread t = Thread.currentThread();
-      if (client != t) {
-	if (clientTbl == null) clientTbl = new Hashtable();
-	if (clientTbl.get(t) == null) {
-	  clientTbl.put(t, t);
-
-	  StageGraphEdge edge = new StageGraphEdge();
-	  edge.fromStage = stageGraph.getStageFromThread(t);
-	  edge.toStage = toStage;
-	  edge.sink = this;
-	  stageGraph.addEdge(edge);
-	}
+      if (clientTbl == null) clientTbl = new Hashtable();
+      Object o = clientTbl.get(t);
+      if (o == null) {
+	edge = addEdge(t);
+	// Remember threads without a stage too
+	clientTbl.put(t, (edge == null) ? (Object)t : edge);
+      } else {
+	edge = (o instanceof StageGraphEdge) ? (StageGraphEdge)o : null;
       }
     }
+    if (edge != null) edge.enqueueCount.addAndGet(num);
   }
 
 }
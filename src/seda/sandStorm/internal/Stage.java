@@ -59,6 +59,10 @@ public class Stage implements StageIF {
 
 		if (ENABLE_SINK_PROXY && (cf.getBoolean("global.batchController.enable") || cf.getBoolean("global.rtController.enable"))) {
 			this.mainsink = new SinkProxy((SinkIF) mainsink, config.getManager(), wrapper);
+		} else if ((mainsink != null) && ((config.getManager().getProfiler().getTracer() != null) || cf.getBoolean("global.planner.enable"))) {
+			// The event tracer tags events as they pass through the proxy,
+			// and the capacity planner counts events along each edge
+			this.mainsink = new SinkProxy((SinkIF) mainsink, config.getManager(), wrapper);
 		}
 	}
 
@@ -98,27 +98,46 @@ public class StageGraph {
     threads.put(thread, stage);
   }
 
-  public synchronized void addEdge(StageGraphEdge edge) {
-    if (!edges.contains(edge)) {
-      if ((edge.fromStage == null) ||
-	  (edge.toStage == null) ||
-	  (edge.sink == null)) return;
-
-      addStage(edge.fromStage);
-      addStage(edge.toStage);
-
-      if (DEBUG) System.err.println("StageGraph: Adding edge "+edge);
-
-      edges.addElement(edge);
-      stageList list = (stageList)edgesFrom.get(edge.fromStage);
-      if (list == null) {
-	list = new stageList();
-	list.add(edge);
-	edgesFrom.put(edge.fromStage, list);
-      } else {
-	list.add(edge);
-      }
-    } 
+  /**
+   * Return the number of live threads belonging to the given stage.
+   */
+  public synchronized int getNumThreads(StageWrapperIF stage) {
+    int num = 0;
+    Enumeration e = threads.keys();
+    while (e.hasMoreElements()) {
+      Thread t = (Thread)e.nextElement();
+      if ((threads.get(t) == stage) && t.isAlive()) num++;
+    }
+    return num;
+  }
+
+  /**
+   * Add an edge to the graph, unless an equal edge is already there.
+   * Returns the edge in the graph, or null if the edge is incomplete.
+   */
+  public synchronized StageGraphEdge addEdge(StageGraphEdge edge) {
+    int idx = edges.indexOf(edge);
+    if (idx != -1) return (StageGraphEdge)edges.elementAt(idx);
+
+    if ((edge.fromStage == null) ||
+	(edge.toStage == null) ||
+	(edge.sink == null)) return null;
+
+    addStage(edge.fromStage);
+    addStage(edge.toStage);
+
+    if (DEBUG) System.err.println("StageGraph: Adding edge "+edge);
+
+    edges.addElement(edge);
+    stageList list = (stageList)edgesFrom.get(edge.fromStage);
+    if (list == null) {
+      list = new stageList();
+      list.add(edge);
+      edgesFrom.put(edge.fromStage, list);
+    } else {
+      list.add(edge);
+    }
+    return edge;
   }
 
   /**
@@ -30,6 +30,7 @@ import seda.sandStorm.core.*;
 import seda.sandStorm.main.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class represents an edge in the stage-connectivity graph.
@@ -43,6 +44,9 @@ class StageGraphEdge {
   StageWrapperIF toStage;
   SinkIF sink;
 
+  /** The number of events enqueued along this edge. */
+  AtomicLong enqueueCount = new AtomicLong(0);
+
   public boolean equals(Object o) {
     if (!(o instanceof StageGraphEdge)) return false;
     StageGraphEdge e = (StageGraphEdge)o;
@@ -32,7 +32,9 @@ import java.util.*;
 
 /**
  * This class provides controllers with a view of statistics gathered by the
- * stage internally during execution.
+ * stage internally during execution. Batch sizes, service times and queue
+ * wait times are recorded in LogHistograms, which do not lock; the service
+ * rate is derived from them when it is read.
  * 
  * @author Matt Welsh
  */
@@ -42,7 +44,6 @@ public class StageStats implements StageStatsIF {
 	private static final boolean PROFILE = false;
 
 	private static final double SMOOTH_ALPHA = 0.7;
-	private static final int ESTIMATION_SIZE = 100;
 	private static final long ESTIMATION_TIME = 1000;
 
 	/* A handle to the stage. */
@@ -52,40 +53,81 @@ public class StageStats implements StageStatsIF {
 	private double serviceRate;
 
 	/* 90th percentile response time of the stage. */
-	private double rt90thPercentile;
+	private volatile double rt90thPercentile;
 
 	private boolean first = true;
-	private long lastTime;
-	private int count;
-	private long totalServiceTime, totalEvents, cumulativeEvents;
+
+	private LogHistogram queueWait, batchService, eventService, batchSize;
+
+	/* Totals at the last service rate estimate. */
+	private long lastTime, lastEvents, lastServiceTime;
 
 	public StageStats(StageWrapperIF stage) {
 		this.stage = stage;
+		this.queueWait = new LogHistogram();
+		this.batchService = new LogHistogram();
+		this.eventService = new LogHistogram();
+		this.batchSize = new LogHistogram();
 		reset();
 	}
 
-	/** Reset all statistics. */
-	public void reset() {
+	/**
+	 * Reset the service rate estimate. The histograms are cumulative; take
+	 * the difference of two snapshots to see the values recorded between
+	 * them.
+	 */
+	public synchronized void reset() {
 		serviceRate = 0.0;
-		count = 0;
 		lastTime = System.currentTimeMillis();
-		totalEvents = totalServiceTime = cumulativeEvents = 0;
+		lastEvents = batchSize.getTotalSum();
+		lastServiceTime = batchService.getTotalSum();
 	}
 
-	/** Return a moving average of the service rate. */
+	/**
+	 * Return a moving average of the service rate, in events per second of
+	 * service time. The average is updated at most once every second.
+	 */
 	public synchronized double getServiceRate() {
+		long curTime = System.currentTimeMillis();
+		if (curTime - lastTime >= ESTIMATION_TIME) {
+			long events = batchSize.getTotalSum();
+			long serviceTime = batchService.getTotalSum();
+			long dEvents = events - lastEvents;
+			long dTime = serviceTime - lastServiceTime;
+			if (dEvents > 0) {
+				if (dTime <= 0)
+					dTime = 1;
+				double rate = dEvents / (dTime * 1.0e-9);
+				serviceRate = (rate * SMOOTH_ALPHA) + (serviceRate * (1.0 - SMOOTH_ALPHA));
+				if (DEBUG)
+					System.err.println("Stats <" + stage.getStage().getName() + ">: numEvents=" + dEvents + " time=" + dTime + "ns, rate=" + serviceRate);
+			}
+			lastTime = curTime;
+			lastEvents = events;
+			lastServiceTime = serviceTime;
+		}
 		return serviceRate;
 	}
 
 	/** Get total number of processed events. */
-	public synchronized long getTotalEvents() {
-		return this.cumulativeEvents;
+	public long getTotalEvents() {
+		return batchSize.getTotalSum();
 	}
 
 	/**
 	 * Record the service time for numEvents taking 'time' msec to be processed.
 	 */
-	public synchronized void recordServiceRate(int numEvents, long time) {
+	public void recordServiceRate(int numEvents, long time) {
+		recordBatch(numEvents, time * 1000000L);
+	}
+
+	/**
+	 * Record the service time for numEvents taking 'nanos' nsec to be
+	 * processed.
+	 */
+	public void recordBatch(int numEvents, long nanos) {
+		if (numEvents <= 0)
+			return;
 
 		// Only possible to add ourselves to the profile after we start running
 		if (PROFILE && first) {
@@ -94,40 +136,41 @@ public class StageStats implements StageStatsIF {
 			if (mgr.getProfiler() != null) {
 				mgr.getProfiler().add("StageStats serviceRate <" + stage.getStage().getName() + ">", new ProfilableIF() {
 					public int profileSize() {
-						return (int) serviceRate;
+						return (int) getServiceRate();
 					}
 				});
 			}
 		}
 
-		totalEvents += numEvents;
-		cumulativeEvents += numEvents;
-		totalServiceTime += time;
-
-		count++;
-		long curTime = System.currentTimeMillis();
-
-		if ((count == ESTIMATION_SIZE) || (curTime - lastTime >= ESTIMATION_TIME)) {
-			if (totalServiceTime == 0)
-				totalServiceTime = 1;
-			double rate = totalEvents / (totalServiceTime * 1.0e-3);
-			serviceRate = (rate * SMOOTH_ALPHA) + (serviceRate * (1.0 - SMOOTH_ALPHA));
-			if (DEBUG)
-				System.err.println("Stats <" + stage.getStage().getName() + ">: numEvents=" + totalEvents + " time=" + totalServiceTime + ", rate=" + serviceRate);
-			count = 0;
-			lastTime = curTime;
-			totalEvents = totalServiceTime = 0;
-		}
+		batchSize.record(numEvents);
+		batchService.record(nanos);
+		eventService.record(nanos / numEvents, numEvents);
 	}
 
 	/** Record 90th percentile response time in msec. */
-	public synchronized void record90thRT(double rt_sample) {
+	public void record90thRT(double rt_sample) {
 		this.rt90thPercentile = rt_sample;
 	}
 
 	/** Get 90th percentile response time in msec. */
-	public synchronized double get90thRT() {
+	public double get90thRT() {
 		return this.rt90thPercentile;
 	}
 
+	public LogHistogram getQueueWaitHistogram() {
+		return queueWait;
+	}
+
+	public LogHistogram getBatchServiceHistogram() {
+		return batchService;
+	}
+
+	public LogHistogram getEventServiceHistogram() {
+		return eventService;
+	}
+
+	public LogHistogram getBatchSizeHistogram() {
+		return batchSize;
+	}
+
 }
@@ -42,7 +42,7 @@ class StageWrapper implements StageWrapperIF {
   private StageIF stage;
   private EventHandlerIF handler;
   private ConfigDataIF config;
-  private FiniteQueue eventQ;
+  private QueueIF eventQ;
   private ThreadManagerIF threadmgr;
   private StageStatsIF stats;
   private ResponseTimeControllerIF rtcon;
@@ -56,8 +56,9 @@ class StageWrapper implements StageWrapperIF {
     this.handler = handler;
     this.config = config;
     this.threadmgr = threadmgr;
-    eventQ = new FiniteQueue(name);
+    eventQ = createQueue(mgr);
     this.stats = new StageStats(this);
+    enableWaitTime(mgr);
     this.stage = new Stage(name, this, (SinkIF)eventQ, config);
     config.setStage(this.stage);
     createRTController(mgr);
@@ -75,7 +76,8 @@ class StageWrapper implements StageWrapperIF {
     this.stats = new StageStats(this);
     this.rtcon = null;
 
-    eventQ = new FiniteQueue(name);
+    eventQ = createQueue(mgr);
+    enableWaitTime(mgr);
     QueueThresholdPredicate pred = new QueueThresholdPredicate(eventQ, queueThreshold);
     eventQ.setEnqueuePredicate(pred);
 
@@ -84,6 +86,27 @@ class StageWrapper implements StageWrapperIF {
     createRTController(mgr);
   }
 
+  private QueueIF createQueue(ManagerIF mgr) {
+    String deftype = mgr.getConfig().getString("global.queue.type");
+    String qtype = mgr.getConfig().getString("stages."+name+".queue.type", deftype);
+    if ((qtype == null) || qtype.equals("finite")) {
+      return new FiniteQueue(name);
+    } else if (qtype.equals("lockfree")) {
+      return new LockFreeQueue(name);
+    } else {
+      throw new RuntimeException("StageWrapper <"+name+">: Bad queue type "+qtype);
+    }
+  }
+
+  // Have the queue record how long events wait in it, if configured
+  private void enableWaitTime(ManagerIF mgr) {
+    boolean def = mgr.getConfig().getBoolean("global.queue.waitTime.enable");
+    if (mgr.getConfig().getBoolean("stages."+name+".queue.waitTime.enable", def) &&
+	(eventQ instanceof TimedSourceIF)) {
+      ((TimedSourceIF)eventQ).setWaitTimeHistogram(stats.getQueueWaitHistogram());
+    }
+  }
+
   private void createRTController(ManagerIF mgr) {
     boolean rtControllerEnabled = mgr.getConfig().getBoolean("global.rtController.enable");
     String deftype = mgr.getConfig().getString("global.rtController.type");
@@ -42,6 +42,13 @@ public class TPSThreadManager implements ThreadManagerIF, sandStormConst {
 	private static final boolean DEBUG = false;
 	private static final boolean DEBUG_VERBOSE = false;
 
+	/**
+	 * Initial size of the per-thread buffer used to dequeue events from a
+	 * BatchSourceIF. The buffer grows as needed, so that an aggregation
+	 * target of -1 still dequeues every pending event at once.
+	 */
+	protected static final int BATCH_BUFFER_SIZE = 1024;
+
 	protected ManagerIF mgr;
 	protected SandstormConfig config;
 	protected Hashtable srTbl;
@@ -110,6 +117,7 @@ public class TPSThreadManager implements ThreadManagerIF, sandStormConst {
 		protected SourceIF source;
 		protected String name;
 		protected ResponseTimeControllerIF rtController = null;
+		protected EventTracer tracer;
 		protected boolean firstToken = false;
 		protected int aggTarget = -1;
 
@@ -133,6 +141,7 @@ public class TPSThreadManager implements ThreadManagerIF, sandStormConst {
 				}
 			}
 			this.rtController = wrapper.getResponseTimeController();
+			this.tracer = mgr.getProfiler().getTracer();
 
 			if (tp != null)
 				tp.start();
@@ -151,7 +160,8 @@ public class TPSThreadManager implements ThreadManagerIF, sandStormConst {
 				tp = new ThreadPool(wrapper, mgr, this);
 			}
 
-			if (sizeController != null) {
+			// Pools in virtual mode are not resized by the controller
+			if ((sizeController != null) && !tp.isVirtual()) {
 				// The sizeController is globally enabled -- has the user
 				// disabled
 				// it for this stage?
@@ -162,6 +172,7 @@ public class TPSThreadManager implements ThreadManagerIF, sandStormConst {
 				}
 			}
 			this.rtController = wrapper.getResponseTimeController();
+			this.tracer = mgr.getProfiler().getTracer();
 
 			tp.start();
 		}
@@ -169,12 +180,27 @@ public class TPSThreadManager implements ThreadManagerIF, sandStormConst {
 		public void run() {
 			int blockTime;
 			long t1, t2;
-			long tstart = 0, tend = 0;
 			boolean isFirst = false;
+			EventHandlerIF handler = wrapper.getEventHandler();
+			QueueElementIF batch[] = null;
 
 			if (DEBUG)
 				System.err.println(name + ": starting, source is " + source);
 
+			/*
+			 * If both the source and the handler support it, dequeue into a
+			 * buffer owned by this thread rather than allocating a new array
+			 * for each batch. The response time controllers are handed the
+			 * batch itself, so stages with a controller use the old path, as
+			 * do pools in virtual mode, which pass each batch to another
+			 * thread.
+			 */
+			if ((source instanceof BatchSourceIF)
+					&& (handler instanceof BatchEventHandlerIF)
+					&& (rtController == null) && !tp.isVirtual()) {
+				batch = new QueueElementIF[BATCH_BUFFER_SIZE];
+			}
+
 			t1 = System.currentTimeMillis();
 
 			while (true) {
@@ -195,12 +221,22 @@ public class TPSThreadManager implements ThreadManagerIF, sandStormConst {
 						System.err.println(name
 								+ ": Doing blocking dequeue for " + wrapper);
 
-					QueueElementIF fetched[];
-					if (aggTarget == -1) {
+					QueueElementIF fetched[] = null;
+					int num;
+					if (batch != null) {
+						// As with blocking_dequeue_all(), -1 takes everything
+						int want = (aggTarget == -1) ? source.size() : aggTarget;
+						if (want > batch.length)
+							batch = new QueueElementIF[Math.max(want, batch.length * 2)];
+						int max = (aggTarget == -1) ? batch.length : aggTarget;
+						num = ((BatchSourceIF) source).drainTo(batch, max,
+								(blockTime == -1) ? -1 : blockTime * 1000000L);
+					} else if (aggTarget == -1) {
 						if (DEBUG_VERBOSE)
 							System.err.println("TPSTM <" + this.name
 									+ "> dequeue (aggTarget -1)");
 						fetched = source.blocking_dequeue_all(blockTime);
+						num = (fetched == null) ? 0 : fetched.length;
 					} else {
 						if (DEBUG_VERBOSE)
 							System.err
@@ -208,9 +244,10 @@ public class TPSThreadManager implements ThreadManagerIF, sandStormConst {
 											+ "> dequeue (aggTarget "
 											+ aggTarget + ")");
 						fetched = source.blocking_dequeue(blockTime, aggTarget);
+						num = (fetched == null) ? 0 : fetched.length;
 					}
 
-					if (fetched == null) {
+					if (num == 0) {
 						t2 = System.currentTimeMillis();
 						if (tp.timeToStop(t2 - t1)) {
 							if (DEBUG)
@@ -228,28 +265,14 @@ public class TPSThreadManager implements ThreadManagerIF, sandStormConst {
 					t1 = System.currentTimeMillis();
 
 					if (DEBUG_VERBOSE)
-						System.err.println(name + ": Got " + fetched.length
+						System.err.println(name + ": Got " + num
 								+ " elements for " + wrapper);
 
 					/* Process events */
-					tstart = System.currentTimeMillis();
-					wrapper.getEventHandler().handleEvents(fetched);
-					tend = System.currentTimeMillis();
-
-					/* Record service rate */
-					((StageWrapper) wrapper).getStats().recordServiceRate(
-							fetched.length, tend - tstart);
-
-					/* Run response time controller controller */
-					if (rtController != null) {
-						if (rtController instanceof ResponseTimeControllerMM1) {
-							((ResponseTimeControllerMM1) rtController)
-									.adjustThreshold(fetched, tstart, tend,
-											isFirst, tp.numThreads());
-						} else {
-							rtController
-									.adjustThreshold(fetched, tend - tstart);
-						}
+					if (tp.isVirtual()) {
+						tp.runActivation(new activation(fetched));
+					} else {
+						processBatch(handler, batch, fetched, num, isFirst);
 					}
 
 					if (tp.timeToStop(0)) {
@@ -272,6 +295,65 @@ public class TPSThreadManager implements ThreadManagerIF, sandStormConst {
 				}
 			}
 		}
+
+		/**
+		 * Process a batch of events and record its statistics. The events
+		 * are in 'batch' if it is non-null, and in 'fetched' otherwise.
+		 */
+		protected void processBatch(EventHandlerIF handler,
+				QueueElementIF batch[], QueueElementIF fetched[], int num,
+				boolean isFirst) throws Exception {
+			QueueElementIF events[] = (batch != null) ? batch : fetched;
+			long nstart = System.nanoTime();
+			if ((tracer != null) && tracer.isTraced(wrapper, events, num)) {
+				tracer.handleEvents(wrapper, handler, events, num);
+			} else if (batch != null) {
+				((BatchEventHandlerIF) handler).handleEvents(batch, num);
+			} else {
+				handler.handleEvents(fetched);
+			}
+			// Don't hold on to the events until the next batch
+			if (batch != null)
+				Arrays.fill(batch, 0, num, null);
+			long nanos = System.nanoTime() - nstart;
+
+			/* Record service time */
+			((StageWrapper) wrapper).getStats().recordBatch(num, nanos);
+
+			/* Run response time controller controller */
+			if (rtController != null) {
+				long tend = System.currentTimeMillis();
+				long tstart = tend - (nanos / 1000000L);
+				if (rtController instanceof ResponseTimeControllerMM1) {
+					((ResponseTimeControllerMM1) rtController).adjustThreshold(
+							fetched, tstart, tend, isFirst, tp.profileSize());
+				} else {
+					rtController.adjustThreshold(fetched, tend - tstart);
+				}
+			}
+		}
+
+		/**
+		 * Runs a single batch on its own thread, for pools in virtual mode.
+		 */
+		protected class activation implements Runnable {
+			private QueueElementIF fetched[];
+
+			protected activation(QueueElementIF fetched[]) {
+				this.fetched = fetched;
+			}
+
+			public void run() {
+				try {
+					processBatch(wrapper.getEventHandler(), null, fetched,
+							fetched.length, false);
+				} catch (Exception e) {
+					System.err.println("TPSThreadManager: activation [" + name
+							+ "] got exception " + e);
+					e.printStackTrace();
+				}
+			}
+		}
 	}
 
 }
@@ -29,10 +29,21 @@ import seda.sandStorm.api.internal.*;
 import seda.sandStorm.core.*;
 import seda.sandStorm.main.*;
 import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * ThreadPool is a generic class which provides a thread pool.
  * 
+ * <p>If <tt>threadPool.virtual</tt> is enabled for a stage, the pool runs
+ * in "activation" mode: a single dispatcher thread dequeues batches and
+ * hands each one to a new virtual thread (see runActivation()), up to
+ * <tt>threadPool.maxActivations</tt> at once. This lets stages whose
+ * handlers block scale to thousands of concurrent activations without
+ * waiting for the ThreadPoolController to add threads. Where virtual 
+ * threads are not available from the JVM, short-lived daemon platform 
+ * threads are used instead.
+ * 
  * @author Matt Welsh
  */
 
@@ -54,6 +65,14 @@ public class ThreadPool implements ProfilableIF {
 	private int idleTimeThreshold;
 	private AggThrottle aggThrottle;
 
+	private boolean virtual = false;
+	private int maxActivations;
+	private Semaphore activations;
+	private ThreadFactory activationFactory;
+
+	// Thread.ofVirtual().factory(), or null if virtual threads are unavailable
+	private static ThreadFactory virtualThreadFactory = findVirtualThreadFactory();
+
 	/**
 	 * Create a thread pool for the given stage, manager and runnable, with the
 	 * thread pool controller determining the number of threads used.
@@ -100,12 +119,34 @@ public class ThreadPool implements ProfilableIF {
 		this.blockTime = config.getInt(tag + "blockTime", config.getInt(globaltag + "blockTime", blockTime));
 		this.idleTimeThreshold = config.getInt(tag + "sizeController.idleTimeThreshold", config.getInt(globaltag + "sizeController.idleTimeThreshold", blockTime));
 
+		if (config.getBoolean(tag + "virtual", config.getBoolean(globaltag + "virtual"))) {
+			// One dispatcher thread; the activations provide the concurrency
+			virtual = true;
+			initialSize = minThreads = maxThreads = 1;
+			maxActivations = config.getInt(tag + "maxActivations", config.getInt(globaltag + "maxActivations"));
+			if (maxActivations < 1)
+				maxActivations = Integer.MAX_VALUE;
+			activations = new Semaphore(maxActivations);
+			activationFactory = virtualThreadFactory;
+			if (activationFactory == null) {
+				System.err.println("TP <" + poolname + ">: Virtual threads not available, using platform threads for activations");
+				activationFactory = new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(pooltg, r, "TP-activation <" + poolname + ">");
+						t.setDaemon(true);
+						return t;
+					}
+				};
+			}
+			System.err.println("TP <" + poolname + ">: virtual mode, maxActivations " + maxActivations);
+		}
+
 		System.err.println("TP <" + poolname + ">: initial " + initialSize + ", min " + minThreads + ", max " + maxThreads + ", blockTime " + blockTime + ", idleTime "
 				+ idleTimeThreshold);
 
+		pooltg = new ThreadGroup("TP <" + poolname + ">");
 		addThreads(initialSize, false);
 		mgr.getProfiler().add("ThreadPool <" + poolname + ">", this);
-		pooltg = new ThreadGroup("TP <" + poolname + ">");
 	}
 
 	/**
@@ -137,9 +178,9 @@ public class ThreadPool implements ProfilableIF {
 		this.blockTime = blockTime;
 		this.idleTimeThreshold = idleTimeThreshold;
 
+		pooltg = new ThreadGroup("TP <" + poolname + ">");
 		addThreads(initialThreads, false);
 		mgr.getProfiler().add("ThreadPool <" + poolname + ">", this);
-		pooltg = new ThreadGroup("TP <" + poolname + ">");
 	}
 
 	/**
@@ -163,9 +204,9 @@ public class ThreadPool implements ProfilableIF {
 		threads = new Vector();
 		stoppedThreads = new Vector();
 		maxThreads = minThreads = numThreads;
+		pooltg = new ThreadGroup("TP <" + poolname + ">");
 		addThreads(numThreads, false);
 		mgr.getProfiler().add("ThreadPool <" + poolname + ">", this);
-		pooltg = new ThreadGroup("TP <" + poolname + ">");
 	}
 
 	/**
@@ -186,10 +227,63 @@ public class ThreadPool implements ProfilableIF {
 	}
 
 	/**
-	 * Stop the thread pool.
+	 * Stop the thread pool. Each thread exits the next time it calls
+	 * timeToStop(); threads are interrupted to cut short any wait. 
+	 * Activations which are already running are allowed to finish.
 	 */
 	public void stop() {
-		pooltg.stop();
+		synchronized (this) {
+			for (int i = 0; i < threads.size(); i++) {
+				Thread t = (Thread) threads.elementAt(i);
+				stoppedThreads.addElement(t);
+				t.interrupt();
+			}
+			threads.removeAllElements();
+			minThreads = 0;
+		}
+	}
+
+	/**
+	 * Returns true if this pool runs each batch as a separate activation
+	 * (see runActivation()).
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Run the given Runnable on a new virtual thread (or a platform thread
+	 * if virtual threads are unavailable). Blocks the caller while
+	 * maxActivations activations are already running.
+	 */
+	public void runActivation(final Runnable r) {
+		activations.acquireUninterruptibly();
+		try {
+			activationFactory.newThread(new Runnable() {
+				public void run() {
+					try {
+						r.run();
+					} finally {
+						activations.release();
+					}
+				}
+			}).start();
+		} catch (RuntimeException e) {
+			activations.release();
+			throw e;
+		}
+	}
+
+	// Look up Thread.ofVirtual().factory() reflectively, so that this
+	// compiles and runs on JVMs without virtual threads.
+	private static ThreadFactory findVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class builderClass = Class.forName("java.lang.Thread$Builder");
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Throwable t) {
+			return null;
+		}
 	}
 
 	/**
@@ -295,7 +389,18 @@ public class ThreadPool implements ProfilableIF {
 	}
 
 	public int profileSize() {
+		if (virtual)
+			return numThreads() + numActivations();
 		return numThreads();
 	}
 
+	/**
+	 * Return the number of activations currently running.
+	 */
+	int numActivations() {
+		if (!virtual)
+			return 0;
+		return maxActivations - activations.availablePermits();
+	}
+
 }
@@ -59,6 +59,7 @@ public class ThreadPoolController {
   private Vector tpvec;
 
   private boolean autoMaxDetect;
+  private boolean usePlanner;
   private Thread controller;
   private int controllerDelay, controllerThreshold;
 
@@ -70,6 +71,7 @@ public class ThreadPoolController {
     this.controllerDelay = config.getInt("global.threadPool.sizeController.delay");
     this.controllerThreshold = config.getInt("global.threadPool.sizeController.threshold");
     this.autoMaxDetect = config.getBoolean("global.threadPool.sizeController.autoMaxDetect");
+    this.usePlanner = config.getBoolean("global.threadPool.sizeController.usePlanner");
 
     start();
   }
@@ -88,6 +90,7 @@ public class ThreadPoolController {
     }
 
     this.autoMaxDetect = config.getBoolean("global.threadPool.sizeController.autoMaxDetect");
+    this.usePlanner = config.getBoolean("global.threadPool.sizeController.usePlanner");
     start();
   }
 
@@ -110,7 +113,7 @@ public class ThreadPoolController {
   }
 
   private void start() {
-    System.err.println("ThreadPoolController: Started, delay "+controllerDelay+" ms, threshold "+controllerThreshold+", autoMaxDetect "+autoMaxDetect);
+    System.err.println("ThreadPoolController: Started, delay "+controllerDelay+" ms, threshold "+controllerThreshold+", autoMaxDetect "+autoMaxDetect+", usePlanner "+usePlanner);
     controller = new Thread(new controllerThread(), "TPC");
     controller.start();
   }
@@ -206,6 +209,12 @@ public class ThreadPoolController {
 
       if ((adjust_count % CONTROLLER_DELAY) == 0) { 
 
+	// The planner is created after the thread managers
+	CapacityPlanner planner = null;
+	if (usePlanner && (mgr.getProfiler() != null)) {
+	  planner = mgr.getProfiler().getCapacityPlanner();
+	}
+
 	for (int i = 0; i < tpvec.size(); i++) {
 	  tpcClient tpc = (tpcClient)tpvec.elementAt(i);
 
@@ -216,6 +225,12 @@ public class ThreadPoolController {
 	  boolean addThread = false;
 	  if (sz >= tpc.threshold) addThread = true;
 
+	  // Grow towards the number of threads the planner says the
+	  // stage needs, even if its queue is short
+	  if ((planner != null) && (planner.getThreadsNeeded(tpc.stage) > tpc.tp.numThreads())) {
+	    addThread = true;
+	  }
+
 	  if (addThread) {
 	    tpc.tp.addThreads(1, true);
 	  }
@@ -30,6 +30,7 @@ import seda.sandStorm.core.*;
 import seda.sandStorm.main.*;
 import seda.sandStorm.lib.aSocket.*;
 import seda.sandStorm.lib.aDisk.*;
+import seda.sandStorm.lib.http.httpMetricsServer;
 import java.io.*;
 import java.util.*;
 
@@ -80,6 +81,7 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
 	private Vector stagestoinit;
 	private boolean started = false;
 	private sandStormProfiler profiler;
+	private MetricsRegistry metrics;
 	private SignalMgr signalMgr;
 
 	/**
@@ -99,23 +101,50 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
 					"No threadmanager specified by configuration");
 		}
 		// 工厂
-		if (dtm.equals(SandstormConfig.THREADMGR_TPPTM)) {
+		defaulttm = createThreadManager(dtm);
+		// ！！！what tbl stands for？
+		tmtbl.put("default", defaulttm);
+
+		initialize_io();
+		loadInitialStages();
+	}
+
+	// Create a thread manager of the given type.
+	private ThreadManagerIF createThreadManager(String type) {
+		if (type.equals(SandstormConfig.THREADMGR_TPPTM)) {
 			throw new Error("TPPThreadManager is no longer supported.");
-			/* defaulttm = new TPPThreadManager(mgrconfig); */
-		} else if (dtm.equals(SandstormConfig.THREADMGR_TPSTM)) {
-			defaulttm = new TPSThreadManager(this);
-		} else if (dtm.equals(SandstormConfig.THREADMGR_AggTPSTM)) {
+			/* return new TPPThreadManager(mgrconfig); */
+		} else if (type.equals(SandstormConfig.THREADMGR_TPSTM)) {
+			return new TPSThreadManager(this);
+		} else if (type.equals(SandstormConfig.THREADMGR_AggTPSTM)) {
 			throw new Error("AggTPSThreadManager is no longer supported.");
-			/* defaulttm = new AggTPSThreadManager(mgrconfig); */
+			/* return new AggTPSThreadManager(mgrconfig); */
+		} else if (type.equals(SandstormConfig.THREADMGR_FJTM)) {
+			return new ForkJoinThreadManager(this);
 		} else {
 			throw new IllegalArgumentException(
-					"Bad threadmanager specified by configuration: " + dtm);
+					"Bad threadmanager specified by configuration: " + type);
 		}
-		// ！！！what tbl stands for？
-		tmtbl.put("default", defaulttm);
+	}
 
-		initialize_io();
-		loadInitialStages();
+	/**
+	 * Return the thread manager for the given stage. This is the default
+	 * thread manager unless stages.<stageName>.threadManager names
+	 * another one, which may be either a thread manager added with
+	 * addThreadManager() or one of the SandstormConfig.THREADMGR_* types.
+	 */
+	private ThreadManagerIF getStageThreadManager(String stageName) {
+		String tmname = mgrconfig.getString("stages." + stageName + ".threadManager");
+		if ((tmname == null) || tmname.equals(mgrconfig.getString("global.defaultThreadManager")))
+			return defaulttm;
+		synchronized (tmtbl) {
+			ThreadManagerIF tm = (ThreadManagerIF) tmtbl.get(tmname);
+			if (tm == null) {
+				tm = createThreadManager(tmname);
+				tmtbl.put(tmname, tm);
+			}
+			return tm;
+		}
 	}
 
 	/**
@@ -126,6 +155,10 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
 		System.err.println("Sandstorm: Initializing stages");
 		initStages();
 
+		if (mgrconfig.getBoolean("global.metrics.http.enable")) {
+			startMetricsServer();
+		}
+
 		// Let the threads start
 		try {
 			System.err
@@ -152,6 +185,17 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
 
 		System.err.println("Sandstorm: Shutting down stages");
 		destroyStages();
+
+		EventTracer tracer = profiler.getTracer();
+		if (tracer != null) {
+			String filename = mgrconfig.getString("global.trace.filename");
+			try {
+				tracer.writeChromeTrace(filename);
+				System.err.println("Sandstorm: Wrote event trace to " + filename);
+			} catch (IOException ioe) {
+				System.err.println("Sandstorm: Could not write event trace to " + filename + ": " + ioe);
+			}
+		}
 		started = false;
 	}
 
@@ -167,11 +211,41 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
 		return wrapper.getStage();
 	}
 
+	// Start the HTTP metrics endpoint; requires the aSocket layer
+	private void startMetricsServer() {
+		int port = mgrconfig.getInt("global.metrics.http.port");
+		if (!mgrconfig.getBoolean("global.aSocket.enable")) {
+			System.err.println("Sandstorm: Not starting metrics server on port "
+					+ port + ": aSocket layer is disabled");
+			return;
+		}
+		try {
+			System.err.println("Sandstorm: Starting metrics server on "
+					+ mgrconfig.getString("global.metrics.bindAddress") + ":" + port);
+			new httpMetricsServer(this, port);
+		} catch (Exception e) {
+			System.err.println("Sandstorm: Could not start metrics server: " + e);
+		}
+	}
+
 	// Initialize the I/O layer
 	private void initialize_io() throws Exception {
 
+		metrics = new MetricsRegistry();
+		if (mgrconfig.getBoolean("global.metrics.jmx.enable")) {
+			try {
+				MetricsMBean.register(metrics);
+			} catch (Exception e) {
+				System.err.println("Sandstorm: Could not register metrics MBean: " + e);
+			}
+		}
+
 		// Create profiler even if disabled
 		profiler = new sandStormProfiler(this);
+		if (profiler.getCapacityPlanner() != null) {
+			System.err.println("Sandstorm: Starting capacity planner");
+			profiler.getCapacityPlanner().start();
+		}
 
 		if (mgrconfig.getBoolean("global.profile.enable")) {
 			System.err.println("Sandstorm: Starting profiler");
@@ -232,7 +306,8 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
 				+ classname);
 
 		StageWrapper wrapper = new StageWrapper((ManagerIF) this, stagename,
-				evHandler, config, defaulttm, descr.queueThreshold);
+				evHandler, config, getStageThreadManager(stagename),
+				descr.queueThreshold);
 
 		createStage(wrapper, false);
 	}
@@ -249,7 +324,7 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
 			stageName = stageName + "-" + stagetbl.size();
 		}
 		StageWrapperIF wrapper = new StageWrapper((ManagerIF) this, stageName,
-				evHandler, config, defaulttm);
+				evHandler, config, getStageThreadManager(stageName));
 
 		return createStage(wrapper, true);
 	}
@@ -268,9 +343,39 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
 		}
 		stagetbl.put(name, wrapper);
 
+		SinkIF sink = wrapper.getStage().getSink();
+		final StageStatsIF stats = wrapper.getStats();
+		if (sink instanceof ProfilableIF) {
+			metrics.addGauge("stage queueLength <" + name + ">", (ProfilableIF) sink);
+		}
+		if (stats != null) {
+			metrics.addCounter("stage events <" + name + ">", new CounterIF() {
+				public long getCount() {
+					return stats.getTotalEvents();
+				}
+			});
+			metrics.addHistogram("stage eventServiceTime(ns) <" + name + ">",
+					stats.getEventServiceHistogram());
+			metrics.addHistogram("stage batchServiceTime(ns) <" + name + ">",
+					stats.getBatchServiceHistogram());
+			metrics.addHistogram("stage batchSize <" + name + ">",
+					stats.getBatchSizeHistogram());
+			metrics.addHistogram("stage queueWait(ns) <" + name + ">",
+					stats.getQueueWaitHistogram());
+		}
+
 		if (mgrconfig.getBoolean("global.profile.enable")) {
-			profiler.add(wrapper.getStage().getName() + " queueLength",
-					(ProfilableIF) wrapper.getStage().getSink());
+			profiler.addToProfile(name + " queueLength", (ProfilableIF) sink);
+			if (stats != null) {
+				profiler.addToProfile(name + " eventServiceTime p50(usec)",
+						new HistogramProfile(stats.getEventServiceHistogram(), 0.5, 1000));
+				profiler.addToProfile(name + " eventServiceTime p99(usec)",
+						new HistogramProfile(stats.getEventServiceHistogram(), 0.99, 1000));
+				profiler.addToProfile(name + " batchSize p50",
+						new HistogramProfile(stats.getBatchSizeHistogram(), 0.5, 1));
+				profiler.addToProfile(name + " queueWait p99(usec)",
+						new HistogramProfile(stats.getQueueWaitHistogram(), 0.99, 1000));
+			}
 		}
 
 		if (initialize) {
@@ -288,6 +393,13 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
 		return profiler;
 	}
 
+	/**
+	 * Return the system metrics registry.
+	 */
+	public MetricsRegistryIF getMetrics() {
+		return metrics;
+	}
+
 	/**
 	 * Return the system signal manager.
 	 */
@@ -45,18 +45,34 @@ class sandStormProfiler extends Thread implements sandStormConst, ProfilerIF {
   private int delay;
   private PrintWriter pw;
   private Vector profilables;
+  // ProfilableIF -> name, and name -> ProfilableIF, for remove()
+  private Hashtable names, owners;
+  // Column number of the next object added to the profile
+  private int nextColumn = 0;
   private boolean started = false;
   private StageGraph graphProfiler;
+  private EventTracer tracer;
+  private CapacityPlanner planner;
+  private MetricsRegistryIF metrics;
 
   sandStormProfiler(ManagerIF mgr) throws IOException {
     graphProfiler = new StageGraph(mgr);
+    metrics = mgr.getMetrics();
     SandstormConfig config = mgr.getConfig();
     delay = config.getInt("global.profile.delay");
     String filename = config.getString("global.profile.filename");
+    if (config.getBoolean("global.trace.enable")) {
+      tracer = new EventTracer(mgr);
+    }
+    if (config.getBoolean("global.planner.enable")) {
+      planner = new CapacityPlanner(mgr, graphProfiler);
+    }
     if (config.getBoolean("global.profile.enable")) {
       pw = new PrintWriter(new FileWriter(filename, true));
     }
     profilables = new Vector(1);
+    names = new Hashtable();
+    owners = new Hashtable();
   }
 
   /**
@@ -67,14 +83,60 @@ class sandStormProfiler extends Thread implements sandStormConst, ProfilerIF {
   }
 
   /**
-   * Add a class to this profiler.
+   * Add a class to this profiler. The class is also registered as a
+   * gauge with the metrics registry, whether or not profiling is
+   * enabled.
    */
   public void add(String name, ProfilableIF pr) {
+    if (pr == null) return;
+    synchronized (names) {
+      names.put(pr, name);
+      owners.put(name, pr);
+      metrics.addGauge(name, pr);
+    }
+    addToProfile(name, pr);
+  }
+
+  /**
+   * Remove a class from this profiler and from the metrics registry.
+   * Its column is no longer printed; the columns of other classes
+   * keep their numbers.
+   */
+  public void remove(ProfilableIF pr) {
+    if (pr == null) return;
+    String name;
+    synchronized (names) {
+      name = (String)names.remove(pr);
+      if (name == null) return;
+      // The name may have been reused by a later object
+      if (owners.get(name) == pr) {
+	owners.remove(name);
+	metrics.remove(name);
+      }
+    }
+    if (pw == null) return;
+    synchronized (profilables) {
+      for (int i = 0; i < profilables.size(); i++) {
+	profile p = (profile)profilables.elementAt(i);
+	if (p.pr == pr) {
+	  pw.println("# Removed "+p.column+" "+name);
+	  profilables.removeElementAt(i);
+	  break;
+	}
+      }
+    }
+  }
+
+  /**
+   * Add a class to the profile only, for objects which are exported to
+   * the metrics registry in some other form.
+   */
+  void addToProfile(String name, ProfilableIF pr) {
     if (pr == null) return;
     if (pw == null) return;
     synchronized (profilables) {
-      pw.println("# Registered "+profilables.size()+" "+name);
-      profilables.addElement(new profile(name, pr));
+      pw.println("# Registered "+nextColumn+" "+name);
+      profilables.addElement(new profile(name, pr, nextColumn++));
     }
   }
 
@@ -97,7 +159,7 @@ class sandStormProfiler extends Thread implements sandStormConst, ProfilerIF {
         if (profilables.size() > 0) {
           for (int i = 0; i < profilables.size(); i++) {
 	    profile p = (profile)profilables.elementAt(i);
-	    pw.print("pr"+i+" "+p.pr.profileSize()+" ");
+	    pw.print("pr"+p.column+" "+p.pr.profileSize()+" ");
   	  }
         }
       }
@@ -115,13 +177,23 @@ class sandStormProfiler extends Thread implements sandStormConst, ProfilerIF {
     return graphProfiler;
   }
 
+  public EventTracer getTracer() {
+    return tracer;
+  }
+
+  public CapacityPlanner getCapacityPlanner() {
+    return planner;
+  }
+
   class profile {
     String name;
     ProfilableIF pr;
+    int column;
 
-    profile(String name, ProfilableIF pr) {
+    profile(String name, ProfilableIF pr, int column) {
       this.name = name;
       this.pr = pr;
+      this.column = column;
     }
   }
 
@@ -52,7 +52,7 @@ public class GnutellaConnection extends SimpleSink implements QueueElementIF, Gn
   GnutellaConnection(GnutellaServer gs, ATcpConnection conn) {
     this.gs = gs;
     this.conn = conn;
-    this.gpr = new GnutellaPacketReader();
+    this.gpr = new GnutellaPacketReader(gs.getPacketPool());
     addr = conn.getAddress();
     port = conn.getPort();
     closed = false;
@@ -33,11 +33,20 @@ import java.net.*;
 
 /** 
  * This is the base class for all Gnutella network packets.
+ *
+ * <p>Packets read from the network are views on the data received from
+ * the socket: the header and payload are decoded from the received
+ * buffer only when asked for, and the GUID object is only created by
+ * getGUID(). These packets are allocated from a pool owned by the
+ * GnutellaServer; calling release() once a packet has been handled lets
+ * the server reuse it.
  */
 public abstract class GnutellaPacket implements GnutellaConst, QueueElementIF {
 
   private static final boolean DEBUG = false;
 
+  // Number of packet objects allocated; packets reused from the pool
+  // are not counted again
   public static int NUM_ALLOC = 0;
 
   protected GnutellaConnection gc;
@@ -48,10 +57,19 @@ public abstract class GnutellaPacket implements GnutellaConst, QueueElementIF {
   public int hops;
   protected int payload_length;
   protected byte payload[];
-
-  public void finalize() {
-    NUM_ALLOC--;
-  }
+  // Offset of the payload in 'payload'
+  protected int payload_offset;
+  // For packets read from the network, the buffer holding the packet
+  // and the offset of its header; null otherwise
+  protected byte raw[];
+  protected int raw_offset;
+  // Set by subclasses once the payload has been decoded
+  protected boolean parsed;
+
+  // The pool this packet was allocated from, if any
+  private GnutellaPacketPool pool;
+  // Set while the packet is free in the pool
+  boolean inPool;
 
   protected GnutellaPacket(GnutellaGUID guid, int function, int ttl, int hops, byte payload[]) {
     NUM_ALLOC++;
@@ -71,6 +89,54 @@ public abstract class GnutellaPacket implements GnutellaConst, QueueElementIF {
     this(guid, function, DEFAULT_TTL, DEFAULT_HOPS, payload);
   }
 
+  /**
+   * Used by GnutellaPacketPool to create an empty packet, which is
+   * filled in by wrap().
+   */
+  GnutellaPacket(GnutellaPacketPool pool, int function) {
+    NUM_ALLOC++;
+    this.pool = pool;
+    this.function = function;
+  }
+
+  /**
+   * Used by GnutellaPacketReader to point this packet at one read from
+   * the network, whose header starts at 'offset' in 'data'. The data is
+   * not copied, so it must not be changed while the packet is in use.
+   */
+  void wrap(byte data[], int offset) {
+    this.raw = data;
+    this.raw_offset = offset;
+    this.guid = null;
+    this.gc = null;
+    this.ttl = data[offset+17];
+    this.hops = data[offset+18];
+    this.payload_length = readLEInt(data, offset+19);
+    this.payload = data;
+    this.payload_offset = offset+PACKET_HEADER_SIZE;
+    this.parsed = false;
+  }
+
+  /**
+   * Return this packet to the pool it was allocated from, so that it
+   * can be reused for a later packet. Packets read from the network
+   * should be released once they have been handled (and forwarded, if
+   * need be); the packet must not be used after it has been released.
+   * Has no effect on packets created by the application.
+   */
+  public void release() {
+    if (pool != null) pool.free(this);
+  }
+
+  // Called by the pool when the packet is released, so that it does not
+  // hold on to the received data
+  void clear() {
+    raw = null;
+    payload = null;
+    guid = null;
+    gc = null;
+  }
+
   /**
    * Used by GnutellaServer when creating a new packet.
    */
@@ -91,9 +157,29 @@ public abstract class GnutellaPacket implements GnutellaConst, QueueElementIF {
    * Return the GUID associated with this packet.
    */
   public GnutellaGUID getGUID() {
+    if (guid == null) guid = new GnutellaGUID(raw, raw_offset);
     return guid;
   }
 
+  // Package access: the buffer and offset holding the GUID, which
+  // avoids creating a GnutellaGUID for packets read from the network
+  byte[] getGUIDData() {
+    return (guid != null) ? guid.data : raw;
+  }
+
+  int getGUIDOffset() {
+    return (guid != null) ? 0 : raw_offset;
+  }
+
+  /**
+   * Return the length of the payload. For packets read from the network
+   * this is the length given in the packet header.
+   */
+  protected int getPayloadLength() {
+    if (raw != null) return payload_length;
+    return (payload == null) ? 0 : payload.length;
+  }
+
   /** 
    * Implemented by subclasses to prepare for sending
    */
@@ -108,19 +194,16 @@ public abstract class GnutellaPacket implements GnutellaConst, QueueElementIF {
   BufferElement getBuffer() {
     if (DEBUG) System.err.println("GnutellaPacket: doing prepareForSend");
     prepareForSend();
-    if (payload == null) 
-      payload_length = 0;
-    else 
-      payload_length = payload.length;
+    payload_length = getPayloadLength();
 
     byte data[] = new byte[PACKET_HEADER_SIZE+payload_length];
-    guid.dump(data, 0);
+    System.arraycopy(getGUIDData(), getGUIDOffset(), data, 0, 16);
     data[16] = (byte)(function & 0xff);
     data[17] = (byte)(ttl & 0xff);
     data[18] = (byte)(hops & 0xff);
     writeLEInt(payload_length, data, 19);
-    if (payload != null) 
-      System.arraycopy(payload, 0, data, PACKET_HEADER_SIZE, payload_length);
+    if (payload_length != 0) 
+      System.arraycopy(payload, payload_offset, data, PACKET_HEADER_SIZE, payload_length);
     BufferElement buf = new BufferElement(data);
     return buf;
   }
@@ -128,10 +211,7 @@ public abstract class GnutellaPacket implements GnutellaConst, QueueElementIF {
   // Return size of packet in bytes
   public int getSize() {
     prepareForSend();
-    if (payload == null) 
-      payload_length = 0;
-    else 
-      payload_length = payload.length;
+    payload_length = getPayloadLength();
     return PACKET_HEADER_SIZE+payload_length;
   }
 
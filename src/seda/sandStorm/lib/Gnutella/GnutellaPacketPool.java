@@ -0,0 +1,120 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.lib.Gnutella;
+
+/**
+ * A GnutellaPacketPool keeps the packet objects used for packets read
+ * from the network, so that they can be reused once the application has
+ * released them (see <tt>GnutellaPacket.release()</tt>). Packets which
+ * are never released are simply garbage collected.
+ *
+ * @author Matt Welsh
+ * @see GnutellaPacket
+ */
+class GnutellaPacketPool implements GnutellaConst {
+
+  private static final boolean DEBUG = false;
+
+  // Maximum number of free packets kept of each type
+  private static final int DEFAULT_MAX_FREE = 1024;
+
+  private static final int NUM_TYPES = 5;
+
+  private int maxFree;
+  // Stacks of free packets, one per type; guarded by 'this'
+  private GnutellaPacket free[][];
+  private int numFree[];
+
+  GnutellaPacketPool() {
+    this(DEFAULT_MAX_FREE);
+  }
+
+  GnutellaPacketPool(int maxFree) {
+    this.maxFree = maxFree;
+    this.free = new GnutellaPacket[NUM_TYPES][];
+    this.numFree = new int[NUM_TYPES];
+    for (int i = 0; i < NUM_TYPES; i++) free[i] = new GnutellaPacket[16];
+  }
+
+  /**
+   * Return an empty packet of the type given by 'function', or null if
+   * the function code is not valid.
+   */
+  GnutellaPacket allocate(int function) {
+    int type = typeOf(function);
+    if (type == -1) return null;
+    synchronized (this) {
+      if (numFree[type] != 0) {
+	GnutellaPacket pkt = free[type][--numFree[type]];
+	free[type][numFree[type]] = null;
+	pkt.inPool = false;
+	return pkt;
+      }
+    }
+
+    switch (type) {
+      case 0: return new GnutellaPingPacket(this);
+      case 1: return new GnutellaPongPacket(this);
+      case 2: return new GnutellaPushPacket(this);
+      case 3: return new GnutellaQueryPacket(this);
+      default: return new GnutellaQueryHitsPacket(this);
+    }
+  }
+
+  // Called by GnutellaPacket.release()
+  synchronized void free(GnutellaPacket pkt) {
+    // Ignore packets released more than once
+    if (pkt.inPool) return;
+    pkt.inPool = true;
+    pkt.clear();
+
+    int type = typeOf(pkt.function);
+    if (numFree[type] == maxFree) return;
+    if (numFree[type] == free[type].length) {
+      GnutellaPacket tmp[] = new GnutellaPacket[Math.min(free[type].length * 2, maxFree)];
+      System.arraycopy(free[type], 0, tmp, 0, numFree[type]);
+      free[type] = tmp;
+    }
+    free[type][numFree[type]++] = pkt;
+  }
+
+  private static int typeOf(int function) {
+    switch (function) {
+      case GNUTELLA_FN_PING: return 0;
+      case GNUTELLA_FN_PONG: return 1;
+      case GNUTELLA_FN_PUSH: return 2;
+      case GNUTELLA_FN_QUERY: return 3;
+      case GNUTELLA_FN_QUERYHITS: return 4;
+      default: return -1;
+    }
+  }
+
+  public synchronized String toString() {
+    int total = 0;
+    for (int i = 0; i < NUM_TYPES; i++) total += numFree[i];
+    return "GnutellaPacketPool [free="+total+"]";
+  }
+
+}
@@ -45,33 +45,42 @@ class GnutellaPacketReader implements GnutellaConst {
   private static final int STATE_READ_PAYLOAD = 1;
   private int state;
 
-  private int cur_offset, packet_offset;
+  private int cur_offset, packet_offset, packet_length;
   private byte pktdata[];
 
-  private GnutellaGUID guid;
   private int function;
-  private int ttl;
-  private int hops;
   private int payload_length;
 
+  // Holds a header split across incoming packets
   private byte header[];
-  private byte payload[];
+  // Holds a Gnutella packet split across incoming packets, header
+  // included
+  private byte assembly[];
 
+  private GnutellaPacketPool pool;
   private Vector completePackets;
 
-  GnutellaPacketReader() {
+  GnutellaPacketReader(GnutellaPacketPool pool) {
     state = STATE_READ_HEADER;
     header = new byte[PACKET_HEADER_SIZE];
     cur_offset = 0;
+    this.pool = pool;
     completePackets = new Vector(1);
   }
 
+  /**
+   * Process the data from an incoming packet. Gnutella packets which lie
+   * wholly within it are decoded in place, so the packet data must not
+   * be changed afterwards; only packets split across incoming packets
+   * are copied.
+   */
   void pushPacket(ATcpInPacket pkt) throws IOException {
 
     packet_offset = 0;
     pktdata = pkt.getBytes();
+    packet_length = pkt.size();
 
-    if (DEBUG) System.err.println("GPR: pushPacket called, size "+pktdata.length);
+    if (DEBUG) System.err.println("GPR: pushPacket called, size "+packet_length);
 
     boolean proceed = true;
 
@@ -95,69 +104,82 @@ class GnutellaPacketReader implements GnutellaConst {
       // and wait for the next packet
       reset();
       throw e;
+    } finally {
+      pktdata = null;
     }
   }
 
   // Used to reset after an error
   private void reset() {
     cur_offset = 0;
+    assembly = null;
     state = STATE_READ_HEADER;
   }
 
   private boolean doReadHeader() throws IOException {
     if (DEBUG) System.err.println("GPR: doReadHeader called, cur "+cur_offset+", pkt "+packet_offset);
 
-    int tocopy = Math.min( header.length - cur_offset, pktdata.length - packet_offset );
-    if (tocopy != 0) {
-      System.arraycopy(pktdata, packet_offset, header, cur_offset, tocopy);
-      cur_offset += tocopy;
-      packet_offset += tocopy;
-    }
+    int avail = packet_length - packet_offset;
+    if (avail == 0) return false;
 
-    if (cur_offset == PACKET_HEADER_SIZE) {
-      processHeader();
-      cur_offset = 0;
-      if (payload_length != 0) {
-	payload = new byte[payload_length];
-	state = STATE_READ_PAYLOAD;
-	return true;
+    if ((cur_offset == 0) && (avail >= PACKET_HEADER_SIZE)) {
+      processHeader(pktdata, packet_offset);
+      if (avail >= PACKET_HEADER_SIZE + payload_length) {
+	// The whole packet is here; no copy needed
+	createPacket(pktdata, packet_offset);
+	packet_offset += PACKET_HEADER_SIZE + payload_length;
       } else {
-	createPacket();
-	cur_offset = 0;
-	state = STATE_READ_HEADER;
-	return true;
+	startAssembly(pktdata, packet_offset);
+	packet_offset += PACKET_HEADER_SIZE;
       }
+      return true;
+    }
+
+    int tocopy = Math.min( header.length - cur_offset, avail );
+    System.arraycopy(pktdata, packet_offset, header, cur_offset, tocopy);
+    cur_offset += tocopy;
+    packet_offset += tocopy;
+
+    if (cur_offset == PACKET_HEADER_SIZE) {
+      processHeader(header, 0);
+      startAssembly(header, 0);
+      return true;
     } else {
       return false;
     }
   }
 
+  // Start copying a packet which is split across incoming packets
+  private void startAssembly(byte data[], int offset) {
+    assembly = new byte[PACKET_HEADER_SIZE + payload_length];
+    System.arraycopy(data, offset, assembly, 0, PACKET_HEADER_SIZE);
+    cur_offset = PACKET_HEADER_SIZE;
+    state = STATE_READ_PAYLOAD;
+  }
+
   private boolean doReadPayload() throws IOException {
     if (DEBUG) System.err.println("GPR: doReadPayload called, cur "+cur_offset+", pkt "+packet_offset);
 
-    int tocopy = Math.min( payload_length - cur_offset, pktdata.length - packet_offset );
+    int tocopy = Math.min( assembly.length - cur_offset, packet_length - packet_offset );
     if (tocopy != 0) {
-      System.arraycopy(pktdata, packet_offset, payload, cur_offset, tocopy);
+      System.arraycopy(pktdata, packet_offset, assembly, cur_offset, tocopy);
       cur_offset += tocopy;
       packet_offset += tocopy;
     }
 
-    if (cur_offset == payload_length) {
-      createPacket();
-      cur_offset = 0;
-      state = STATE_READ_HEADER;
+    if (cur_offset == assembly.length) {
+      byte data[] = assembly;
+      reset();
+      createPacket(data, 0);
       return true;
     } else {
       return false;
     }
   }
 
-  private void processHeader() throws IOException {
-    guid = new GnutellaGUID(header, 0);
-    function = header[16];
-    ttl = header[17];
-    hops = header[18];
-    payload_length = GnutellaPacket.readLEInt(header, 19);
+  private void processHeader(byte data[], int offset) throws IOException {
+    function = data[offset+16];
+    payload_length = GnutellaPacket.readLEInt(data, offset+19);
     if ((MAX_PAYLOAD_SIZE != -1) && (payload_length > MAX_PAYLOAD_SIZE)) {
       // Drop packet!
       throw new IOException("Invalid payload length "+payload_length);
@@ -167,7 +189,7 @@ class GnutellaPacketReader implements GnutellaConst {
       throw new IOException("Invalid payload length "+payload_length);
     }
 
-    if (DEBUG) System.err.println("GPR: read header, function "+Integer.toHexString(function & 0xff)+", ttl "+ttl+", hops "+hops+", payload_len "+payload_length);
+    if (DEBUG) System.err.println("GPR: read header, function "+Integer.toHexString(function & 0xff)+", ttl "+data[offset+17]+", hops "+data[offset+18]+", payload_len "+payload_length);
   }
 
 
@@ -188,38 +210,15 @@ class GnutellaPacketReader implements GnutellaConst {
     }
   }
 
-  void createPacket() throws IOException {
-    GnutellaPacket gp; 
-
-    switch (function) {
-      case GNUTELLA_FN_PING: 
-  	gp = new GnutellaPingPacket(guid, ttl, hops);
-	break;
-
-      case GNUTELLA_FN_PONG:
-        if (payload == null) throw new IOException("pong packet has null payload");
-        gp = new GnutellaPongPacket(guid, ttl, hops, payload);
-	break;
-
-      case GNUTELLA_FN_PUSH:
-        if (payload == null) throw new IOException("push packet has null payload");
-        gp = new GnutellaPushPacket(guid, ttl, hops, payload);
-	break;
-
-      case GNUTELLA_FN_QUERY:
-        if (payload == null) throw new IOException("query packet has null payload");
-        gp =  new GnutellaQueryPacket(guid, ttl, hops, payload);
-	break;
-
-      case GNUTELLA_FN_QUERYHITS:
-        if (payload == null) throw new IOException("query hits packet has null payload");
-        gp = new GnutellaQueryHitsPacket(guid, ttl, hops, payload);
-	break;
-
-      default: 
-        throw new IOException("GnutellaPacket got illegal function code "+Integer.toHexString(function));
+  private void createPacket(byte data[], int offset) throws IOException {
+    if ((payload_length == 0) && (function != GNUTELLA_FN_PING)) {
+      throw new IOException("GnutellaPacket with function code "+Integer.toHexString(function)+" has null payload");
     }
-
+    GnutellaPacket gp = pool.allocate(function);
+    if (gp == null) {
+      throw new IOException("GnutellaPacket got illegal function code "+Integer.toHexString(function));
+    }
+    gp.wrap(data, offset);
     completePackets.addElement(gp);
   }
 
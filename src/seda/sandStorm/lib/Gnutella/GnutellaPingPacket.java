@@ -43,8 +43,12 @@ public class GnutellaPingPacket extends GnutellaPacket {
     super(guid, GNUTELLA_FN_PING, ttl, hops, null);
   }
 
+  GnutellaPingPacket(GnutellaPacketPool pool) {
+    super(pool, GNUTELLA_FN_PING);
+  }
+
   public String toString() {
-    return "GnutellaPingPacket "+guid.toString();
+    return "GnutellaPingPacket "+getGUID().toString();
   }
 
 }
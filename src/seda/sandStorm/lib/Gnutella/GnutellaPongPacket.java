@@ -29,7 +29,8 @@ import java.io.*;
 import java.net.*;
 
 /**
- * A Gnutella network pong packet. 
+ * A Gnutella network pong packet. The payload of a pong read from the
+ * network is only decoded when one of its fields is asked for.
  */
 public class GnutellaPongPacket extends GnutellaPacket {
 
@@ -45,7 +46,6 @@ public class GnutellaPongPacket extends GnutellaPacket {
    */
   public GnutellaPongPacket(byte[] payload) throws UnknownHostException {
     super(GNUTELLA_FN_PONG, payload);
-    if (payload != null) parsePayload();
   }
 
   /**
@@ -53,7 +53,10 @@ public class GnutellaPongPacket extends GnutellaPacket {
    */
   public GnutellaPongPacket(GnutellaGUID guid, int ttl, int hops, byte[] payload) throws UnknownHostException {
     super(guid, GNUTELLA_FN_PONG, ttl, hops, payload);
-    if (payload != null) parsePayload();
+  }
+
+  GnutellaPongPacket(GnutellaPacketPool pool) {
+    super(pool, GNUTELLA_FN_PONG);
   }
 
   /**
@@ -73,13 +76,16 @@ public class GnutellaPongPacket extends GnutellaPacket {
     this.address = address;
     this.numfiles = numfiles;
     this.numkb = numkb;
+    this.parsed = true;
   }
 
   public String toString() {
-    return "GnutellaPongPacket "+guid.toString()+" ["+address.getHostAddress()+":"+port+" - "+numfiles+" files/"+numkb+" KB]";
+    return "GnutellaPongPacket "+getGUID().toString()+" ["+getHost()+" - "+getNumFiles()+" files/"+getNumKB()+" KB]";
   }
 
   protected void prepareForSend() {
+    // Packets read from the network are forwarded as they are
+    if (payload != null) return;
     payload = new byte[14];
 
     writeLEShort(((short)port & 0xffff), payload, 0);
@@ -93,19 +99,32 @@ public class GnutellaPongPacket extends GnutellaPacket {
     writeLEInt(numkb, payload, 10);
   }
 
-  private void parsePayload() throws UnknownHostException {
-    port = (int)readLEShort(payload, 0);
-    String addr = (int)(payload[2] & 0xff) +"."+ (int)(payload[3] & 0xff) +"."+ (int)(payload[4] & 0xff) +"."+ (int)(payload[5] & 0xff);
-    address = InetAddress.getByName(addr);
-
-    numfiles = readLEInt(payload, 6);
-    numkb = readLEInt(payload, 10);
+  private void parsePayload() {
+    parsed = true;
+    port = numfiles = numkb = 0;
+    address = null;
+    // Fields missing from a short payload are left as zero
+    if (getPayloadLength() < 14) return;
+
+    int off = payload_offset;
+    port = (int)readLEShort(payload, off);
+    byte addr[] = new byte[4];
+    System.arraycopy(payload, off+2, addr, 0, 4);
+    try {
+      address = InetAddress.getByAddress(addr);
+    } catch (UnknownHostException e) {
+      // Cannot happen for a 4-byte address
+    }
+
+    numfiles = readLEInt(payload, off+6);
+    numkb = readLEInt(payload, off+10);
   }
 
   /**
    * Return the address represented by this packet.
    */
   public InetAddress getInetAddress() {
+    if (!parsed) parsePayload();
     return address;
   }
 
@@ -113,6 +132,7 @@ public class GnutellaPongPacket extends GnutellaPacket {
    * Return the port represented by this packet.
    */
   public int getPort() {
+    if (!parsed) parsePayload();
     return port;
   }
 
@@ -120,7 +140,8 @@ public class GnutellaPongPacket extends GnutellaPacket {
    * Return a string "host:port" represented by this packet.
    */
   public String getHost() {
-    return address.getHostAddress()+":"+port;
+    InetAddress addr = getInetAddress();
+    return ((addr == null) ? "?" : addr.getHostAddress())+":"+port;
   }
 
   /**
@@ -128,6 +149,7 @@ public class GnutellaPongPacket extends GnutellaPacket {
    * packet originated.
    */
   public int getNumFiles() {
+    if (!parsed) parsePayload();
     return numfiles;
   }
 
@@ -136,6 +158,7 @@ public class GnutellaPongPacket extends GnutellaPacket {
    * which this packet originated.
    */
   public int getNumKB() {
+    if (!parsed) parsePayload();
     return numkb;
   }
 
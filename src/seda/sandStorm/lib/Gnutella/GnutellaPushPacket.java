@@ -43,6 +43,10 @@ public class GnutellaPushPacket extends GnutellaPacket {
     super(guid, GNUTELLA_FN_PUSH, ttl, hops, payload);
   }
 
+  GnutellaPushPacket(GnutellaPacketPool pool) {
+    super(pool, GNUTELLA_FN_PUSH);
+  }
+
   public String toString() {
     return "GnutellaPushPacket";
   }
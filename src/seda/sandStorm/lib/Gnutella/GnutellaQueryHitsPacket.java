@@ -68,6 +68,10 @@ public class GnutellaQueryHitsPacket extends GnutellaPacket {
     //parsePayload();
   }
 
+  GnutellaQueryHitsPacket(GnutellaPacketPool pool) {
+    super(pool, GNUTELLA_FN_QUERYHITS);
+  }
+
   /**
    * Create a GnutellaQueryHitsPacket from the given GnutellaQueryHit
    * array.
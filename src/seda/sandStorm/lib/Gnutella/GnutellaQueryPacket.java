@@ -29,7 +29,8 @@ import java.io.*;
 import java.net.*;
 
 /**
- * A Gnutella query packet.
+ * A Gnutella query packet. The payload of a query read from the network
+ * is only decoded when the search term or minimum speed is asked for.
  */
 public class GnutellaQueryPacket extends GnutellaPacket {
 
@@ -44,7 +45,6 @@ public class GnutellaQueryPacket extends GnutellaPacket {
    */
   public GnutellaQueryPacket(byte[] payload) {
     super(GNUTELLA_FN_QUERY, payload);
-    parsePayload();
   }
 
   /**
@@ -52,7 +52,10 @@ public class GnutellaQueryPacket extends GnutellaPacket {
    */
   public GnutellaQueryPacket(GnutellaGUID guid, int ttl, int hops, byte[] payload) {
     super(guid, GNUTELLA_FN_QUERY, ttl, hops, payload);
-    parsePayload();
+  }
+
+  GnutellaQueryPacket(GnutellaPacketPool pool) {
+    super(pool, GNUTELLA_FN_QUERY);
   }
 
   /** 
@@ -62,30 +65,37 @@ public class GnutellaQueryPacket extends GnutellaPacket {
     super(GNUTELLA_FN_QUERY, null);
     this.minspeed = minspeed;
     this.searchterm = searchterm;
+    this.parsed = true;
   }
 
   private void parsePayload() {
-    if ((payload == null) ||
-	(payload.length < 3)) {
+    parsed = true;
+    minspeed = 0;
+    searchterm = null;
+    int len = getPayloadLength();
+    if (len < 3) {
       // Technically this doesn't make sense, but lots of bogus packets
       // are flying around out there
       return;
     }
 
-    minspeed = readLEShort(payload, 0);
+    minspeed = readLEShort(payload, payload_offset);
     // Ignore null byte at end
-    // Strip off non-ASCII characters
-    if (payload.length > 3) {
-      for (int i = 2; i < payload.length-3; i++) {
-        if ((payload[i] < 32) || (payload[i] > 126)) payload[i] = (byte)'?';
+    // Replace non-ASCII characters; the payload itself is left alone,
+    // as it may be forwarded
+    if (len > 3) {
+      char term[] = new char[len-3];
+      for (int i = 0; i < term.length; i++) {
+	int c = payload[payload_offset+2+i];
+	term[i] = ((c < 32) || (c > 126)) ? '?' : (char)c;
       }
-      searchterm = new String(payload, 2, payload.length-3);
-    } else {
-      searchterm = null;
+      searchterm = new String(term);
     }
   }
 
   protected void prepareForSend() {
+    // Packets read from the network are forwarded as they are
+    if (payload != null) return;
     if (searchterm != null) {
       byte barr[] = searchterm.getBytes();
     // Extra null at end
@@ -103,17 +113,18 @@ public class GnutellaQueryPacket extends GnutellaPacket {
   }
 
   public String toString() {
-    return "GnutellaQueryPacket "+guid+" ["+searchterm+"]";
+    return "GnutellaQueryPacket "+getGUID()+" ["+getSearchTerm()+"]";
   }
 
   public void debug(PrintStream out) {
-    out.println("GnutellaQueryPacket: "+searchterm+" (min "+minspeed+" KB/sec)");
+    out.println("GnutellaQueryPacket: "+getSearchTerm()+" (min "+getMinSpeed()+" KB/sec)");
   }
 
   /** 
    * Return the search term contained in this query packet.
    */
   public String getSearchTerm() {
+    if (!parsed) parsePayload();
     return searchterm;
   } 
 
@@ -121,6 +132,7 @@ public class GnutellaQueryPacket extends GnutellaPacket {
    * Return the minimum speed requested by this query packet.
    */
   public int getMinSpeed() {
+    if (!parsed) parsePayload();
     return minspeed;
   }
 
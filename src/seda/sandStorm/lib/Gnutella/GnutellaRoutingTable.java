@@ -0,0 +1,378 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.lib.Gnutella;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A GnutellaRoutingTable remembers, for each packet GUID seen recently,
+ * the connection the packet arrived on, so that replies can be routed
+ * back along the same path and duplicate requests dropped.
+ *
+ * <p>The table is an open-addressed hash table keyed directly on the 16
+ * bytes of the GUID, so a lookup can be made straight from a packet
+ * buffer without allocating a GnutellaGUID. Its size is fixed when it
+ * is created. Entries expire after a given time: each entry is stamped
+ * with the current time bucket, and a ring of buckets records which
+ * slots were filled in each, so that expiring a bucket only touches its
+ * own entries. If the table fills up before entries expire, the oldest
+ * bucket is expired early.
+ *
+ * <p>Lookups take no locks, so any number of threads can route packets
+ * through the same table; updates are serialized on the table.
+ *
+ * @author Matt Welsh
+ * @see GnutellaGUID
+ */
+public class GnutellaRoutingTable {
+
+  private static final boolean DEBUG = false;
+
+  // Number of time buckets in the expiry ring
+  private static final int NUM_BUCKETS = 8;
+
+  // Slot stamps: positive stamps are the time bucket of a live entry
+  private static final int EMPTY = 0;
+  private static final int DELETED = -1;
+
+  /**
+   * The slots of the table. Replaced as a whole when the table is
+   * rebuilt, so readers always see a consistent set of arrays. Each
+   * slot has a version which is odd while the slot is being changed,
+   * so a reader can tell whether it saw a consistent entry.
+   */
+  private static class slots {
+    int mask;
+    AtomicIntegerArray versions;
+    AtomicIntegerArray stamps;
+    AtomicLongArray keys;
+    AtomicReferenceArray routes;
+
+    slots(int size) {
+      mask = size - 1;
+      versions = new AtomicIntegerArray(size);
+      stamps = new AtomicIntegerArray(size);
+      keys = new AtomicLongArray(size * 2);
+      routes = new AtomicReferenceArray(size);
+    }
+  }
+
+  private volatile slots table;
+  private int maxEntries;
+  private long bucketMillis;
+  private long startTime;
+
+  // Updated only with the table lock held
+  private int numEntries, numDeleted;
+  private int lastSwept;
+  private int bucketSlots[][];
+  private int bucketCounts[];
+
+  /**
+   * Create a routing table holding up to 'maxEntries' GUIDs, each of
+   * which is forgotten 'expireMillis' milliseconds after it is added.
+   */
+  public GnutellaRoutingTable(int maxEntries, long expireMillis) {
+    if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be positive");
+    this.maxEntries = maxEntries;
+    // Keep the load factor at or below 1/2
+    int size = 2;
+    while (size < maxEntries * 2) size <<= 1;
+    this.table = new slots(size);
+
+    this.bucketMillis = Math.max(1, (expireMillis + NUM_BUCKETS - 1) / NUM_BUCKETS);
+    this.startTime = System.currentTimeMillis();
+    this.lastSwept = currentBucket() - NUM_BUCKETS;
+    this.bucketSlots = new int[NUM_BUCKETS][];
+    this.bucketCounts = new int[NUM_BUCKETS];
+    for (int i = 0; i < NUM_BUCKETS; i++) bucketSlots[i] = new int[16];
+  }
+
+  /**
+   * Return the route stored for the GUID at the given offset in 'data',
+   * or null if the GUID is unknown or has expired.
+   */
+  public Object lookup(byte data[], int offset) {
+    return lookup(readLELong(data, offset), readLELong(data, offset + 8));
+  }
+
+  /**
+   * Return the route stored for the given GUID, or null if the GUID is
+   * unknown or has expired.
+   */
+  public Object lookup(GnutellaGUID guid) {
+    return lookup(guid.data, 0);
+  }
+
+  /**
+   * Return the route stored for the GUID of the given packet, or null if
+   * the GUID is unknown or has expired. No GnutellaGUID is created for
+   * packets read from the network.
+   */
+  public Object lookup(GnutellaPacket pkt) {
+    return lookup(pkt.getGUIDData(), pkt.getGUIDOffset());
+  }
+
+  private Object lookup(long k0, long k1) {
+    slots t = table;
+    int now = currentBucket();
+    int i = hash(k0, k1) & t.mask;
+    for (int n = 0; n <= t.mask; n++, i = (i + 1) & t.mask) {
+      int version = t.versions.get(i);
+      int stamp = t.stamps.get(i);
+      boolean changing = ((version & 1) != 0);
+      if ((stamp == EMPTY) && !changing) return null;
+      if ((stamp <= 0) || changing) continue;
+      if ((t.keys.get(i * 2) != k0) || (t.keys.get(i * 2 + 1) != k1)) continue;
+      Object route = t.routes.get(i);
+      // The entry was deleted while we were reading it
+      if (t.versions.get(i) != version) return null;
+      if (now - stamp >= NUM_BUCKETS) return null;
+      return route;
+    }
+    return null;
+  }
+
+  /**
+   * Remember that the GUID at the given offset in 'data' arrived on
+   * 'route'. Returns true if the GUID was not already in the table, and
+   * false if it was, in which case the packet is a duplicate and the
+   * existing route is kept.
+   */
+  public boolean remember(byte data[], int offset, Object route) {
+    return remember(readLELong(data, offset), readLELong(data, offset + 8), route);
+  }
+
+  /**
+   * Remember that the given GUID arrived on 'route'. Returns true if the
+   * GUID was not already in the table, and false if it was.
+   */
+  public boolean remember(GnutellaGUID guid, Object route) {
+    return remember(guid.data, 0, route);
+  }
+
+  /**
+   * Remember that the GUID of the given packet arrived on 'route'.
+   * Returns true if the GUID was not already in the table, and false if
+   * it was.
+   */
+  public boolean remember(GnutellaPacket pkt, Object route) {
+    return remember(pkt.getGUIDData(), pkt.getGUIDOffset(), route);
+  }
+
+  private synchronized boolean remember(long k0, long k1, Object route) {
+    if (route == null) throw new NullPointerException("route is null");
+    int now = currentBucket();
+    expire(now);
+
+    slots t = table;
+    int i = hash(k0, k1) & t.mask;
+    int free = -1;
+    for (int n = 0; n <= t.mask; n++, i = (i + 1) & t.mask) {
+      int stamp = t.stamps.get(i);
+      if (stamp == EMPTY) {
+	if (free == -1) free = i;
+	break;
+      }
+      if (stamp == DELETED) {
+	if (free == -1) free = i;
+	continue;
+      }
+      if ((t.keys.get(i * 2) == k0) && (t.keys.get(i * 2 + 1) == k1)) {
+	if (now - stamp < NUM_BUCKETS) return false;
+	// Expired but not yet swept; reuse the slot
+	delete(t, i);
+	if (free == -1) free = i;
+	break;
+      }
+    }
+
+    if (numEntries >= maxEntries) {
+      expireOldest(now);
+      t = table;
+      return insert(t, k0, k1, route, now);
+    }
+    if (free == -1) return insert(t, k0, k1, route, now);
+    put(t, free, k0, k1, route, now);
+    return true;
+  }
+
+  // Insert a key known not to be live in the table
+  private boolean insert(slots t, long k0, long k1, Object route, int now) {
+    int i = hash(k0, k1) & t.mask;
+    for (int n = 0; n <= t.mask; n++, i = (i + 1) & t.mask) {
+      if (t.stamps.get(i) <= 0) {
+	put(t, i, k0, k1, route, now);
+	return true;
+      }
+    }
+    return false;
+  }
+
+  private void put(slots t, int i, long k0, long k1, Object route, int now) {
+    if (t.stamps.get(i) == DELETED) numDeleted--;
+    t.versions.incrementAndGet(i);
+    t.keys.set(i * 2, k0);
+    t.keys.set(i * 2 + 1, k1);
+    t.routes.set(i, route);
+    t.stamps.set(i, now);
+    t.versions.incrementAndGet(i);
+    numEntries++;
+    addToBucket(now, i);
+
+    // Too many deleted slots make misses slow; rebuild
+    if (numDeleted + numEntries > ((t.mask + 1) * 3) / 4) rebuild();
+  }
+
+  private void delete(slots t, int i) {
+    t.versions.incrementAndGet(i);
+    t.stamps.set(i, DELETED);
+    t.routes.set(i, null);
+    t.versions.incrementAndGet(i);
+    numEntries--;
+    numDeleted++;
+  }
+
+  private void addToBucket(int bucket, int slot) {
+    int b = bucket & (NUM_BUCKETS - 1);
+    if (bucketCounts[b] == bucketSlots[b].length) {
+      int tmp[] = new int[bucketSlots[b].length * 2];
+      System.arraycopy(bucketSlots[b], 0, tmp, 0, bucketCounts[b]);
+      bucketSlots[b] = tmp;
+    }
+    bucketSlots[b][bucketCounts[b]++] = slot;
+  }
+
+  // Delete the entries in every bucket which has expired since the
+  // last call
+  private void expire(int now) {
+    int oldest = now - NUM_BUCKETS;
+    if (oldest - lastSwept > NUM_BUCKETS) lastSwept = oldest - NUM_BUCKETS;
+    while (lastSwept < oldest) {
+      lastSwept++;
+      sweep(lastSwept);
+    }
+  }
+
+  // Expire the oldest buckets which still have entries, to make room
+  private void expireOldest(int now) {
+    while ((numEntries >= maxEntries) && (lastSwept < now - 1)) {
+      lastSwept++;
+      sweep(lastSwept);
+    }
+    // Still full: drop the current bucket, which stays open for new
+    // entries
+    if (numEntries >= maxEntries) sweep(now);
+  }
+
+  private void sweep(int bucket) {
+    slots t = table;
+    int b = bucket & (NUM_BUCKETS - 1);
+    int slotarr[] = bucketSlots[b];
+    for (int j = 0; j < bucketCounts[b]; j++) {
+      int i = slotarr[j];
+      int stamp = t.stamps.get(i);
+      // Entries may be stamped with any bucket up to this one if the
+      // table has been idle
+      if ((stamp > 0) && (stamp <= bucket)) delete(t, i);
+    }
+    bucketCounts[b] = 0;
+    if (DEBUG) System.err.println("GnutellaRoutingTable: swept bucket "+bucket+", "+numEntries+" entries left");
+  }
+
+  // Copy the live entries into a fresh set of slots
+  private void rebuild() {
+    slots old = table;
+    slots t = new slots(old.mask + 1);
+    for (int b = 0; b < NUM_BUCKETS; b++) bucketCounts[b] = 0;
+    numEntries = numDeleted = 0;
+    for (int i = 0; i <= old.mask; i++) {
+      int stamp = old.stamps.get(i);
+      if (stamp <= 0) continue;
+      long k0 = old.keys.get(i * 2), k1 = old.keys.get(i * 2 + 1);
+      int j = hash(k0, k1) & t.mask;
+      while (t.stamps.get(j) != EMPTY) j = (j + 1) & t.mask;
+      t.keys.set(j * 2, k0);
+      t.keys.set(j * 2 + 1, k1);
+      t.routes.set(j, old.routes.get(i));
+      t.stamps.set(j, stamp);
+      numEntries++;
+      addToBucket(stamp, j);
+    }
+    table = t;
+    if (DEBUG) System.err.println("GnutellaRoutingTable: rebuilt, "+numEntries+" entries");
+  }
+
+  /**
+   * Forget every GUID routed to the given route, for example when a
+   * connection closes. This scans the whole table.
+   */
+  public synchronized void removeRoute(Object route) {
+    slots t = table;
+    for (int i = 0; i <= t.mask; i++) {
+      if ((t.stamps.get(i) > 0) && (t.routes.get(i) == route)) delete(t, i);
+    }
+  }
+
+  /**
+   * Forget every GUID in the table.
+   */
+  public synchronized void clear() {
+    table = new slots(table.mask + 1);
+    numEntries = numDeleted = 0;
+    for (int b = 0; b < NUM_BUCKETS; b++) bucketCounts[b] = 0;
+  }
+
+  /**
+   * Return the number of GUIDs in the table, including any which have
+   * expired but not yet been removed.
+   */
+  public synchronized int size() {
+    return numEntries;
+  }
+
+  // The current time bucket; always positive
+  private int currentBucket() {
+    return (int)((System.currentTimeMillis() - startTime) / bucketMillis) + NUM_BUCKETS + 1;
+  }
+
+  private static int hash(long k0, long k1) {
+    long h = (k0 ^ (k1 * 0x9e3779b97f4a7c15L)) * 0xbf58476d1ce4e5b9L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  private static long readLELong(byte data[], int offset) {
+    long l = 0;
+    for (int i = 7; i >= 0; i--) {
+      l = (l << 8) | (data[offset + i] & 0xffL);
+    }
+    return l;
+  }
+
+  public String toString() {
+    return "GnutellaRoutingTable [entries="+size()+", max="+maxEntries+"]";
+  }
+
+}
@@ -46,7 +46,7 @@ import java.net.*;
  * @see GnutellaConnection, GnutellaPacket
  * 
  */
-public class GnutellaServer implements EventHandlerIF, GnutellaConst {
+public class GnutellaServer implements BatchEventHandlerIF, GnutellaConst {
 
   private static final boolean DEBUG = false;
 
@@ -71,6 +71,8 @@ public class GnutellaServer implements EventHandlerIF, GnutellaConst {
   private Hashtable pendingConnTable;
 
   private Vector activeConnections;
+  // Packets read from the network, shared by all connections
+  private GnutellaPacketPool packetPool;
 
   private static int num_svrs;
   private static byte connectMsg[];
@@ -119,6 +121,7 @@ public class GnutellaServer implements EventHandlerIF, GnutellaConst {
     this.newConnTable = new Hashtable(1);
     this.pendingConnTable = new Hashtable(1);
     this.activeConnections = new Vector(1);
+    this.packetPool = new GnutellaPacketPool();
 
     // Create the stage and register it
     mgr.createStage("GnutellaServer "+num_svrs+" <port "+listenPort+">",
@@ -209,7 +212,11 @@ public class GnutellaServer implements EventHandlerIF, GnutellaConst {
   }
 
   public void handleEvents(QueueElementIF[] qelarr) {
-    for (int i = 0; i < qelarr.length; i++) {
+    handleEvents(qelarr, qelarr.length);
+  }
+
+  public void handleEvents(QueueElementIF[] qelarr, int length) {
+    for (int i = 0; i < length; i++) {
       handleEvent(qelarr[i]);
     }
   }
@@ -232,6 +239,7 @@ public class GnutellaServer implements EventHandlerIF, GnutellaConst {
 	gp.setConnection(gc);
 	if (!clientSink.enqueue_lossy(gp)) {
 	  //System.err.println("GS: Warning: Cannot enqueue_lossy packet "+gp);
+	  gp.release();
 	}
 
 	gp = gpr.getGnutellaPacket();
@@ -296,6 +304,8 @@ public class GnutellaServer implements EventHandlerIF, GnutellaConst {
     connTable.remove(tcpconn);
     newConnTable.remove(tcpconn);
     if (gc != null) activeConnections.removeElement(gc);
+    ProfilerIF profiler = mgr.getProfiler();
+    if (profiler != null) profiler.remove(tcpconn);
   }
 
   private void handleHandshake(ATcpInPacket pkt) {
@@ -375,6 +385,11 @@ public class GnutellaServer implements EventHandlerIF, GnutellaConst {
     return mySink;
   }
 
+  // Used by GnutellaConnection to create its packet reader
+  GnutellaPacketPool getPacketPool() {
+    return packetPool;
+  }
+
   /**
    * Send a packet to all nodes but the given node. Useful for packet
    * routing.
@@ -45,7 +45,7 @@ public class SimpleGnutellaServer implements EventHandlerIF {
   private static final boolean DEBUG = false;
   private static final boolean VERBOSE = true;
 
-  // If true, periodically clean out table of previously received packets
+  // If true, periodically report the size of the routing table
   private static boolean DO_CLEANER = true;
 
   // If true, accept connections from other hosts on the Gnutella network
@@ -61,6 +61,11 @@ public class SimpleGnutellaServer implements EventHandlerIF {
   // Time (in ms) between iterations of the cleaner
   private static final int CLEAN_TIMER_FREQUENCY = 1000*30;
 
+  // Maximum number of packet GUIDs remembered for routing, and the
+  // time (in ms) after which each is forgotten
+  private static final int ROUTING_TABLE_SIZE = 65536;
+  private static final int ROUTING_TABLE_EXPIRE = 1000*30;
+
   private static String SERVER_HOSTNAME;
 
   // If true, establish initial connections to the Gnutella network
@@ -79,7 +84,7 @@ public class SimpleGnutellaServer implements EventHandlerIF {
   private SinkIF mySink;
   private ssTimer timer;
   private GnutellaServer gs;
-  private Hashtable packetTable;
+  private GnutellaRoutingTable packetTable;
 
   private int num_connections = 0;
 
@@ -100,7 +105,7 @@ public class SimpleGnutellaServer implements EventHandlerIF {
     int port = config.getInt("port");
     if (port == -1) port = GnutellaConst.DEFAULT_GNUTELLA_PORT;
 
-    packetTable = new Hashtable();
+    packetTable = new GnutellaRoutingTable(ROUTING_TABLE_SIZE, ROUTING_TABLE_EXPIRE);
 
     try {
       gs = new GnutellaServer(mgr, mySink, port);
@@ -153,7 +158,7 @@ public class SimpleGnutellaServer implements EventHandlerIF {
   // Forward an incoming packet to the corresponding source
   private void forwardPacket(GnutellaPacket pkt) {
     GnutellaConnection gc;
-    gc = (GnutellaConnection)packetTable.get(pkt.getGUID());
+    gc = (GnutellaConnection)packetTable.lookup(pkt);
     if (gc == null) {
       if (VERBOSE) System.err.println("-- Received reply with no request: "+pkt);
       return;
@@ -171,12 +176,9 @@ public class SimpleGnutellaServer implements EventHandlerIF {
   // Look up an older packet for responses
   // Return true if the packet is unique; false if we have seen it before
   private boolean rememberPacket(GnutellaPacket pkt) {
-    GnutellaConnection gc = (GnutellaConnection)packetTable.get(pkt.getGUID());
-    if (gc != null) return false;
+    if (!packetTable.remember(pkt, pkt.getConnection())) return false;
 
     if (DEBUG) System.err.println("**** REMEMBERING: "+pkt+" from "+pkt.getConnection());
-
-    packetTable.put(pkt.getGUID(), pkt.getConnection());
     return true;
   }
 
@@ -235,6 +237,8 @@ public class SimpleGnutellaServer implements EventHandlerIF {
         if (VERBOSE) System.err.println("-- Connection closed: "+item);
 	num_connections--;
 	SinkClosedEvent sce = (SinkClosedEvent)item;
+	// Don't route replies to a closed connection
+	packetTable.removeRoute(sce.sink);
 
 	if ((num_connections <= MIN_CONNECTIONS) && DO_CATCHER) doCatcher(); 
 
@@ -250,6 +254,9 @@ public class SimpleGnutellaServer implements EventHandlerIF {
         doTimer((timerEvent)item);
       }
 
+      // Done with the packet, and any copies to be sent have been made
+      if (item instanceof GnutellaPacket) ((GnutellaPacket)item).release();
+
     } catch (Exception e) {
       System.err.println("WORKER GOT EXCEPTION: "+e.getMessage());
       e.printStackTrace();
@@ -263,10 +270,8 @@ public class SimpleGnutellaServer implements EventHandlerIF {
 
   private void doClean(timerEvent ev) {
     // Cleaner event
-    if (VERBOSE) System.err.println("-- Cleaning up packetTable");
-
-    // Might cause some recent packets to be dropped
-    packetTable.clear();
+    // The routing table expires old entries itself
+    if (VERBOSE) System.err.println("-- packetTable: "+packetTable);
 
     if (VERBOSE) {
       Runtime r = Runtime.getRuntime();
@@ -49,6 +49,10 @@ public class ATcpClientSocket {
   private InetAddress address;
   private int port;
 
+  // Selector loop for the connection; chosen before connecting, since
+  // the connect is carried out by that loop's write stage
+  int loop;
+
   /**
    * Create a socket connecting to the given address and port.
    * An ATcpConnection will be posted to the given SinkIF when the
@@ -93,6 +97,7 @@ public class ATcpClientSocket {
   public ATcpClientSocket(InetAddress addr, int port, SinkIF compQ, int writeClogThreshold, int connectClogTries) {
     this.address = addr;
     this.port = port;
+    this.loop = aSocketMgr.chooseLoop(System.identityHashCode(this));
     aSocketMgr.enqueueRequest(new ATcpConnectRequest(this, addr, port, compQ, writeClogThreshold, connectClogTries));
   }
 
@@ -32,9 +32,11 @@ import seda.sandStorm.api.*;
 class ATcpCloseServerRequest extends aSocketRequest implements QueueElementIF {
 
   ATcpServerSocket servsock;
+  int acceptor;
 
-  ATcpCloseServerRequest(ATcpServerSocket servsock) {
+  ATcpCloseServerRequest(ATcpServerSocket servsock, int acceptor) {
     this.servsock = servsock;
+    this.acceptor = acceptor;
   }
 
 }
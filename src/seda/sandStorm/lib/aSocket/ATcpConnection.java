@@ -56,6 +56,9 @@ public class ATcpConnection extends SimpleSink implements QueueElementIF {
   // Internal SockState associated with this connection
   public SockState sockState;
 
+  // Index of the aSocket selector loop which handles this connection
+  int loop;
+
   /** 
    * The application may use this field to associate some 
    * application-specific state with this connection. The aSocket
@@ -72,11 +75,13 @@ public class ATcpConnection extends SimpleSink implements QueueElementIF {
   public ATcpConnection(ATcpClientSocket cliSock, InetAddress address, int port) {
     this(address, port);
     this.clientSocket = cliSock;
+    this.loop = cliSock.loop;
   }
 
   public ATcpConnection(ATcpServerSocket servSock, InetAddress address, int port) {
     this(address, port);
     this.serverSocket = servSock;
+    this.loop = aSocketMgr.chooseLoop(address.hashCode() * 31 + port);
   }
 
   protected ATcpConnection() {
@@ -150,12 +155,14 @@ public class ATcpConnection extends SimpleSink implements QueueElementIF {
   }
 
   /**
-   * Enqueue an outgoing packet to be written to this socket.
+   * Enqueue an outgoing packet to be written to this socket. The packet
+   * may be a BufferElement, or a FileRegionElement to send part of a 
+   * file without copying it through the heap.
    */
   public void enqueue(QueueElementIF buf) throws SinkException {
     if (closed) throw new SinkClosedException("ATcpConnection closed");
     if (buf == null) throw new BadQueueElementException("ATcpConnection.enqueue got null element", buf);
-    aSocketMgr.enqueueRequest(new ATcpWriteRequest(this, (BufferElement)buf));
+    aSocketMgr.enqueueRequest(newWriteRequest(buf));
   }
 
   /**
@@ -165,7 +172,7 @@ public class ATcpConnection extends SimpleSink implements QueueElementIF {
   public boolean enqueue_lossy(QueueElementIF buf) {
     if (closed) return false;
     if (buf == null) return false;
-    aSocketMgr.enqueueRequest(new ATcpWriteRequest(this, (BufferElement)buf));
+    aSocketMgr.enqueueRequest(newWriteRequest(buf));
     return true;
   }
 
@@ -176,8 +183,16 @@ public class ATcpConnection extends SimpleSink implements QueueElementIF {
     if (closed) throw new SinkClosedException("ATcpConnection closed");
     for (int i = 0; i < bufarr.length; i++) {
       if (bufarr[i] == null) throw new BadQueueElementException("ATcpConnection.enqueue_many got null element", bufarr[i]);
-      aSocketMgr.enqueueRequest(new ATcpWriteRequest(this, (BufferElement)bufarr[i]));
+      aSocketMgr.enqueueRequest(newWriteRequest(bufarr[i]));
+    }
+  }
+
+  // Outgoing elements are either BufferElements or FileRegionElements
+  private aSocketRequest newWriteRequest(QueueElementIF buf) {
+    if (buf instanceof FileRegionElement) {
+      return new ATcpFileRegionWriteRequest(this, (FileRegionElement)buf);
     }
+    return new ATcpWriteRequest(this, (BufferElement)buf);
   }
 
   /**
@@ -26,6 +26,7 @@ package seda.sandStorm.lib.aSocket;
 
 import seda.sandStorm.api.*;
 import seda.sandStorm.core.*;
+import java.nio.ByteBuffer;
 
 /** 
  * An ATcpInPacket represents a packet which was received from an
@@ -33,6 +34,12 @@ import seda.sandStorm.core.*;
  * an ATcpInPacket is pushed to the SinkIF associated with an
  * ATcpConnection.
  *
+ * <p>The packet data may be held in a direct buffer leased from a 
+ * BufferPool (see <tt>global.aSocket.bufferPool.enable</tt>). In that case
+ * the consumer should either call <tt>getBytes()</tt>, which copies the
+ * data out and returns the buffer to the pool, or read the data through
+ * <tt>getByteBuffer()</tt> and then call <tt>release()</tt>.
+ *
  * @author Matt Welsh
  * @see ATcpConnection
  */
@@ -103,12 +110,39 @@ public class ATcpInPacket implements QueueElementIF {
   }
 
   /** 
-   * Return the data from an incoming TCP packet.
+   * Return the data from an incoming TCP packet. If the data is held in
+   * a pooled buffer, it is copied into a new array and the pooled buffer
+   * is released.
    */
   public byte[] getBytes() {
+    if (buf.isPooled()) {
+      BufferElement pooled = buf;
+      byte data[] = new byte[pooled.size];
+      pooled.getReadOnlyBuffer().get(data);
+      this.buf = new BufferElement(data);
+      pooled.release();
+    }
     return buf.data;
   }
 
+  /**
+   * Return a read-only view of the packet data. No copy is made; if the
+   * data is held in a pooled buffer, the view is only valid until 
+   * <tt>release()</tt> is called.
+   */
+  public ByteBuffer getByteBuffer() {
+    return buf.getReadOnlyBuffer();
+  }
+
+  /**
+   * Return the pooled buffer holding the packet data, if any, to its 
+   * pool. The packet must not be used after calling this method, unless
+   * <tt>getBytes()</tt> was called first.
+   */
+  public void release() {
+    buf.release();
+  }
+
   /**
    * Return the size of the packet data.
    */
@@ -117,7 +151,9 @@ public class ATcpInPacket implements QueueElementIF {
   }
 
   /**
-   * Return the BufferElement associated with the packet data.
+   * Return the BufferElement associated with the packet data. Note that
+   * if the data is held in a pooled buffer, the BufferElement has no
+   * byte array; see BufferElement.isPooled().
    */
   public BufferElement getBufferElement() {
     return buf;
@@ -25,6 +25,7 @@
 package seda.sandStorm.lib.aSocket;
 
 import seda.sandStorm.api.*;
+import java.net.*;
 
 /**
  * Request to listen on a TCP port.
@@ -32,14 +33,26 @@ import seda.sandStorm.api.*;
 public class ATcpListenRequest extends aSocketRequest implements QueueElementIF {
   public ATcpServerSocket servsock;
   public SinkIF compQ;
+  // Local address to listen on; null for all addresses
+  public InetAddress bindAddr;
   public int port;
   public int writeClogThreshold;
+  // Number of SO_REUSEPORT sockets listening on the port, and which of
+  // them this request opens
+  public int numAcceptors, acceptor;
+  // Maximum number of connections accepted and pushed as one batch;
+  // 0 pushes each connection as it is accepted
+  public int acceptBatch;
 
-  ATcpListenRequest(ATcpServerSocket servsock, int port, SinkIF compQ, int writeClogThreshold) {
+  ATcpListenRequest(ATcpServerSocket servsock, InetAddress bindAddr, int port, SinkIF compQ, int writeClogThreshold, int numAcceptors, int acceptor, int acceptBatch) {
     this.servsock = servsock;
     this.compQ = compQ;
+    this.bindAddr = bindAddr;
     this.port = port;
     this.writeClogThreshold = writeClogThreshold;
+    this.numAcceptors = numAcceptors;
+    this.acceptor = acceptor;
+    this.acceptBatch = acceptBatch;
   }
 
 }
@@ -31,9 +31,18 @@ import seda.sandStorm.api.*;
  */
 class ATcpResumeAcceptRequest extends aSocketRequest implements QueueElementIF {
   ATcpServerSocket servsock;
+  int acceptor;
+  // True for the request which starts a new acceptor accepting
+  boolean start;
 
-  ATcpResumeAcceptRequest(ATcpServerSocket servsock) {
+  ATcpResumeAcceptRequest(ATcpServerSocket servsock, int acceptor) {
+    this(servsock, acceptor, false);
+  }
+
+  ATcpResumeAcceptRequest(ATcpServerSocket servsock, int acceptor, boolean start) {
     this.servsock = servsock;
+    this.acceptor = acceptor;
+    this.start = start;
   }
 
 }
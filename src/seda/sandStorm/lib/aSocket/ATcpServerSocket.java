@@ -45,8 +45,17 @@ public class ATcpServerSocket {
 
   /** Internal state used by aSocket implementation */
   public ListenSockState lss;
+  // The ListenSockState of each acceptor, or null if it could not
+  // listen; lss is the first of these
+  ListenSockState acceptors[];
   int serverPort;
 
+  // Number of acceptors which have tried to listen, which are
+  // listening, and which have since closed
+  private int numReported, numListening, numClosed;
+  private String failure;
+  private boolean suspended;
+
   /**
    * Open a server socket listening on the given port. When a connection 
    * arrives, an ATcpConnection will be posted to the given compQ. 
@@ -54,8 +63,7 @@ public class ATcpServerSocket {
    * posted instead.
    */
   public ATcpServerSocket(int serverPort, SinkIF compQ) throws IOException {
-    this.serverPort = serverPort;
-    aSocketMgr.enqueueRequest(new ATcpListenRequest(this, serverPort, compQ, -1));
+    this(serverPort, compQ, -1, 1, 0);
   }
 
   /**
@@ -72,8 +80,55 @@ public class ATcpServerSocket {
    */
   public ATcpServerSocket(int serverPort, SinkIF compQ, 
     int writeClogThreshold) throws IOException {
+    this(serverPort, compQ, writeClogThreshold, 1, 0);
+  }
+
+  /**
+   * Open one or more server sockets listening on the given port. When a
+   * connection arrives, an ATcpConnection will be posted to the given
+   * compQ. If the server socket dies, an ATcpServerSocketDeadEvent will
+   * be posted instead.
+   *
+   * @param writeClogThreshold The maximum number of outstanding write 
+   *   requests to a connection established using this socket before a
+   *   SinkCloggedEvent is pushed onto the completion queue for that
+   *   connection. The default value is -1, which indicates that no
+   *   SinkCloggedEvents will be generated.
+   *
+   * @param numAcceptors The number of sockets to open on the port. With
+   *   more than one, each is bound with SO_REUSEPORT, the kernel spreads
+   *   incoming connections across them, and each is accepted from by its
+   *   own aSocket listen stage. This requires the NIO provider and a
+   *   nonzero port; otherwise a single socket is opened. The default
+   *   value is 1.
+   *
+   * @param acceptBatch If positive, up to this many connections are
+   *   accepted each time a socket becomes ready, and they are posted to
+   *   compQ together with a single enqueue_many(). The default value
+   *   is 0, which posts each connection as soon as it is accepted.
+   */
+  public ATcpServerSocket(int serverPort, SinkIF compQ, 
+    int writeClogThreshold, int numAcceptors, int acceptBatch) throws IOException {
+    this(serverPort, compQ, writeClogThreshold, numAcceptors, acceptBatch, null);
+  }
+
+  /**
+   * As above, but listening only on the given local address. A null
+   * bindAddr listens on all local addresses.
+   */
+  public ATcpServerSocket(int serverPort, SinkIF compQ, 
+    int writeClogThreshold, int numAcceptors, int acceptBatch, 
+    InetAddress bindAddr) throws IOException {
     this.serverPort = serverPort;
-    aSocketMgr.enqueueRequest(new ATcpListenRequest(this, serverPort, compQ, writeClogThreshold));
+    // Needed for USE_NIO to be set
+    aSocketMgr.init();
+    if ((numAcceptors < 1) || !aSocketMgr.USE_NIO || (serverPort == 0)) {
+      numAcceptors = 1;
+    }
+    this.acceptors = new ListenSockState[numAcceptors];
+    for (int i = 0; i < numAcceptors; i++) {
+      aSocketMgr.enqueueRequest(new ATcpListenRequest(this, bindAddr, serverPort, compQ, writeClogThreshold, numAcceptors, i, acceptBatch));
+    }
   }
 
   protected ATcpServerSocket() {
@@ -84,7 +139,12 @@ public class ATcpServerSocket {
    * This request will not take effect immediately.
    */
   public void suspendAccept() {
-    aSocketMgr.enqueueRequest(new ATcpSuspendAcceptRequest(this));
+    synchronized (this) {
+      suspended = true;
+    }
+    for (int i = 0; i < acceptors.length; i++) {
+      aSocketMgr.enqueueRequest(new ATcpSuspendAcceptRequest(this, i));
+    }
   }
 
   /**
@@ -92,7 +152,55 @@ public class ATcpServerSocket {
    * This request will not take effect immediately.
    */
   public void resumeAccept() {
-    aSocketMgr.enqueueRequest(new ATcpResumeAcceptRequest(this));
+    synchronized (this) {
+      suspended = false;
+    }
+    for (int i = 0; i < acceptors.length; i++) {
+      aSocketMgr.enqueueRequest(new ATcpResumeAcceptRequest(this, i));
+    }
+  }
+
+  /**
+   * Called by each acceptor once it has tried to listen, with its
+   * ListenSockState, or with null and an error message if it could not.
+   * When all have reported, posts an ATcpListenSuccessEvent and starts
+   * them accepting; if any failed, closes those which are listening and
+   * posts a single ATcpListenFailedEvent instead.
+   */
+  synchronized void acceptorListening(int acceptor, ListenSockState ls, String error, SinkIF compQ) {
+    acceptors[acceptor] = ls;
+    if (ls != null) numListening++;
+    else if (failure == null) failure = error;
+    if (++numReported < acceptors.length) return;
+
+    if (failure == null) {
+      lss = acceptors[0];
+      compQ.enqueue_lossy(new ATcpListenSuccessEvent(this));
+      // A single acceptor is accepting already
+      if ((acceptors.length > 1) && !suspended) {
+	for (int i = 0; i < acceptors.length; i++) {
+	  aSocketMgr.enqueueRequest(new ATcpResumeAcceptRequest(this, i, true));
+	}
+      }
+    } else {
+      for (int i = 0; i < acceptors.length; i++) {
+	if (acceptors[i] != null) {
+	  aSocketMgr.enqueueRequest(new ATcpCloseServerRequest(this, i));
+	}
+      }
+      compQ.enqueue_lossy(new ATcpListenFailedEvent(this, failure));
+    }
+  }
+
+  /**
+   * Called by each acceptor when it closes. Posts an
+   * ATcpServerSocketClosedEvent when the last one closes, unless the
+   * socket failed to listen.
+   */
+  synchronized void acceptorClosed(SinkIF compQ) {
+    if ((++numClosed == numListening) && (failure == null)) {
+      compQ.enqueue_lossy(new ATcpServerSocketClosedEvent(this));
+    }
   }
 
   /**
@@ -118,7 +226,9 @@ public class ATcpServerSocket {
    * server socket when the close completes.
    */
   public void close() {
-    aSocketMgr.enqueueRequest(new ATcpCloseServerRequest(this));
+    for (int i = 0; i < acceptors.length; i++) {
+      aSocketMgr.enqueueRequest(new ATcpCloseServerRequest(this, i));
+    }
   }
 
 }
@@ -31,9 +31,11 @@ import seda.sandStorm.api.*;
  */
 class ATcpSuspendAcceptRequest extends aSocketRequest implements QueueElementIF {
   ATcpServerSocket servsock;
+  int acceptor;
 
-  ATcpSuspendAcceptRequest(ATcpServerSocket servsock) {
+  ATcpSuspendAcceptRequest(ATcpServerSocket servsock, int acceptor) {
     this.servsock = servsock;
+    this.acceptor = acceptor;
   }
 
 }
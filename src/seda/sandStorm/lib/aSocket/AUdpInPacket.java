@@ -27,17 +27,27 @@ package seda.sandStorm.lib.aSocket;
 import seda.sandStorm.api.*;
 import seda.sandStorm.core.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 
 /** 
  * An AUdpInPacket represents a packet which was received from a
  * datagram socket. 
  *
+ * <p>As with ATcpInPacket, the packet data may be held in a direct
+ * buffer leased from a BufferPool. In that case <tt>getPacket()</tt> and
+ * <tt>getBytes()</tt> copy the data out and return the buffer to the
+ * pool; alternatively, read the data through <tt>getByteBuffer()</tt>
+ * and then call <tt>release()</tt>.
+ *
  * @author Matt Welsh
  */
 public class AUdpInPacket implements QueueElementIF {
 
   private AUdpSocket sock;
   private DatagramPacket packet;
+  // Pooled buffer holding the data, and the sender, until getPacket()
+  private BufferElement buf;
+  private SocketAddress from;
   // package access
   long seqNum;
 
@@ -53,6 +63,17 @@ public class AUdpInPacket implements QueueElementIF {
     this.seqNum = seqNum;
   }
 
+  /**
+   * Create an AUdpInPacket holding 'buf.size' bytes of data in a pooled
+   * buffer, received from the given address.
+   */
+  public AUdpInPacket(AUdpSocket sock, BufferElement buf, SocketAddress from, long seqNum) {
+    this.sock = sock;
+    this.buf = buf;
+    this.from = from;
+    this.seqNum = seqNum;
+  }
+
   /**
    * Return the socket from which this packet was received.
    */
@@ -64,21 +85,55 @@ public class AUdpInPacket implements QueueElementIF {
    * Return the DatagramPacket.
    */
   public DatagramPacket getPacket() {
+    if (buf != null) {
+      byte data[] = new byte[buf.size];
+      buf.getReadOnlyBuffer().get(data);
+      packet = new DatagramPacket(data, data.length, from);
+      buf.release();
+      buf = null;
+    }
     return packet;
   }
 
   /**
-   * Return the packet data.
+   * Return the packet data. If the data is held in a pooled buffer, it
+   * is copied into a new array and the pooled buffer is released.
    */
   public byte[] getBytes() {
-    return packet.getData();
+    return getPacket().getData();
+  }
+
+  /**
+   * Return a read-only view of the packet data. No copy is made; if the
+   * data is held in a pooled buffer, the view is only valid until
+   * <tt>release()</tt> is called.
+   */
+  public ByteBuffer getByteBuffer() {
+    if (buf != null) return buf.getReadOnlyBuffer();
+    return ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()).asReadOnlyBuffer();
+  }
+
+  /**
+   * Return the pooled buffer holding the packet data, if any, to its
+   * pool. The packet must not be used after calling this method, unless
+   * <tt>getBytes()</tt> or <tt>getPacket()</tt> was called first.
+   */
+  public void release() {
+    if (buf != null) buf.release();
+  }
+
+  /**
+   * Return the address of the sender of this packet.
+   */
+  public SocketAddress getSocketAddress() {
+    return (buf != null) ? from : packet.getSocketAddress();
   }
 
   /**
    * Return the size of the packet data.
    */
   public int size() {
-    return packet.getLength();
+    return (buf != null) ? buf.size : packet.getLength();
   }
 
   /**
@@ -93,7 +148,7 @@ public class AUdpInPacket implements QueueElementIF {
   }
 
   public String toString() {
-    return "AUdpInPacket [sock="+sock+", size="+packet.getLength()+"]";
+    return "AUdpInPacket [sock="+sock+", size="+size()+"]";
   }
 
 
@@ -54,6 +54,8 @@ public class AUdpSocket extends SimpleSink {
 
   // Internal DatagramSockState associated with this connection
   DatagramSockState sockState;
+  // Index of the aSocket selector loop which handles this socket
+  int loop;
 
   /**
    * Create a socket bound to any available local port. This is mainly
@@ -96,6 +98,8 @@ public class AUdpSocket extends SimpleSink {
     // call.
     aSocketMgr.init();
     this.sockState = aSocketMgr.getFactory().newDatagramSockState(this, localaddr, localport);
+    this.loop = aSocketMgr.chooseLoop(System.identityHashCode(this));
+    aSocketMgr.loopOpened(loop);
   }
 
   /**
@@ -64,6 +64,14 @@ public abstract class DatagramSockState implements aSocketConst {
   protected abstract DatagramSocket getSocket();
   protected abstract void connect(InetAddress addr, int port);
 
+  /**
+   * Tell aSocketMgr that this socket's selector loop has one fewer
+   * socket. Called once, when the socket is closed.
+   */
+  protected void loopClosed() {
+    aSocketMgr.loopClosed(udpsock.loop);
+  }
+
   void initWrite(AUdpWriteRequest req) {
     this.cur_write_req = req;
     this.cur_write_buf = req.buf;
@@ -74,6 +82,18 @@ public abstract class DatagramSockState implements aSocketConst {
     this.outstanding_writes--;
   }
 
+  /**
+   * Try to send the AUdpWriteRequests at the head of writeReqList, one
+   * datagram each, stopping when the socket cannot take any more.
+   * Returns the number of requests at the head of the list which have
+   * been sent; the caller removes and completes them. Returns -1 if
+   * batched sends are not supported, in which case initWrite() and
+   * tryWrite() must be used instead.
+   */
+  protected int tryWriteBatch() throws SinkClosedException {
+    return -1;
+  }
+
   boolean isClosed() {
     return closed;
   }
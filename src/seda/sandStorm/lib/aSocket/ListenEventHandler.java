@@ -54,27 +54,38 @@ class ListenEventHandler extends aSocketEventHandler implements EventHandlerIF {
 		Socket sock;
 
 		int numAccepted = 0;
+		boolean batching = (lss.acceptBatch > 0);
+		int maxAccepts = batching ? lss.acceptBatch : aSocketConst.MAX_ACCEPTS_AT_ONCE;
 
-		// Try to do as many accepts as we can in one go
-		while (numAccepted++ < aSocketConst.MAX_ACCEPTS_AT_ONCE) {
-			// XXX: must check this.
-			sock = lss.accept();
-
-			if (sock == null)
-				break;
-
-			if (DEBUG)
-				System.err.println("ListenThread: did accept on " + sock.getInetAddress().getHostAddress() + ":" + sock.getPort());
-			ATcpConnection conn = new ATcpConnection(lss.servsock, sock.getInetAddress(), sock.getPort());
-			if (DEBUG)
-				System.err.println("ListenThread: Created new conn " + conn);
-			SockState ss = aSocketMgr.getFactory().newSockState(conn, sock, lss.writeClogThreshold);
-			if (DEBUG)
-				System.err.println("ListenThread: Created new sockstate " + ss);
-			conn.sockState = ss;
-			if (DEBUG)
-				System.err.println("ListenThread: Calling lss complete");
-			lss.complete(conn);
+		try {
+			// Try to do as many accepts as we can in one go
+			while (numAccepted++ < maxAccepts) {
+				// XXX: must check this.
+				sock = lss.accept();
+
+				if (sock == null)
+					break;
+
+				if (DEBUG)
+					System.err.println("ListenThread: did accept on " + sock.getInetAddress().getHostAddress() + ":" + sock.getPort());
+				ATcpConnection conn = new ATcpConnection(lss.servsock, sock.getInetAddress(), sock.getPort());
+				if (DEBUG)
+					System.err.println("ListenThread: Created new conn " + conn);
+				SockState ss = aSocketMgr.getFactory().newSockState(conn, sock, lss.writeClogThreshold);
+				if (DEBUG)
+					System.err.println("ListenThread: Created new sockstate " + ss);
+				conn.sockState = ss;
+				if (DEBUG)
+					System.err.println("ListenThread: Calling lss complete");
+				if (batching)
+					lss.addToBatch(conn);
+				else
+					lss.complete(conn);
+			}
+		} finally {
+			// Push whatever was accepted, even if accept failed part way
+			if (batching)
+				lss.completeBatch();
 		}
 
 		if (DEBUG)
@@ -91,25 +102,26 @@ class ListenEventHandler extends aSocketEventHandler implements EventHandlerIF {
 		} else if (req instanceof ATcpSuspendAcceptRequest) {
 			ATcpSuspendAcceptRequest susreq = (ATcpSuspendAcceptRequest) req;
 
-			ListenSockState lss = susreq.servsock.lss;
-			if (lss == null) {
-				throw new Error("ListenEventHandler: Got ATcpSuspendAcceptRequest for server socket " + susreq.servsock + " with null lss!");
-			}
-			lss.suspend();
+			// Null if this acceptor could not listen
+			ListenSockState lss = susreq.servsock.acceptors[susreq.acceptor];
+			if (lss != null)
+				lss.suspend();
 
 		} else if (req instanceof ATcpResumeAcceptRequest) {
 			ATcpResumeAcceptRequest resreq = (ATcpResumeAcceptRequest) req;
 
-			ListenSockState lss = resreq.servsock.lss;
-			if (lss == null) {
-				throw new Error("ListenEventHandler: Got ATcpResumeAcceptRequest for server socket " + resreq.servsock + " with null lss!");
-			}
-			lss.resume();
+			ListenSockState lss = resreq.servsock.acceptors[resreq.acceptor];
+			if (lss == null)
+				return;
+			if (resreq.start)
+				lss.startAccept();
+			else
+				lss.resume();
 
 		} else if (req instanceof ATcpCloseServerRequest) {
 			ATcpCloseServerRequest creq = (ATcpCloseServerRequest) req;
 
-			ListenSockState lss = creq.servsock.lss;
+			ListenSockState lss = creq.servsock.acceptors[creq.acceptor];
 			// OK for lss to be null if closed down already
 			if (lss != null)
 				lss.close();
@@ -146,7 +158,11 @@ class ListenEventHandler extends aSocketEventHandler implements EventHandlerIF {
 	}
 
 	public void handleEvents(QueueElementIF qelarr[]) {
-		for (int i = 0; i < qelarr.length; i++) {
+		handleEvents(qelarr, qelarr.length);
+	}
+
+	public void handleEvents(QueueElementIF qelarr[], int length) {
+		for (int i = 0; i < length; i++) {
 			handleEvent(qelarr[i]);
 		}
 	}
@@ -45,12 +45,78 @@ public abstract class ListenSockState {
   protected int port;
   protected SinkIF compQ;
   protected int writeClogThreshold;
+  // Which of the server socket's acceptors this is
+  protected int acceptor;
+  // Maximum number of accepted connections pushed as one batch, or 0
+  protected int acceptBatch;
+  private QueueElementIF acceptBuf[];
+  private int numBatched;
 
   protected abstract int getLocalPort();
   protected abstract Socket accept() throws IOException;
   protected abstract void suspend();
   protected abstract void resume();
+  // Start accepting on a socket opened with no accept interest
+  protected abstract void startAccept();
   protected abstract void close();
   protected abstract void complete(ATcpConnection conn);
+
+  /**
+   * Called by subclasses once the socket is listening. The server
+   * socket posts the ATcpListenSuccessEvent once all of its acceptors
+   * are listening.
+   */
+  protected void listening() {
+    servsock.acceptorListening(acceptor, this, null, compQ);
+  }
+
+  /**
+   * Called by subclasses if the socket could not listen. The server
+   * socket posts a single ATcpListenFailedEvent once all of its
+   * acceptors have reported, and closes those which are listening.
+   */
+  protected void listenFailed(String message) {
+    servsock.acceptorListening(acceptor, null, message, compQ);
+  }
+
+  /**
+   * Called by subclasses once the socket is closed. The server socket
+   * posts the ATcpServerSocketClosedEvent when its last acceptor closes.
+   */
+  protected void closed() {
+    servsock.acceptorClosed(compQ);
+  }
+
+  /**
+   * Add a newly accepted connection to the batch which completeBatch()
+   * will push. At most acceptBatch connections may be added.
+   */
+  protected void addToBatch(ATcpConnection conn) {
+    if (acceptBuf == null) acceptBuf = new QueueElementIF[acceptBatch];
+    acceptBuf[numBatched++] = conn;
+  }
+
+  /**
+   * Push the connections added by addToBatch() to compQ with a single
+   * enqueue_many(). If the queue cannot take all of them, each is 
+   * offered with complete() instead.
+   */
+  protected void completeBatch() {
+    if (numBatched == 0) return;
+    QueueElementIF batch[] = acceptBuf;
+    if (numBatched < acceptBuf.length) {
+      batch = new QueueElementIF[numBatched];
+      System.arraycopy(acceptBuf, 0, batch, 0, numBatched);
+    }
+    try {
+      compQ.enqueue_many(batch);
+    } catch (SinkException se) {
+      for (int i = 0; i < batch.length; i++) {
+	complete((ATcpConnection)batch[i]);
+      }
+    }
+    Arrays.fill(acceptBuf, 0, numBatched, null);
+    numBatched = 0;
+  }
 }
 
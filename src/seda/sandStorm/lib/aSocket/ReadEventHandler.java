@@ -101,7 +101,11 @@ class ReadEventHandler extends aSocketEventHandler implements EventHandlerIF {
 	}
 
 	public void handleEvents(QueueElementIF qelarr[]) {
-		for (int i = 0; i < qelarr.length; i++) {
+		handleEvents(qelarr, qelarr.length);
+	}
+
+	public void handleEvents(QueueElementIF qelarr[], int length) {
+		for (int i = 0; i < length; i++) {
 			handleEvent(qelarr[i]);
 		}
 	}
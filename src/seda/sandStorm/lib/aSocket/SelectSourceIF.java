@@ -86,6 +86,15 @@ public interface SelectSourceIF extends SourceIF {
    */
   public void update(Object sel);
 
+  /**
+   * Cause a thread which is blocked in one of the dequeue methods to 
+   * return immediately. If no thread is currently blocked, the next 
+   * blocking dequeue will return immediately. This is used to let a 
+   * thread blocked on this source notice requests arriving from 
+   * elsewhere.
+   */
+  public void wakeup();
+
   /**
    * Return the number of SelectItems registered with the SelectSource.
    */
@@ -59,6 +59,8 @@ public abstract class SockState implements aSocketConst {
 	protected ATcpWriteRequest cur_write_req;
 	protected int cur_offset, cur_length_target;
 	protected byte writeBuf[];
+	protected ATcpFileRegionWriteRequest cur_region_req;
+	protected long cur_region_pos;
 	protected ATcpInPacket pkt;
 
 	protected static int numActiveWriteSockets = 0;
@@ -79,6 +81,26 @@ public abstract class SockState implements aSocketConst {
 
 	protected abstract boolean tryWrite() throws SinkClosedException;
 
+	/**
+	 * Try to write the ATcpWriteRequests at the head of writeReqList, up
+	 * to MAX_GATHER_WRITE_REQS of them, with a single gathering write.
+	 * Returns the number of requests at the head of the list which have
+	 * been completely written; the caller removes and completes them. A
+	 * request which is only partly written is resumed by the next call.
+	 * Returns -1 if gathering writes are not supported, in which case 
+	 * initWrite() and tryWrite() must be used instead.
+	 */
+	protected int tryWriteGather() throws SinkClosedException {
+		return -1;
+	}
+
+	/**
+	 * Try to write the next part of the given file region to the socket.
+	 * Progress is kept in cur_region_req and cur_region_pos. Returns true
+	 * once the whole region has been written.
+	 */
+	protected abstract boolean tryWriteFileRegion(ATcpFileRegionWriteRequest req) throws SinkClosedException;
+
 	void writeReset() {
 		this.cur_write_req = null;
 		this.outstanding_writes--;
@@ -88,6 +110,50 @@ public abstract class SockState implements aSocketConst {
 
 	protected abstract void writeMaskDisable();
 
+	/**
+	 * Tell aSocketMgr that this connection's selector loop has one more
+	 * socket. Called at the end of the constructor, so that a connection
+	 * whose SockState could not be created is never counted.
+	 */
+	protected void loopOpened() {
+		aSocketMgr.loopOpened(conn.loop);
+	}
+
+	/**
+	 * Tell aSocketMgr that this connection's selector loop has one fewer
+	 * socket. Called once, when the socket is closed.
+	 */
+	protected void loopClosed() {
+		aSocketMgr.loopClosed(conn.loop);
+	}
+
+	/**
+	 * Tell the owners of file regions which will now never be written
+	 * that this connection has closed. Called by close() before the
+	 * write queue is discarded.
+	 */
+	protected void abortFileRegions() {
+		if (writeReqList == null)
+			return;
+		Enumeration e = writeReqList.elements();
+		while (e.hasMoreElements()) {
+			Object req = e.nextElement();
+			if (req instanceof ATcpFileRegionWriteRequest)
+				fileRegionAborted(((ATcpFileRegionWriteRequest) req).region);
+		}
+	}
+
+	/**
+	 * Push a SinkClosedEvent for this connection to the completion queue
+	 * of a file region which will not be written, so that its owner can
+	 * release the file.
+	 */
+	void fileRegionAborted(FileRegionElement region) {
+		SinkIF cq = region.getCompletionQueue();
+		if (cq != null)
+			cq.enqueue_lossy(new SinkClosedEvent(conn));
+	}
+
 	static int numActiveWriters() {
 		return numActiveWriteSockets;
 	}
@@ -78,6 +78,7 @@ class WriteEventHandler extends aSocketEventHandler implements EventHandlerIF, a
 
 		// Avoid doing too many things on each socket
 		int num_reqs_processed = 0;
+		int num_gather_spins = 0;
 		while (ss.writeReqList != null && // JRVB: this can happen if someone
 											// closes the socket while we are
 											// processing writes.
@@ -96,6 +97,40 @@ class WriteEventHandler extends aSocketEventHandler implements EventHandlerIF, a
 				if ((ss.cur_write_req != null) && (ss.cur_write_req != req))
 					break;
 
+				if (ss.cur_write_req == null) {
+					// Try to write this and the following requests at once
+					int num_done;
+					try {
+						num_done = ss.tryWriteGather();
+					} catch (SinkClosedException sde) {
+						// Expect the SinkClosedEvent to be pushed up when
+						// read() fails, as below
+						return;
+					}
+					if (num_done != -1) {
+						if (num_done == 0) {
+							if (++num_gather_spins > TRYWRITE_SPIN)
+								break;
+							continue;
+						}
+						if (DEBUG)
+							System.err.println("WriteEventHandler: Finished " + num_done + " writes");
+						for (int i = 0; i < num_done; i++) {
+							if (ss.isClosed())
+								return; // Nothing more to do
+							ATcpWriteRequest dreq = (ATcpWriteRequest) ss.writeReqList.remove_head();
+							ss.writeReset();
+							SinkIF cq = dreq.buf.getCompletionQueue();
+							if (cq != null) {
+								SinkDrainedEvent sde = new SinkDrainedEvent(ss.conn, dreq.buf);
+								cq.enqueue_lossy(sde);
+							}
+						}
+						num_reqs_processed += num_done - 1;
+						continue;
+					}
+				}
+
 				if (ss.cur_write_req == null) {
 					if (DEBUG)
 						System.err.println("WriteEventHandler: Doing initWrite");
@@ -148,6 +183,51 @@ class WriteEventHandler extends aSocketEventHandler implements EventHandlerIF, a
 					break; // Don't want to process anything else here
 				}
 
+			} else if (req instanceof ATcpFileRegionWriteRequest) {
+
+				ATcpFileRegionWriteRequest rreq = (ATcpFileRegionWriteRequest) req;
+
+				// Skip if locked
+				if ((ss.cur_write_req != null) && (ss.cur_write_req != req))
+					break;
+
+				boolean done = false;
+				int c = 0;
+
+				// Try hard to finish this region
+				try {
+					while ((!(done = ss.tryWriteFileRegion(rreq))) && (c++ < TRYWRITE_SPIN))
+						;
+				} catch (SinkClosedException sde) {
+					// Expect the SinkClosedEvent to be pushed up when read()
+					// fails, as for ATcpWriteRequest
+				}
+
+				if (done) {
+					if (DEBUG)
+						System.err.println("WriteEventHandler: Finished file region write");
+					ss.writeReset();
+
+					// Send completion upcall
+					SinkIF cq = rreq.region.getCompletionQueue();
+					if (cq != null) {
+						SinkDrainedEvent sde = new SinkDrainedEvent(ss.conn, rreq.region);
+						cq.enqueue_lossy(sde);
+					}
+
+					// Clear the request
+					if (!ss.isClosed()) {
+						ss.writeReqList.remove_head();
+					} else {
+						return; // Nothing more to do
+					}
+
+				} else {
+					if (DEBUG)
+						System.err.println("WriteEventHandler: File region write not completed");
+					break; // Don't want to process anything else here
+				}
+
 			} else if (req instanceof ATcpFlushRequest) {
 
 				ATcpFlushRequest freq = (ATcpFlushRequest) req;
@@ -237,6 +317,37 @@ class WriteEventHandler extends aSocketEventHandler implements EventHandlerIF, a
 				if ((ss.cur_write_req != null) && (ss.cur_write_req != req))
 					break;
 
+				if (ss.cur_write_req == null) {
+					// Try to send this and the following requests at once
+					int num_done;
+					try {
+						num_done = ss.tryWriteBatch();
+					} catch (SinkClosedException sde) {
+						// Ignore - expect the SinkClosedEvent to be pushed up
+						// when receive() fails
+						return;
+					}
+					if (num_done != -1) {
+						if (num_done == 0)
+							break; // No room on the socket; wait until it is writable
+						if (DEBUG)
+							System.err.println("WriteEventHandler: Finished " + num_done + " writes");
+						for (int i = 0; i < num_done; i++) {
+							if (ss.isClosed())
+								return; // Nothing more to do
+							AUdpWriteRequest dreq = (AUdpWriteRequest) ss.writeReqList.remove_head();
+							ss.writeReset();
+							SinkIF cq = dreq.buf.getCompletionQueue();
+							if (cq != null) {
+								SinkDrainedEvent sde = new SinkDrainedEvent(ss.udpsock, dreq.buf);
+								cq.enqueue_lossy(sde);
+							}
+						}
+						num_reqs_processed += num_done - 1;
+						continue;
+					}
+				}
+
 				if (ss.cur_write_req == null) {
 					if (DEBUG)
 						System.err.println("WriteEventHandler: Doing initWrite");
@@ -378,6 +489,25 @@ class WriteEventHandler extends aSocketEventHandler implements EventHandlerIF, a
 				}
 			}
 
+		} else if (req instanceof ATcpFileRegionWriteRequest) {
+
+			ATcpFileRegionWriteRequest rreq = (ATcpFileRegionWriteRequest) req;
+			SockState ss = rreq.conn.sockState;
+
+			// If already closed, drop it, but let the owner release the file
+			if (ss.closed) {
+				ss.fileRegionAborted(rreq.region);
+			} else {
+				if (!ss.addWriteRequest(req, selsource)) {
+					// Couldn't enqueue: this connection is clogged
+					SinkIF cq = rreq.region.getCompletionQueue();
+					if (cq != null) {
+						SinkCloggedEvent sce = new SinkCloggedEvent(rreq.conn, rreq.region);
+						cq.enqueue_lossy(sce);
+					}
+				}
+			}
+
 		} else if (req instanceof AUdpWriteRequest) {
 
 			DatagramSockState ss = ((AUdpWriteRequest) req).sock.sockState;
@@ -466,9 +596,13 @@ class WriteEventHandler extends aSocketEventHandler implements EventHandlerIF, a
 	}
 
 	public void handleEvents(QueueElementIF qelarr[]) {
+		handleEvents(qelarr, qelarr.length);
+	}
+
+	public void handleEvents(QueueElementIF qelarr[], int length) {
 		int numWrites = 0;
 
-		for (int i = 0; i < qelarr.length; i++) {
+		for (int i = 0; i < length; i++) {
 
 			try {
 
@@ -33,12 +33,18 @@ public interface aSocketConst {
   public static final int READ_BUFFER_SIZE = 16384;
   /** Indicates whether the reader should copy data into a new buffer */
   public static final boolean READ_BUFFER_COPY = true;
+  /** Number of read buffers carved from each slab of the read buffer pool */
+  public static final int READ_BUFFERS_PER_SLAB = 64;
   /** Number of times to try to finish a socket write */
   public static final int TRYWRITE_SPIN = 10;
   /** Maximum number of bytes to try writing at once; -1 if no limit */
   public static final int MAX_WRITE_LEN = -1; 
   /** Maximum number of write reqs on a socket to process at once */
   public static final int MAX_WRITE_REQS_PER_SOCKET = 1000;
+  /** Maximum number of write reqs to coalesce into one gathering write */
+  public static final int MAX_GATHER_WRITE_REQS = 16;
+  /** Default maximum number of datagrams to read or send on a socket at once */
+  public static final int UDP_BATCH_SIZE = 64;
   /** Maximum number of writes to process at once */
   public static final int MAX_WRITES_AT_ONCE = -1;
   /** Maximum number of accepts to process at once */
@@ -49,14 +55,15 @@ public interface aSocketConst {
    */
   public static final int WRITE_MASK_DISABLE_THRESHOLD = 10; 
 
-  /** Time in ms to sleep waiting for select */
+  /**
+   * Time in ms to sleep waiting for select. New requests wake up the
+   * select early, so this only bounds how long an idle thread sleeps.
+   */
   public static final int SELECT_TIMEOUT = 1000;
-  /** Number of times to spin on select */
-  public static final int SELECT_SPIN = 1;
   /** Time in ms to sleep waiting on event queue */
   public static final int EVENT_QUEUE_TIMEOUT = 1000;
-  /** Number of times to spin on event queue */
-  public static final int EVENT_QUEUE_SPIN = 10;
+  /** Initial size of the buffer used to dequeue from the event queue */
+  public static final int EVENT_QUEUE_BATCH_SIZE = 1024;
 
   /** Maximum aggregation constant for aSocketRCTM. */
   public static final int LARGE_AGGREGATION = 4096;
@@ -34,7 +34,7 @@ import java.util.*;
 /**
  * Abstract superclass of the event handlers used by aSocket.
  */
-abstract class aSocketEventHandler implements EventHandlerIF {
+abstract class aSocketEventHandler implements BatchEventHandlerIF {
 
   private static final boolean DEBUG = false;
 
@@ -54,6 +54,7 @@ abstract class aSocketEventHandler implements EventHandlerIF {
   public abstract void destroy();
   public abstract void handleEvent(QueueElementIF qel);
   public abstract void handleEvents(QueueElementIF qelarr[]);
+  public abstract void handleEvents(QueueElementIF qelarr[], int length);
 
 }
 
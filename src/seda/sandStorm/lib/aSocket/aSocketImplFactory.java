@@ -26,6 +26,7 @@ package seda.sandStorm.lib.aSocket;
 
 import java.io.*;
 import java.net.*;
+import seda.sandStorm.core.*;
 
 /**
  * aSocketImplFactory is an internal abstract class used to represent the
@@ -36,10 +37,24 @@ import java.net.*;
 public abstract class aSocketImplFactory {
 	private static final boolean DEBUG = false;
 
+	/**
+	 * Pool of direct buffers for socket reads, or null if reads should use
+	 * heap buffers. Providers which cannot use it may ignore it.
+	 */
+	protected BufferPool readBufferPool;
+
+	/**
+	 * Maximum number of datagrams to read or send on a datagram socket
+	 * each time it is ready.
+	 */
+	protected int udpBatchSize = aSocketConst.UDP_BATCH_SIZE;
+
 	static aSocketImplFactory getFactory() throws ClassNotFoundException, InstantiationException, IllegalAccessException {
 		aSocketImplFactory factory;
 
-		if (aSocketMgr.USE_NIO) {
+		if (aSocketMgr.USE_EPOLL) {
+			factory = (aSocketImplFactory) Class.forName("seda.sandStorm.lib.aSocket.nio.EPollFactory").newInstance();
+		} else if (aSocketMgr.USE_NIO) {
 			factory = (aSocketImplFactory) Class.forName("seda.sandStorm.lib.aSocket.nio.NIOFactory").newInstance();
 		} else {
 			factory = (aSocketImplFactory) Class.forName("seda.sandStorm.lib.aSocket.nbio.NBIOFactory").newInstance();
@@ -47,6 +62,14 @@ public abstract class aSocketImplFactory {
 		return factory;
 	}
 
+	void setReadBufferPool(BufferPool pool) {
+		this.readBufferPool = pool;
+	}
+
+	void setUdpBatchSize(int udpBatchSize) {
+		this.udpBatchSize = udpBatchSize;
+	}
+
 	protected abstract SelectSourceIF newSelectSource();
 
 	protected abstract SelectQueueElement newSelectQueueElement(Object item);
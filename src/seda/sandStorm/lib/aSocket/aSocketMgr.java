@@ -33,6 +33,7 @@ import seda.sandStorm.main.*;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * The aSocketMgr is an internal class used to provide an interface between the
@@ -52,10 +53,19 @@ public class aSocketMgr {
 	private static ThreadManagerIF aSocketTM, aSocketRCTM;
 	/**
 	 * readstage的sink（队列）
+	 * One read, write and listen stage per selector loop; each connection
+	 * is handled by the stages at its loop index, and each acceptor of a
+	 * server socket by one of the listen stages.
 	 */
-	private static SinkIF read_sink;
-	private static SinkIF listen_sink;
-	private static SinkIF write_sink;
+	private static SinkIF read_sinks[];
+	private static SinkIF listen_sinks[];
+	private static SinkIF write_sinks[];
+
+	/**
+	 * Number of connections assigned to each loop, when connections are
+	 * placed with the least-loaded policy; null when they are hashed.
+	 */
+	private static AtomicIntegerArray loopLoad;
 
 	/**
 	 * 用作synchronized
@@ -67,6 +77,7 @@ public class aSocketMgr {
 	private static boolean initialized = false;
 
 	static boolean USE_NIO = false;
+	static boolean USE_EPOLL = false;
 	/**
 	 * 根据USE_NIO返回对应工厂类，创建的是***state类
 	 */
@@ -85,17 +96,21 @@ public class aSocketMgr {
 
 			String provider = cfg.getString("global.aSocket.provider");
 			if (provider == null) {
-				throw new RuntimeException("aSocketMgr: Must specify either " + "'NIO' or 'NBIO' for global.aSocket.provider");
+				throw new RuntimeException("aSocketMgr: Must specify either " + "'NIO', 'EPOLL' or 'NBIO' for global.aSocket.provider");
 			}
 			//!!!!目前global.aSocket.provider只支持NIO和NBIO两个选项，分别是干嘛的？
 			if (provider.equals("NIO")) {
 				USE_NIO = true;
 				System.err.println("aSocket layer using JDK1.4 java.nio package");
+			} else if (provider.equals("EPOLL")) {
+				USE_NIO = true;
+				USE_EPOLL = true;
+				System.err.println("aSocket layer using java.nio package with EPollSelectSource");
 			} else if (provider.equals("NBIO")) {
 				USE_NIO = false;
 				System.err.println("aSocket layer using NBIO package");
 			} else {
-				throw new RuntimeException("aSocketMgr: Must specify either " + "'NIO' or 'NBIO' for global.aSocket.provider");
+				throw new RuntimeException("aSocketMgr: Must specify either " + "'NIO', 'EPOLL' or 'NBIO' for global.aSocket.provider");
 			}
 
 			try {
@@ -105,37 +120,62 @@ public class aSocketMgr {
 			} catch (Exception e) {
 				throw new RuntimeException("aSocketMgr: Cannot create aSocketImplFactory: " + e);
 			}
+			if (cfg.getBoolean("global.aSocket.bufferPool.enable")) {
+				int maxSlabs = cfg.getInt("global.aSocket.bufferPool.maxSlabs");
+				factory.setReadBufferPool(new BufferPool(aSocketConst.READ_BUFFER_SIZE, aSocketConst.READ_BUFFERS_PER_SLAB, maxSlabs));
+			}
+			int udpBatchSize = cfg.getInt("global.aSocket.udp.batchSize");
+			if (udpBatchSize > 0) {
+				factory.setUdpBatchSize(udpBatchSize);
+			}
+
+			int numLoops = cfg.getInt("global.aSocket.numLoops");
+			if (numLoops <= 0)
+				numLoops = Runtime.getRuntime().availableProcessors();
+			String policy = cfg.getString("global.aSocket.loopPolicy");
+			if (policy.equals("leastLoaded")) {
+				loopLoad = new AtomicIntegerArray(numLoops);
+			} else if (!policy.equals("hash")) {
+				throw new RuntimeException("aSocketMgr: Must specify either " + "'hash' or 'leastLoaded' for global.aSocket.loopPolicy");
+			}
+			if (numLoops > 1)
+				System.err.println("aSocket layer using " + numLoops + " selector loops, " + policy + " policy");
 
 			aSocketTM = new aSocketThreadManager(mgr);
 			//将SocketTM加入sandstormMgr中的defaulttm表中。aSocketTM是干嘛的？TM是干嘛的？
 			sysmgr.addThreadManager("aSocket", aSocketTM);
-			//创建ReadStageWrapper
-			ReadEventHandler revh = new ReadEventHandler();
-			aSocketStageWrapper rsw;
+			ThreadManagerIF readTM = aSocketTM;
 			if (cfg.getBoolean("global.aSocket.governor.enable")) {
-				aSocketRCTM = new aSocketRCTMSleep(mgr);
+				// Each read loop gets an equal share of the target rate
+				aSocketRCTM = new aSocketRCTMSleep(mgr, numLoops);
 				sysmgr.addThreadManager("aSocketRCTM", aSocketRCTM);
+				readTM = aSocketRCTM;
+			}
+			read_sinks = new SinkIF[numLoops];
+			listen_sinks = new SinkIF[numLoops];
+			write_sinks = new SinkIF[numLoops];
+			for (int i = 0; i < numLoops; i++) {
+				//创建ReadStageWrapper
 				//!!!!此调用是关键，初始化一个StageWrapper，怎么用?
 				//STEPIN 还不知道怎么用wrapper
-				rsw = new aSocketStageWrapper("aSocket ReadStage", revh, new ConfigData(mgr), aSocketRCTM);
-			} else {
-				rsw = new aSocketStageWrapper("aSocket ReadStage", revh, new ConfigData(mgr), aSocketTM);
+				ReadEventHandler revh = new ReadEventHandler();
+				aSocketStageWrapper rsw = new aSocketStageWrapper(loopStageName(aSocketConst.READSTAGE_NAME, i), revh, new ConfigData(mgr), readTM);
+				//!!!!将rsw wrapper注册到sysmgr，此处是sandStormMgr中，并返回wrapper中的stage。wrapper中的stage是在上一行new的时候创造的。
+				StageIF readStage = sysmgr.createStage(rsw, true);
+				//STEPIN 跟踪getSink，sink和EventQueue的不同
+				//STEPIN 为什么要记录sink，AFileMgr就没有
+				read_sinks[i] = readStage.getSink();
+				//创建WriteEventHandler
+				WriteEventHandler wevh = new WriteEventHandler();
+				aSocketStageWrapper wsw = new aSocketStageWrapper(loopStageName(aSocketConst.WRITESTAGE_NAME, i), wevh, new ConfigData(mgr), aSocketTM);
+				StageIF writeStage = sysmgr.createStage(wsw, true);
+				write_sinks[i] = writeStage.getSink();
+				//创建ListenStageWrapper
+				ListenEventHandler levh = new ListenEventHandler();
+				aSocketStageWrapper lsw = new aSocketStageWrapper(loopStageName(aSocketConst.LISTENSTAGE_NAME, i), levh, new ConfigData(mgr), aSocketTM);
+				StageIF listenStage = sysmgr.createStage(lsw, true);
+				listen_sinks[i] = listenStage.getSink();
 			}
-			//!!!!将rsw wrapper注册到sysmgr，此处是sandStormMgr中，并返回wrapper中的stage。wrapper中的stage是在上一行new的时候创造的。
-			StageIF readStage = sysmgr.createStage(rsw, true);
-			//STEPIN 跟踪getSink，sink和EventQueue的不同
-			//STEPIN 为什么要记录sink，AFileMgr就没有
-			read_sink = readStage.getSink();
-			//创建ListenStageWrapper
-			ListenEventHandler levh = new ListenEventHandler();
-			aSocketStageWrapper lsw = new aSocketStageWrapper("aSocket ListenStage", levh, new ConfigData(mgr), aSocketTM);
-			StageIF listenStage = sysmgr.createStage(lsw, true);
-			listen_sink = listenStage.getSink();
-			//创建WriteEventHandler
-			WriteEventHandler wevh = new WriteEventHandler();
-			aSocketStageWrapper wsw = new aSocketStageWrapper("aSocket WriteStage", wevh, new ConfigData(mgr), aSocketTM);
-			StageIF writeStage = sysmgr.createStage(wsw, true);
-			write_sink = writeStage.getSink();
 			//涉及到sandstormmgr的有stagewrapper都被注册到stagetbl成员变量中。TM注册到tmtbl
 			//另外TM和SW都有mgr引用
 			initialized = true;
@@ -171,15 +211,101 @@ public class aSocketMgr {
 		return factory;
 	}
 
+	/**
+	 * Loop 0 keeps the original stage names, so that configurations and
+	 * profiles which refer to them still work.
+	 */
+	private static String loopStageName(String name, int loop) {
+		return (loop == 0) ? name : (name + " " + loop);
+	}
+
+	/**
+	 * Choose the selector loop for a new socket. With the hash policy the
+	 * given hash picks the loop; with the least-loaded policy the loop with
+	 * the fewest open connections is chosen. All reads and writes on the
+	 * socket are then handled by that loop.
+	 */
+	static int chooseLoop(int hash) {
+		init();
+		int numLoops = read_sinks.length;
+		if (numLoops == 1)
+			return 0;
+		if (loopLoad == null)
+			return (hash & 0x7fffffff) % numLoops;
+		int best = 0;
+		for (int i = 1; i < numLoops; i++) {
+			if (loopLoad.get(i) < loopLoad.get(best))
+				best = i;
+		}
+		return best;
+	}
+
+	/**
+	 * Record that a socket has been opened on the given loop.
+	 */
+	static void loopOpened(int loop) {
+		if (loopLoad != null)
+			loopLoad.incrementAndGet(loop);
+	}
+
+	/**
+	 * Record that a socket on the given loop has been closed.
+	 */
+	static void loopClosed(int loop) {
+		if (loopLoad != null)
+			loopLoad.decrementAndGet(loop);
+	}
+
+	/**
+	 * Return the selector loop which handles the given request.
+	 */
+	private static int loopOf(aSocketRequest req) {
+		if (req instanceof ATcpWriteRequest)
+			return ((ATcpWriteRequest) req).conn.loop;
+		if (req instanceof ATcpFileRegionWriteRequest)
+			return ((ATcpFileRegionWriteRequest) req).conn.loop;
+		if (req instanceof ATcpFlushRequest)
+			return ((ATcpFlushRequest) req).conn.loop;
+		if (req instanceof ATcpCloseRequest)
+			return ((ATcpCloseRequest) req).conn.loop;
+		if (req instanceof ATcpStartReadRequest)
+			return ((ATcpStartReadRequest) req).conn.loop;
+		// The connection will be placed on the same loop as its socket
+		if (req instanceof ATcpConnectRequest)
+			return ((ATcpConnectRequest) req).clisock.loop;
+		if (req instanceof AUdpWriteRequest)
+			return ((AUdpWriteRequest) req).sock.loop;
+		if (req instanceof AUdpCloseRequest)
+			return ((AUdpCloseRequest) req).sock.loop;
+		if (req instanceof AUdpFlushRequest)
+			return ((AUdpFlushRequest) req).sock.loop;
+		if (req instanceof AUdpConnectRequest)
+			return ((AUdpConnectRequest) req).sock.loop;
+		if (req instanceof AUdpDisconnectRequest)
+			return ((AUdpDisconnectRequest) req).sock.loop;
+		if (req instanceof AUdpStartReadRequest)
+			return ((AUdpStartReadRequest) req).sock.loop;
+		// Acceptors of a server socket are spread over the listen stages
+		if (req instanceof ATcpListenRequest)
+			return ((ATcpListenRequest) req).acceptor % listen_sinks.length;
+		if (req instanceof ATcpSuspendAcceptRequest)
+			return ((ATcpSuspendAcceptRequest) req).acceptor % listen_sinks.length;
+		if (req instanceof ATcpResumeAcceptRequest)
+			return ((ATcpResumeAcceptRequest) req).acceptor % listen_sinks.length;
+		if (req instanceof ATcpCloseServerRequest)
+			return ((ATcpCloseServerRequest) req).acceptor % listen_sinks.length;
+		return 0;
+	}
+
 	static public void enqueueRequest(aSocketRequest req) {
 		init();
 
-		if ((req instanceof ATcpWriteRequest) || (req instanceof ATcpConnectRequest) || (req instanceof ATcpFlushRequest) || (req instanceof ATcpCloseRequest)
+		if ((req instanceof ATcpWriteRequest) || (req instanceof ATcpFileRegionWriteRequest) || (req instanceof ATcpConnectRequest) || (req instanceof ATcpFlushRequest) || (req instanceof ATcpCloseRequest)
 				|| (req instanceof AUdpWriteRequest) || (req instanceof AUdpCloseRequest) || (req instanceof AUdpFlushRequest) || (req instanceof AUdpConnectRequest)
 				|| (req instanceof AUdpDisconnectRequest)) {
 
 			try {
-				write_sink.enqueue(req);
+				write_sinks[loopOf(req)].enqueue(req);
 			} catch (SinkException se) {
 				System.err.println("aSocketMgr.enqueueRequest: Warning: Got SinkException " + se);
 				System.err.println("aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
@@ -188,7 +314,7 @@ public class aSocketMgr {
 		} else if ((req instanceof ATcpStartReadRequest) || (req instanceof AUdpStartReadRequest)) {
 
 			try {
-				read_sink.enqueue(req);
+				read_sinks[loopOf(req)].enqueue(req);
 			} catch (SinkException se) {
 				System.err.println("aSocketMgr.enqueueRequest: Warning: Got SinkException " + se);
 				System.err.println("aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
@@ -198,7 +324,7 @@ public class aSocketMgr {
 				|| (req instanceof ATcpCloseServerRequest)) {
 
 			try {
-				listen_sink.enqueue(req);
+				listen_sinks[loopOf(req)].enqueue(req);
 			} catch (SinkException se) {
 				System.err.println("aSocketMgr.enqueueRequest: Warning: Got SinkException " + se);
 				System.err.println("aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
@@ -47,9 +47,13 @@ class aSocketRCTMSleep extends aSocketThreadManager implements ThreadManagerIF,
 	private static final int MAX_AGGREGATION = 32;
 	private double targetRate;
 
-	aSocketRCTMSleep(ManagerIF mgr) {
+	/**
+	 * The configured rate is for the aSocket layer as a whole; each of the
+	 * numLoops read threads is given an equal share of it.
+	 */
+	aSocketRCTMSleep(ManagerIF mgr, int numLoops) {
 		super(mgr);
-		this.targetRate = mgr.getConfig().getInt("global.aSocket.rateController.rate");
+		this.targetRate = mgr.getConfig().getInt("global.aSocket.rateController.rate") / (double) numLoops;
 		System.err.println("aSocketRCTMSleep: Created, target rate " + targetRate);
 	}
 
@@ -85,58 +89,7 @@ class aSocketRCTMSleep extends aSocketThreadManager implements ThreadManagerIF,
 
 					aggTarget = tp.getAggregationTarget();
 
-					while (selsource.numActive() == 0) {
-						if (DEBUG)
-							System.err.println(name + ": numActive is zero, waiting on event queue");
-						QueueElementIF qelarr[];
-						if (aggTarget == -1) {
-							qelarr = eventQ.blocking_dequeue_all(EVENT_QUEUE_TIMEOUT);
-						} else {
-							qelarr = eventQ.blocking_dequeue(EVENT_QUEUE_TIMEOUT, aggTarget);
-						}
-						if (qelarr != null) {
-							if (DEBUG)
-								System.err.println(name + ": got " + qelarr.length + " new requests");
-							num_events += qelarr.length;
-							handler.handleEvents(qelarr);
-						}
-					}
-
-					for (int s = 0; s < SELECT_SPIN; s++) {
-						if (DEBUG)
-							System.err.println(name + ": doing select, numActive " + selsource.numActive());
-						SelectQueueElement ret[];
-						if (aggTarget == -1) {
-							ret = (SelectQueueElement[]) selsource.blocking_dequeue_all(SELECT_TIMEOUT);
-						} else {
-							ret = (SelectQueueElement[]) selsource.blocking_dequeue(SELECT_TIMEOUT, aggTarget);
-						}
-						if (ret != null) {
-							if (DEBUG)
-								System.err.println(name + ": select got " + ret.length + " elements");
-							num_events += ret.length;
-							handler.handleEvents(ret);
-						} else if (DEBUG)
-							System.err.println(name + ": select got null");
-					}
-
-					if (DEBUG)
-						System.err.println(name + ": Checking request queue");
-					for (int s = 0; s < EVENT_QUEUE_SPIN; s++) {
-						QueueElementIF qelarr[];
-						if (aggTarget == -1) {
-							qelarr = eventQ.dequeue_all();
-						} else {
-							qelarr = eventQ.dequeue(aggTarget);
-						}
-						if (qelarr != null) {
-							if (DEBUG)
-								System.err.println(name + ": got " + qelarr.length + " new requests");
-							num_events += qelarr.length;
-							handler.handleEvents(qelarr);
-							break;
-						}
-					}
+					num_events += processEvents(aggTarget);
 
 				} catch (Exception e) {
 					System.err.println(name + ": got exception " + e);
@@ -82,7 +82,7 @@ class aSocketThreadManager implements ThreadManagerIF, aSocketConst {
 	/**
 	 * Internal class representing a single aSocketTM-managed thread.
 	 */
-	protected class aSocketThread implements Runnable {
+	protected class aSocketThread implements Runnable, SourceListenerIF {
 
 		protected ThreadPool tp;
 		protected StageWrapperIF wrapper;
@@ -90,6 +90,11 @@ class aSocketThreadManager implements ThreadManagerIF, aSocketConst {
 		protected SourceIF eventQ;
 		protected String name;
 		protected EventHandlerIF handler;
+		protected QueueElementIF batch[];
+		protected QueueElementIF selbatch[];
+		protected EventTracer tracer;
+		// True while this thread may be blocked in select
+		protected volatile boolean selecting;
 
 		protected aSocketThread(aSocketStageWrapper wrapper) {
 			if (DEBUG)
@@ -99,6 +104,26 @@ class aSocketThreadManager implements ThreadManagerIF, aSocketConst {
 			this.selsource = wrapper.getSelectSource();
 			this.eventQ = wrapper.getEventQueue();
 			this.handler = wrapper.getEventHandler();
+			this.tracer = mgr.getProfiler().getTracer();
+			if ((eventQ instanceof BatchSourceIF) && (handler instanceof BatchEventHandlerIF)) {
+				this.batch = new QueueElementIF[EVENT_QUEUE_BATCH_SIZE];
+			}
+			if ((selsource instanceof BatchSourceIF) && (handler instanceof BatchEventHandlerIF)) {
+				this.selbatch = new QueueElementIF[EVENT_QUEUE_BATCH_SIZE];
+			}
+			if ((selsource != null) && (eventQ instanceof ListenableSourceIF)) {
+				((ListenableSourceIF) eventQ).setSourceListener(this);
+			}
+		}
+
+		/**
+		 * Called when a request is enqueued for this stage. Wakes up the
+		 * thread if it is blocked in select, so the request is handled
+		 * right away rather than after SELECT_TIMEOUT.
+		 */
+		public void sourceReady(SourceIF source) {
+			if (selecting)
+				selsource.wakeup();
 		}
 
 		/**
@@ -109,6 +134,137 @@ class aSocketThreadManager implements ThreadManagerIF, aSocketConst {
 			this.tp = tp;
 		}
 
+		/**
+		 * Pull a batch of requests from the event queue, waiting up to
+		 * timeout_millis, and pass it to the handler. Uses the thread's
+		 * batch buffer when the queue and handler support it. Returns the
+		 * number of requests processed.
+		 */
+		protected int processEventQueue(int aggTarget, int timeout_millis) throws EventHandlerException {
+			if (batch != null) {
+				// As with dequeue_all(), -1 takes everything
+				int want = (aggTarget == -1) ? eventQ.size() : aggTarget;
+				if (want > batch.length)
+					batch = new QueueElementIF[Math.max(want, batch.length * 2)];
+				int max = (aggTarget == -1) ? batch.length : aggTarget;
+				int num = ((BatchSourceIF) eventQ).drainTo(batch, max, (timeout_millis == -1) ? -1 : timeout_millis * 1000000L);
+				if (num != 0) {
+					if (DEBUG)
+						System.err.println(name + ": got " + num + " new requests");
+					if ((tracer != null) && tracer.isTraced(wrapper, batch, num))
+						tracer.handleEvents(wrapper, handler, batch, num);
+					else
+						((BatchEventHandlerIF) handler).handleEvents(batch, num);
+					Arrays.fill(batch, 0, num, null);
+				}
+				return num;
+			}
+
+			QueueElementIF qelarr[];
+			if (timeout_millis == 0) {
+				qelarr = (aggTarget == -1) ? eventQ.dequeue_all() : eventQ.dequeue(aggTarget);
+			} else if (aggTarget == -1) {
+				qelarr = eventQ.blocking_dequeue_all(timeout_millis);
+			} else {
+				qelarr = eventQ.blocking_dequeue(timeout_millis, aggTarget);
+			}
+			if (qelarr == null)
+				return 0;
+			if (DEBUG)
+				System.err.println(name + ": got " + qelarr.length + " new requests");
+			if ((tracer != null) && tracer.isTraced(wrapper, qelarr, qelarr.length))
+				tracer.handleEvents(wrapper, handler, qelarr, qelarr.length);
+			else
+				handler.handleEvents(qelarr);
+			return qelarr.length;
+		}
+
+		/**
+		 * Poll the select source and pass the ready keys to the handler.
+		 * If 'block' is true and no requests are pending, waits up to
+		 * SELECT_TIMEOUT; an enqueue onto the event queue wakes the select
+		 * up early. Uses the thread's select batch buffer when the select
+		 * source and handler support it. Returns the number of keys
+		 * processed.
+		 */
+		protected int processSelectSource(int aggTarget, boolean block) throws EventHandlerException {
+			// Announce that we may block before checking the event queue, so
+			// that a concurrent enqueue is either seen here or wakes us up
+			selecting = true;
+			int timeout_millis = (block && (eventQ.size() == 0)) ? SELECT_TIMEOUT : 0;
+
+			if (selbatch != null) {
+				int want = (aggTarget == -1) ? selsource.size() : aggTarget;
+				if (want > selbatch.length)
+					selbatch = new QueueElementIF[Math.max(want, selbatch.length * 2)];
+				int max = (aggTarget == -1) ? selbatch.length : aggTarget;
+				int num;
+				try {
+					num = ((BatchSourceIF) selsource).drainTo(selbatch, max, timeout_millis * 1000000L);
+				} finally {
+					selecting = false;
+				}
+				if (num != 0) {
+					if (DEBUG)
+						System.err.println(name + ": select got " + num + " elements");
+					long nstart = System.nanoTime();
+					((BatchEventHandlerIF) handler).handleEvents(selbatch, num);
+					wrapper.getStats().recordBatch(num, System.nanoTime() - nstart);
+					Arrays.fill(selbatch, 0, num, null);
+				} else if (DEBUG)
+					System.err.println(name + ": select got null");
+				return num;
+			}
+
+			SelectQueueElement ret[];
+			try {
+				if (timeout_millis == 0) {
+					ret = (SelectQueueElement[]) ((aggTarget == -1) ? selsource.dequeue_all() : selsource.dequeue(aggTarget));
+				} else if (aggTarget == -1) {
+					ret = (SelectQueueElement[]) selsource.blocking_dequeue_all(timeout_millis);
+				} else {
+					ret = (SelectQueueElement[]) selsource.blocking_dequeue(timeout_millis, aggTarget);
+				}
+			} finally {
+				selecting = false;
+			}
+			if (ret == null) {
+				if (DEBUG)
+					System.err.println(name + ": select got null");
+				return 0;
+			}
+			if (DEBUG)
+				System.err.println(name + ": select got " + ret.length + " elements");
+			long nstart = System.nanoTime();
+			handler.handleEvents(ret);
+			wrapper.getStats().recordBatch(ret.length, System.nanoTime() - nstart);
+			return ret.length;
+		}
+
+		/**
+		 * Run one pass of the thread loop: handle pending requests, then
+		 * block in select until sockets are ready or a new request arrives.
+		 * When nothing is active in the select source, block on the event
+		 * queue instead. Returns the number of events processed.
+		 */
+		protected int processEvents(int aggTarget) throws EventHandlerException {
+			int num = processEventQueue(aggTarget, 0);
+			//!!!!在selsource没有Active时，运行eventQ的dequeue
+			if ((selsource == null) || (selsource.numActive() == 0)) {
+				if (num == 0) {
+					if (DEBUG)
+						System.err.println(name + ": numActive is zero, waiting on event queue");
+					num = processEventQueue(aggTarget, EVENT_QUEUE_TIMEOUT);
+				}
+				return num;
+			}
+			if (DEBUG)
+				System.err.println(name + ": doing select, numActive " + selsource.numActive());
+			// Don't block in select if we just handled requests, since they
+			// may have produced more
+			return num + processSelectSource(aggTarget, (num == 0));
+		}
+
 		/**
 		 * 不停地循环获取eventQ中等待处理的queueElement，交由Handler处理
 		 *  (non-Javadoc)
@@ -126,71 +282,8 @@ class aSocketThreadManager implements ThreadManagerIF, aSocketConst {
 				try {
 					//!!!!是个整数，由吞吐量（队列长度）计算得到。代表了吞吐量。
 					aggTarget = tp.getAggregationTarget();
-					//!!!!在selsource没有Active时，运行eventQ的dequeue
 					//STEPIN 如何将select source和FiniteEvent产生关系，见handleEvents
-					while (selsource != null && selsource.numActive() == 0) {
-						if (DEBUG)
-							System.err.println(name + ": numActive is zero, waiting on event queue");
-						QueueElementIF qelarr[];
-						//!!!!默认就是-1
-						if (aggTarget == -1) {
-							qelarr = eventQ.blocking_dequeue_all(EVENT_QUEUE_TIMEOUT);
-						} else {
-							qelarr = eventQ.blocking_dequeue(EVENT_QUEUE_TIMEOUT, aggTarget);
-						}
-
-						if (qelarr != null) {
-							if (DEBUG)
-								System.err.println(name + ": got " + qelarr.length + " new requests");
-							//!!!!此处是关键
-							handler.handleEvents(qelarr);
-						}
-					}
-					//!!!!再运行selctsource的dequeue
-					for (int s = 0; s < SELECT_SPIN; s++) {
-						if (DEBUG)
-							System.err.println(name + ": doing select, numActive " + selsource.numActive());
-						SelectQueueElement ret[];
-
-						if (aggTarget == -1) {
-							ret = (SelectQueueElement[]) selsource.blocking_dequeue_all(SELECT_TIMEOUT);
-						} else {
-							ret = (SelectQueueElement[]) selsource.blocking_dequeue(SELECT_TIMEOUT, aggTarget);
-						}
-
-						if (ret != null) {
-							if (DEBUG)
-								System.err.println(name + ": select got " + ret.length + " elements");
-							long tstart = System.currentTimeMillis();
-							//STEPIN 如果是读事件，会牵涉到SockState，这又是干嘛的？写事件呢？
-							handler.handleEvents(ret);
-							long tend = System.currentTimeMillis();
-							wrapper.getStats().recordServiceRate(ret.length, tend - tstart);
-
-						} else if (DEBUG)
-							System.err.println(name + ": select got null");
-					}
-
-					if (DEBUG)
-						System.err.println(name + ": Checking request queue");
-					//STEPIN 为什么还要来一遍eventQ
-					for (int s = 0; s < EVENT_QUEUE_SPIN; s++) {
-						QueueElementIF qelarr[];
-						if (aggTarget == -1) {
-							qelarr = eventQ.dequeue_all();
-						} else {
-							qelarr = eventQ.dequeue(aggTarget);
-						}
-						if (qelarr != null) {
-							if (DEBUG)
-								System.err.println(name + ": got " + qelarr.length + " new requests");
-							handler.handleEvents(qelarr);
-							break;
-						}
-					}
-					//STEPIN 学习一下yield，synchronized等锁关键字的含义。
-					Thread.currentThread().yield();
-
+					processEvents(aggTarget);
 				} catch (Exception e) {
 					System.err.println(name + ": got exception " + e);
 					e.printStackTrace();
@@ -264,6 +264,7 @@ public class DatagramSockState extends seda.sandStorm.lib.aSocket.DatagramSockSt
     if (closed) return;
 
     closed = true;
+    loopClosed();
 
     if (DEBUG) System.err.println("DatagramSockState.close(): Deregistering with selsources");
     if (read_selsource != null) read_selsource.deregister(readsi); 
@@ -40,6 +40,8 @@ import java.util.*;
 public class ListenSockState extends seda.sandStorm.lib.aSocket.ListenSockState {
 
   private static final boolean DEBUG = false;
+  // As used by NonblockingServerSocket when none is given
+  private static final int LISTEN_BACKLOG = 511;
 
   NonblockingServerSocket nbservsock;
   private SelectItem si;
@@ -57,20 +59,20 @@ public class ListenSockState extends seda.sandStorm.lib.aSocket.ListenSockState
     this.port = req.port;
     this.compQ = req.compQ;
     this.writeClogThreshold = req.writeClogThreshold;
+    this.acceptor = req.acceptor;
+    this.acceptBatch = req.acceptBatch;
     if (DEBUG) System.err.println("ListenThread: Creating nbservsock on port "+port);
 
     this.servsock = req.servsock;
     try {
-      nbservsock = new NonblockingServerSocket(port);
+      nbservsock = new NonblockingServerSocket(port, LISTEN_BACKLOG, req.bindAddr);
     } catch (IOException ioe) {
       // Can't create socket - probably because the address was 
       // already in use
-      ATcpListenFailedEvent ev = new ATcpListenFailedEvent(servsock, ioe.getMessage());
-      compQ.enqueue_lossy(ev);
+      listenFailed(ioe.getMessage());
       return;
     }
-    this.servsock.lss = this;
-    compQ.enqueue_lossy(new ATcpListenSuccessEvent(servsock));
+    listening();
   }
 
   protected Socket accept() throws IOException {
@@ -114,6 +116,12 @@ public class ListenSockState extends seda.sandStorm.lib.aSocket.ListenSockState
     listen_selsource.update(si);
   }
 
+  protected void startAccept() {
+    if (nbservsock == null) return; // If already closed
+    si.events |= Selectable.ACCEPT_READY;
+    listen_selsource.update(si);
+  }
+
   protected void close() {
     if (nbservsock == null) return; // If already closed
     listen_selsource.deregister(si);
@@ -124,8 +132,7 @@ public class ListenSockState extends seda.sandStorm.lib.aSocket.ListenSockState
       // Ignore
     }
     nbservsock = null;
-    ATcpServerSocketClosedEvent closed = new ATcpServerSocketClosedEvent(servsock);
-    compQ.enqueue_lossy(closed);
+    closed();
   }
 
   protected void complete(ATcpConnection conn) {
@@ -59,6 +59,12 @@ public class SelectSource implements SelectSourceIF {
 	private int balancer_seq_off;
 	private Object blocker;
 
+	// Loopback connection used to interrupt a blocking select
+	private NonblockingSocket wakeupSender, wakeupReceiver;
+	private SelectItem wakeupItem;
+	private byte wakeupBuf[];
+	private volatile boolean wakeupPending;
+
 	// XXX MDW HACKING
 	public Object getSelectSet() {
 		return selset;
@@ -91,6 +97,7 @@ public class SelectSource implements SelectSourceIF {
 
 		if (do_balance)
 			initBalancer();
+		initWakeup();
 	}
 
 	/**
@@ -169,11 +176,30 @@ public class SelectSource implements SelectSourceIF {
 		selset.update((SelectItem) selobj);
 	}
 
+	/**
+	 * Wake up a thread blocked on this SelectSource. This writes a byte to
+	 * a loopback connection which is registered with the SelectSet.
+	 */
+	public void wakeup() {
+		synchronized (blocker) {
+			blocker.notify();
+		}
+		if ((wakeupItem == null) || wakeupPending)
+			return;
+		wakeupPending = true;
+		try {
+			((NonblockingOutputStream) wakeupSender.getOutputStream()).nbWrite((byte) 0);
+		} catch (IOException e) {
+			if (DEBUG)
+				System.err.println("SelectSource: error writing wakeup byte: " + e);
+		}
+	}
+
 	/**
 	 * Return the number of SelectItems registered with the SelectSource.
 	 */
 	public int numRegistered() {
-		return selset.size();
+		return (wakeupItem == null) ? selset.size() : selset.size() - 1;
 	}
 
 	/**
@@ -182,7 +208,7 @@ public class SelectSource implements SelectSourceIF {
 	 * mask.
 	 */
 	public int numActive() {
-		return selset.numActive();
+		return (wakeupItem == null) ? selset.numActive() : selset.numActive() - 1;
 	}
 
 	/**
@@ -198,7 +224,7 @@ public class SelectSource implements SelectSourceIF {
 	 * null if no entries available.
 	 */
 	public QueueElementIF dequeue() {
-		if (selset.size() == 0)
+		if (numRegistered() == 0)
 			return null;
 
 		if ((ready_size == 0) || (ready_offset == ready_size)) {
@@ -214,7 +240,7 @@ public class SelectSource implements SelectSourceIF {
 	 * if no entries available.
 	 */
 	public QueueElementIF[] dequeue_all() {
-		if (selset.size() == 0)
+		if (numRegistered() == 0)
 			return null;
 
 		if ((ready_size == 0) || (ready_offset == ready_size)) {
@@ -234,7 +260,7 @@ public class SelectSource implements SelectSourceIF {
 	 * SelectSource. Returns null if no entries available.
 	 */
 	public QueueElementIF[] dequeue(int num) {
-		if (selset.size() == 0)
+		if (numRegistered() == 0)
 			return null;
 
 		if ((ready_size == 0) || (ready_offset == ready_size)) {
@@ -258,7 +284,7 @@ public class SelectSource implements SelectSourceIF {
 	 */
 	public QueueElementIF blocking_dequeue(int timeout_millis) {
 
-		if (selset.size() == 0) {
+		if (numRegistered() == 0) {
 			if (timeout_millis == 0)
 				return null;
 			// Wait for something to be registered
@@ -292,7 +318,7 @@ public class SelectSource implements SelectSourceIF {
 	 */
 	public QueueElementIF[] blocking_dequeue_all(int timeout_millis) {
 
-		if (selset.size() == 0) {
+		if (numRegistered() == 0) {
 			if (timeout_millis == 0)
 				return null;
 			// Wait for something to be registered
@@ -330,7 +356,7 @@ public class SelectSource implements SelectSourceIF {
 	 */
 	public QueueElementIF[] blocking_dequeue(int timeout_millis, int num) {
 
-		if (selset.size() == 0) {
+		if (numRegistered() == 0) {
 			if (timeout_millis == 0)
 				return null;
 			// Wait for something to be registered
@@ -370,7 +396,7 @@ public class SelectSource implements SelectSourceIF {
 		if (DEBUG)
 			System.err.println("SelectSource: poll returned " + c);
 		if (c > 0) {
-			SelectItem ret[] = selset.getEvents();
+			SelectItem ret[] = removeWakeup(selset.getEvents());
 			if (ret != null) {
 				// XXX We can't get ret == null if doPoll() is synchronized with
 				// deregister() - but I'm not sure I want to do that
@@ -385,6 +411,50 @@ public class SelectSource implements SelectSourceIF {
 		ready_offset = ready_size = 0;
 	}
 
+	// Filters the wakeup item out of the events returned by the SelectSet,
+	// draining any wakeup bytes. Returns null if there were no other events.
+	private SelectItem[] removeWakeup(SelectItem selarr[]) {
+		if ((wakeupItem == null) || (selarr == null))
+			return selarr;
+		for (int i = 0; i < selarr.length; i++) {
+			if (selarr[i] == wakeupItem) {
+				try {
+					NonblockingInputStream in = (NonblockingInputStream) wakeupReceiver.getInputStream();
+					while (in.read(wakeupBuf) > 0)
+						;
+				} catch (IOException e) {
+					if (DEBUG)
+						System.err.println("SelectSource: error draining wakeup bytes: " + e);
+				}
+				// Clear only after draining, so a concurrent wakeup is not lost
+				wakeupPending = false;
+				if (selarr.length == 1)
+					return null;
+				SelectItem ret[] = new SelectItem[selarr.length - 1];
+				System.arraycopy(selarr, 0, ret, 0, i);
+				System.arraycopy(selarr, i + 1, ret, i, selarr.length - i - 1);
+				return ret;
+			}
+		}
+		return selarr;
+	}
+
+	// Sets up the loopback connection used by wakeup()
+	private void initWakeup() {
+		try {
+			NonblockingServerSocket server = new NonblockingServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+			wakeupSender = new NonblockingSocket(server.getInetAddress(), server.getLocalPort(), true);
+			wakeupReceiver = server.accept();
+			server.close();
+			wakeupBuf = new byte[64];
+			wakeupItem = new SelectItem(wakeupReceiver, Selectable.READ_READY);
+			selset.add(wakeupItem);
+		} catch (IOException e) {
+			System.err.println("SelectSource: Cannot create wakeup connection, wakeup() will have no effect: " + e);
+			wakeupItem = null;
+		}
+	}
+
 	// Balances selarr[] by shuffling the entries - sets ready[]
 	// 把SelectItem都放到ready变量中
 	private void balance(SelectItem selarr[]) {
@@ -46,6 +46,8 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
 
 	private SelectSource read_selsource;
 	private SelectSource write_selsource;
+	// Staging buffer for file region writes
+	private byte regionBuf[];
 
 	public SockState(ATcpConnection conn, Socket nbsock, int writeClogThreshold) throws IOException {
 		if (DEBUG)
@@ -74,6 +76,7 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
 
 		clogged_qel = null;
 		clogged_numtries = 0;
+		loopOpened();
 		if (DEBUG)
 			System.err.println("SockState " + nbsock + ": Const done");
 	}
@@ -231,7 +234,7 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
 		if ((writeClogThreshold != -1) && (this.outstanding_writes > writeClogThreshold)) {
 			if (DEBUG)
 				System.err.println("SockState: warning: writeClogThreshold exceeded, dropping " + req);
-			if (req instanceof ATcpWriteRequest)
+			if ((req instanceof ATcpWriteRequest) || (req instanceof ATcpFileRegionWriteRequest))
 				return false;
 			if (req instanceof ATcpCloseRequest) {
 				// Do immediate close: Assume socket is clogged
@@ -250,7 +253,7 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
 
 	protected void initWrite(ATcpWriteRequest req) {
 		this.cur_write_req = req;
-		this.writeBuf = SockStatereq.buf.data;
+		this.writeBuf = req.buf.data;
 		this.cur_offset = req.buf.offset;
 		this.cur_length_target = req.buf.size + cur_offset;
 	}
@@ -280,6 +283,38 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
 			return false;
 	}
 
+	// NBIO has no sendfile(), so file regions are staged through regionBuf.
+	// Bytes which are read but not written are simply read again next time.
+	protected boolean tryWriteFileRegion(ATcpFileRegionWriteRequest req) throws SinkClosedException {
+		FileRegionElement region = req.region;
+		if (cur_region_req != req) {
+			cur_region_req = req;
+			cur_region_pos = 0;
+		}
+		if (regionBuf == null)
+			regionBuf = new byte[READ_BUFFER_SIZE];
+		int tryLen = (int) Math.min(region.count - cur_region_pos, regionBuf.length);
+		if (MAX_WRITE_LEN != -1)
+			tryLen = Math.min(tryLen, MAX_WRITE_LEN);
+		try {
+			int len = region.channel.read(java.nio.ByteBuffer.wrap(regionBuf, 0, tryLen), region.position + cur_region_pos);
+			if (len <= 0)
+				throw new IOException("file region extends past end of file");
+			cur_region_pos += nbos.nbWrite(regionBuf, 0, len);
+			if (DEBUG)
+				System.err.println("SockState: tryWriteFileRegion() of " + len + " bytes (len=" + region.count + ", off=" + cur_region_pos);
+		} catch (IOException ioe) {
+			// Can't send the rest of the region, so the stream is now corrupt
+			this.close(null);
+			throw new SinkClosedException("tryWriteFileRegion got exception doing write: " + ioe.getMessage());
+		}
+		if (cur_region_pos == region.count) {
+			cur_region_req = null;
+			return true;
+		}
+		return false;
+	}
+
 	protected void writeMaskEnable() {
 		numActiveWriteSockets++;
 		writesi.events |= Selectable.WRITE_READY;
@@ -300,6 +335,7 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
 			return;
 
 		closed = true;
+		loopClosed();
 
 		if (DEBUG)
 			System.err.println("SockState.close(): Deregistering with selsources");
@@ -314,6 +350,7 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
 		// XXX XXX XXX MDW: This introduces a race condition with
 		// addWriteRequest() -- need to serialize close() with other
 		// queue operations on the socket.
+		abortFileRegions();
 		writeReqList = null;
 
 		try {
@@ -46,7 +46,8 @@ public class ConnectSockState extends seda.sandStorm.lib.aSocket.ConnectSockStat
 
   private SocketChannel nio_sc;
   private SelectionKey selkey;
-  private NIOSelectSource write_nio_selsource;
+  private NIOSelectSourceIF write_nio_selsource;
+  private BufferPool readPool;
 
 /*  private ATcpClientSocket clisock; 
   private SinkIF compQ;
@@ -55,8 +56,13 @@ public class ConnectSockState extends seda.sandStorm.lib.aSocket.ConnectSockStat
   boolean completed = false; */
 
   public ConnectSockState(ATcpConnectRequest req, SelectSourceIF write_selsource) throws IOException {
+    this(req, write_selsource, null);
+  }
+
+  ConnectSockState(ATcpConnectRequest req, SelectSourceIF write_selsource, BufferPool readPool) throws IOException {
     this(req);
-    this.write_nio_selsource = (NIOSelectSource)write_selsource;
+    this.readPool = readPool;
+    this.write_nio_selsource = (NIOSelectSourceIF)write_selsource;
     selkey = (SelectionKey)write_selsource.register(
         nio_sc, SelectionKey.OP_CONNECT
     );
@@ -126,7 +132,7 @@ public class ConnectSockState extends seda.sandStorm.lib.aSocket.ConnectSockStat
 
       Socket sock = nio_sc.socket();
       if (DEBUG) System.err.println("ConnectSockState: connect finished on "+sock.getInetAddress().getHostAddress()+":"+sock.getPort());
-      SockState ss = new SockState(conn, sock, writeClogThreshold);
+      SockState ss = new SockState(conn, sock, writeClogThreshold, readPool);
       conn.sockState = ss;
 
       // Finally enqueue
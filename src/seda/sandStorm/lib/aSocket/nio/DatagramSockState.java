@@ -37,6 +37,13 @@ import java.nio.*;
 
 /**
  * Internal class used to represent state of an active datagram socket.
+ *
+ * <p>Each time the socket is ready, up to <tt>batchSize</tt> datagrams
+ * are read or sent. Incoming datagrams are pushed to the read completion
+ * queue together with a single enqueue_many(); if the BufferPool is
+ * enabled and large enough for <tt>maxPacketSize</tt>, they are received
+ * straight into pooled buffers, and otherwise copied out of a single
+ * receive buffer into arrays of exactly their size.
  */
 public class DatagramSockState extends seda.sandStorm.lib.aSocket.DatagramSockState {
 
@@ -62,21 +69,43 @@ public class DatagramSockState extends seda.sandStorm.lib.aSocket.DatagramSockSt
   AUdpWriteRequest cur_write_req; 
   BufferElement cur_write_buf; */
 
-  private NIOSelectSource nio_read_selsource;
-  private NIOSelectSource nio_write_selsource;
+  private NIOSelectSourceIF nio_read_selsource;
+  private NIOSelectSourceIF nio_write_selsource;
   private ByteBuffer nio_readbuf;
+  private ByteBuffer nio_writebuf;
+
+  private int batchSize;
+  private BufferPool readPool;
+  // Pooled buffer left over from the last read, when nothing was received
+  private BufferElement spare_lease;
+  // Packets read but not yet pushed up, because readCompQ was full
+  private QueueElementIF clogged_batch[];
+
+  // Destination of the last datagram sent, to avoid creating a new
+  // InetSocketAddress for each one
+  private InetAddress last_dest_addr;
+  private int last_dest_port;
+  private InetSocketAddress last_dest;
 
   public DatagramSockState(AUdpSocket sock, InetAddress addr, int port) throws IOException {
+    this(sock, addr, port, null, UDP_BATCH_SIZE);
+  }
+
+  public DatagramSockState(AUdpSocket sock, InetAddress addr, int port, BufferPool readPool, int batchSize) throws IOException {
     if (DEBUG) System.err.println("DatagramSockState: Constructor called");
     this.udpsock = sock;
     this.readCompQ = sock.compQ;
     this.writeClogThreshold = sock.writeClogThreshold;
     this.maxPacketSize = sock.maxPacketSize;
+    this.batchSize = batchSize;
 
-    readBuf = new byte[maxPacketSize];
+    // Pooled buffers are only used if a whole datagram fits in one
+    if ((readPool != null) && (readPool.getBufferSize() >= maxPacketSize)) {
+      this.readPool = readPool;
+    }
     this.nio_write_selsource = null;
     
-    nio_readbuf = ByteBuffer.wrap(readBuf);
+    nio_readbuf = ByteBuffer.allocateDirect(maxPacketSize);
 
     if (DEBUG) System.err.println("DatagramSockState : setting up socket");
     this.nio_dgsock = DatagramChannel.open();
@@ -101,7 +130,7 @@ public class DatagramSockState extends seda.sandStorm.lib.aSocket.DatagramSockSt
     if (closed) return; // May have been closed already
     this.readCompQ = compQ;
     this.readClogTries = readClogTries;
-    this.nio_read_selsource = (NIOSelectSource)read_selsource;
+    this.nio_read_selsource = (NIOSelectSourceIF)read_selsource;
     rselkey =
         (SelectionKey)this.nio_read_selsource.register(nio_dgsock,
             SelectionKey.OP_READ);
@@ -113,77 +142,152 @@ public class DatagramSockState extends seda.sandStorm.lib.aSocket.DatagramSockSt
 
     // When using SelectSource, we need this guard, since after closing 
     // a socket we may have outstanding read events still in the queue
-    if (closed) return;
+    if (closed) {
+      readCleanup();
+      return;
+    }
 
-    if (clogged_qel != null) {
-      // Try to drain the clogged element first
-      if (DEBUG) System.err.println("DatagramSockState: doRead draining clogged element "+clogged_qel);
+    if (clogged_batch != null) {
+      // Try to drain the clogged packets first
+      if (DEBUG) System.err.println("DatagramSockState: doRead draining "+clogged_batch.length+" clogged packets");
       try {
-	readCompQ.enqueue(clogged_qel);
-      } catch (SinkFullException qfe) {
+	clogged_batch = pushUp(clogged_batch);
+      } catch (SinkException sce) {
+	// Whoops - user went away - just drop
+	this.close(null);
+	return;
+      }
+      if (clogged_batch != null) {
 	// Nope, still clogged
 	if ((readClogTries != -1) &&
 	    (++clogged_numtries >= readClogTries)) {
-	  if (DEBUG) System.err.println("DatagramSockState: warning: readClogTries exceeded, dropping "+clogged_qel);
-	  clogged_qel = null;
+	  if (DEBUG) System.err.println("DatagramSockState: warning: readClogTries exceeded, dropping "+clogged_batch.length+" packets");
+	  releaseAll(clogged_batch);
+	  clogged_batch = null;
 	  clogged_numtries = 0;
 	} else {
 	  // Try again later
 	  return;
 	}
-      } catch (SinkException sce) {
-	// Whoops - user went away - just drop
-	this.close(null);
       }
     }
 
-    int len;
-    DatagramPacket p;
+    // Drain the datagrams waiting on the socket, up to batchSize
+    QueueElementIF batch[] = new QueueElementIF[batchSize];
+    int num = 0;
+    boolean failed = false;
+
+    while (num < batchSize) {
+      BufferElement lease = null;
+      ByteBuffer bb;
+      if (readPool != null) {
+	lease = (spare_lease != null) ? spare_lease : readPool.allocate();
+	spare_lease = null;
+      }
+      bb = (lease != null) ? lease.getByteBuffer() : nio_readbuf;
+      bb.clear();
 
-    try {
-      if (DEBUG) System.err.println("DatagramSockState: doRead trying receive");
-      p = new DatagramPacket(readBuf, 0, readBuf.length);
-      len = nio_dgsock.read(nio_readbuf);
-      p.setSocketAddress(nio_dgsock.socket().getRemoteSocketAddress());
-      p.setLength(len);
+      SocketAddress from;
+      try {
+	if (DEBUG) System.err.println("DatagramSockState: doRead trying receive");
+	from = nio_dgsock.receive(bb);
+      } catch (Exception e) {
+	// Read failed - assume socket is dead
+	if (DEBUG) System.err.println("dgss.doRead: receive got exception: "+e.getMessage() + e);
+	if (lease != null) lease.release();
+	failed = true;
+	break;
+      }
 
+      if (from == null) {
+	// Nothing more to read; keep the buffer for next time
+	spare_lease = lease;
+	break;
+      }
+      int len = bb.position();
       if (DEBUG) System.err.println("DatagramSockState: receive returned "+len);
-
       if (len == 0) {
 	// Didn't read anything - just drop
-	return;
-      } else if (len < 0) {
-	// Read failed - assume socket is dead
-	if (DEBUG) System.err.println("dgss.doRead: read failed, sock closed");
-	this.close(readCompQ);
+	spare_lease = lease;
+	continue;
+      }
+
+      AUdpInPacket pkt;
+      if (lease != null) {
+	// The packet takes over the lease; no copy is made
+	lease.size = len;
+	pkt = new AUdpInPacket(udpsock, lease, from, seqNum);
+      } else {
+	byte data[] = new byte[len];
+	bb.flip();
+	bb.get(data);
+	pkt = new AUdpInPacket(udpsock, new DatagramPacket(data, len, from), seqNum);
+      }
+      // 0 is special (indicates no sequence number)
+      seqNum++; if (seqNum == 0) seqNum = 1;
+      batch[num++] = pkt;
+    }
+
+    if (num != 0) {
+      if (DEBUG) System.err.println("dgss.doRead: Pushing up "+num+" new AUdpInPackets");
+      if (num < batchSize) {
+	QueueElementIF tmp[] = new QueueElementIF[num];
+	System.arraycopy(batch, 0, tmp, 0, num);
+	batch = tmp;
+      }
+      try {
+	clogged_batch = pushUp(batch);
+	clogged_numtries = 0;
+      } catch (SinkException sce) {
+	// User has gone away
+	releaseAll(batch);
+	this.close(null);
 	return;
       }
-    } catch (Exception e) {
-      // Read failed - assume socket is dead
-      if (DEBUG) System.err.println("dgss.doRead: read got IOException: "+e.getMessage() + e);
-      this.close(readCompQ);
-      return;
     }
 
-    if (DEBUG) System.err.println("dgss.doRead: Pushing up new AUdpInPacket, len="+len);
+    if (failed) this.close(readCompQ);
+    if (closed) readCleanup();
+  }
 
-    pkt = new AUdpInPacket(udpsock, p, seqNum);
-    System.err.println("pkt.size()="+pkt.size());
-    // 0 is special (indicates no sequence number)
-    seqNum++; if (seqNum == 0) seqNum = 1;
-    readBuf = new byte[maxPacketSize];
-    nio_readbuf = ByteBuffer.wrap(readBuf);
+  // Return the buffers held for reading to the pool once the socket is
+  // closed; only called from doRead(), so it cannot race with a read
+  private void readCleanup() {
+    if (spare_lease != null) {
+      spare_lease.release();
+      spare_lease = null;
+    }
+    if (clogged_batch != null) {
+      releaseAll(clogged_batch);
+      clogged_batch = null;
+    }
+  }
 
+  // Push packets to readCompQ, all at once if possible. Returns null if
+  // all of them were pushed, and otherwise the packets left over because
+  // the queue is full.
+  private QueueElementIF[] pushUp(QueueElementIF batch[]) throws SinkException {
     try {
-      readCompQ.enqueue(pkt);
-    } catch (SinkFullException qfe) {
-      clogged_qel = pkt;
-      clogged_numtries = 0;
-      return;
-    } catch (SinkException sce) {
-      // User has gone away
-      this.close(null);
-      return;
+      readCompQ.enqueue_many(batch);
+      return null;
+    } catch (SinkFullException sfe) {
+      // Push as many as will fit
+      for (int i = 0; i < batch.length; i++) {
+	try {
+	  readCompQ.enqueue(batch[i]);
+	} catch (SinkFullException sfe2) {
+	  QueueElementIF rest[] = new QueueElementIF[batch.length - i];
+	  System.arraycopy(batch, i, rest, 0, rest.length);
+	  return rest;
+	}
+      }
+      return null;
+    }
+  }
+
+  private void releaseAll(QueueElementIF batch[]) {
+    for (int i = 0; i < batch.length; i++) {
+      ((AUdpInPacket)batch[i]).release();
     }
   }
 
@@ -197,7 +301,7 @@ public class DatagramSockState extends seda.sandStorm.lib.aSocket.DatagramSockSt
 
     if (this.nio_write_selsource == null) {
         if (DEBUG) System.err.println("DatagramSockState: Setting selsource to "+write_selsource);
-        this.nio_write_selsource = (NIOSelectSource)write_selsource;
+        this.nio_write_selsource = (NIOSelectSourceIF)write_selsource;
         wselkey = (SelectionKey)this.nio_write_selsource.register(
             nio_dgsock, SelectionKey.OP_WRITE
         );
@@ -232,35 +336,76 @@ public class DatagramSockState extends seda.sandStorm.lib.aSocket.DatagramSockSt
     this.cur_write_buf = req.buf;
   }
 
-    protected boolean tryWrite() throws SinkClosedException {
-        int ret;
-        DatagramPacket outgoing;
-
-        try {
-            if (cur_write_buf instanceof AUdpPacket) {
-                AUdpPacket udpp = (AUdpPacket)cur_write_buf;
-                outgoing = new DatagramPacket(udpp.data, udpp.offset, udpp.size, udpp.address, udpp.port);
-            } else {
-                outgoing = new DatagramPacket(cur_write_buf.data, cur_write_buf.offset, cur_write_buf.size);
-            }
-            ByteBuffer bb = ByteBuffer.wrap(outgoing.getData());
-            if ((outgoing.getAddress() != null)  &&
-                !outgoing.getAddress().equals(
-                    nio_dgsock.socket().getInetAddress()
-                )
-            ) {
-                throw new IllegalArgumentException("DatagramPacket does not equal address of connected DatagramChannel");
-            }
-            /* XXX: difference between write and send? */
-            ret = nio_dgsock.write(bb);
-        } catch (IOException ioe) {
-            // Assume this is because socket was already closed
-            this.close(null);
-            throw new SinkClosedException("DatagramSockState: tryWrite got exception doing write: "+ioe.getMessage());
-        }
-        if (ret == cur_write_buf.size) return true;
-        else return false;
+  protected boolean tryWrite() throws SinkClosedException {
+    return send(cur_write_buf);
+  }
+
+  protected int tryWriteBatch() throws SinkClosedException {
+    if (writeReqList == null) return 0;
+
+    // Send the run of write requests at the head of the queue
+    int n = 0;
+    Enumeration e = writeReqList.elements();
+    while (e.hasMoreElements() && (n < batchSize)) {
+      Object o = e.nextElement();
+      if (!(o instanceof AUdpWriteRequest)) break;
+      if (!send(((AUdpWriteRequest)o).buf)) break;
+      n++;
     }
+    if (DEBUG) System.err.println("DatagramSockState: tryWriteBatch() sent "+n+" datagrams");
+    return n;
+  }
+
+  // Send one datagram; returns false if the socket has no room for it
+  private boolean send(BufferElement buf) throws SinkClosedException {
+    int ret;
+
+    try {
+      ByteBuffer bb;
+      if (buf.isPooled()) {
+	bb = buf.getReadOnlyBuffer();
+      } else {
+	// Copy into a direct buffer, which the channel would otherwise
+	// do itself
+	if ((nio_writebuf == null) || (nio_writebuf.capacity() < buf.size)) {
+	  nio_writebuf = ByteBuffer.allocateDirect(Math.max(buf.size, maxPacketSize));
+	}
+	bb = nio_writebuf;
+	bb.clear();
+	bb.put(buf.data, buf.offset, buf.size);
+	bb.flip();
+      }
+
+      InetAddress addr = null;
+      int port = -1;
+      if (buf instanceof AUdpPacket) {
+	addr = ((AUdpPacket)buf).address;
+	port = ((AUdpPacket)buf).port;
+      }
+
+      if (nio_dgsock.isConnected()) {
+	if ((addr != null) && !addr.equals(nio_dgsock.socket().getInetAddress())) {
+	  throw new IllegalArgumentException("DatagramPacket does not equal address of connected DatagramChannel");
+	}
+	ret = nio_dgsock.write(bb);
+      } else {
+	if (addr == null) {
+	  throw new IllegalArgumentException("DatagramSockState: no destination address for packet on unconnected socket");
+	}
+	if ((last_dest == null) || (port != last_dest_port) || !addr.equals(last_dest_addr)) {
+	  last_dest = new InetSocketAddress(addr, port);
+	  last_dest_addr = addr;
+	  last_dest_port = port;
+	}
+	ret = nio_dgsock.send(bb, last_dest);
+      }
+    } catch (IOException ioe) {
+      // Assume this is because socket was already closed
+      this.close(null);
+      throw new SinkClosedException("DatagramSockState: tryWrite got exception doing write: "+ioe.getMessage());
+    }
+    return (ret == buf.size);
+  }
 
   void writeReset() {
     this.cur_write_req = null;
@@ -268,11 +413,11 @@ public class DatagramSockState extends seda.sandStorm.lib.aSocket.DatagramSockSt
   }
 
   protected void writeMaskEnable() {
-    wselkey.interestOps(wselkey.interestOps() | SelectionKey.OP_WRITE);
+    nio_write_selsource.addInterest(wselkey, SelectionKey.OP_WRITE);
   }
 
   protected void writeMaskDisable() {
-    wselkey.interestOps(wselkey.interestOps() & ~SelectionKey.OP_WRITE);
+    nio_write_selsource.removeInterest(wselkey, SelectionKey.OP_WRITE);
   }
 
   // This is synchronized to avoid close() interfering with
@@ -281,6 +426,7 @@ public class DatagramSockState extends seda.sandStorm.lib.aSocket.DatagramSockSt
     if (closed) return;
 
     closed = true;
+    loopClosed();
 
     if (DEBUG) System.err.println("DatagramSockState.close(): Deregistering with selsources");
     if (nio_read_selsource != null) nio_read_selsource.deregister(rselkey);
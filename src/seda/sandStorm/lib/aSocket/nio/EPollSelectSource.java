@@ -0,0 +1,471 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.lib.aSocket.nio;
+
+import seda.sandStorm.api.*;
+
+import java.nio.channels.*;
+import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * EPollSelectSource is an alternative to NIOSelectSource which is 
+ * intended to scale to very large numbers of mostly-idle connections. 
+ * It is built on the platform's default Selector, which is epoll-based 
+ * on Linux. Compared to NIOSelectSource:
+ *
+ * <ul>
+ * <li>The number of active keys (those with a non-zero interest set) 
+ *   is maintained as a counter, so <tt>numActive()</tt> is O(1) rather 
+ *   than a scan of every registered key.
+ * <li>Changes to interest sets made through <tt>addInterest</tt> and 
+ *   <tt>removeInterest</tt> are placed on a pending-changes queue and 
+ *   applied in one batch by the polling thread just before it selects.
+ *   A change which enables an operation wakes up a blocked select.
+ * <li><tt>deregister</tt> cancels the key and wakes up the selector 
+ *   rather than calling <tt>selectNow()</tt> under a lock.
+ * <li>The ready set is collected into an array which is reused across 
+ *   polls, and <tt>drainTo</tt> (see BatchSourceIF) hands out queue 
+ *   elements which are likewise reused. Callers of <tt>drainTo</tt> must
+ *   therefore not hold on to the returned elements past the next poll.
+ * </ul>
+ *
+ * <p>Note that Java does not expose edge-triggered notification, so the
+ * underlying epoll set is level-triggered, as with NIOSelectSource.
+ *
+ * <p><b>Important note:</b> As with NIOSelectSource, only one thread
+ * may call the dequeue methods at a time. The other methods may be called
+ * from any thread.
+ *
+ * @author Matt Welsh 
+ * @see NIOSelectSource
+ */
+public class EPollSelectSource implements NIOSelectSourceIF, BatchSourceIF {
+
+  private static final boolean DEBUG = false;
+  private static final int INITIAL_READY_SIZE = 64;
+
+  private Selector selector;
+  private Object lock;
+  private Object blocker;
+  private String name = "(unknown)";
+
+  // Number of keys with a non-zero interest set; updated under 'lock'
+  private volatile int num_active;
+  private ConcurrentLinkedQueue pendingChanges;
+  private volatile boolean selecting;
+  private volatile boolean woken;
+
+  // Ready set from the last poll, reused across polls
+  private SelectionKey ready[];
+  private NIOSelectorQueueElement readyElements[];
+  private int ready_offset, ready_size;
+  private Consumer collector;
+
+  private boolean do_balance;
+  private int balance_seed;
+
+  // A pending change to the interest set of a key
+  private static class interestChange {
+    SelectionKey key;
+    int set, clear;
+
+    interestChange(SelectionKey key, int set, int clear) {
+      this.key = key;
+      this.set = set;
+      this.clear = clear;
+    }
+  }
+
+  /**
+   * Create a new empty EPollSelectSource. This source will perform
+   * event balancing.
+   */
+  public EPollSelectSource() {
+    this(true);
+  }
+
+  /**
+   * Create a new empty EPollSelectSource.
+   *
+   * @param do_balance Indicates whether this source should perform
+   * event balancing.
+   */
+  public EPollSelectSource(boolean do_balance) {
+    lock = new Object();
+    blocker = new Object();
+    try {
+      selector = Selector.open();
+    } catch (IOException e) {
+      System.err.println("EPollSelectSource ("+name+"): error creating selector: " + e);
+    }
+    pendingChanges = new ConcurrentLinkedQueue();
+    num_active = 0;
+    ready = new SelectionKey[INITIAL_READY_SIZE];
+    readyElements = new NIOSelectorQueueElement[INITIAL_READY_SIZE];
+    ready_offset = ready_size = 0;
+    collector = new Consumer() {
+      public void accept(Object key) {
+	addReady((SelectionKey)key);
+      }
+    };
+    this.do_balance = do_balance;
+    this.balance_seed = (int)System.nanoTime() | 1;
+
+    if (DEBUG) System.err.println("EPollSelectSource created, do_balance = "+do_balance);
+  }
+
+  /**
+   * Return the underlying Selector.
+   */
+  public Selector getSelector() {
+    return selector;
+  }
+
+  public void setName(String thename) {
+    this.name = thename;
+  }
+
+  /**
+   * Register a SelectableChannel with this source, with the given
+   * initial interest set. Returns the SelectionKey, or null if the
+   * channel has been closed.
+   */
+  public Object register(Object nio_sc_obj, int ops) {
+    if (DEBUG) System.err.println("EPollSelectSource ("+name+"): register "+nio_sc_obj);
+
+    if (!(nio_sc_obj instanceof SelectableChannel)) {
+      System.err.println("register() called with non SelectableChannel argument.  " +
+	  "Should not happen!!");
+      return null;
+    }
+
+    SelectionKey ret;
+    synchronized (lock) {
+      try {
+	ret = ((SelectableChannel)nio_sc_obj).register(selector, ops);
+      } catch (ClosedChannelException cce) {
+	System.err.println("Closed Channel Exception: " + cce);
+	return null;
+      }
+      if (ops != 0) num_active++;
+    }
+    synchronized (blocker) {
+      blocker.notify();
+    }
+    return ret;
+  }
+
+  public void register(Object sel) {
+    System.err.println("Single argument register() called on EPollSelectSource.  " +
+	"Should not happen!!");
+  }
+
+  /**
+   * Deregister a SelectionKey with this source. As with NIOSelectSource,
+   * the key may still be returned by a subsequent dequeue if it was 
+   * already in the ready set.
+   */
+  public void deregister(Object selkey_obj) {
+    if (DEBUG) System.err.println("EPollSelectSource ("+name+"): deregister "+selkey_obj);
+
+    if (!(selkey_obj instanceof SelectionKey)) {
+      System.err.println("deregister() called on EPollSelectSource with non SelectionKey " +
+	  "argument.  Should not happen!!");
+      return;
+    }
+
+    SelectionKey selkey = (SelectionKey)selkey_obj;
+    synchronized (lock) {
+      if (selkey.isValid()) {
+	try {
+	  if (selkey.interestOps() != 0) num_active--;
+	} catch (CancelledKeyException cke) {
+	  // Channel was closed under us
+	}
+	selkey.cancel();
+      }
+    }
+    // The channel is not really closed until the next select
+    if (selecting) selector.wakeup();
+  }
+
+  /**
+   * Add the given operations to the interest set of the given key. The
+   * change is applied by the polling thread before its next select.
+   */
+  public void addInterest(SelectionKey key, int ops) {
+    pendingChanges.add(new interestChange(key, ops, 0));
+    if (selecting) selector.wakeup();
+  }
+
+  /**
+   * Remove the given operations from the interest set of the given key.
+   * The change is applied by the polling thread before its next select.
+   */
+  public void removeInterest(SelectionKey key, int ops) {
+    pendingChanges.add(new interestChange(key, 0, ops));
+  }
+
+  /**
+   * Interest set changes are always pushed down before the next select,
+   * so this does nothing.
+   */
+  public void update() {
+  }
+
+  /**
+   * Interest set changes are always pushed down before the next select,
+   * so this does nothing.
+   */
+  public void update(Object sel) {
+  }
+
+  /**
+   * Wake up a thread blocked in select on this source.
+   */
+  public void wakeup() {
+    woken = true;
+    selector.wakeup();
+    synchronized (blocker) {
+      blocker.notify();
+    }
+  }
+
+  /**
+   * Return the number of keys registered with this source.
+   */
+  public int numRegistered() {
+    return selector.keys().size();
+  }
+
+  /**
+   * Return the number of registered keys with a non-zero interest set.
+   */
+  public int numActive() {
+    if (!pendingChanges.isEmpty()) applyPendingChanges();
+    return num_active;
+  }
+
+  /**
+   * Return the number of elements waiting in the queue (that is,
+   * which don't require a poll operation to retrieve).
+   */
+  public int size() {
+    return (ready_size - ready_offset);
+  }
+
+  public QueueElementIF dequeue() {
+    if (!fill(0)) return null;
+    return new NIOSelectorQueueElement(takeReady());
+  }
+
+  public QueueElementIF[] dequeue_all() {
+    if (!fill(0)) return null;
+    return take(ready_size - ready_offset);
+  }
+
+  public QueueElementIF[] dequeue(int num) {
+    if (!fill(0)) return null;
+    return take(num);
+  }
+
+  public QueueElementIF blocking_dequeue(int timeout_millis) {
+    if (!fill(timeout_millis)) return null;
+    return new NIOSelectorQueueElement(takeReady());
+  }
+
+  public QueueElementIF[] blocking_dequeue_all(int timeout_millis) {
+    if (!fill(timeout_millis)) return null;
+    return take(ready_size - ready_offset);
+  }
+
+  public QueueElementIF[] blocking_dequeue(int timeout_millis, int num) {
+    if (!fill(timeout_millis)) return null;
+    return take(num);
+  }
+
+  /**
+   * Dequeue ready keys into 'dst' without allocating. The elements 
+   * placed in 'dst' belong to this source and are reused by later polls.
+   */
+  public int drainTo(QueueElementIF dst[], int max, long timeoutNanos) {
+    int timeout_millis;
+    if (timeoutNanos == -1) {
+      timeout_millis = -1;
+    } else {
+      timeout_millis = (int)((timeoutNanos + 999999L) / 1000000L);
+    }
+    if (!fill(timeout_millis)) return 0;
+
+    int num = Math.min(Math.min(max, dst.length), ready_size - ready_offset);
+    for (int i = 0; i < num; i++) {
+      NIOSelectorQueueElement el = readyElements[ready_offset];
+      if (el == null) {
+	el = new NIOSelectorQueueElement(null);
+	readyElements[ready_offset] = el;
+      }
+      el.item = takeReady();
+      dst[i] = el;
+    }
+    return num;
+  }
+
+  public String toString() {
+    return "EPollSelectSource <"+name+">";
+  }
+
+  // Internal methods ------------------------------------------------------
+
+  private SelectionKey takeReady() {
+    SelectionKey key = ready[ready_offset];
+    ready[ready_offset++] = null;
+    return key;
+  }
+
+  private QueueElementIF[] take(int num) {
+    int numtoret = Math.min(ready_size - ready_offset, num);
+    NIOSelectorQueueElement ret[] = new NIOSelectorQueueElement[numtoret];
+    for (int i = 0; i < numtoret; i++) {
+      ret[i] = new NIOSelectorQueueElement(takeReady());
+    }
+    return ret;
+  }
+
+  // Make sure the ready set is nonempty, polling if necessary. Returns
+  // false if nothing became ready within the timeout.
+  private boolean fill(int timeout_millis) {
+    if (ready_offset < ready_size) return true;
+
+    if (selector.keys().size() == 0) {
+      if (timeout_millis == 0) return false;
+      // Wait for something to be registered
+      synchronized (blocker) {
+	if (selector.keys().size() == 0) {
+	  try {
+	    if (timeout_millis == -1) blocker.wait();
+	    else blocker.wait(timeout_millis);
+	  } catch (InterruptedException ie) {
+	  }
+	}
+      }
+      if (selector.keys().size() == 0) return false;
+    }
+
+    // A select may be woken up early by an interest set change, so
+    // keep polling until something is ready, the timeout expires, or
+    // wakeup() is called
+    long deadline = System.currentTimeMillis() + timeout_millis;
+    doPoll(timeout_millis);
+    while ((ready_size == 0) && (timeout_millis != 0)) {
+      if (woken) {
+	woken = false;
+	break;
+      }
+      if (timeout_millis != -1) {
+	timeout_millis = (int)(deadline - System.currentTimeMillis());
+	if (timeout_millis <= 0) break;
+      }
+      doPoll(timeout_millis);
+    }
+    return (ready_size != 0);
+  }
+
+  // Push pending interest set changes down to the selector
+  private void applyPendingChanges() {
+    synchronized (lock) {
+      interestChange c;
+      while ((c = (interestChange)pendingChanges.poll()) != null) {
+	SelectionKey key = c.key;
+	if (!key.isValid()) continue;
+	try {
+	  int oldOps = key.interestOps();
+	  int newOps = (oldOps | c.set) & ~c.clear;
+	  if (newOps == oldOps) continue;
+	  key.interestOps(newOps);
+	  if (oldOps == 0) num_active++;
+	  else if (newOps == 0) num_active--;
+	} catch (CancelledKeyException cke) {
+	  // Channel was closed under us
+	}
+      }
+    }
+  }
+
+  // Performs the poll and sets ready[], ready_offset, ready_size
+  private void doPoll(int timeout) {
+    if (DEBUG) System.err.println("EPollSelectSource ("+name+"): Doing poll, timeout "+timeout);
+
+    ready_offset = ready_size = 0;
+    // Set 'selecting' before applying changes, so that a change added
+    // after we look at the queue will wake up the select
+    selecting = true;
+    try {
+      if (!pendingChanges.isEmpty()) applyPendingChanges();
+      if (timeout == 0) {
+	selector.selectNow(collector);
+      } else {
+	selector.select(collector, (timeout == -1) ? 0 : timeout);
+      }
+    } catch (IOException e) {
+      if (DEBUG) System.err.println("EPollSelectSource: Error doing select: " + e);
+    } finally {
+      selecting = false;
+    }
+    if (DEBUG) System.err.println("EPollSelectSource ("+name+"): poll returned "+ready_size);
+
+    if (do_balance && (ready_size > 1)) balance();
+  }
+
+  // Called by the selector for each ready key
+  private void addReady(SelectionKey key) {
+    if (ready_size == ready.length) {
+      SelectionKey tmp[] = new SelectionKey[ready.length * 2];
+      System.arraycopy(ready, 0, tmp, 0, ready_size);
+      ready = tmp;
+      NIOSelectorQueueElement tmpel[] = new NIOSelectorQueueElement[ready.length];
+      System.arraycopy(readyElements, 0, tmpel, 0, readyElements.length);
+      readyElements = tmpel;
+    }
+    ready[ready_size++] = key;
+  }
+
+  // Shuffle the ready set in place, so that no connection is 
+  // consistently serviced first
+  private void balance() {
+    for (int i = ready_size - 1; i > 0; i--) {
+      // xorshift
+      balance_seed ^= (balance_seed << 13);
+      balance_seed ^= (balance_seed >>> 17);
+      balance_seed ^= (balance_seed << 5);
+      int j = (balance_seed & 0x7fffffff) % (i + 1);
+      SelectionKey tmp = ready[i];
+      ready[i] = ready[j];
+      ready[j] = tmp;
+    }
+  }
+
+}
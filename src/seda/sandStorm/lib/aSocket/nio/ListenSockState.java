@@ -43,7 +43,9 @@ public class ListenSockState extends seda.sandStorm.lib.aSocket.ListenSockState
 
   ServerSocketChannel nio_servsock;
   private SelectionKey selkey;
-  private NIOSelectSource listen_nio_selsource;
+  private NIOSelectSourceIF listen_nio_selsource;
+  // With several acceptors, none accepts until all are listening
+  private boolean deferAccept;
 
 /*  ATcpServerSocket servsock;
   private static int num_connections = 0;
@@ -53,9 +55,10 @@ public class ListenSockState extends seda.sandStorm.lib.aSocket.ListenSockState
 
   public ListenSockState(ATcpListenRequest req, SelectSourceIF listen_nio_selsource) throws IOException {
     this(req);
-    this.listen_nio_selsource = (NIOSelectSource)listen_nio_selsource;
+    this.listen_nio_selsource = (NIOSelectSourceIF)listen_nio_selsource;
     this.listen_nio_selsource.setName("ListenSelectSource");
-    selkey = (SelectionKey)listen_nio_selsource.register(nio_servsock, SelectionKey.OP_ACCEPT);
+    if (nio_servsock == null) return; // Could not listen
+    selkey = (SelectionKey)listen_nio_selsource.register(nio_servsock, deferAccept ? 0 : SelectionKey.OP_ACCEPT);
     selkey.attach(this);
   }
 
@@ -63,22 +66,38 @@ public class ListenSockState extends seda.sandStorm.lib.aSocket.ListenSockState
     this.port = req.port;
     this.compQ = req.compQ;
     this.writeClogThreshold = req.writeClogThreshold;
+    this.acceptor = req.acceptor;
+    this.acceptBatch = req.acceptBatch;
+    this.deferAccept = (req.numAcceptors > 1);
     if (DEBUG) System.err.println("ListenThread: Creating nio_servsock on port "+port);
 
     this.servsock = req.servsock;
     try {
       nio_servsock = ServerSocketChannel.open();
       nio_servsock.configureBlocking(false);
-      nio_servsock.socket().bind(new InetSocketAddress(port));
+      if (req.numAcceptors > 1) {
+	// Several sockets share the port; the kernel balances between them
+	if (!nio_servsock.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+	  throw new IOException("SO_REUSEPORT is not supported");
+	}
+	nio_servsock.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      nio_servsock.socket().bind(new InetSocketAddress(req.bindAddr, port));
     } catch (IOException ioe) {
       // Can't create socket - probably because the address was 
       // already in use
-      ATcpListenFailedEvent ev = new ATcpListenFailedEvent(servsock, ioe.getMessage());
-      compQ.enqueue_lossy(ev);
+      if (nio_servsock != null) {
+	try {
+	  nio_servsock.close();
+	} catch (IOException e) {
+	  // Ignore
+	}
+	nio_servsock = null;
+      }
+      listenFailed(ioe.getMessage());
       return;
     }
-    this.servsock.lss = this;
-    compQ.enqueue_lossy(new ATcpListenSuccessEvent(servsock));
+    listening();
   }
 
   protected Socket accept() throws IOException {
@@ -115,15 +134,18 @@ public class ListenSockState extends seda.sandStorm.lib.aSocket.ListenSockState
   protected void suspend() {
     if (nio_servsock == null) return; // If already closed
     System.err.println("LSS: Suspending accept on "+servsock);
-    selkey.interestOps(selkey.interestOps() & ~(SelectionKey.OP_ACCEPT));
-    listen_nio_selsource.update(selkey);
+    listen_nio_selsource.removeInterest(selkey, SelectionKey.OP_ACCEPT);
   }
 
   protected void resume() {
     if (nio_servsock == null) return; // If already closed
     System.err.println("LSS: Resuming accept on "+servsock);
-    selkey.interestOps(selkey.interestOps() | SelectionKey.OP_ACCEPT);
-    listen_nio_selsource.update(selkey);
+    listen_nio_selsource.addInterest(selkey, SelectionKey.OP_ACCEPT);
+  }
+
+  protected void startAccept() {
+    if (nio_servsock == null) return; // If already closed
+    listen_nio_selsource.addInterest(selkey, SelectionKey.OP_ACCEPT);
   }
 
   protected void close() {
@@ -136,9 +158,7 @@ public class ListenSockState extends seda.sandStorm.lib.aSocket.ListenSockState
       // Ignore
     }
     nio_servsock = null;
-
-    ATcpServerSocketClosedEvent closed = new ATcpServerSocketClosedEvent(servsock);
-    compQ.enqueue_lossy(closed);
+    closed();
   }
 
   protected void complete(ATcpConnection conn) {
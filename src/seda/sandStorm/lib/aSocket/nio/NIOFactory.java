@@ -48,11 +48,11 @@ public class NIOFactory extends aSocketImplFactory {
   }
 
   protected seda.sandStorm.lib.aSocket.SockState newSockState(ATcpConnection conn, Socket nbsock, int writeClogThreshold) throws IOException {
-    return new seda.sandStorm.lib.aSocket.nio.SockState(conn, nbsock, writeClogThreshold);
+    return new seda.sandStorm.lib.aSocket.nio.SockState(conn, nbsock, writeClogThreshold, readBufferPool);
   }
 
   protected seda.sandStorm.lib.aSocket.ConnectSockState newConnectSockState(ATcpConnectRequest req, SelectSourceIF selsource) throws IOException {
-    return new seda.sandStorm.lib.aSocket.nio.ConnectSockState(req, selsource);
+    return new seda.sandStorm.lib.aSocket.nio.ConnectSockState(req, selsource, readBufferPool);
   }
 
   protected seda.sandStorm.lib.aSocket.ListenSockState newListenSockState(ATcpListenRequest req, SelectSourceIF selsource) throws IOException {
@@ -60,7 +60,7 @@ public class NIOFactory extends aSocketImplFactory {
   }
 
   protected seda.sandStorm.lib.aSocket.DatagramSockState newDatagramSockState(AUdpSocket sock, InetAddress addr, int port) throws IOException {
-    return new seda.sandStorm.lib.aSocket.nio.DatagramSockState(sock, addr, port);
+    return new seda.sandStorm.lib.aSocket.nio.DatagramSockState(sock, addr, port, readBufferPool, udpBatchSize);
   }
 
 }
@@ -48,7 +48,7 @@ import java.util.*;
  *
  * @author Matt Welsh 
  */
-public class NIOSelectSource implements SelectSourceIF {
+public class NIOSelectSource implements NIOSelectSourceIF {
 
   private static final boolean DEBUG = false;
 
@@ -63,7 +63,9 @@ public class NIOSelectSource implements SelectSourceIF {
   private Object blocker;
   private String name = "(unknown)";
 
-  // XXX MDW HACKING
+  /**
+   * Return the underlying Selector.
+   */
   public Selector getSelector() {
     return selector;
   }
@@ -200,6 +202,16 @@ public class NIOSelectSource implements SelectSourceIF {
   }
 
 
+  /**
+   * Wake up a thread blocked in select on this source.
+   */
+  public void wakeup() {
+    selector.wakeup();
+    synchronized (blocker) {
+      blocker.notify();
+    }
+  }
+
   /**
    * Return the number of SelectItems registered with the SelectSource.
    */
@@ -514,10 +526,24 @@ public class NIOSelectSource implements SelectSourceIF {
     balancer_seq_off = 0;
   }
 
-  void setName(String thename) {
+  public void setName(String thename) {
     this.name = thename;
   }
 
+  /**
+   * Add the given operations to the interest set of the given key.
+   */
+  public void addInterest(SelectionKey key, int ops) {
+    key.interestOps(key.interestOps() | ops);
+  }
+
+  /**
+   * Remove the given operations from the interest set of the given key.
+   */
+  public void removeInterest(SelectionKey key, int ops) {
+    key.interestOps(key.interestOps() & ~ops);
+  }
+
   public String toString() {
     return "NIOSS("+name+")";
   }
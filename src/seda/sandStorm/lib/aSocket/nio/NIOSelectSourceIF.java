@@ -0,0 +1,64 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.lib.aSocket.nio;
+
+import seda.sandStorm.lib.aSocket.SelectSourceIF;
+
+import java.nio.channels.*;
+
+/**
+ * NIOSelectSourceIF is the interface used by the NIO socket state 
+ * classes to talk to a Selector-based select source. All changes to the 
+ * interest set of a registered key should be made through 
+ * <tt>addInterest</tt> and <tt>removeInterest</tt>, so that the select
+ * source can track (or defer) them.
+ *
+ * @author Matt Welsh
+ * @see NIOSelectSource
+ * @see EPollSelectSource
+ */
+public interface NIOSelectSourceIF extends SelectSourceIF {
+
+  /**
+   * Return the underlying Selector.
+   */
+  public Selector getSelector();
+
+  /**
+   * Set the name of this select source. Used for debugging.
+   */
+  public void setName(String name);
+
+  /**
+   * Add the given operations to the interest set of the given key.
+   */
+  public void addInterest(SelectionKey key, int ops);
+
+  /**
+   * Remove the given operations from the interest set of the given key.
+   */
+  public void removeInterest(SelectionKey key, int ops);
+
+}
@@ -44,18 +44,30 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
   private SelectionKey rselkey, wselkey;
   private ByteBuffer byte_buffer, read_byte_buffer; 
 
-  private NIOSelectSource read_selsource, write_selsource;
+  private NIOSelectSourceIF read_selsource, write_selsource;
+  // If non-null, packets are read into direct buffers leased from here
+  private BufferPool readPool;
+
+  // State for gathering writes; the arrays are reused across calls
+  private ByteBuffer gather_bufs[];
+  private ATcpWriteRequest gather_reqs[];
+  private ATcpWriteRequest gather_partial;
+  private int gather_partial_pos;
 
   SockState(ATcpConnection conn, Socket nbsock, int writeClogThreshold) throws IOException {
+    this(conn, nbsock, writeClogThreshold, null);
+  }
+
+  SockState(ATcpConnection conn, Socket nbsock, int writeClogThreshold, BufferPool readPool) throws IOException {
     if (DEBUG) System.err.println("SockState: Constructor called with "+conn+", "+nbsock+", "+writeClogThreshold);
     this.conn = conn;
     this.nbsock = nbsock;
     this.writeClogThreshold = writeClogThreshold;
     this.write_selsource = null;
+    this.readPool = readPool;
 
-    if (DEBUG) System.err.println("SockState "+nbsock+": Const creating readBuf of size "+aSocketConst.READ_BUFFER_SIZE);
-    readBuf = new byte[aSocketConst.READ_BUFFER_SIZE];
-    read_byte_buffer = ByteBuffer.wrap(readBuf);
+    // With a pool, readBuf is only allocated if the pool runs dry
+    if (readPool == null) allocateReadBuf();
 
     if (DEBUG) System.err.println("SockState "+nbsock+": Setting flags");
     outstanding_writes = 0;
@@ -64,6 +76,7 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
 
     clogged_qel = null;
     clogged_numtries = 0;
+    loopOpened();
     if (DEBUG) System.err.println("SockState "+nbsock+": Const done");
   }
 
@@ -75,11 +88,11 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
   protected synchronized void readInit(SelectSourceIF read_selsource, SinkIF compQ, int readClogTries) {
     if (DEBUG) System.err.println("readInit called on "+this);
     if (closed) return; // May have been closed already
-    this.read_selsource = (NIOSelectSource)read_selsource;
+    this.read_selsource = (NIOSelectSourceIF)read_selsource;
     this.read_selsource.setName("ReadSelectSource");
     this.readCompQ = compQ;
     this.readClogTries = readClogTries;
-    if (DEBUG) System.err.println("n_keys = " + ((NIOSelectSource)read_selsource).getSelector().keys().size());
+    if (DEBUG) System.err.println("n_keys = " + this.read_selsource.getSelector().keys().size());
     rselkey = (SelectionKey)read_selsource.register(
         nbsock.getChannel(), SelectionKey.OP_READ
     );
@@ -90,6 +103,12 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
     rselkey.attach(this);
   }
 
+  private void allocateReadBuf() {
+    if (DEBUG) System.err.println("SockState "+nbsock+": Const creating readBuf of size "+aSocketConst.READ_BUFFER_SIZE);
+    readBuf = new byte[aSocketConst.READ_BUFFER_SIZE];
+    read_byte_buffer = ByteBuffer.wrap(readBuf);
+  }
+
   protected void doRead() {
     if (DEBUG) System.err.println("SockState: doRead called");
 
@@ -109,6 +128,7 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
 	if ((readClogTries != -1) &&
 	    (++clogged_numtries >= readClogTries)) {
 	  if (DEBUG) System.err.println("SockState: warning: readClogTries exceeded, dropping "+clogged_qel);
+	  ((ATcpInPacket)clogged_qel).release();
 	  clogged_qel = null;
 	  clogged_numtries = 0;
 	} else {
@@ -122,12 +142,20 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
     }
 
     int len;
+    BufferElement lease = null;
 
     try {
       if (DEBUG) System.err.println("SockState: doRead trying read");
-      len = nbsock.getChannel().read(read_byte_buffer);
+      if (readPool != null) lease = readPool.allocate();
+      if (lease != null) {
+	len = nbsock.getChannel().read(lease.getByteBuffer());
+      } else {
+	if (readBuf == null) allocateReadBuf();
+	len = nbsock.getChannel().read(read_byte_buffer);
+      }
       if (DEBUG) System.err.println("SockState: read returned "+len);
 
+      if ((len <= 0) && (lease != null)) lease.release();
       if (len == 0) {
 	// XXX MDW: Sometimes we get an error return result from
 	// poll() which causes an attempted read here, but no
@@ -145,16 +173,23 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
     } catch (Exception e) {
       // Read failed - assume socket is dead
       if (DEBUG) System.err.println("ss.doRead: read got IOException: "+e.getMessage());
+      if (lease != null) lease.release();
       this.close(readCompQ);
       return;
     }
 
     if (DEBUG) System.err.println("ss.doRead: Pushing up new ATcpInPacket, len="+len);
 
-    pkt = new ATcpInPacket(conn, readBuf, len, aSocketConst.READ_BUFFER_COPY, seqNum);
+    if (lease != null) {
+      // The packet takes over the lease; no copy is made
+      lease.size = len;
+      pkt = new ATcpInPacket(conn, lease, seqNum);
+    } else {
+      pkt = new ATcpInPacket(conn, readBuf, len, aSocketConst.READ_BUFFER_COPY, seqNum);
+    }
     // 0 is special (indicates no sequence number)
     seqNum++; if (seqNum == 0) seqNum = 1;
-    if (aSocketConst.READ_BUFFER_COPY == false) {
+    if ((lease == null) && (aSocketConst.READ_BUFFER_COPY == false)) {
       readBuf = new byte[aSocketConst.READ_BUFFER_SIZE];
       read_byte_buffer = ByteBuffer.wrap(readBuf);
     }
@@ -167,10 +202,11 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
       return;
     } catch (SinkException sce) {
       // User has gone away
+      pkt.release();
       this.close(null);
       return;
     }
-      read_byte_buffer.rewind();
+    if (lease == null) read_byte_buffer.rewind();
   }
 
   // XXX This is synchronized with close() to avoid a race with close()
@@ -183,9 +219,9 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
 
     if (this.write_selsource == null) {
         if (DEBUG) System.err.println("SockState: Setting selsource to " + write_selsource);
-        if (DEBUG) System.err.println("w/r=" + ((NIOSelectSource)write_selsource).getSelector() + "/" + ((NIOSelectSource)read_selsource).getSelector());
-        if (DEBUG) System.err.println("n_keys = " + ((NIOSelectSource)write_selsource).getSelector().keys().size());
-        this.write_selsource = (NIOSelectSource)write_selsource;
+        this.write_selsource = (NIOSelectSourceIF)write_selsource;
+        if (DEBUG) System.err.println("w/r=" + this.write_selsource.getSelector() + "/" + read_selsource.getSelector());
+        if (DEBUG) System.err.println("n_keys = " + this.write_selsource.getSelector().keys().size());
 	this.write_selsource.setName("WriteSelectSource");
         wselkey = (SelectionKey)write_selsource.register(
             nbsock.getChannel(), SelectionKey.OP_WRITE
@@ -205,7 +241,7 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
     if ((writeClogThreshold != -1) &&
 	(this.outstanding_writes > writeClogThreshold)) {
       if (DEBUG) System.err.println("SockState: warning: writeClogThreshold exceeded, dropping "+req);
-      if (req instanceof ATcpWriteRequest) return false;
+      if ((req instanceof ATcpWriteRequest) || (req instanceof ATcpFileRegionWriteRequest)) return false;
       if (req instanceof ATcpCloseRequest) {
 	// Do immediate close: Assume socket is clogged
 	ATcpCloseRequest creq = (ATcpCloseRequest)req;
@@ -255,14 +291,99 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
     else return false;
   }
 
+  protected int tryWriteGather() throws SinkClosedException {
+    if (MAX_WRITE_LEN != -1) return -1;
+    if (writeReqList == null) return 0;
+
+    if (gather_bufs == null) {
+      gather_bufs = new ByteBuffer[MAX_GATHER_WRITE_REQS];
+      gather_reqs = new ATcpWriteRequest[MAX_GATHER_WRITE_REQS];
+    }
+
+    // Collect the run of write requests at the head of the queue
+    int n = 0;
+    Enumeration e = writeReqList.elements();
+    while (e.hasMoreElements() && (n < MAX_GATHER_WRITE_REQS)) {
+      Object o = e.nextElement();
+      if (!(o instanceof ATcpWriteRequest)) break;
+      ATcpWriteRequest wreq = (ATcpWriteRequest)o;
+      BufferElement buf = wreq.buf;
+      int start = (wreq == gather_partial) ? gather_partial_pos : buf.offset;
+      ByteBuffer bb;
+      if (buf.isPooled()) {
+	bb = buf.getReadOnlyBuffer();
+	bb.position(start);
+      } else {
+	bb = ByteBuffer.wrap(buf.data, start, buf.offset + buf.size - start);
+      }
+      gather_reqs[n] = wreq;
+      gather_bufs[n] = bb;
+      n++;
+    }
+    if (n == 0) return 0;
+
+    try {
+      long len = nbsock.getChannel().write(gather_bufs, 0, n);
+      if (DEBUG) System.err.println("SockState: tryWriteGather() wrote "+len+" bytes from "+n+" requests");
+    } catch (IOException ioe) {
+      // Assume this is because socket was already closed
+      Arrays.fill(gather_bufs, 0, n, null);
+      Arrays.fill(gather_reqs, 0, n, null);
+      this.close(null);
+      throw new SinkClosedException("tryWriteGather got exception doing write: "+ioe.getMessage());
+    }
+
+    int done = 0;
+    while ((done < n) && (!gather_bufs[done].hasRemaining())) done++;
+    if (done < n) {
+      // Remember where to resume the first unfinished request
+      gather_partial = gather_reqs[done];
+      gather_partial_pos = gather_bufs[done].position();
+    } else {
+      gather_partial = null;
+    }
+    Arrays.fill(gather_bufs, 0, n, null);
+    Arrays.fill(gather_reqs, 0, n, null);
+    return done;
+  }
+
+  protected boolean tryWriteFileRegion(ATcpFileRegionWriteRequest req) throws SinkClosedException {
+    FileRegionElement region = req.region;
+    if (cur_region_req != req) {
+      cur_region_req = req;
+      cur_region_pos = 0;
+    }
+    long tryLen = region.count - cur_region_pos;
+    if (MAX_WRITE_LEN != -1) tryLen = Math.min(tryLen, MAX_WRITE_LEN);
+    try {
+      // Uses sendfile() where the platform supports it
+      long len = region.channel.transferTo(region.position + cur_region_pos, tryLen, nbsock.getChannel());
+      if (DEBUG) System.err.println("SockState: tryWriteFileRegion() of "+tryLen+" bytes wrote "+len);
+      if ((len == 0) && (region.position + cur_region_pos >= region.channel.size())) {
+	throw new IOException("file region extends past end of file");
+      }
+      cur_region_pos += len;
+    } catch (IOException ioe) {
+      // Can't send the rest of the region, so the stream is now corrupt
+      this.close(null);
+      throw new SinkClosedException("tryWriteFileRegion got exception doing write: "+ioe.getMessage());
+    }
+    if (cur_region_pos == region.count) {
+      if (DEBUG) System.err.println("SockState: tryWriteFileRegion() completed write of "+region.count+" bytes");
+      cur_region_req = null;
+      return true;
+    }
+    return false;
+  }
+
   protected void writeMaskEnable() {
     numActiveWriteSockets++;
-    wselkey.interestOps(wselkey.interestOps() | SelectionKey.OP_WRITE);
+    write_selsource.addInterest(wselkey, SelectionKey.OP_WRITE);
   }
 
   protected void writeMaskDisable() {
     numActiveWriteSockets--;
-    wselkey.interestOps(wselkey.interestOps() & ~SelectionKey.OP_WRITE);
+    write_selsource.removeInterest(wselkey, SelectionKey.OP_WRITE);
   }
 
   // XXX This is synchronized to avoid close() interfering with
@@ -271,18 +392,26 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
     if (closed) return;
 
     closed = true;
+    loopClosed();
 
     if (DEBUG) System.err.println("SockState.close(): Deregistering with selsources");
     if (read_selsource != null) read_selsource.deregister(rselkey);
-    if (write_selsource != null) write_selsource.deregister(rselkey);
+    if (write_selsource != null) write_selsource.deregister(wselkey);
     if (DEBUG) System.err.println("SockState.close(): done deregistering with selsources");
     // Eliminate write queue
 
     // XXX XXX XXX MDW: This introduces a race condition with 
     // addWriteRequest() -- need to serialize close() with other
     // queue operations on the socket.
+    abortFileRegions();
     writeReqList = null;
 
+    // Return a pooled buffer held by a packet we could not deliver
+    if (clogged_qel instanceof ATcpInPacket) {
+      ((ATcpInPacket)clogged_qel).release();
+      clogged_qel = null;
+    }
+
     try {
       if (DEBUG) System.err.println("SockState.close(): doing close ["+nbsock+"]");
       nbsock.close();
@@ -51,6 +51,21 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
   private SinkIF compQ;
   private httpPacketReader hpr;
 
+  // Responses are sent in the order their requests arrived; responses
+  // which are ready early wait here, keyed by request sequence number
+  private int nextResponseSeq = 0;
+  private Hashtable pendingResponses;
+  private boolean closing = false;
+
+  // Time the oldest unanswered request started waiting for its
+  // response; used by httpServer to bound head-of-line blocking
+  private long headSince;
+
+  // Time of the last request or response, and the pending idle check;
+  // maintained by httpServer
+  volatile long lastActivity;
+  ssTimer.ssTimerEvent idleTimer;
+
   /** 
    * Can be used by applications to associate an arbitrary data object 
    * with this connection.
@@ -66,6 +81,8 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
     this.hs = hs;
     this.compQ = compQ;
     this.hpr = new httpPacketReader(this, compQ);
+    this.lastActivity = System.currentTimeMillis();
+    this.headSince = lastActivity;
 
     // Push myself to user
     compQ.enqueue_lossy(this);
@@ -75,9 +92,42 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
    * Package-internal: Parse the data contained in the given TCP packet.
    */
   void parsePacket(ATcpInPacket pkt) throws IOException {
+    lastActivity = System.currentTimeMillis();
+    synchronized (this) {
+      // A request arriving on a connection with nothing outstanding
+      // becomes the head of the response order
+      if (!hasOutstandingRequests()) headSince = lastActivity;
+    }
     hpr.parsePacket(pkt);
   }
 
+  /**
+   * Package-internal: Returns true if some request received on this
+   * connection has not yet been answered.
+   */
+  synchronized boolean hasOutstandingRequests() {
+    return nextResponseSeq < hpr.numRequests();
+  }
+
+  /**
+   * Package-internal: Called by httpServer when the peer has closed
+   * the connection.
+   */
+  void closed() {
+    dropPendingResponses();
+  }
+
+  /**
+   * Package-internal: Returns the time in milliseconds for which the
+   * oldest unanswered request on this connection has been waiting
+   * for its response, or 0 if there is none. Responses to later
+   * requests cannot be sent while it waits.
+   */
+  synchronized long headWait(long now) {
+    if (!hasOutstandingRequests()) return 0;
+    return now - headSince;
+  }
+
   /**
    * Return the ATcpConnection associated with this connection.
    */
@@ -93,14 +143,105 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
 
   /**
    * Enqueue outgoing data on this connection. The 'element' must be
-   * of type httpResponder.
+   * of type httpResponder. Responses created for an httpRequest are
+   * sent in the order the requests were received, so that pipelined
+   * requests are answered correctly even if they complete out of
+   * order; other responses are sent immediately. If the responder
+   * indicates that the connection should be closed, the connection is
+   * closed once the response has been sent.
    */
   public void enqueue(QueueElementIF element) throws SinkException {
     if (DEBUG) System.err.println("httpConnection.enqueue: "+element);
     httpResponder resp = (httpResponder)element;
+    httpRequest req = resp.getRequest();
+
+    synchronized (this) {
+      if (closing) throw new SinkClosedException("httpConnection closed");
+
+      if (req == null || req.getConnection() != this) {
+	// Not tied to a request; count it as answering the oldest one
+	send(resp);
+	if (nextResponseSeq < hpr.numRequests()) advance();
+      } else if (req.seqNum < nextResponseSeq) {
+	// Further data for a request already answered
+	send(resp);
+	return;
+      } else if (req.seqNum > nextResponseSeq) {
+	if (pendingResponses == null) pendingResponses = new Hashtable();
+	pendingResponses.put(new Integer(req.seqNum), resp);
+	return;
+      } else {
+	send(resp);
+	advance();
+      }
+
+      // Flush responses that were waiting on this one
+      while (!closing && pendingResponses != null && !pendingResponses.isEmpty()) {
+	resp = (httpResponder)pendingResponses.remove(new Integer(nextResponseSeq));
+	if (resp == null) break;
+	send(resp);
+	advance();
+      }
+    }
+  }
+
+  // The head request has been answered; the next one starts waiting
+  private void advance() {
+    nextResponseSeq++;
+    headSince = System.currentTimeMillis();
+  }
+
+  // Push the response to the socket; called with the lock held
+  private void send(httpResponder resp) throws SinkException {
     httpResponse packet = resp.getResponse();
-    BufferElement bufarr[] = packet.getBuffers(resp.sendHeader());
-    tcpconn.enqueue_many(bufarr);
+    BufferElement bufarr[] = packet.getBuffers(resp.sendHeader(), extraHeader(resp, packet));
+    if (bufarr != null) tcpconn.enqueue_many(bufarr);
+    FileRegionElement region = packet.getPayloadRegion();
+    if (region != null) tcpconn.enqueue(region);
+    lastActivity = System.currentTimeMillis();
+
+    if (resp.shouldClose()) {
+      // Any responses after this one will never be sent
+      close(compQ);
+    }
+  }
+
+  // Drop the responses waiting to be sent, telling the owners of
+  // their file regions that the connection has closed, as the aSocket
+  // layer does for regions it cannot write
+  private synchronized void dropPendingResponses() {
+    closing = true;
+    if (pendingResponses == null) return;
+    Enumeration e = pendingResponses.elements();
+    while (e.hasMoreElements()) {
+      FileRegionElement region = ((httpResponder)e.nextElement()).getResponse().getPayloadRegion();
+      if ((region != null) && (region.getCompletionQueue() != null)) {
+	region.getCompletionQueue().enqueue_lossy(new SinkClosedEvent(tcpconn));
+      }
+    }
+    pendingResponses = null;
+  }
+
+  // The header lines to add to the response: a Connection header if
+  // the connection policy differs from the default for the request
+  // version, and an explicit zero Content-Length if the connection
+  // stays open, since the end of the response cannot then be signalled
+  // by closing the connection
+  private String extraHeader(httpResponder resp, httpResponse packet) {
+    String extra = null;
+    if (!resp.shouldClose() && packet.contentLength == 0) {
+      extra = "Content-Length: 0"+CRLF;
+    }
+    httpRequest req = resp.getRequest();
+    if (req == null) return extra;
+    String conn = null;
+    if (req.getHttpVer() == httpRequest.HTTPVER_11 && resp.shouldClose()) {
+      conn = "Connection: close"+CRLF;
+    } else if (req.getHttpVer() == httpRequest.HTTPVER_10 && !resp.shouldClose()) {
+      conn = "Connection: keep-alive"+CRLF;
+    }
+    if (conn == null) return extra;
+    return (extra == null)?(conn):(extra + conn);
   }
 
   /**
@@ -109,11 +250,8 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
    */
   public boolean enqueue_lossy(QueueElementIF element) {
     if (DEBUG) System.err.println("httpConnection.enqueue_lossy: "+element);
-    httpResponder resp = (httpResponder)element;
-    httpResponse packet = resp.getResponse();
-    BufferElement bufarr[] = packet.getBuffers(resp.sendHeader());
     try {
-      tcpconn.enqueue_many(bufarr);
+      enqueue(element);
     } catch (SinkException se) {
       return false;
     }
@@ -146,6 +284,7 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
     // we re-enqueue onto user compQ as appropriate SinkDrainedEvent!
 
     hs.cleanupConnection(this);
+    dropPendingResponses();
     tcpconn.close(new SimpleSink() {
 	public void enqueue(QueueElementIF qel) throws SinkException {
 	  compQ.enqueue(new SinkClosedEvent(httpConnection.this));
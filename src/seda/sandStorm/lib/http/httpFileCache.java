@@ -0,0 +1,470 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.lib.http;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.core.*;
+import seda.sandStorm.lib.aDisk.*;
+import seda.sandStorm.lib.aSocket.*;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * An httpFileCache is a SandStorm stage which serves static files from
+ * a document root. Applications enqueue httpRequest events onto the
+ * sink returned by getSink(), and the cache sends the response
+ * directly on the request's connection.
+ *
+ * <p>Files are read from disk with AFile and their contents kept in
+ * memory. A hit shares the cached payload and only builds a new
+ * header, from the lines kept by httpHeaderCache, so that each
+ * response carries the current Date.
+ * The cache is bounded by the total number of bytes held, and evicts
+ * the least-recently-used files first; its size is set by
+ * <tt>global.http.fileCache.maxBytes</tt>. Concurrent misses on the
+ * same URL share a single disk read. Files too large to be worth
+ * caching are sent straight from the file to the socket.
+ *
+ * <p>Cached files are not checked for changes; use invalidate() or
+ * clear() when the files under the document root change.
+ *
+ * @author Matt Welsh
+ * @see httpServer
+ * @see httpOKResponse
+ */
+public class httpFileCache implements BatchEventHandlerIF, httpConst {
+
+  private static final boolean DEBUG = false;
+
+  /** The MIME type used for files with an unknown extension. */
+  public static final String DEFAULT_FILE_MIME_TYPE = "application/octet-stream";
+
+  // Appended to URLs which name a directory
+  private static final String INDEX_FILE = "index.html";
+
+  // extension -> MIME type
+  private static Hashtable mimeTypes = new Hashtable();
+
+  static {
+    mimeTypes.put("html", "text/html");
+    mimeTypes.put("htm", "text/html");
+    mimeTypes.put("txt", "text/plain");
+    mimeTypes.put("css", "text/css");
+    mimeTypes.put("js", "application/javascript");
+    mimeTypes.put("xml", "text/xml");
+    mimeTypes.put("gif", "image/gif");
+    mimeTypes.put("jpg", "image/jpeg");
+    mimeTypes.put("jpeg", "image/jpeg");
+    mimeTypes.put("png", "image/png");
+    mimeTypes.put("class", "application/octet-stream");
+  }
+
+  private static int num_caches = 0;
+
+  protected ManagerIF mgr;
+  protected SinkIF mySink;
+  private File docRoot;
+
+  // Capacity in bytes, and the size above which files are not cached
+  private long maxBytes, maxEntryBytes;
+  private long curBytes;
+
+  // URL -> cachedFile, in least-recently-used order
+  private LinkedHashMap cache;
+  // URL -> pendingRead, for files being read from disk
+  private Hashtable pending;
+  // ATcpConnection -> Vector of FileRegionElements being sent on it
+  private Hashtable sending;
+
+  private long hits, misses;
+
+  /**
+   * Create a file cache serving files under the given document root,
+   * with the capacity given by <tt>global.http.fileCache.maxBytes</tt>.
+   */
+  public httpFileCache(ManagerIF mgr, String docRoot) throws Exception {
+    this(mgr, docRoot, mgr.getConfig().getInt("global.http.fileCache.maxBytes"));
+  }
+
+  /**
+   * Create a file cache serving files under the given document root,
+   * holding at most maxBytes bytes of responses. Files larger than
+   * one eighth of the capacity are not cached.
+   */
+  public httpFileCache(ManagerIF mgr, String docRoot, long maxBytes) throws Exception {
+    this.mgr = mgr;
+    this.docRoot = new File(docRoot);
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxBytes / 8;
+    this.cache = new LinkedHashMap(16, 0.75f, true);
+    this.pending = new Hashtable();
+    this.sending = new Hashtable();
+
+    String sname = "httpFileCache "+num_caches+" <"+docRoot+">";
+    this.mySink = mgr.createStage(sname, this, null).getSink();
+    num_caches++;
+  }
+
+  /** 
+   * The Sandstorm stage initialization method.
+   */
+  public void init(ConfigDataIF config) throws Exception {
+    mySink = config.getStage().getSink();
+  }
+
+  /** 
+   * The Sandstorm stage destroy method.
+   */
+  public void destroy() {
+  }
+
+  /**
+   * The main event handler.
+   */
+  public void handleEvent(QueueElementIF qel) {
+    if (DEBUG) System.err.println("httpFileCache got qel: "+qel);
+
+    if (qel instanceof httpRequest) {
+      handleRequest((httpRequest)qel);
+
+    } else if (qel instanceof AFileIOCompleted) {
+      AFileIOCompleted ioc = (AFileIOCompleted)qel;
+      pendingRead pr = (pendingRead)((AFileReadRequest)ioc.getRequest()).getBuffer().userTag;
+      // Completions may arrive on another thread; count them under
+      // the same lock as pending and the waiters
+      boolean complete;
+      synchronized (this) {
+	pr.done += ioc.sizeCompleted;
+	complete = (pr.done == pr.length);
+      }
+      if (complete) readDone(pr, true);
+
+    } else if (qel instanceof AFileEOFReached) {
+      // File was shorter than its stat() claimed
+      AFileEOFReached eof = (AFileEOFReached)qel;
+      pendingRead pr = (pendingRead)((AFileReadRequest)eof.getRequest()).getBuffer().userTag;
+      boolean shortRead;
+      synchronized (this) {
+	shortRead = (pr.done < pr.length);
+      }
+      if (shortRead) readDone(pr, false);
+
+    } else if (qel instanceof AFileIOExceptionOccurred) {
+      AFileIOExceptionOccurred ioe = (AFileIOExceptionOccurred)qel;
+      System.err.println("httpFileCache: Got IOException reading "+ioe.getFile()+": "+ioe.ioe);
+      pendingRead pr = (pendingRead)((AFileReadRequest)ioe.getRequest()).getBuffer().userTag;
+      readDone(pr, false);
+
+    } else if (qel instanceof SinkDrainedEvent) {
+      // An uncached file has been sent
+      SinkDrainedEvent sde = (SinkDrainedEvent)qel;
+      if (sde.element instanceof FileRegionElement) {
+	regionDone(sde.sink, (FileRegionElement)sde.element);
+      }
+
+    } else if (qel instanceof SinkCloggedEvent) {
+      // An uncached file could not be queued for sending
+      SinkCloggedEvent sce = (SinkCloggedEvent)qel;
+      if (sce.element instanceof FileRegionElement) {
+	regionDone(sce.sink, (FileRegionElement)sce.element);
+      }
+
+    } else if (qel instanceof SinkClosedEvent) {
+      // A connection closed before the files sent on it were written;
+      // AFile closes are ignored
+      SinkClosedEvent sce = (SinkClosedEvent)qel;
+      Vector regions;
+      synchronized (sending) {
+	regions = (Vector)sending.remove(sce.sink);
+      }
+      if (regions != null) {
+	for (int i = 0; i < regions.size(); i++) {
+	  closeQuietly((RandomAccessFile)((FileRegionElement)regions.elementAt(i)).userTag);
+	}
+      }
+    }
+  }
+
+  public void handleEvents(QueueElementIF[] qelarr) {
+    handleEvents(qelarr, qelarr.length);
+  }
+
+  public void handleEvents(QueueElementIF[] qelarr, int length) {
+    for (int i = 0; i < length; i++) {
+      handleEvent(qelarr[i]);
+    }
+  }
+
+  private void handleRequest(httpRequest req) {
+    if (req.getRequest() != httpRequest.REQUEST_GET) {
+      respond(req, new httpBadRequestResponse(req, "Only GET requests are supported"));
+      return;
+    }
+    String url = req.getURL();
+    if (url.endsWith("/")) url += INDEX_FILE;
+
+    pendingRead pr;
+    synchronized (this) {
+      cachedFile cf = (cachedFile)cache.get(url);
+      if (cf != null) {
+	hits++;
+	respond(req, new httpOKResponse(cf.contentType, cf.payload));
+	return;
+      }
+      misses++;
+
+      // Join a read already in progress
+      pr = (pendingRead)pending.get(url);
+      if (pr != null) {
+	pr.waiters.addElement(req);
+	return;
+      }
+      pr = new pendingRead(url, req);
+      pending.put(url, pr);
+    }
+
+    File f = resolve(url);
+    if ((f == null) || !f.isFile() || !f.canRead()) {
+      readDone(pr, false);
+      return;
+    }
+
+    long len = f.length();
+    if ((len == 0) || (len > maxEntryBytes)) {
+      // Not worth caching; each request sends straight from the file
+      Vector waiters;
+      synchronized (this) {
+	pending.remove(url);
+	waiters = pr.waiters;
+      }
+      for (int i = 0; i < waiters.size(); i++) {
+	sendFile((httpRequest)waiters.elementAt(i), f, len);
+      }
+      return;
+    }
+
+    try {
+      pr.length = (int)len;
+      pr.file = new cachedFile(getMimeType(url), new BufferElement(pr.length));
+      pr.afile = new AFile(f.getPath(), mySink, false, true);
+      pr.file.payload.userTag = pr;
+      pr.afile.read(pr.file.payload);
+    } catch (Exception e) {
+      System.err.println("httpFileCache: Cannot read "+f+": "+e);
+      readDone(pr, false);
+    }
+  }
+
+  // Complete a read, caching the file on success, and answer
+  // every request waiting on it
+  private void readDone(pendingRead pr, boolean success) {
+    if (pr.afile != null) pr.afile.close();
+    if (pr.file != null) pr.file.payload.userTag = null;
+
+    Vector waiters;
+    synchronized (this) {
+      pending.remove(pr.url);
+      waiters = pr.waiters;
+      if (success) insert(pr.url, pr.file);
+    }
+
+    for (int i = 0; i < waiters.size(); i++) {
+      httpRequest req = (httpRequest)waiters.elementAt(i);
+      if (success) {
+	respond(req, new httpOKResponse(pr.file.contentType, pr.file.payload));
+      } else {
+	respond(req, new httpNotFoundResponse(req, "File not found"));
+      }
+    }
+  }
+
+  // Add a file to the cache, evicting others to make room;
+  // called with the lock held
+  private void insert(String url, cachedFile cf) {
+    Iterator it = cache.entrySet().iterator();
+    while ((curBytes + cf.payload.size > maxBytes) && it.hasNext()) {
+      Map.Entry ent = (Map.Entry)it.next();
+      curBytes -= ((cachedFile)ent.getValue()).payload.size;
+      it.remove();
+      if (DEBUG) System.err.println("httpFileCache: evicted "+ent.getKey());
+    }
+    cache.put(url, cf);
+    curBytes += cf.payload.size;
+  }
+
+  // Send a file straight to the socket; the file is closed once the
+  // region has been written, or when the connection closes first
+  private void sendFile(httpRequest req, File f, long len) {
+    RandomAccessFile raf;
+    try {
+      raf = new RandomAccessFile(f, "r");
+    } catch (IOException ioe) {
+      respond(req, new httpNotFoundResponse(req, "File not found"));
+      return;
+    }
+    FileRegionElement region = new FileRegionElement(raf.getChannel(), 0, len, mySink);
+    region.userTag = raf;
+
+    ATcpConnection conn = req.getConnection().getConnection();
+    Vector regions;
+    synchronized (sending) {
+      regions = (Vector)sending.get(conn);
+      if (regions == null) {
+	regions = new Vector(1);
+	sending.put(conn, regions);
+      }
+      regions.addElement(region);
+    }
+    if (!respond(req, new httpOKResponse(getMimeType(f.getName()), region))) {
+      regionDone(conn, region);
+    }
+  }
+
+  // Release the file of a region which has been sent, or will never be
+  private void regionDone(SinkIF conn, FileRegionElement region) {
+    synchronized (sending) {
+      Vector regions = (Vector)sending.get(conn);
+      if (regions != null) {
+	regions.removeElement(region);
+	if (regions.isEmpty()) sending.remove(conn);
+      }
+    }
+    closeQuietly((RandomAccessFile)region.userTag);
+  }
+
+  private boolean respond(httpRequest req, httpResponse resp) {
+    return req.getConnection().enqueue_lossy(new httpResponder(resp, req));
+  }
+
+  // Map a URL to a file under the document root, or return null if it
+  // would fall outside of it
+  private File resolve(String url) {
+    if (url.indexOf("..") != -1) return null;
+    return new File(docRoot, url);
+  }
+
+  private static void closeQuietly(RandomAccessFile raf) {
+    if (raf == null) return;
+    try {
+      raf.close();
+    } catch (IOException ioe) {
+      // Ignore
+    }
+  }
+
+  /**
+   * Return the MIME type for the given file name, based on its
+   * extension.
+   */
+  public static String getMimeType(String name) {
+    int dot = name.lastIndexOf('.');
+    if (dot != -1) {
+      String type = (String)mimeTypes.get(name.substring(dot+1).toLowerCase());
+      if (type != null) return type;
+    }
+    return DEFAULT_FILE_MIME_TYPE;
+  }
+
+  /**
+   * Set the MIME type returned for files with the given extension.
+   */
+  public static void setMimeType(String extension, String type) {
+    mimeTypes.put(extension.toLowerCase(), type);
+  }
+
+  /**
+   * Return the sink onto which httpRequests to be served from this
+   * cache should be enqueued.
+   */
+  public SinkIF getSink() {
+    return mySink;
+  }
+
+  /**
+   * Remove the file with the given URL from the cache.
+   */
+  public synchronized void invalidate(String url) {
+    if (url.endsWith("/")) url += INDEX_FILE;
+    cachedFile cf = (cachedFile)cache.remove(url);
+    if (cf != null) curBytes -= cf.payload.size;
+  }
+
+  /**
+   * Remove all files from the cache.
+   */
+  public synchronized void clear() {
+    cache.clear();
+    curBytes = 0;
+  }
+
+  /**
+   * Return the number of bytes of file data held in the cache.
+   */
+  public synchronized long size() {
+    return curBytes;
+  }
+
+  /**
+   * Return the fraction of requests served from the cache.
+   */
+  public synchronized double getHitRate() {
+    if (hits + misses == 0) return 0.0;
+    return (double)hits / (hits + misses);
+  }
+
+  public String toString() {
+    return "httpFileCache [docRoot="+docRoot+", size="+curBytes+"/"+maxBytes+"]";
+  }
+
+  // The contents of a cached file; the payload is shared by every
+  // response sent from it and is never modified
+  private static class cachedFile {
+    String contentType;
+    BufferElement payload;
+
+    cachedFile(String contentType, BufferElement payload) {
+      this.contentType = contentType;
+      this.payload = payload;
+    }
+  }
+
+  // A file being read from disk, with the requests waiting on it
+  private static class pendingRead {
+    String url;
+    Vector waiters;
+    cachedFile file;
+    AFile afile;
+    int length;
+    int done;  // Bytes read so far; guarded by the cache lock
+
+    pendingRead(String url, httpRequest first) {
+      this.url = url;
+      this.waiters = new Vector(1);
+      waiters.addElement(first);
+    }
+  }
+
+}
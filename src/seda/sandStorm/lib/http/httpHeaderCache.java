@@ -0,0 +1,220 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.lib.http;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.text.*;
+
+/**
+ * Package-internal: Builds HTTP response headers from preencoded byte
+ * templates. Status lines, the default header, Content-Type lines and
+ * the Date header are kept as bytes, so a header is assembled by
+ * copying a handful of arrays into a buffer of exactly the right size.
+ * The Date header is refreshed once a second by a daemon thread, which
+ * keeps clock reads off the response path.
+ *
+ * @author Matt Welsh
+ * @see httpResponse
+ */
+final class httpHeaderCache implements httpConst {
+
+  private static final boolean DEBUG = false;
+
+  // Beyond this many distinct content types, lines are encoded per call
+  private static final int MAX_CONTENT_TYPES = 256;
+
+  private static final byte STATUS_OK[] = 
+    encode(HTTP_VERSION+" 200 OK"+CRLF);
+  private static final byte STATUS_REDIRECT[] = 
+    encode(HTTP_VERSION+" 301 MOVED PERMANENTLY"+CRLF);
+  private static final byte STATUS_BAD_REQUEST[] = 
+    encode(HTTP_VERSION+" 400 BAD REQUEST"+CRLF);
+  private static final byte STATUS_NOT_FOUND[] = 
+    encode(HTTP_VERSION+" 404 NOT FOUND"+CRLF);
+  private static final byte STATUS_INTERNAL_SERVER_ERROR[] = 
+    encode(HTTP_VERSION+" 500 INTERNAL SERVER ERROR"+CRLF);
+  private static final byte STATUS_SERVICE_UNAVAILABLE[] = 
+    encode(HTTP_VERSION+" 503 SERVICE UNAVAILABLE"+CRLF);
+
+  private static final byte CONTENT_LENGTH[] = encode("Content-Length: ");
+  private static final byte CRLF_BYTES[] = encode(CRLF);
+
+  // String -> byte[] "Content-Type: <type>\r\n"
+  private static ConcurrentHashMap contentTypes = new ConcurrentHashMap();
+
+  // Immutable pairs, replaced as a whole when out of date
+  private static class encodedString {
+    final String str;
+    final byte bytes[];
+    encodedString(String str, byte bytes[]) {
+      this.str = str;
+      this.bytes = bytes;
+    }
+  }
+
+  private static volatile encodedString defaultHeader = new encodedString(null, null);
+  private static volatile byte dateLine[];
+  private static SimpleDateFormat dateFormat;
+
+  static {
+    dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    updateDate(System.currentTimeMillis());
+
+    Thread t = new Thread("httpHeaderCache date") {
+      public void run() {
+	while (true) {
+	  long now = System.currentTimeMillis();
+	  try {
+	    // Wake just after the next second boundary
+	    Thread.sleep(1000 - (now % 1000) + 1);
+	  } catch (InterruptedException ie) {
+	    // Ignore
+	  }
+	  updateDate(System.currentTimeMillis());
+	}
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private httpHeaderCache() {
+  }
+
+  /**
+   * Build a response header. The returned array holds the header
+   * followed by 'trailing' unused bytes, which callers can use to
+   * place the payload in the same buffer as the header.
+   *
+   * @param code The response code, one of httpResponse.RESPONSE_*.
+   * @param defhdr The default header lines, CRLF-terminated, or null.
+   * @param contentType The MIME type, or null.
+   * @param contentLength The Content-Length; omitted if 0.
+   * @param ehdr The entity header lines, CRLF-terminated, or null.
+   * @param trailing Extra space to allocate after the header.
+   */
+  static byte[] build(int code, String defhdr, String contentType, 
+      int contentLength, String ehdr, int trailing) {
+    byte status[] = statusLine(code);
+    byte def[] = (defhdr == null)?(null):(defaultHeaderBytes(defhdr));
+    byte ctype[] = (contentType == null)?(null):(contentTypeLine(contentType));
+    byte dline[] = dateLine;
+    byte ent[] = (ehdr == null)?(null):(encode(ehdr));
+    int clDigits = (contentLength != 0)?(numDigits(contentLength)):(0);
+
+    int len = status.length + dline.length + CRLF_BYTES.length;
+    if (def != null) len += def.length;
+    if (ctype != null) len += ctype.length;
+    if (clDigits != 0) len += CONTENT_LENGTH.length + clDigits + CRLF_BYTES.length;
+    if (ent != null) len += ent.length;
+
+    byte hdr[] = new byte[len + trailing];
+    int off = copy(status, hdr, 0);
+    if (def != null) off = copy(def, hdr, off);
+    off = copy(dline, hdr, off);
+    if (ctype != null) off = copy(ctype, hdr, off);
+    if (clDigits != 0) {
+      off = copy(CONTENT_LENGTH, hdr, off);
+      int n = contentLength;
+      for (int i = off + clDigits - 1; i >= off; i--) {
+	hdr[i] = (byte)('0' + (n % 10));
+	n /= 10;
+      }
+      off += clDigits;
+      off = copy(CRLF_BYTES, hdr, off);
+    }
+    if (ent != null) off = copy(ent, hdr, off);
+    copy(CRLF_BYTES, hdr, off);
+    return hdr;
+  }
+
+  private static byte[] statusLine(int code) {
+    switch (code) {
+      case httpResponse.RESPONSE_OK: return STATUS_OK;
+      case httpResponse.RESPONSE_REDIRECT: return STATUS_REDIRECT;
+      case httpResponse.RESPONSE_BAD_REQUEST: return STATUS_BAD_REQUEST;
+      case httpResponse.RESPONSE_NOT_FOUND: return STATUS_NOT_FOUND;
+      case httpResponse.RESPONSE_INTERNAL_SERVER_ERROR: 
+	return STATUS_INTERNAL_SERVER_ERROR;
+      case httpResponse.RESPONSE_SERVICE_UNAVAILABLE: 
+	return STATUS_SERVICE_UNAVAILABLE;
+      default: 
+	throw new Error("Bad code in httpResponse: "+code);
+    }
+  }
+
+  private static byte[] defaultHeaderBytes(String defhdr) {
+    encodedString cur = defaultHeader;
+    if (cur.str != defhdr) {
+      cur = new encodedString(defhdr, encode(defhdr));
+      defaultHeader = cur;
+    }
+    return cur.bytes;
+  }
+
+  private static byte[] contentTypeLine(String contentType) {
+    byte line[] = (byte[])contentTypes.get(contentType);
+    if (line == null) {
+      line = encode("Content-Type: "+contentType+CRLF);
+      if (contentTypes.size() < MAX_CONTENT_TYPES) {
+	contentTypes.put(contentType, line);
+      }
+    }
+    return line;
+  }
+
+  private static void updateDate(long now) {
+    String s = "Date: "+dateFormat.format(new Date(now))+CRLF;
+    dateLine = encode(s);
+    if (DEBUG) System.err.println("httpHeaderCache: new date line "+s);
+  }
+
+  private static int numDigits(int n) {
+    int d = 1;
+    while (n >= 10) {
+      n /= 10;
+      d++;
+    }
+    return d;
+  }
+
+  private static int copy(byte src[], byte dst[], int off) {
+    System.arraycopy(src, 0, dst, off, src.length);
+    return off + src.length;
+  }
+
+  // Headers are ISO-8859-1
+  static byte[] encode(String s) {
+    int len = s.length();
+    byte b[] = new byte[len];
+    for (int i = 0; i < len; i++) {
+      b[i] = (byte)s.charAt(i);
+    }
+    return b;
+  }
+
+}
@@ -0,0 +1,182 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+package seda.sandStorm.lib.http;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.core.*;
+import seda.sandStorm.internal.EventTracer;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * An httpMetricsServer is a SandStorm stage which serves the contents
+ * of the system's MetricsRegistryIF over HTTP. It runs its own
+ * httpServer on the given port, and answers GET requests for
+ * <tt>/metrics</tt> with the Prometheus text format and for
+ * <tt>/metrics.json</tt> with JSON. The metrics are read when each
+ * request arrives. If event tracing is enabled, the spans recorded by
+ * the EventTracer are served at <tt>/trace.json</tt> in the Chrome
+ * trace-event format.
+ *
+ * <p>The Sandstorm manager starts one of these when
+ * <tt>global.metrics.http.enable</tt> is set, listening on
+ * <tt>global.metrics.http.port</tt> of the address given by
+ * <tt>global.metrics.bindAddress</tt>. That defaults to the loopback
+ * address, so the metrics are not exposed to other hosts unless it is
+ * changed (to 0.0.0.0 for all addresses, for example).
+ *
+ * @author Matt Welsh
+ * @see MetricsRegistryIF
+ * @see httpServer
+ */
+public class httpMetricsServer implements EventHandlerIF, httpConst {
+
+  private static final boolean DEBUG = false;
+
+  /** The URL at which metrics are served in the Prometheus text format. */
+  public static final String PROMETHEUS_URL = "/metrics";
+  /** The URL at which metrics are served as JSON. */
+  public static final String JSON_URL = "/metrics.json";
+  /** The URL at which event traces are served. */
+  public static final String TRACE_URL = "/trace.json";
+
+  private static final String PROMETHEUS_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  private static final String JSON_TYPE = "application/json";
+
+  protected ManagerIF mgr;
+  protected SinkIF mySink;
+  private MetricsRegistryIF metrics;
+  private httpServer server;
+  private int listenPort;
+
+  /**
+   * Create a metrics server listening for HTTP connections on the
+   * given port of the address given by <tt>global.metrics.bindAddress</tt>.
+   */
+  public httpMetricsServer(ManagerIF mgr, int listenPort) throws Exception {
+    this(mgr, listenPort, InetAddress.getByName(mgr.getConfig().getString("global.metrics.bindAddress")));
+  }
+
+  /**
+   * Create a metrics server listening for HTTP connections on the
+   * given port of the given local address.
+   */
+  public httpMetricsServer(ManagerIF mgr, int listenPort, InetAddress bindAddr) throws Exception {
+    this.mgr = mgr;
+    this.metrics = mgr.getMetrics();
+    this.listenPort = listenPort;
+
+    String sname = "httpMetricsServer <port "+listenPort+">";
+    this.mySink = mgr.createStage(sname, this, null).getSink();
+    this.server = new httpServer(mgr, mySink, listenPort, bindAddr);
+  }
+
+  /** 
+   * The Sandstorm stage initialization method.
+   */
+  public void init(ConfigDataIF config) throws Exception {
+    mySink = config.getStage().getSink();
+  }
+
+  /** 
+   * The Sandstorm stage destroy method.
+   */
+  public void destroy() {
+  }
+
+  /**
+   * The main event handler.
+   */
+  public void handleEvent(QueueElementIF qel) {
+    if (DEBUG) System.err.println("httpMetricsServer got qel: "+qel);
+
+    if (qel instanceof httpRequest) {
+      handleRequest((httpRequest)qel);
+    }
+    // httpConnection and SinkClosedEvent need no action
+  }
+
+  public void handleEvents(QueueElementIF[] qelarr) {
+    for (int i = 0; i < qelarr.length; i++) {
+      handleEvent(qelarr[i]);
+    }
+  }
+
+  private void handleRequest(httpRequest req) {
+    if (req.getRequest() != httpRequest.REQUEST_GET) {
+      respond(req, new httpBadRequestResponse(req, "Only GET requests are supported"));
+      return;
+    }
+    String url = req.getURL();
+    int q = url.indexOf('?');
+    if (q != -1) url = url.substring(0, q);
+
+    String body, type;
+    if (url.equals(PROMETHEUS_URL)) {
+      body = metrics.toPrometheusText();
+      type = PROMETHEUS_TYPE;
+    } else if (url.equals(JSON_URL)) {
+      body = metrics.toJSON();
+      type = JSON_TYPE;
+    } else if (url.equals(TRACE_URL) && (mgr.getProfiler().getTracer() != null)) {
+      StringWriter sw = new StringWriter();
+      try {
+	mgr.getProfiler().getTracer().writeChromeTrace(sw);
+      } catch (IOException e) {
+	// Cannot happen with a StringWriter
+      }
+      body = sw.toString();
+      type = JSON_TYPE;
+    } else {
+      respond(req, new httpNotFoundResponse(req, "Metrics are served at "+PROMETHEUS_URL+" and "+JSON_URL));
+      return;
+    }
+
+    byte data[];
+    try {
+      data = body.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      data = body.getBytes();
+    }
+    respond(req, new httpOKResponse(type, new BufferElement(data)));
+  }
+
+  private void respond(httpRequest req, httpResponse resp) {
+    req.getConnection().enqueue_lossy(new httpResponder(resp, req));
+  }
+
+  /**
+   * Return the port on which this server listens.
+   */
+  public int getPort() {
+    return listenPort;
+  }
+
+  public String toString() {
+    return "httpMetricsServer <port "+listenPort+">";
+  }
+
+}
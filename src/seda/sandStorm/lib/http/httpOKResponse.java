@@ -59,6 +59,15 @@ public class httpOKResponse extends httpResponse implements httpConst, QueueElem
     super(httpResponse.RESPONSE_OK, contentType, payload, contentLength);
   }
 
+  /**
+   * Create an httpOKResponse whose payload is the given region of a
+   * file, using the given MIME content-type. The region is sent straight
+   * from the file to the socket.
+   */
+  public httpOKResponse(String contentType, FileRegionElement payloadRegion) {
+    super(httpResponse.RESPONSE_OK, contentType, payloadRegion);
+  }
+
   /**
    * Create an httpOKResponse with a given response payload size and
    * MIME type.
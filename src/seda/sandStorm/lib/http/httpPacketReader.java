@@ -25,11 +25,9 @@
 package seda.sandStorm.lib.http;
 
 import seda.sandStorm.api.*;
+import seda.sandStorm.core.*;
 import seda.sandStorm.lib.aSocket.*;
-import seda.sandStorm.lib.util.*;
-import java.util.*;
 import java.io.*;
-import java.net.*;
 
 /**
  * This is a package-internal class which reads HTTP request packets.
@@ -37,6 +35,11 @@ import java.net.*;
  * <tt>parsePacket</tt> method). When a complete packet has been
  * read, an httpRequest is pushed to the corresponding SinkIF.
  * This is the bulk of the HTTP protocol implementation.
+ *
+ * <p>The request head is parsed by a byte-level state machine which
+ * resumes where it left off when a request spans several packets.
+ * Header names and values are recorded as offsets into the received
+ * bytes; no Strings are created until the httpRequest is queried.
  * 
  * @author Matt Welsh
  */
@@ -44,21 +47,52 @@ class httpPacketReader implements httpConst {
 
   private static final boolean DEBUG = false;
 
-  private static final int STATE_START = 0;
-  private static final int STATE_HEADER = 1;
-  private static final int STATE_DONE = 2;
-
-  private int state;
-  private aSocketInputStream ais;
-  private StreamTokenizer tok;
+  /** The largest request head (request line and headers) accepted. */
+  private static final int MAX_HEADER_SIZE = 65536;
+  private static final int INITIAL_BUFFER_SIZE = 2048;
+  private static final int INITIAL_NUM_HEADERS = 16;
+
+  // Parser states
+  private static final int STATE_METHOD = 0;
+  private static final int STATE_URL = 1;
+  private static final int STATE_VERSION = 2;
+  private static final int STATE_REQLINE_LF = 3;
+  private static final int STATE_HEADER_START = 4;
+  private static final int STATE_HEADER_NAME = 5;
+  private static final int STATE_VALUE_START = 6;
+  private static final int STATE_VALUE = 7;
+  private static final int STATE_HEADER_LF = 8;
+  private static final int STATE_END_LF = 9;
+  private static final int STATE_BODY = 10;
+
+  private static final byte CONTENT_LENGTH[] = { 'c','o','n','t','e','n','t','-','l','e','n','g','t','h' };
+  private static final byte CONNECTION[] = { 'c','o','n','n','e','c','t','i','o','n' };
+  private static final byte TRANSFER_ENCODING[] = { 't','r','a','n','s','f','e','r','-','e','n','c','o','d','i','n','g' };
+  // Longer Content-Length values could overflow a long
+  private static final int MAX_CONTENT_LENGTH_DIGITS = 18;
+  private static final byte CLOSE[] = { 'c','l','o','s','e' };
+  private static final byte KEEP_ALIVE[] = { 'k','e','e','p','-','a','l','i','v','e' };
 
-  private String request;
-  private String url;
-  private int httpver;
-  private Vector header;
   private httpConnection conn;
   private SinkIF compQ;
 
+  // Received bytes not yet consumed. The request being parsed starts
+  // at buf[start]; the scan has reached buf[pos]; data ends at buf[limit].
+  // All recorded offsets are relative to start.
+  private byte buf[];
+  private int start, pos, limit;
+
+  private int state;
+  private int methodEnd;
+  private int urlStart, urlEnd;
+  private int verStart, verEnd;
+  // Four offsets per header: name start, name end, value start, value end
+  private int headers[];
+  private int numHeaders;
+  private long bodyRemaining;
+  // Sequence number of the next request on this connection
+  private int nextSeqNum = 0;
+
   /**
    * Create an httpPacketReader with the given httpConnection
    * and completion queue.
@@ -66,197 +100,421 @@ class httpPacketReader implements httpConst {
   httpPacketReader(httpConnection conn, SinkIF compQ) {
     this.conn = conn;
     this.compQ = compQ;
-    this.ais = new aSocketInputStream();
+    this.buf = new byte[INITIAL_BUFFER_SIZE];
+    this.headers = new int[INITIAL_NUM_HEADERS * 4];
     reset();
   }
 
   /**
-   * Parse the given packet; returns true if a complete HTTP
-   * request has been received and parsed.
+   * Parse the given packet; returns true if at least one complete
+   * HTTP request has been received and parsed.
    */
   boolean parsePacket(ATcpInPacket pkt) throws IOException {
-    if (DEBUG) System.err.println("GPR: pushPacket called, size "+pkt.getBytes().length);
-    ais.addPacket(pkt);
-
-    int origstate;
-
-    do {
-      origstate = state;
-
-      switch (state) {
-	case STATE_START:
-	  state = parseURL();
-	  break;
-
-	case STATE_HEADER:
-	  state = accumulateHeader();
-	  break;
-
-	case STATE_DONE:
-	  processHeader();
-	  reset();
-	  return true;
-
-	default:
-	  throw new Error("Bad state in pushPacket");
+    if (DEBUG) System.err.println("httpPacketReader: parsePacket called, size "+pkt.size());
+    append(pkt);
+
+    boolean gotRequest = false;
+    try {
+      while (true) {
+	if (state == STATE_BODY) {
+	  // Request bodies are not passed to the user; skip them
+	  int n = (int)Math.min(bodyRemaining, (long)(limit - pos));
+	  pos += n;
+	  start = pos;
+	  bodyRemaining -= n;
+	  if (bodyRemaining > 0) break;
+	  state = STATE_METHOD;
+	}
+	if (!parseHead()) break;
+	processHeader();
+	gotRequest = true;
       }
+    } catch (IOException ioe) {
+      // The stream cannot be resynchronized; drop what we have
+      reset();
+      throw ioe;
+    }
 
-    } while (state != origstate);
+    if (start == limit) {
+      start = pos = limit = 0;
+    }
+    return gotRequest;
+  }
 
-    return false;
+  /**
+   * Return the number of requests parsed so far.
+   */
+  int numRequests() {
+    return nextSeqNum;
   }
 
   /**
    * Reset the internal state of the packet reader.
    */
   private void reset() {
-    state = STATE_START;
-    ais.clear();
-    tok = new StreamTokenizer(ais);
-    tok.resetSyntax();
-    tok.wordChars((char)0, (char)255);
-    tok.whitespaceChars('\u0000', '\u0020');
-    tok.eolIsSignificant(true);
-    request = null;
-    url = null;
-    header = null;
-    httpver = 0;
+    start = pos = limit = 0;
+    resetHead();
+  }
+
+  private void resetHead() {
+    state = STATE_METHOD;
+    methodEnd = urlStart = urlEnd = -1;
+    verStart = verEnd = -1;
+    numHeaders = 0;
+    bodyRemaining = 0;
   }
 
   /**
-   * Parse the first line of the request header.
+   * Copy the packet contents into the receive buffer and release it.
    */
-  private int parseURL() throws IOException {
-    ais.mark(0);
-    String req = nextWord();
-    url = nextWord();
-    String ver = nextWord();
-    if ((req == null) || (url == null) || (ver == null)) {
-      ais.reset();
-      return STATE_START;
-    } else {
-      request = req;
-      if (ver.equals("HTTP/1.0")) {
-	httpver = httpRequest.HTTPVER_10;
-        String tmp = nextWord(); // Throw away EOL
-	return STATE_HEADER;
-      } else if (ver.equals("HTTP/1.1")) {
-	httpver = httpRequest.HTTPVER_11;
-        String tmp = nextWord(); // Throw away EOL
-	return STATE_HEADER;
-      } else {
-	if (!ver.equals(CRLF)) {
-	  throw new IOException("Unknown HTTP version in request: "+httpver);
-	}
-	httpver = httpRequest.HTTPVER_09;
-        return STATE_DONE;
+  private void append(ATcpInPacket pkt) {
+    BufferElement be = pkt.getBufferElement();
+    int n = be.size;
+    if (limit + n > buf.length) {
+      // Move the unconsumed bytes to the front, growing if needed
+      int used = limit - start;
+      byte dst[] = buf;
+      if (used + n > buf.length) {
+	int newlen = buf.length * 2;
+	while (newlen < used + n) newlen *= 2;
+	dst = new byte[newlen];
       }
+      System.arraycopy(buf, start, dst, 0, used);
+      buf = dst;
+      pos -= start;
+      limit = used;
+      start = 0;
+    }
+    if (be.isPooled()) {
+      be.getReadOnlyBuffer().get(buf, limit, n);
+      pkt.release();
+    } else {
+      System.arraycopy(be.data, be.offset, buf, limit, n);
     }
+    limit += n;
   }
 
   /**
-   * Accumulate header lines.
+   * Scan forward from pos. Returns true when a complete request head
+   * occupies buf[start, pos).
    */
-  private int accumulateHeader() throws IOException {
+  private boolean parseHead() throws IOException {
+    while (pos < limit) {
+      byte b = buf[pos];
+      int off = pos - start;
 
-    String line;
+      switch (state) {
+	case STATE_METHOD:
+	  if (b == ' ') {
+	    if (off == 0) throw new IOException("Bad HTTP request line");
+	    methodEnd = off;
+	    urlStart = off + 1;
+	    state = STATE_URL;
+	  } else if (b == '\r' || b == '\n') {
+	    if (off != 0) throw new IOException("Bad HTTP request line");
+	    // Ignore blank lines preceding a request
+	    start++;
+	  } else if (b < ' ') {
+	    throw new IOException("Bad HTTP request line");
+	  }
+	  break;
 
-    do {
-      line = nextLine();
-      if (DEBUG) System.err.println("hpr: accumulateHeader() read line "+line);
+	case STATE_URL:
+	  if (b == ' ') {
+	    if (off == urlStart) {
+	      urlStart++;
+	    } else {
+	      urlEnd = off;
+	      verStart = off + 1;
+	      state = STATE_VERSION;
+	    }
+	  } else if (b == '\r' || b == '\n') {
+	    // HTTP/0.9 request: no version, no header
+	    if (off == urlStart) throw new IOException("Bad HTTP request line");
+	    urlEnd = off;
+	    if (b == '\n') {
+	      pos++;
+	      return true;
+	    }
+	    state = STATE_REQLINE_LF;
+	  }
+	  break;
 
-      if (line == null) {
-	// End of buffer
-	return STATE_HEADER;
-      } else if (!line.equals("")) {
-	if (header == null) header = new Vector(1);
-	header.addElement(line);
-      }
+	case STATE_VERSION:
+	  if (b == ' ') {
+	    if (off == verStart) verStart++;
+	    else if (verEnd == -1) verEnd = off;
+	  } else if (b == '\r' || b == '\n') {
+	    if (verEnd == -1) verEnd = off;
+	    if (verEnd == verStart) {
+	      // Trailing space after the URL; treat as HTTP/0.9
+	      verStart = verEnd = -1;
+	    }
+	    if (b == '\r') {
+	      state = STATE_REQLINE_LF;
+	    } else if (verStart == -1) {
+	      pos++;
+	      return true;
+	    } else {
+	      state = STATE_HEADER_START;
+	    }
+	  }
+	  break;
 
-    } while (!line.equals(""));
-    return STATE_DONE;
-  }
+	case STATE_REQLINE_LF:
+	  if (b != '\n') throw new IOException("Bad HTTP request line");
+	  if (verStart == -1) {
+	    pos++;
+	    return true;
+	  }
+	  state = STATE_HEADER_START;
+	  break;
 
-  /**
-   * Process the header, possibly pushing an httpRequest to the user.
-   */
-  private void processHeader() throws IOException {
-    httpRequest req = new httpRequest(conn,request,url,httpver,header);
-    if (DEBUG) System.err.println("httpPacketReader: Pushing req to user");
-    if (!compQ.enqueue_lossy(req)) {
-      System.err.println("httpPacketReader: WARNING: Could not enqueue_lossy to user: "+req);
-    }
-  }
+	case STATE_HEADER_START:
+	  if (b == '\r') {
+	    state = STATE_END_LF;
+	  } else if (b == '\n') {
+	    pos++;
+	    return true;
+	  } else if (b == ' ' || b == '\t') {
+	    // Obsolete line folding: continue the previous value, replacing
+	    // the line break with spaces
+	    if (numHeaders == 0) throw new IOException("Bad HTTP header line");
+	    buf[pos - 1] = ' ';
+	    if (buf[pos - 2] == '\r') buf[pos - 2] = ' ';
+	    state = STATE_VALUE;
+	  } else {
+	    if (numHeaders * 4 == headers.length) {
+	      int tmp[] = new int[headers.length * 2];
+	      System.arraycopy(headers, 0, tmp, 0, headers.length);
+	      headers = tmp;
+	    }
+	    headers[numHeaders * 4] = off;
+	    numHeaders++;
+	    state = STATE_HEADER_NAME;
+	  }
+	  break;
 
-  /**
-   * Read the next whitespace-delimited word from the packet.
-   */
-  private String nextWord() throws IOException {
-    while (true) {
-      int type = tok.nextToken();
-      switch (type) {
+	case STATE_HEADER_NAME:
+	  if (b == ':') {
+	    headers[numHeaders * 4 - 3] = off;
+	    state = STATE_VALUE_START;
+	  } else if (b == '\r' || b == '\n') {
+	    throw new IOException("Bad HTTP header line");
+	  }
+	  break;
 
-	case StreamTokenizer.TT_EOL:
-	  return CRLF;
+	case STATE_VALUE_START:
+	  if (b == ' ' || b == '\t') {
+	    break;
+	  }
+	  headers[numHeaders * 4 - 2] = off;
+	  headers[numHeaders * 4 - 1] = off;
+	  if (b == '\r') {
+	    state = STATE_HEADER_LF;
+	  } else if (b == '\n') {
+	    state = STATE_HEADER_START;
+	  } else {
+	    headers[numHeaders * 4 - 1] = off + 1;
+	    state = STATE_VALUE;
+	  }
+	  break;
 
-	case StreamTokenizer.TT_EOF:
-	  return null;
+	case STATE_VALUE:
+	  if (b == '\r') {
+	    state = STATE_HEADER_LF;
+	  } else if (b == '\n') {
+	    state = STATE_HEADER_START;
+	  } else if (b != ' ' && b != '\t') {
+	    headers[numHeaders * 4 - 1] = off + 1;
+	  }
+	  break;
 
-	case StreamTokenizer.TT_WORD:
-	  if (DEBUG) System.err.println("nextWord returning "+tok.sval);
-	  return tok.sval;
+	case STATE_HEADER_LF:
+	  if (b != '\n') throw new IOException("Bad HTTP header line");
+	  state = STATE_HEADER_START;
+	  break;
 
-	case StreamTokenizer.TT_NUMBER:
-	  if (DEBUG) System.err.println("nextWord returning number");
-	  return Double.toString(tok.nval);
+	case STATE_END_LF:
+	  if (b != '\n') throw new IOException("Bad HTTP header");
+	  pos++;
+	  return true;
 
 	default:
-	  continue;
+	  throw new Error("Bad state in parseHead");
       }
+      pos++;
+    }
+
+    if (pos - start > MAX_HEADER_SIZE) {
+      throw new IOException("HTTP request header too large");
     }
+    return false;
   }
 
   /**
-   * Read the next line from the packet.
+   * Process the header, possibly pushing an httpRequest to the user.
    */
-  private String nextLine() throws IOException {
-    String line = new String("");
-    boolean first = true;
+  private void processHeader() throws IOException {
+    int request;
+    if (matches(0, methodEnd, "GET")) {
+      request = httpRequest.REQUEST_GET;
+    } else if (matches(0, methodEnd, "POST")) {
+      request = httpRequest.REQUEST_POST;
+    } else {
+      throw new IOException("Bad HTTP request: "+new String(buf, start, methodEnd, "ISO-8859-1"));
+    }
+
+    int httpver;
+    if (verStart == -1) {
+      httpver = httpRequest.HTTPVER_09;
+    } else if (matches(verStart, verEnd, "HTTP/1.1")) {
+      httpver = httpRequest.HTTPVER_11;
+    } else if (matches(verStart, verEnd, "HTTP/1.0")) {
+      httpver = httpRequest.HTTPVER_10;
+    } else {
+      throw new IOException("Unknown HTTP version in request: "+
+	  new String(buf, start + verStart, verEnd - verStart, "ISO-8859-1"));
+    }
+
+    // HTTP/1.1 connections persist unless the client asks otherwise;
+    // HTTP/1.0 connections only if the client asks for it
+    boolean keepAlive = (httpver == httpRequest.HTTPVER_11);
+
+    // Look for a request body to skip. Since the bytes after the body
+    // are parsed as the next request, a body whose length is in any
+    // doubt is an error, and the connection is closed.
+    long contentLength = -1;
+    for (int i = 0; i < numHeaders; i++) {
+      int h = i * 4;
+      if (httpver != httpRequest.HTTPVER_09 && matches(headers[h], headers[h+1], CONNECTION)) {
+	if (hasToken(headers[h+2], headers[h+3], CLOSE)) keepAlive = false;
+	else if (hasToken(headers[h+2], headers[h+3], KEEP_ALIVE)) keepAlive = true;
+      } else if (matches(headers[h], headers[h+1], TRANSFER_ENCODING)) {
+	// Chunked bodies are not supported
+	throw new IOException("Transfer-Encoding not supported in request");
+      } else if (matches(headers[h], headers[h+1], CONTENT_LENGTH)) {
+	int from = headers[h+2], to = headers[h+3];
+	if (to == from || to - from > MAX_CONTENT_LENGTH_DIGITS) {
+	  throw new IOException("Bad Content-Length in request");
+	}
+	long cl = 0;
+	for (int j = from; j < to; j++) {
+	  int d = buf[start + j] - '0';
+	  if (d < 0 || d > 9) throw new IOException("Bad Content-Length in request");
+	  cl = cl * 10 + d;
+	}
+	if (contentLength != -1 && contentLength != cl) {
+	  throw new IOException("Conflicting Content-Length headers in request");
+	}
+	contentLength = cl;
+      }
+    }
 
-    while (true) {
-      switch (tok.nextToken()) {
+    int len = pos - start;
+    byte head[] = new byte[len];
+    System.arraycopy(buf, start, head, 0, len);
+    int hdrs[] = new int[numHeaders * 4];
+    System.arraycopy(headers, 0, hdrs, 0, hdrs.length);
 
-	case StreamTokenizer.TT_EOL:
-	  if (DEBUG) System.err.println("nextLine returning "+line);
-	  return line;
+    httpRequest req = new httpRequest(conn, request, head, urlStart, urlEnd, httpver, hdrs,
+	nextSeqNum++, keepAlive);
 
-	case StreamTokenizer.TT_EOF:
-	  return null;
+    start = pos;
+    resetHead();
+    if (contentLength > 0) {
+      bodyRemaining = contentLength;
+      state = STATE_BODY;
+    }
 
-	case StreamTokenizer.TT_WORD:
-	  if (DEBUG) System.err.println("nextLine got word "+tok.sval);
-	  if (first) {
-	    line = tok.sval;
-	    first = false;
-	  } else {
-	    line += " "+tok.sval;
-	  }
-	  break;
+    if (DEBUG) System.err.println("httpPacketReader: Pushing req to user");
+    if (!compQ.enqueue_lossy(req)) {
+      System.err.println("httpPacketReader: WARNING: Could not enqueue_lossy to user: "+req);
+    }
+  }
 
-	case StreamTokenizer.TT_NUMBER:
-	  if (DEBUG) System.err.println("nextLine got number "+tok.nval);
-	  if (first) {
-	    line = Double.toString(tok.nval);
-	    first = false;
-	  } else {
-	    line += " "+Double.toString(tok.nval);
-	  }
-	  break;
+  // Case-insensitive comparison of buf[start+from, start+to) with s
+  private boolean matches(int from, int to, String s) {
+    if (to - from != s.length()) return false;
+    for (int i = 0; i < s.length(); i++) {
+      int c = buf[start + from + i];
+      if (c >= 'a' && c <= 'z') c -= 'a' - 'A';
+      if (c != s.charAt(i)) return false;
+    }
+    return true;
+  }
 
-	default:
-	  continue;
+  // As above, against a lower-case byte pattern
+  private boolean matches(int from, int to, byte lower[]) {
+    if (to - from != lower.length) return false;
+    for (int i = 0; i < lower.length; i++) {
+      int c = buf[start + from + i];
+      if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+      if (c != lower[i]) return false;
+    }
+    return true;
+  }
+
+  // Whether the comma-separated list in buf[start+from, start+to)
+  // contains the given lower-case token
+  private boolean hasToken(int from, int to, byte lower[]) {
+    int i = from;
+    while (i < to) {
+      while (i < to && (buf[start + i] == ' ' || buf[start + i] == '\t' || buf[start + i] == ',')) i++;
+      int tokStart = i;
+      while (i < to && buf[start + i] != ',') i++;
+      int tokEnd = i;
+      while (tokEnd > tokStart && (buf[start + tokEnd - 1] == ' ' || buf[start + tokEnd - 1] == '\t')) tokEnd--;
+      if (matches(tokStart, tokEnd, lower)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Parser microbenchmark: feeds a typical browser GET request to an
+   * httpPacketReader, one packet per request, and reports the number
+   * of requests parsed into httpRequests per second. No sockets or
+   * stages are involved; see test/bench/microbench/HttpServerBench
+   * for the end-to-end figure. The number of iterations follows the
+   * <tt>bench.warmup</tt> and <tt>bench.iterations</tt> properties
+   * used by the other microbenchmarks.
+   *
+   * <p>Usage: <tt>java seda.sandStorm.lib.http.httpPacketReader [requestsPerIteration]</tt>
+   */
+  public static void main(String args[]) throws Exception {
+    int numRequests = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+    int warmup = Integer.getInteger("bench.warmup", 3).intValue();
+    int iterations = Integer.getInteger("bench.iterations", 5).intValue();
+
+    byte request[] = ("GET /index.html?a=1&b=2 HTTP/1.1\r\n"+
+	"Host: localhost\r\n"+
+	"User-Agent: Mozilla/5.0 (X11; Linux x86_64) httpPacketReader\r\n"+
+	"Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"+
+	"Accept-Language: en-US,en;q=0.5\r\n"+
+	"Accept-Encoding: gzip, deflate\r\n"+
+	"Connection: keep-alive\r\n"+
+	"\r\n").getBytes();
+    ATcpInPacket pkt = new ATcpInPacket(null, request, request.length, false);
+    FiniteQueue q = new FiniteQueue();
+    httpPacketReader hpr = new httpPacketReader(null, q);
+
+    double sum = 0, min = Double.MAX_VALUE, max = 0;
+    for (int i = 0; i < warmup + iterations; i++) {
+      long t1 = System.nanoTime();
+      for (int j = 0; j < numRequests; j++) {
+	hpr.parsePacket(pkt);
+	if (q.dequeue() == null) throw new IOException("No request parsed");
       }
+      long t2 = System.nanoTime();
+      if (i < warmup) continue;
+      double rate = (numRequests * 1.0e9) / (t2 - t1);
+      sum += rate;
+      if (rate < min) min = rate;
+      if (rate > max) max = rate;
     }
+    java.text.DecimalFormat fmt = new java.text.DecimalFormat("#,##0.###");
+    System.err.println("http request parse: "+fmt.format(sum / iterations)+" ops/sec"+
+	" (min "+fmt.format(min)+", max "+fmt.format(max)+", "+iterations+" iterations)");
   }
 
 }
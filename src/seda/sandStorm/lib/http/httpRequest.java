@@ -64,48 +64,75 @@ public class httpRequest extends TimeStampedEvent
   private int httpver;
   private int user_class = -2;
 
-  private Vector rawHeader;
-  private Hashtable header;
+  // The raw request head; the URL and header fields are offsets into it
+  // and are only converted to Strings when asked for
+  private byte head[];
+  private int urlStart, urlEnd;
+  private int headers[];
   private Hashtable query;
 
+  // Position of this request on its connection, used to send responses
+  // in request order
+  int seqNum;
+  private boolean keepAlive;
+
   /**
    * Package-internal: Create an httpRequest from the given connection,
-   * request string, URL, HTTP version, and header.
+   * request code, raw request head, URL offsets, HTTP version, and
+   * header offsets. <tt>headers</tt> holds four offsets into
+   * <tt>head</tt> per header line: name start, name end, value start
+   * and value end. <tt>seqNum</tt> is the position of the request on
+   * its connection.
    */
-  httpRequest(httpConnection conn, String requestStr, String url, 
-      int httpver, Vector header) throws IOException {
+  httpRequest(httpConnection conn, int request, byte head[], int urlStart,
+      int urlEnd, int httpver, int headers[], int seqNum, boolean keepAlive) {
     this.conn = conn;
+    this.request = request;
+    this.head = head;
+    this.urlStart = urlStart;
+    this.urlEnd = urlEnd;
     this.httpver = httpver;
-    this.rawHeader = header;
-    this.header = null;
-
-    // Check to see if there is a query string
-    int question = url.indexOf('?');
-    if (question != -1) {
-      query = new Hashtable();
-      this.url = url.substring(0, question);
-      StringTokenizer st = new StringTokenizer(url.substring(question+1), ";&");
-      while (st.hasMoreTokens()) {
-	String name_value_pair = decodeURL(st.nextToken());
-	int equals = name_value_pair.indexOf('=');
-
-	if (equals == -1) {
-	  putVal(name_value_pair, QUERY_KEY_SET);
-	} else {
-	  putVal(name_value_pair.substring(0,equals), 
-	      name_value_pair.substring(equals+1));
-	}
+    this.headers = headers;
+    this.seqNum = seqNum;
+    this.keepAlive = keepAlive;
+  }
+
+  // Split the URL from its query string, if any
+  private void parseURL() {
+    if (url != null) return;
+    int question = -1;
+    for (int i = urlStart; i < urlEnd; i++) {
+      if (head[i] == '?') {
+	question = i;
+	break;
       }
-    } else {
-      this.url = url;
+    }
+    if (question == -1) {
+      url = headerString(urlStart, urlEnd);
+      return;
     }
 
-    if (requestStr.equalsIgnoreCase("get")) {
-      request = REQUEST_GET;
-    } else if (requestStr.equalsIgnoreCase("post")) {
-      request = REQUEST_POST;
-    } else {
-      throw new IOException("Bad HTTP request: "+request);
+    url = headerString(urlStart, question);
+    query = new Hashtable();
+    StringTokenizer st = new StringTokenizer(headerString(question+1, urlEnd), ";&");
+    while (st.hasMoreTokens()) {
+      String name_value_pair = decodeURL(st.nextToken());
+      int equals = name_value_pair.indexOf('=');
+
+      if (equals == -1) {
+	putVal(name_value_pair, QUERY_KEY_SET);
+      } else {
+	putVal(name_value_pair.substring(0,equals), 
+	    name_value_pair.substring(equals+1));
+      }
+    }
+  }
+
+  private String headerString(int from, int to) {
+    try {
+      return new String(head, from, to - from, "ISO-8859-1");
+    } catch (UnsupportedEncodingException e) {
+      throw new Error("ISO-8859-1 not supported: "+e);
     }
   }
 
@@ -162,6 +189,7 @@ public class httpRequest extends TimeStampedEvent
    * Return the request URL.
    */
   public String getURL() {
+    parseURL();
     return url;
   }
 
@@ -186,17 +214,31 @@ public class httpRequest extends TimeStampedEvent
    * use <tt>getHeader("User-Agent")</tt>.
    */
   public String getHeader(String key) {
-    if (header == null) {
-      parseHeader();
+    // Header names are case-insensitive; if a header is repeated the
+    // last value wins
+    for (int i = headers.length - 4; i >= 0; i -= 4) {
+      if (nameMatches(headers[i], headers[i+1], key)) {
+	return headerString(headers[i+2], headers[i+3]);
+      }
+    }
+    return null;
+  }
+
+  private boolean nameMatches(int from, int to, String key) {
+    if (to - from != key.length()) return false;
+    for (int i = 0; i < key.length(); i++) {
+      char c = (char)(head[from + i] & 0xff);
+      char k = key.charAt(i);
+      if (c != k && Character.toLowerCase(c) != Character.toLowerCase(k)) return false;
     }
-    if (header == null) return null;
-    return (String)header.get(key);
+    return true;
   }
 
   /**
    * Return an enumeration of keys in the query string, if any.
    */
   public Enumeration getQueryKeys() {
+    parseURL();
     if (query == null) return null;
     return query.keys();
   }
@@ -207,6 +249,7 @@ public class httpRequest extends TimeStampedEvent
    * will be returned.
    */
   public String getQuery(String key) {
+    parseURL();
     if (query == null) return null;
     Object val = query.get(key);
     if (val == null) return null;
@@ -221,6 +264,7 @@ public class httpRequest extends TimeStampedEvent
    * Return the set of values associated with the given query key.
    */
   public String[] getQuerySet(String key) {
+    parseURL();
     if (query == null) return null;
     Object val = query.get(key);
     if (val == null) return null;
@@ -239,6 +283,16 @@ public class httpRequest extends TimeStampedEvent
     }
   }
 
+  /**
+   * Indicates whether the client expects the connection to remain open
+   * after the response to this request: true for HTTP/1.1 requests
+   * unless they carry <tt>Connection: close</tt>, and for HTTP/1.0
+   * requests carrying <tt>Connection: keep-alive</tt>.
+   */
+  public boolean isKeepAlive() {
+    return keepAlive;
+  }
+
   /**
    * Indicates whether this request requires a header to be sent
    * in the response (that is, whether this is HTTP/1.0 or later).
@@ -251,20 +305,6 @@ public class httpRequest extends TimeStampedEvent
     }
   }
 
-  // Convert rawHeader to header (key, value) pairs
-  private void parseHeader() {
-    if (rawHeader == null) return;
-    header = new Hashtable(1);
-    for (int i = 0; i < rawHeader.size(); i++) {
-      String h = (String)rawHeader.elementAt(i);
-      StringTokenizer s = new StringTokenizer(h);
-      String k = s.nextToken(":").trim();
-      String v = s.nextToken().trim();
-      if (DEBUG) System.err.println("httpRequest: key="+k+", val="+v);
-      header.put(k,v);
-    }
-  }
-
   public String toString() {
     String s = "httpRequest[";
     switch (request) {
@@ -272,21 +312,16 @@ public class httpRequest extends TimeStampedEvent
       case REQUEST_POST: s+="POST "; break;
       default: s+="??? "; break;
     }
-    s += url+" ";
+    s += getURL()+" ";
     switch (httpver) {
       case HTTPVER_09: s+="HTTP/0.9"; break;
       case HTTPVER_10: s+="HTTP/1.0"; break;
       case HTTPVER_11: s+="HTTP/1.1"; break;
     }
 
-    if (header == null) parseHeader(); 
-    if (header != null) {
-      Enumeration e = header.keys();
-      while (e.hasMoreElements()) {
-	String key = (String)e.nextElement();
-	String val = (String)header.get(key);
-	s += "\n\t"+key+" "+val;
-      }
+    for (int i = 0; i < headers.length; i += 4) {
+      s += "\n\t"+headerString(headers[i], headers[i+1])+" "+
+	headerString(headers[i+2], headers[i+3]);
     }
     s += "]";
     return s;
@@ -44,6 +44,7 @@ public class httpResponder implements httpConst, QueueElementIF {
 
   private httpResponse resp;
   private httpConnection conn;
+  private httpRequest req;
   private boolean closeConnection;
   private boolean sendHeader;
 
@@ -93,6 +94,7 @@ public class httpResponder implements httpConst, QueueElementIF {
   public httpResponder(httpResponse resp, httpRequest req,
       boolean closeConnection, boolean sendHeader) {
     this(resp, req.getConnection(), closeConnection, sendHeader);
+    this.req = req;
   }
 
   /**
@@ -104,15 +106,17 @@ public class httpResponder implements httpConst, QueueElementIF {
   public httpResponder(httpResponse resp, httpRequest req,
       boolean closeConnection) {
     this(resp, req.getConnection(), closeConnection);
+    this.req = req;
   }
 
   /**
    * Create an httpResponder with the given response, with the
-   * connection being derived from the given request.
+   * connection being derived from the given request. The connection
+   * is closed after the response unless the client asked for it to
+   * be kept alive.
    */
   public httpResponder(httpResponse resp, httpRequest req) {
-    this(resp, req.getConnection(), 
-	((req.getHttpVer() < httpRequest.HTTPVER_11)?(true):(false)));
+    this(resp, req, !req.isKeepAlive());
   }
 
   /**
@@ -122,6 +126,15 @@ public class httpResponder implements httpConst, QueueElementIF {
     return conn;
   }
 
+  /**
+   * Return the request this responder answers, or null if it was
+   * created for a connection only. Responses to requests are sent in
+   * the order the requests arrived on the connection.
+   */
+  public httpRequest getRequest() {
+    return req;
+  }
+
   /**
    * Return the response for this responder. 
    */
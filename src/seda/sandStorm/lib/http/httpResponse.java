@@ -72,6 +72,8 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
   protected BufferElement header;
   /** The payload for the response. */
   protected BufferElement payload;
+  /** The payload for the response, if it is sent from a file. */
+  protected FileRegionElement payloadRegion;
   /** The MIME type of the response. */
   protected String contentType;
   /** The content-length header. */
@@ -93,9 +95,7 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
     this.contentLength = payload.size;
 
     this.combinedData = null;
-    String hdrString = genHeader();
-    byte hdr[] = hdrString.getBytes();
-    this.header = new BufferElement(hdr);
+    this.header = new BufferElement(genHeader(0));
     this.payload = payload;
   }
 
@@ -116,12 +116,36 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
     this.contentLength = contentLength;
 
     this.combinedData = null;
-    String hdrString = genHeader();
-    byte hdr[] = hdrString.getBytes();
-    this.header = new BufferElement(hdr);
+    this.header = new BufferElement(genHeader(0));
     this.payload = payload;
   }
 
+  /**
+   * Create an httpResponse with the given response code whose payload
+   * is the given region of a file. The region is sent directly from the
+   * file to the socket.
+   *
+   * @param code The response code; should be one of the constants
+   *  from httpResponse.RESPONSE_*.
+   * @param contentType The MIME type of the response content. Should
+   *  not be CRLF-terminated.
+   * @param payloadRegion The file region to send as the payload; no
+   *  larger than Integer.MAX_VALUE bytes.
+   */
+  protected httpResponse(int code, String contentType, FileRegionElement payloadRegion) {
+    if (payloadRegion.count > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("httpResponse: file region too large ("+payloadRegion.count+" bytes)");
+    }
+    this.code = code;
+    this.contentType = contentType;
+    this.contentLength = (int)payloadRegion.count;
+
+    this.combinedData = null;
+    this.header = null;
+    this.payload = null;
+    this.payloadRegion = payloadRegion;
+  }
+
   /**
    * Create an httpResponse with the given response code with no payload.
    * A payload can be assigned later using setPayload().
@@ -161,13 +185,13 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
     this.contentType = contentType;
     this.contentLength = payloadSize;
 
-    String hdrString = genHeader();
-    byte hdr[] = hdrString.getBytes();
-    this.combinedData = new BufferElement(hdr.length + payloadSize);
+    // Build the header directly into the combined buffer
+    byte data[] = genHeader(payloadSize);
+    int hdrlen = data.length - payloadSize;
+    this.combinedData = new BufferElement(data);
     combinedData.compQ = compQ;
-    this.header = new BufferElement(combinedData.data, 0, hdr.length);
-    System.arraycopy(hdr, 0, header.data, 0, hdr.length);
-    this.payload = new BufferElement(combinedData.data, hdr.length, payloadSize);
+    this.header = new BufferElement(data, 0, hdrlen);
+    this.payload = new BufferElement(data, hdrlen, payloadSize);
   }
 
   /**
@@ -209,9 +233,7 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
    */
   public BufferElement getHeader() {
     if (this.header == null) {
-      String hdrString = genHeader();
-      byte hdr[] = hdrString.getBytes();
-      this.header = new BufferElement(hdr);
+      this.header = new BufferElement(genHeader(0));
     }
     return this.header;
   }
@@ -223,6 +245,15 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
     return payload;
   }
 
+  /**
+   * Returns the file region to send as the payload for this response,
+   * or null if the payload is not sent from a file. If non-null, it is
+   * sent after the buffers returned by getBuffers().
+   */
+  public FileRegionElement getPayloadRegion() {
+    return payloadRegion;
+  }
+
   /**
    * Set the default header string sent in all responses.
    */
@@ -238,41 +269,47 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
   }
 
   /**
-   * Generate the header.
+   * Generate the header, followed by 'trailing' bytes of free space.
    */
-  private String genHeader() {
-    String hdrString;
-    switch (code) {
-      case RESPONSE_OK: 
-	hdrString = HTTP_VERSION+" 200 OK\n"; break;
-      case RESPONSE_REDIRECT:
-	hdrString = HTTP_VERSION+" 301 MOVED PERMANENTLY\n"; break;
-      case RESPONSE_BAD_REQUEST: 
-	hdrString = HTTP_VERSION+" 400 BAD REQUEST\n"; break;
-      case RESPONSE_NOT_FOUND:
-	hdrString = HTTP_VERSION+" 404 NOT FOUND\n"; break;
-      case RESPONSE_INTERNAL_SERVER_ERROR:
-      	hdrString = HTTP_VERSION+" 500 INTERNAL SERVER ERROR\n"; break;
-      case RESPONSE_SERVICE_UNAVAILABLE:
-      	hdrString = HTTP_VERSION+" 503 SERVICE UNAVAILABLE\n"; break;
-      default: 
-	throw new Error("Bad code in httpResponse: "+code);
-    } 
-    if (defaultHeader != null) hdrString += defaultHeader;
-    if (contentType != null) {
-      hdrString += "Content-Type: "+contentType+CRLF;
-    }
-    if (contentLength != 0) {
-      hdrString += "Content-Length: "+contentLength+CRLF;
-    }
-    String ehdr = getEntityHeader();
-    if (ehdr != null) {
-      hdrString += ehdr;
+  private byte[] genHeader(int trailing) {
+    return httpHeaderCache.build(code, defaultHeader, contentType, 
+	contentLength, getEntityHeader(), trailing);
+  }
+
+  /**
+   * As getBuffers(sendHeader), but with the given header line
+   * (CRLF-terminated) added to the response header. Used by
+   * httpConnection to add a Connection header when needed.
+   */
+  BufferElement[] getBuffers(boolean sendHeader, String extraHeader) {
+    if (!sendHeader || extraHeader == null) return getBuffers(sendHeader);
+
+    // Insert the line before the blank line ending the header
+    BufferElement hdr = getHeader();
+    byte extra[] = httpHeaderCache.encode(extraHeader);
+    int hlen = hdr.size - CRLF.length();
+    BufferElement newhdr = new BufferElement(hdr.size + extra.length);
+    System.arraycopy(hdr.data, hdr.offset, newhdr.data, 0, hlen);
+    System.arraycopy(extra, 0, newhdr.data, hlen, extra.length);
+    System.arraycopy(hdr.data, hdr.offset + hlen, newhdr.data, hlen + extra.length, CRLF.length());
+
+    BufferElement bufarr[];
+    if (payload != null) {
+      bufarr = new BufferElement[2];
+      bufarr[0] = newhdr;
+      if (combinedData != null) {
+	// Keep the completion queue of the combined buffer
+	bufarr[1] = new BufferElement(payload.data, payload.offset, payload.size, combinedData.compQ);
+      } else {
+	bufarr[1] = payload;
+      }
+    } else {
+      bufarr = new BufferElement[1];
+      bufarr[0] = newhdr;
     }
-    hdrString += CRLF;
-    return hdrString;
+    return bufarr;
   }
-  
+
   /**
    * Get an array of BufferElements corresponding to this response.
    * Used internally when sending the response to a client.
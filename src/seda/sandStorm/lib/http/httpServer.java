@@ -40,16 +40,26 @@ import java.net.*;
  * connection is closed, a SinkClosedEvent is pushed, with the 
  * sink pointer set to the httpConnection that closed. 
  *
+ * <p>Connections are persistent where the client allows it; a
+ * connection with no outstanding requests which has been idle for
+ * longer than the idle timeout (configured by
+ * <tt>global.http.idleTimeout</tt>, in milliseconds) is closed.
+ * A connection whose oldest request has waited longer than the
+ * response timeout (<tt>global.http.responseTimeout</tt>) for its
+ * response is also closed at its next idle check, as no later
+ * response on it could otherwise be sent.
+ *
  * @author Matt Welsh (mdw@cs.berkeley.edu)
  * @see httpConnection
  * @see httpRequest
  */
-public class httpServer implements EventHandlerIF, httpConst {
+public class httpServer implements BatchEventHandlerIF, httpConst {
 
   private static final boolean DEBUG = false;
 
   // These are protected to allow subclasses to use them
   protected int listenPort;
+  protected InetAddress bindAddr;
   protected ATcpServerSocket servsock;
   protected ManagerIF mgr;
   protected SinkIF mySink, clientSink;
@@ -57,6 +67,12 @@ public class httpServer implements EventHandlerIF, httpConst {
   // ATcpConnection -> httpConnection
   private Hashtable connTable; 
 
+  // Idle connection timeout in ms; <= 0 disables
+  private int idleTimeout;
+  // Limit in ms on the wait for the oldest request's response; <= 0 disables
+  private int responseTimeout;
+  private ssTimer timer;
+
   private static int num_svrs = 0;
 
   /**
@@ -72,11 +88,23 @@ public class httpServer implements EventHandlerIF, httpConst {
    * the given listenPort. 
    */
   public httpServer(ManagerIF mgr, SinkIF clientSink, int listenPort) throws Exception {
+    this(mgr, clientSink, listenPort, null);
+  }
+
+  /** 
+   * Create an HTTP server listening for incoming connections on
+   * the given listenPort of the given local address. A null bindAddr
+   * listens on all local addresses.
+   */
+  public httpServer(ManagerIF mgr, SinkIF clientSink, int listenPort, InetAddress bindAddr) throws Exception {
     this.mgr = mgr;
     this.clientSink = clientSink;
     this.listenPort = listenPort;
+    this.bindAddr = bindAddr;
 
     this.connTable = new Hashtable();
+    this.idleTimeout = mgr.getConfig().getInt("global.http.idleTimeout");
+    this.responseTimeout = mgr.getConfig().getInt("global.http.responseTimeout");
 
     // Create the stage and register it
     String sname = "httpServer "+num_svrs+" <port "+listenPort+">";
@@ -92,13 +120,14 @@ public class httpServer implements EventHandlerIF, httpConst {
   public void init(ConfigDataIF config) throws Exception {
     mySink = config.getStage().getSink();
 
-    servsock = new ATcpServerSocket(listenPort, mySink, WRITE_CLOG_THRESHOLD);
+    servsock = new ATcpServerSocket(listenPort, mySink, WRITE_CLOG_THRESHOLD, 1, 0, bindAddr);
   }
 
   /** 
    * The Sandstorm stage destroy method.
    */
   public void destroy() {
+    if (timer != null) timer.doneWithTimer();
   }
 
   /**
@@ -124,13 +153,18 @@ public class httpServer implements EventHandlerIF, httpConst {
       } catch (IOException ioe) {
 	System.err.println("httpServer: Got IOException during packet processing for connection "+hc+": "+ioe);
 	ioe.printStackTrace();
-	// XXX Should close connection
+	try {
+	  hc.close(clientSink);
+	} catch (SinkClosedException sce) {
+	  // Ignore
+	}
       }
 
     } else if (qel instanceof ATcpConnection) {
       ATcpConnection conn = (ATcpConnection)qel;
       httpConnection hc = new httpConnection(conn, this, clientSink);
       connTable.put(conn, hc);
+      scheduleIdleCheck(hc, idleTimeout);
 
       // Profile the connection if profiling enabled
       ProfilerIF profiler = mgr.getProfiler();
@@ -155,29 +189,91 @@ public class httpServer implements EventHandlerIF, httpConst {
       SinkClosedEvent sce = (SinkClosedEvent)qel;
       httpConnection hc = (httpConnection)connTable.get(sce.sink);
       if (hc != null) {
+	hc.closed();
 	clientSink.enqueue_lossy(new SinkClosedEvent(hc));
         cleanupConnection(hc);
       }
 
     } else if (qel instanceof ATcpListenSuccessEvent) {
       clientSink.enqueue_lossy(qel);
+
+    } else if (qel instanceof idleCheckEvent) {
+      httpConnection hc = ((idleCheckEvent)qel).hc;
+      if (connTable.get(hc.getConnection()) != hc) return; // Already closed
+      hc.idleTimer = null;
+      if (idleTimeout <= 0) return;
+
+      long now = System.currentTimeMillis();
+      long idle = now - hc.lastActivity;
+      long wait = hc.headWait(now);
+      boolean stuck = (responseTimeout > 0 && wait >= responseTimeout);
+      if ((idle >= idleTimeout && !hc.hasOutstandingRequests()) || stuck) {
+	if (DEBUG) System.err.println("httpServer: closing "+(stuck?"stalled":"idle")+" connection "+hc);
+	try {
+	  hc.close(clientSink);
+	} catch (SinkClosedException sce) {
+	  // Ignore
+	}
+      } else {
+	long delay = (idle >= idleTimeout)?idleTimeout:(idleTimeout - idle);
+	if (wait > 0 && responseTimeout > 0) delay = Math.min(delay, responseTimeout - wait);
+	scheduleIdleCheck(hc, delay);
+      }
     }
   }
 
+  // Arrange for the idle check of the given connection to run
+  // after the given delay
+  private synchronized void scheduleIdleCheck(httpConnection hc, long delay) {
+    if (idleTimeout <= 0) return;
+    if (timer == null) timer = new ssTimer();
+    hc.idleTimer = timer.registerEvent(delay, new idleCheckEvent(hc), mySink);
+  }
+
   public void handleEvents(QueueElementIF[] qelarr) {
-    for (int i = 0; i < qelarr.length; i++) {
+    handleEvents(qelarr, qelarr.length);
+  }
+
+  public void handleEvents(QueueElementIF[] qelarr, int length) {
+    for (int i = 0; i < length; i++) {
       handleEvent(qelarr[i]);
     }
   }
 
   void cleanupConnection(httpConnection hc) {
     connTable.remove(hc.getConnection());
+    // Drop the gauge added if global.profile.sockets is set
+    ProfilerIF profiler = mgr.getProfiler();
+    if (profiler != null) profiler.remove(hc.getConnection());
+    ssTimer.ssTimerEvent evt = hc.idleTimer;
+    if (evt != null && timer != null) {
+      hc.idleTimer = null;
+      timer.cancelEvent(evt);
+    }
   }
 
   public String toString() {
     return "httpServer [listen="+listenPort+"]";
   }
 
+  /**
+   * Set the time in milliseconds after which an idle connection is
+   * closed. A value <= 0 disables idle connection timeouts. Open
+   * connections use the new value at their next idle check; once
+   * timeouts are disabled, open connections are no longer checked
+   * even if they are enabled again later.
+   */
+  public void setIdleTimeout(int millis) {
+    this.idleTimeout = millis;
+  }
+
+  /**
+   * Return the idle connection timeout in milliseconds.
+   */
+  public int getIdleTimeout() {
+    return idleTimeout;
+  }
+
   /** 
    * Register a sink to receive incoming packets on this
    * connection.
@@ -215,4 +311,12 @@ public class httpServer implements EventHandlerIF, httpConst {
     return servsock;
   }
 
+  // Pushed by the timer to check whether a connection has gone idle
+  private static class idleCheckEvent implements QueueElementIF {
+    httpConnection hc;
+    idleCheckEvent(httpConnection hc) {
+      this.hc = hc;
+    }
+  }
+
 }
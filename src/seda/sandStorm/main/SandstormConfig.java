@@ -56,6 +56,8 @@ public class SandstormConfig implements Cloneable {
 	public static final String THREADMGR_TPSTM = "TPSTM";
 	/** Value for defaultThreadMgr to use the aggregating TPSTM. */
 	public static final String THREADMGR_AggTPSTM = "AggTPSTM";
+	/** Value for defaultThreadMgr to use the work-stealing thread manager. */
+	public static final String THREADMGR_FJTM = "FJTM";
 
 	/** String value for setting boolean configuration entries to true. */
 	public static final String CONFIG_TRUE = "true";
@@ -74,10 +76,19 @@ public class SandstormConfig implements Cloneable {
 			"global.threadPool.minThreads", "1",
 			"global.threadPool.maxThreads", "20",
 			"global.threadPool.blockTime", "1000",
+			"global.threadPool.virtual", CONFIG_FALSE,
+			"global.threadPool.maxActivations", "10000",
 			"global.threadPool.sizeController.enable", CONFIG_FALSE,
 			"global.threadPool.sizeController.delay", "2000",
 			"global.threadPool.sizeController.threshold", "1000",
 			"global.threadPool.sizeController.idleTimeThreshold", "1000",
+			"global.threadPool.sizeController.usePlanner", CONFIG_FALSE,
+
+			"global.queue.type", "finite",
+			"global.queue.waitTime.enable", CONFIG_FALSE,
+
+			"global.FJTM.numThreads", "-1",
+			"global.FJTM.batchSize", "64",
 
 			"global.batchController.enable", CONFIG_FALSE,
 			"global.batchController.minBatch", "1",
@@ -89,6 +100,21 @@ public class SandstormConfig implements Cloneable {
 			CONFIG_FALSE, "global.profile.graphfilename",
 			"sandstorm-graph.txt",
 
+			"global.metrics.jmx.enable", CONFIG_FALSE,
+			"global.metrics.http.enable", CONFIG_FALSE,
+			"global.metrics.http.port", "8089",
+			"global.metrics.bindAddress", "127.0.0.1",
+
+			"global.trace.enable", CONFIG_FALSE,
+			"global.trace.sampleInterval", "1000",
+			"global.trace.bufferSize", "65536",
+			"global.trace.filename", "sandstorm-trace.json",
+
+			"global.planner.enable", CONFIG_FALSE,
+			"global.planner.delay", "5000",
+			"global.planner.targetThroughput", "0",
+			"global.planner.targetUtilization", "0.8",
+
 			/* Deprecated */
 			"global.AggTPSTM.governor.enable", CONFIG_FALSE,
 			"global.AggTPSTM.governor.delay", "2000",
@@ -100,6 +126,15 @@ public class SandstormConfig implements Cloneable {
 			"global.aSocket.enable", CONFIG_TRUE, "global.aSocket.provider",
 			"NBIO", "global.aSocket.rateController.enable", CONFIG_FALSE,
 			"global.aSocket.rateController.rate", "100000.0",
+			"global.aSocket.bufferPool.enable", CONFIG_FALSE,
+			"global.aSocket.bufferPool.maxSlabs", "64",
+			"global.aSocket.udp.batchSize", "64",
+			"global.aSocket.numLoops", "0",
+			"global.aSocket.loopPolicy", "hash",
+
+			"global.http.idleTimeout", "30000",
+			"global.http.responseTimeout", "120000",
+			"global.http.fileCache.maxBytes", "33554432",
 
 			"global.aDisk.enable", CONFIG_FALSE,
 			"global.aDisk.threadPool.initialThreads", "1",
@@ -0,0 +1,88 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+import java.text.DecimalFormat;
+
+/**
+ * Common driver for the microbenchmarks in this directory. A benchmark
+ * is run for a number of warmup iterations, whose results are
+ * discarded, followed by a number of measurement iterations; the
+ * mean and spread of the measurement iterations is reported in the
+ * same one-line format for every benchmark so that runs can be
+ * compared with a simple grep.
+ *
+ * <p>The number of iterations may be overridden with the system
+ * properties <tt>bench.warmup</tt> and <tt>bench.iterations</tt>.
+ */
+public class BenchRunner {
+
+  public static final int WARMUP_ITERATIONS =
+    Integer.getInteger("bench.warmup", 3).intValue();
+  public static final int MEASUREMENT_ITERATIONS =
+    Integer.getInteger("bench.iterations", 5).intValue();
+
+  private static final DecimalFormat FORMAT = new DecimalFormat("#,##0.###");
+
+  /**
+   * A single benchmark iteration. Returns the number of operations
+   * performed; the runner times the call itself.
+   */
+  public interface Iteration {
+    public long run() throws Exception;
+  }
+
+  /**
+   * Run the given iteration through the warmup and measurement
+   * phases and print the throughput under the given name.
+   */
+  public static void run(String name, Iteration it) throws Exception {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      it.run();
+    }
+    double rates[] = new double[MEASUREMENT_ITERATIONS];
+    for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+      long t1 = System.nanoTime();
+      long ops = it.run();
+      long t2 = System.nanoTime();
+      rates[i] = (ops * 1.0e9) / (t2 - t1);
+    }
+    report(name, "ops/sec", rates);
+  }
+
+  /**
+   * Print the mean, minimum and maximum of the given samples.
+   */
+  public static void report(String name, String units, double samples[]) {
+    double sum = 0, min = Double.MAX_VALUE, max = 0;
+    for (int i = 0; i < samples.length; i++) {
+      sum += samples[i];
+      if (samples[i] < min) min = samples[i];
+      if (samples[i] > max) max = samples[i];
+    }
+    System.err.println(name+": "+FORMAT.format(sum / samples.length)+" "+units+
+	" (min "+FORMAT.format(min)+", max "+FORMAT.format(max)+
+	", "+samples.length+" iterations)");
+  }
+
+}
@@ -0,0 +1,128 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.core.*;
+import seda.sandStorm.main.*;
+import seda.sandStorm.lib.aSocket.*;
+import java.net.*;
+
+/**
+ * Measures loopback echo throughput through aSocket. A server and a
+ * client connection run in the same process; the client keeps a fixed
+ * window of messages in flight and the server echoes every packet it
+ * reads. The reported figure is the number of echoed messages per
+ * second.
+ *
+ * <p>Usage: <tt>java EchoBench [provider] [msgSize] [window] [port]</tt>,
+ * where provider is any value accepted by
+ * <tt>global.aSocket.provider</tt> (default NIO).
+ */
+public class EchoBench {
+
+  private static final int MESSAGES_PER_ITERATION = 50000;
+
+  public static void main(String args[]) {
+    try {
+      String provider = (args.length > 0) ? args[0] : "NIO";
+      final int msgSize = (args.length > 1) ? Integer.parseInt(args[1]) : 1024;
+      final int window = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+      int port = (args.length > 3) ? Integer.parseInt(args[3]) : 5721;
+
+      SandstormConfig cfg = new SandstormConfig();
+      cfg.putString("global.aSocket.provider", provider);
+      new Sandstorm(cfg);
+
+      // Server side: echo every packet back on its connection
+      final FiniteQueue serverQ = new FiniteQueue();
+      new ATcpServerSocket(port, serverQ);
+      Thread server = new Thread("EchoBench server") {
+	public void run() {
+	  while (true) {
+	    QueueElementIF qel = serverQ.blocking_dequeue(-1);
+	    if (qel instanceof ATcpConnection) {
+	      ((ATcpConnection)qel).startReader(serverQ);
+	    } else if (qel instanceof ATcpInPacket) {
+	      ATcpInPacket pkt = (ATcpInPacket)qel;
+	      pkt.getConnection().enqueue_lossy(new BufferElement(pkt.getBytes()));
+	    }
+	  }
+	}
+      };
+      server.setDaemon(true);
+      server.start();
+
+      // The listen socket is opened asynchronously, so retry the connect
+      final FiniteQueue clientQ = new FiniteQueue();
+      ATcpConnection conn = null;
+      for (int tries = 0; conn == null; tries++) {
+	new ATcpClientSocket(InetAddress.getByName("127.0.0.1"), port, clientQ);
+	QueueElementIF qel;
+	do {
+	  qel = clientQ.blocking_dequeue(-1);
+	} while (!(qel instanceof ATcpConnection) && !(qel instanceof ATcpConnectFailedEvent));
+	if (qel instanceof ATcpConnection) {
+	  conn = (ATcpConnection)qel;
+	} else if (tries > 50) {
+	  throw new Exception("Could not connect to port "+port);
+	} else {
+	  Thread.sleep(100);
+	}
+      }
+      conn.startReader(clientQ);
+      final ATcpConnection client = conn;
+      final byte msg[] = new byte[msgSize];
+
+      BenchRunner.run("echo "+provider+" size="+msgSize+" window="+window,
+	  new BenchRunner.Iteration() {
+	public long run() throws Exception {
+	  long toReceive = (long)MESSAGES_PER_ITERATION * msgSize;
+	  long received = 0;
+	  int sent = 0;
+	  while (received < toReceive) {
+	    while (sent < MESSAGES_PER_ITERATION &&
+		((long)sent * msgSize) - received < (long)window * msgSize) {
+	      client.enqueue_lossy(new BufferElement(msg));
+	      sent++;
+	    }
+	    QueueElementIF qel = clientQ.blocking_dequeue(-1);
+	    if (qel instanceof ATcpInPacket) {
+	      ATcpInPacket pkt = (ATcpInPacket)qel;
+	      received += pkt.size();
+	      pkt.release();
+	    }
+	  }
+	  return MESSAGES_PER_ITERATION;
+	}
+      });
+      System.exit(0);
+
+    } catch (Exception e) {
+      System.err.println("main() got exception: "+e);
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+}
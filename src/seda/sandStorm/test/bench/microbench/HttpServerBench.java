@@ -0,0 +1,163 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.core.*;
+import seda.sandStorm.main.*;
+import seda.sandStorm.lib.http.*;
+import java.io.*;
+import java.net.*;
+
+/**
+ * Measures end-to-end request throughput of httpServer. A number of
+ * blocking client threads issue small GET requests with a typical set
+ * of browser headers over persistent loopback connections; the server
+ * answers each with a fixed small response. The reported figure is
+ * the number of requests completed per second, and so includes the
+ * socket round trip and stage handoffs as well as request parsing.
+ * The parser alone is measured by running
+ * <tt>seda.sandStorm.lib.http.httpPacketReader</tt>.
+ *
+ * <p>Usage: <tt>java HttpServerBench [numClients] [port] [provider]</tt>
+ */
+public class HttpServerBench {
+
+  private static final int REQUESTS_PER_ITERATION = 5000;
+
+  private static final byte REQUEST[] = ("GET /index.html?a=1&b=2 HTTP/1.1\r\n"+
+      "Host: localhost\r\n"+
+      "User-Agent: Mozilla/5.0 (X11; Linux x86_64) HttpServerBench\r\n"+
+      "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"+
+      "Accept-Language: en-US,en;q=0.5\r\n"+
+      "Accept-Encoding: gzip, deflate\r\n"+
+      "Connection: keep-alive\r\n"+
+      "\r\n").getBytes();
+
+  private static final byte BODY[] = "Hello, world!\n".getBytes();
+
+  /**
+   * Read one response from the given stream, returning false on EOF.
+   */
+  private static boolean readResponse(DataInputStream in) throws IOException {
+    int contentLength = 0;
+    String line;
+    while ((line = readLine(in)) != null) {
+      if (line.length() == 0) {
+	in.readFully(new byte[contentLength]);
+	return true;
+      }
+      if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+	contentLength = Integer.parseInt(line.substring(15).trim());
+      }
+    }
+    return false;
+  }
+
+  private static String readLine(DataInputStream in) throws IOException {
+    StringBuffer sb = new StringBuffer();
+    int c;
+    while ((c = in.read()) != -1) {
+      if (c == '\n') return sb.toString();
+      if (c != '\r') sb.append((char)c);
+    }
+    return null;
+  }
+
+  public static void main(String args[]) {
+    try {
+      final int numClients = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+      final int port = (args.length > 1) ? Integer.parseInt(args[1]) : 5722;
+
+      String provider = (args.length > 2) ? args[2] : "NIO";
+
+      SandstormConfig cfg = new SandstormConfig();
+      cfg.putString("global.aSocket.provider", provider);
+      Sandstorm ss = new Sandstorm(cfg);
+      final FiniteQueue requestQ = new FiniteQueue();
+      new httpServer(ss.getManager(), requestQ, port);
+
+      Thread server = new Thread("HttpServerBench server") {
+	public void run() {
+	  while (true) {
+	    QueueElementIF qel = requestQ.blocking_dequeue(-1);
+	    if (qel instanceof httpRequest) {
+	      httpRequest req = (httpRequest)qel;
+	      httpResponse resp = new httpOKResponse("text/plain", new BufferElement(BODY));
+	      req.getConnection().enqueue_lossy(new httpResponder(resp, req));
+	    }
+	  }
+	}
+      };
+      server.setDaemon(true);
+      server.start();
+
+      final Socket socks[] = new Socket[numClients];
+      for (int i = 0; i < numClients; i++) {
+	for (int tries = 0; socks[i] == null; tries++) {
+	  try {
+	    socks[i] = new Socket("127.0.0.1", port);
+	  } catch (ConnectException ce) {
+	    if (tries > 50) throw ce;
+	    Thread.sleep(100);
+	  }
+	  if (socks[i] != null) socks[i].setTcpNoDelay(true);
+	}
+      }
+
+      BenchRunner.run("http requests, "+numClients+" clients", new BenchRunner.Iteration() {
+	public long run() throws Exception {
+	  final int perClient = REQUESTS_PER_ITERATION / numClients;
+	  Thread clients[] = new Thread[numClients];
+	  for (int i = 0; i < numClients; i++) {
+	    final Socket s = socks[i];
+	    clients[i] = new Thread() {
+	      public void run() {
+		try {
+		  OutputStream out = s.getOutputStream();
+		  DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+		  for (int j = 0; j < perClient; j++) {
+		    out.write(REQUEST);
+		    if (!readResponse(in)) throw new EOFException("Server closed connection");
+		  }
+		} catch (IOException e) {
+		  System.err.println("HttpServerBench client got exception: "+e);
+		}
+	      }
+	    };
+	    clients[i].start();
+	  }
+	  for (int i = 0; i < numClients; i++) clients[i].join();
+	  return perClient * numClients;
+	}
+      });
+      System.exit(0);
+
+    } catch (Exception e) {
+      System.err.println("main() got exception: "+e);
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+}
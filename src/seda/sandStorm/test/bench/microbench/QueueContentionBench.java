@@ -0,0 +1,96 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+import seda.sandStorm.core.*;
+import seda.sandStorm.api.*;
+
+/**
+ * Measures enqueue/dequeue throughput of the QueueIF implementations
+ * under contention: N producer threads enqueue into a single queue
+ * which is drained by one consumer thread, as a stage's thread does.
+ * N is varied from 1 to 64.
+ *
+ * <p>Usage: <tt>java QueueContentionBench [finite|lockfree] ...</tt>;
+ * with no arguments both queue types are measured.
+ */
+public class QueueContentionBench {
+
+  private static final int EVENTS_PER_ITERATION = 1000000;
+  private static final int MAX_PRODUCERS = 64;
+  private static final int DEQUEUE_BATCH = 256;
+
+  private static final QueueElementIF EVENT = new QueueElementIF(){ };
+
+  private static QueueIF newQueue(String type) {
+    if (type.equals("lockfree")) return new LockFreeQueue();
+    return new FiniteQueue();
+  }
+
+  private static long runOnce(String type, int numProducers) throws Exception {
+    final QueueIF queue = newQueue(type);
+    final int perProducer = EVENTS_PER_ITERATION / numProducers;
+    final int total = perProducer * numProducers;
+
+    Thread producers[] = new Thread[numProducers];
+    for (int i = 0; i < numProducers; i++) {
+      producers[i] = new Thread() {
+	public void run() {
+	  for (int j = 0; j < perProducer; j++) {
+	    while (!queue.enqueue_lossy(EVENT)) Thread.yield();
+	  }
+	}
+      };
+    }
+    for (int i = 0; i < numProducers; i++) producers[i].start();
+
+    int got = 0;
+    while (got < total) {
+      QueueElementIF arr[] = queue.blocking_dequeue(10, DEQUEUE_BATCH);
+      if (arr != null) got += arr.length;
+    }
+    for (int i = 0; i < numProducers; i++) producers[i].join();
+    return total;
+  }
+
+  public static void main(String args[]) {
+    try {
+      String types[] = (args.length > 0) ? args : new String[] { "finite", "lockfree" };
+      for (int t = 0; t < types.length; t++) {
+	final String type = types[t];
+	for (int n = 1; n <= MAX_PRODUCERS; n *= 2) {
+	  final int numProducers = n;
+	  BenchRunner.run(type+" producers="+n, new BenchRunner.Iteration() {
+	    public long run() throws Exception {
+	      return runOnce(type, numProducers);
+	    }
+	  });
+	}
+      }
+    } catch (Exception e) {
+      System.err.println("main() got exception: "+e);
+      e.printStackTrace();
+    }
+  }
+
+}
@@ -0,0 +1,113 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.core.*;
+import seda.sandStorm.main.*;
+
+/**
+ * Measures end-to-end latency of passing an event through a chain of
+ * stages. The main thread enqueues a timestamped event onto the first
+ * stage, each stage forwards it to the next, and the last stage
+ * returns it to the main thread; the reported figure is the mean time
+ * per stage hop.
+ *
+ * <p>Usage: <tt>java StageHopBench [numStages] [threadManager]</tt>,
+ * where threadManager is any value accepted by
+ * <tt>global.defaultThreadManager</tt> (default TPSTM).
+ */
+public class StageHopBench {
+
+  private static final int EVENTS_PER_ITERATION = 20000;
+
+  static class HopEvent implements QueueElementIF {
+    long t0;
+  }
+
+  static class HopHandler implements EventHandlerIF {
+    private SinkIF next;
+    HopHandler(SinkIF next) { this.next = next; }
+    public void init(ConfigDataIF config) { }
+    public void destroy() { }
+    public void handleEvent(QueueElementIF item) {
+      try {
+	next.enqueue(item);
+      } catch (SinkException se) {
+	System.err.println("StageHopBench: got "+se);
+      }
+    }
+    public void handleEvents(QueueElementIF items[]) {
+      for (int i = 0; i < items.length; i++) handleEvent(items[i]);
+    }
+  }
+
+  public static void main(String args[]) {
+    try {
+      final int numStages = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+      SandstormConfig cfg = new SandstormConfig();
+      cfg.putString("global.aSocket.provider", "NIO");
+      if (args.length > 1) cfg.putString("global.defaultThreadManager", args[1]);
+      Sandstorm ss = new Sandstorm(cfg);
+      ManagerIF mgr = ss.getManager();
+
+      final FiniteQueue replyQ = new FiniteQueue();
+      SinkIF next = replyQ;
+      for (int i = numStages - 1; i >= 0; i--) {
+	next = mgr.createStage("hop"+i, new HopHandler(next), null).getSink();
+      }
+      final SinkIF first = next;
+      final double samples[] = new double[1];
+
+      BenchRunner.Iteration it = new BenchRunner.Iteration() {
+	public long run() throws Exception {
+	  HopEvent ev = new HopEvent();
+	  long total = 0;
+	  for (int i = 0; i < EVENTS_PER_ITERATION; i++) {
+	    ev.t0 = System.nanoTime();
+	    first.enqueue(ev);
+	    while (replyQ.blocking_dequeue(-1) == null) ;
+	    total += System.nanoTime() - ev.t0;
+	  }
+	  samples[0] = (total / 1000.0) / ((double)EVENTS_PER_ITERATION * (numStages + 1));
+	  return EVENTS_PER_ITERATION;
+	}
+      };
+
+      for (int i = 0; i < BenchRunner.WARMUP_ITERATIONS; i++) it.run();
+      double lat[] = new double[BenchRunner.MEASUREMENT_ITERATIONS];
+      for (int i = 0; i < lat.length; i++) {
+	it.run();
+	lat[i] = samples[0];
+      }
+      BenchRunner.report("stage hop latency, "+numStages+" stages", "usec/hop", lat);
+      System.exit(0);
+
+    } catch (Exception e) {
+      System.err.println("main() got exception: "+e);
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+}
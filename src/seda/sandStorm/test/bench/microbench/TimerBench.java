@@ -0,0 +1,84 @@
+/* 
+ * Copyright (c) 2001 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+import seda.sandStorm.core.*;
+import seda.sandStorm.api.*;
+
+/**
+ * Measures the cost of registering and cancelling ssTimer events.
+ * Events are registered with randomly distributed timeouts far enough
+ * in the future that none fire during the measurement, which is the
+ * common case for request timeouts.
+ */
+public class TimerBench {
+
+  private static final int EVENTS_PER_ITERATION = 100000;
+  private static final int MAX_TIMEOUT_MS = 60000;
+
+  private static final QueueElementIF EVENT = new QueueElementIF(){ };
+
+  public static void main(String args[]) {
+    try {
+      final ssTimer timer = new ssTimer();
+      final SinkIF sink = new FiniteQueue();
+      final ssTimer.ssTimerEvent events[] = new ssTimer.ssTimerEvent[EVENTS_PER_ITERATION];
+      final long timeouts[] = new long[EVENTS_PER_ITERATION];
+      java.util.Random r = new java.util.Random(1);
+      for (int i = 0; i < EVENTS_PER_ITERATION; i++) {
+	timeouts[i] = 1000 + r.nextInt(MAX_TIMEOUT_MS);
+      }
+
+      BenchRunner.run("register", new BenchRunner.Iteration() {
+	public long run() throws Exception {
+	  for (int i = 0; i < EVENTS_PER_ITERATION; i++) {
+	    events[i] = timer.registerEvent(timeouts[i], EVENT, sink);
+	  }
+	  timer.cancelAll();
+	  return EVENTS_PER_ITERATION;
+	}
+      });
+
+      BenchRunner.run("register+cancel", new BenchRunner.Iteration() {
+	public long run() throws Exception {
+	  for (int i = 0; i < EVENTS_PER_ITERATION; i++) {
+	    events[i] = timer.registerEvent(timeouts[i], EVENT, sink);
+	  }
+	  for (int i = 0; i < EVENTS_PER_ITERATION; i++) {
+	    timer.cancelEvent(events[i]);
+	  }
+	  return EVENTS_PER_ITERATION * 2;
+	}
+      });
+
+      timer.doneWithTimer();
+      System.exit(0);
+
+    } catch (Exception e) {
+      System.err.println("main() got exception: "+e);
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+}